@@ -0,0 +1,582 @@
+package uk.me.dewi.android.batteryalarm;
+
+import static uk.me.dewi.android.batteryalarm.AlarmPrefs.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+/**
+ * An immutable snapshot of the alarm settings.
+ *
+ * The preferences are parsed once and the result is shared by the activity,
+ * the launcher, the startup receiver and the service until a preference
+ * changes, so a battery check does not have to parse any strings. The
+ * sharing is done by {@link ConfigCache}, this class reads the preferences
+ * through {@link Preferences} and has no Android dependencies.
+ *
+ * Besides the main settings there are up to {@link #PROFILE_COUNT} alarm
+ * profiles, each kept in its own preferences file with the same keys plus a
+ * weekly schedule. Anything a profile does not set is taken from the main
+ * settings. The schedules are compiled into a {@link ProfileTable} so
+ * {@link #getActive(Clock)} finds the profile for the current time with a
+ * single lookup.
+ *
+ * The parsed settings are also written to a small binary file, so a new
+ * process can read them with a single read instead of loading and parsing
+ * the XML preferences files:
+ *
+ * <pre>
+ *  0  int    magic number
+ *  4  int    version
+ *  8  int    number of records, the main settings then each profile
+ * 12         the records
+ *     int    CRC32 of everything before it
+ * </pre>
+ *
+ * Each record has fixed offsets:
+ *
+ * <pre>
+ *  0  int    flags, enabled 1, launch on startup 2, disable at night 4,
+ *            show status 8
+ *  4  int    delay minutes
+ *  8  int    threshold
+ * 12  int    warning minutes
+ * 16  int    critical threshold
+ * 20  int    charged level
+ * 24  int    maximum temperature
+ * 28  int    maximum drain rate
+ * 32  int    repeat alert step
+ * 36  int    repeat alert minutes
+ * 40  int    start of the alert window, minute of the day
+ * 44  int    end of the alert window, minute of the day
+ * 48  int    days the profile is active, bit 0 for Monday, 0 if it is not
+ * 52  int    minute of the day the profile starts
+ * 56  int    minute of the day the profile ends
+ * 60  short  length of the notification sound
+ * 62         notification sound, UTF-8
+ * </pre>
+ *
+ * A file that is missing, of another version or damaged is ignored and
+ * written again from the preferences.
+ */
+public final class AlarmConfig implements CheckSettings {
+
+    /** Number of alarm profiles besides the main settings. */
+    public static final int PROFILE_COUNT = 3;
+
+    public static final String CONFIG_FILE = "config.bin";
+    public static final int MAGIC = 0x42414346; // "BACF"
+    public static final int VERSION = 3;
+    
+    private static final int FLAG_ENABLED = 1;
+    private static final int FLAG_LAUNCH_ON_STARTUP = 2;
+    private static final int FLAG_DISABLE_AT_NIGHT = 4;
+    private static final int FLAG_SHOW_STATUS = 8;
+    
+    private static final int HEADER_SIZE = 12;
+    private static final int SOUND_OFFSET = 62;
+    private static final int MAX_FILE_SIZE = 8192;
+    
+    /** Settings nothing has been set for. */
+    private static final AlarmConfig DEFAULTS = new AlarmConfig();
+
+    /**
+     * The preferences the settings are parsed from, SharedPreferences on a device.
+     */
+    public interface Preferences {
+
+        String getString(String key, String defValue);
+
+        boolean getBoolean(String key, boolean defValue);
+
+        /**
+         * Called for a preference that is set but cannot be parsed, before
+         * its default is used instead.
+         */
+        void onBadValue(String key, String value);
+    }
+
+    private final boolean mEnabled;
+    private final int mDelayMinutes;
+    private final int mThreshold;
+    private final int mWarningMinutes;
+    private final int mCriticalThreshold;
+    private final int mChargedLevel;
+    private final int mMaxTemperature;
+    private final int mMaxDrainRate;
+    private final int mRealertStep;
+    private final int mRealertMinutes;
+    private final String mNotificationSound;
+    private final boolean mLaunchOnStartup;
+    private final boolean mDisableAtNight;
+    private final boolean mShowStatus;
+    private final int mWindowStart;
+    private final int mWindowEnd;
+    private final TimeWindow mAlertWindow;
+    
+    private final int mProfileDays;
+    private final TimeWindow mProfileWindow;
+    
+    // Only set on the main settings
+    private AlarmConfig[] mProfiles;
+    private ProfileTable mProfileTable = ProfileTable.DEFAULT;
+
+    /**
+     * Parses the main settings and the profiles.
+     *
+     * @param settings the main preferences then those of each profile,
+     * {@link #PROFILE_COUNT} + 1 in all
+     * @return the main settings
+     */
+    public static AlarmConfig parse(Preferences[] settings){
+        AlarmConfig[] profiles = new AlarmConfig[PROFILE_COUNT + 1];
+        profiles[0] = new AlarmConfig(settings[0]);
+        for(int i = 1; i <= PROFILE_COUNT; i++){
+            profiles[i] = new AlarmConfig(settings[i], profiles[0]);
+        }
+        profiles[0].setProfiles(profiles);
+        return profiles[0];
+    }
+    
+    /**
+     * @return the name of the preferences file holding a profile
+     */
+    public static String getProfileName(int profile){
+        return "profile" + profile;
+    }
+
+    private AlarmConfig(){
+        mEnabled = DEFAULT_ENABLED;
+        mDelayMinutes = DEFAULT_DELAY_MINUTES;
+        mThreshold = DEFAULT_THRESHOLD;
+        mWarningMinutes = DEFAULT_WARNING_MINUTES;
+        mCriticalThreshold = DEFAULT_CRITICAL_THRESHOLD;
+        mChargedLevel = DEFAULT_CHARGED_LEVEL;
+        mMaxTemperature = DEFAULT_MAX_TEMPERATURE;
+        mMaxDrainRate = DEFAULT_MAX_DRAIN_RATE;
+        mRealertStep = DEFAULT_REALERT_STEP;
+        mRealertMinutes = DEFAULT_REALERT_MINUTES;
+        mNotificationSound = "";
+        mLaunchOnStartup = DEFAULT_LAUNCH_ON_STARTUP;
+        mDisableAtNight = DEFAULT_DISABLE_AT_NIGHT;
+        mShowStatus = DEFAULT_SHOW_STATUS;
+        mWindowStart = TimeWindow.parseMinuteOfDay(DEFAULT_MIN_TIME, 0);
+        mWindowEnd = TimeWindow.parseMinuteOfDay(DEFAULT_MAX_TIME, 0);
+        mAlertWindow = TimeWindow.ALWAYS;
+        mProfileDays = 0;
+        mProfileWindow = TimeWindow.ALWAYS;
+    }
+
+    public AlarmConfig(Preferences settings){
+        this(settings, DEFAULTS);
+    }
+    
+    /**
+     * @param defaults settings to use for anything the preferences do not
+     * set, the main settings when parsing a profile
+     */
+    public AlarmConfig(Preferences settings, AlarmConfig defaults){
+        mEnabled = settings.getBoolean(PREF_ENABLED, defaults.mEnabled);
+        mDelayMinutes = getInt(settings, PREF_DELAY_MINUTES, defaults.mDelayMinutes);
+        mThreshold = getInt(settings, PREF_THRESHOLD, defaults.mThreshold);
+        mWarningMinutes = getInt(settings, PREF_WARNING_MINUTES, defaults.mWarningMinutes);
+        mCriticalThreshold = getInt(settings, PREF_CRITICAL_THRESHOLD, defaults.mCriticalThreshold);
+        mChargedLevel = getInt(settings, PREF_CHARGED_LEVEL, defaults.mChargedLevel);
+        mMaxTemperature = getInt(settings, PREF_MAX_TEMPERATURE, defaults.mMaxTemperature);
+        mMaxDrainRate = getInt(settings, PREF_MAX_DRAIN_RATE, defaults.mMaxDrainRate);
+        mRealertStep = getInt(settings, PREF_REALERT_STEP, defaults.mRealertStep);
+        mRealertMinutes = getInt(settings, PREF_REALERT_MINUTES, defaults.mRealertMinutes);
+        mNotificationSound = settings.getString(PREF_NOTIFICATION_SOUND, defaults.mNotificationSound);
+        mLaunchOnStartup = settings.getBoolean(PREF_LAUNCH_ON_STARTUP, defaults.mLaunchOnStartup);
+        mDisableAtNight = settings.getBoolean(PREF_DISABLE_AT_NIGHT, defaults.mDisableAtNight);
+        mShowStatus = settings.getBoolean(PREF_SHOW_STATUS, defaults.mShowStatus);
+        mWindowStart = getMinuteOfDay(settings, PREF_MIN_TIME, defaults.mWindowStart);
+        mWindowEnd = getMinuteOfDay(settings, PREF_MAX_TIME, defaults.mWindowEnd);
+        mAlertWindow = mDisableAtNight ? new TimeWindow(mWindowStart, mWindowEnd) : TimeWindow.ALWAYS;
+
+        int days = 0;
+        if(settings.getBoolean(PREF_PROFILE_ACTIVE, false)){
+            for(int day = 0; day < PREF_PROFILE_DAYS.length; day++){
+                if(settings.getBoolean(PREF_PROFILE_DAYS[day], true)){
+                    days |= 1 << day;
+                }
+            }
+        }
+        mProfileDays = days;
+        mProfileWindow = new TimeWindow(getMinuteOfDay(settings, PREF_PROFILE_START, 0),
+                                        getMinuteOfDay(settings, PREF_PROFILE_END, 0));
+    }
+    
+    private AlarmConfig(ByteBuffer in, String notificationSound){
+        int flags = in.getInt();
+        mEnabled = (flags & FLAG_ENABLED) != 0;
+        mLaunchOnStartup = (flags & FLAG_LAUNCH_ON_STARTUP) != 0;
+        mDisableAtNight = (flags & FLAG_DISABLE_AT_NIGHT) != 0;
+        mShowStatus = (flags & FLAG_SHOW_STATUS) != 0;
+        mDelayMinutes = in.getInt();
+        mThreshold = in.getInt();
+        mWarningMinutes = in.getInt();
+        mCriticalThreshold = in.getInt();
+        mChargedLevel = in.getInt();
+        mMaxTemperature = in.getInt();
+        mMaxDrainRate = in.getInt();
+        mRealertStep = in.getInt();
+        mRealertMinutes = in.getInt();
+        mWindowStart = in.getInt();
+        mWindowEnd = in.getInt();
+        mAlertWindow = mDisableAtNight ? new TimeWindow(mWindowStart, mWindowEnd) : TimeWindow.ALWAYS;
+        mProfileDays = in.getInt();
+        mProfileWindow = new TimeWindow(in.getInt(), in.getInt());
+        mNotificationSound = notificationSound;
+    }
+    
+    /**
+     * Makes these the main settings of the given profiles and compiles
+     * their schedules.
+     */
+    private void setProfiles(AlarmConfig[] profiles){
+        int[] days = new int[profiles.length];
+        TimeWindow[] windows = new TimeWindow[profiles.length];
+        for(int i = 1; i < profiles.length; i++){
+            days[i] = profiles[i].mProfileDays;
+            windows[i] = profiles[i].mProfileWindow;
+        }
+        mProfiles = profiles;
+        mProfileTable = ProfileTable.compile(days, windows);
+    }
+    
+    /**
+     * Reads settings written by {@link #save(File)}.
+     * 
+     * @return the main settings, or null if the file is missing, of another
+     * version or damaged
+     */
+    public static AlarmConfig load(File file) throws IOException {
+        if(!file.exists()){
+            return null;
+        }
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        ByteBuffer in;
+        try{
+            long length = raf.length();
+            if(length < HEADER_SIZE + 4 || length > MAX_FILE_SIZE){
+                return null;
+            }
+            in = ByteBuffer.allocate((int)length);
+            raf.readFully(in.array());
+        }
+        finally{
+            raf.close();
+        }
+        
+        int end = in.capacity() - 4;
+        CRC32 crc = new CRC32();
+        crc.update(in.array(), 0, end);
+        if(in.getInt(0) != MAGIC || in.getInt(4) != VERSION || in.getInt(end) != (int)crc.getValue()
+                || in.getInt(8) != PROFILE_COUNT + 1){
+            return null;
+        }
+        
+        AlarmConfig[] profiles = new AlarmConfig[PROFILE_COUNT + 1];
+        in.position(HEADER_SIZE);
+        for(int i = 0; i < profiles.length; i++){
+            int record = in.position();
+            if(record + SOUND_OFFSET > end){
+                return null;
+            }
+            int soundLength = in.getShort(record + SOUND_OFFSET - 2) & 0xffff;
+            if(record + SOUND_OFFSET + soundLength > end){
+                return null;
+            }
+            String sound = new String(in.array(), record + SOUND_OFFSET, soundLength, "UTF-8");
+            profiles[i] = new AlarmConfig(in, sound);
+            in.position(record + SOUND_OFFSET + soundLength);
+        }
+        if(in.position() != end){
+            return null;
+        }
+        profiles[0].setProfiles(profiles);
+        return profiles[0];
+    }
+    
+    /**
+     * Writes the main settings and the profiles to a new file which then
+     * replaces the old one, so a crash part way through leaves the old
+     * settings in place.
+     */
+    public void save(File file) throws IOException {
+        byte[][] sounds = new byte[mProfiles.length][];
+        int length = HEADER_SIZE + 4;
+        for(int i = 0; i < mProfiles.length; i++){
+            sounds[i] = encode(mProfiles[i].mNotificationSound);
+            length += SOUND_OFFSET + sounds[i].length;
+        }
+        
+        ByteBuffer out = ByteBuffer.allocate(length);
+        out.putInt(MAGIC)
+           .putInt(VERSION)
+           .putInt(mProfiles.length);
+        for(int i = 0; i < mProfiles.length; i++){
+            mProfiles[i].writeRecord(out, sounds[i]);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(out.array(), 0, out.position());
+        out.putInt((int)crc.getValue());
+        
+        File temp = new File(file.getPath() + ".tmp");
+        RandomAccessFile raf = new RandomAccessFile(temp, "rw");
+        try{
+            raf.setLength(0);
+            raf.write(out.array());
+            raf.getFD().sync();
+        }
+        finally{
+            raf.close();
+        }
+        if(!temp.renameTo(file)){
+            temp.delete();
+            throw new IOException("Could not replace "+file);
+        }
+    }
+    
+    private void writeRecord(ByteBuffer out, byte[] sound){
+        out.putInt((mEnabled ? FLAG_ENABLED : 0) 
+                   | (mLaunchOnStartup ? FLAG_LAUNCH_ON_STARTUP : 0) 
+                   | (mDisableAtNight ? FLAG_DISABLE_AT_NIGHT : 0)
+                   | (mShowStatus ? FLAG_SHOW_STATUS : 0))
+           .putInt(mDelayMinutes)
+           .putInt(mThreshold)
+           .putInt(mWarningMinutes)
+           .putInt(mCriticalThreshold)
+           .putInt(mChargedLevel)
+           .putInt(mMaxTemperature)
+           .putInt(mMaxDrainRate)
+           .putInt(mRealertStep)
+           .putInt(mRealertMinutes)
+           .putInt(mWindowStart)
+           .putInt(mWindowEnd)
+           .putInt(mProfileDays)
+           .putInt(mProfileWindow.getStart())
+           .putInt(mProfileWindow.getEnd())
+           .putShort((short)sound.length)
+           .put(sound);
+    }
+    
+    private static byte[] encode(String value) throws UnsupportedEncodingException {
+        byte[] bytes = value.getBytes("UTF-8");
+        if(bytes.length > MAX_FILE_SIZE / 8){
+            // Not a Uri we could have been given, treat as the default sound
+            return new byte[0];
+        }
+        return bytes;
+    }
+    
+    /**
+     * Called on the main settings.
+     * 
+     * @return the settings of the profile active now, these settings if no
+     * profile is
+     */
+    public AlarmConfig getActive(Clock clock){
+        if(mProfiles == null){
+            return this;
+        }
+        return mProfiles[mProfileTable.get(clock)];
+    }
+    
+    /**
+     * Called on the main settings.
+     * 
+     * @param profile 0 for the main settings, 1 to {@link #PROFILE_COUNT} for the profiles
+     */
+    public AlarmConfig getProfile(int profile){
+        if(mProfiles == null){
+            return this;
+        }
+        return mProfiles[profile];
+    }
+    
+    /**
+     * @return whether this profile is ever active
+     */
+    public boolean isScheduled(){
+        return mProfileDays != 0;
+    }
+
+    /**
+     * @return the value parsed as an int, or the default if it is missing or
+     * not a number
+     */
+    public static int parseInt(String value, int defaultValue){
+        return parseInt(null, null, value, defaultValue);
+    }
+
+    /**
+     * @return the preference parsed as an int, or the default if it is
+     * missing or not a number, which is reported to the preferences
+     */
+    private static int getInt(Preferences settings, String key, int defaultValue){
+        return parseInt(settings, key, settings.getString(key, null), defaultValue);
+    }
+
+    private static int parseInt(Preferences settings, String key, String value, int defaultValue){
+        if(value == null || value.trim().length() == 0){
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        }
+        catch(NumberFormatException e){
+            if(settings != null){
+                settings.onBadValue(key, value);
+            }
+            return defaultValue;
+        }
+    }
+
+    /**
+     * @return the preference parsed as minutes since midnight, or the
+     * default if it is missing or not a time of day, which is reported to
+     * the preferences
+     */
+    private static int getMinuteOfDay(Preferences settings, String key, int defaultValue){
+        String value = settings.getString(key, null);
+        if(value == null || value.trim().length() == 0){
+            return defaultValue;
+        }
+        int minute = TimeWindow.parseMinuteOfDay(value, -1);
+        if(minute < 0){
+            settings.onBadValue(key, value);
+            return defaultValue;
+        }
+        return minute;
+    }
+
+    public boolean isEnabled() {
+        return mEnabled;
+    }
+
+    public int getDelayMinutes() {
+        return mDelayMinutes;
+    }
+
+    public long getDelayMillis() {
+        return mDelayMinutes * MonitorScheduler.MINUTE;
+    }
+
+    public int getThreshold() {
+        return mThreshold;
+    }
+
+    /**
+     * @return how many minutes before the threshold is reached the user
+     * wants to be warned, 0 for no early warning
+     */
+    public int getWarningMinutes() {
+        return mWarningMinutes;
+    }
+
+    public long getWarningMillis() {
+        return mWarningMinutes * MonitorScheduler.MINUTE;
+    }
+
+    /**
+     * @return the level at which the battery is critical, 0 if not wanted
+     */
+    public int getCriticalThreshold() {
+        return mCriticalThreshold;
+    }
+
+    /**
+     * @return the level at which to tell the user to unplug the charger, 0 if not wanted
+     */
+    public int getChargedLevel() {
+        return mChargedLevel;
+    }
+
+    /**
+     * @return the battery temperature in degrees Celsius to alert above, 0 if not wanted
+     */
+    public int getMaxTemperature() {
+        return mMaxTemperature;
+    }
+
+    /**
+     * @return whether the charged level or temperature rules are wanted,
+     * which apply while the device is on a charger
+     */
+    public boolean isCheckedWhilePlugged() {
+        return mChargedLevel > 0 || mMaxTemperature > 0;
+    }
+
+    /**
+     * @return the discharge rate in percent per hour to alert above, 0 if not wanted
+     */
+    public int getMaxDrainRate() {
+        return mMaxDrainRate;
+    }
+
+    /**
+     * @return percent of battery lost after an alert before alerting again, 0 for never
+     */
+    public int getRealertStep() {
+        return mRealertStep;
+    }
+
+    /**
+     * @return minutes after an alert before alerting again, 0 for never
+     */
+    public int getRealertMinutes() {
+        return mRealertMinutes;
+    }
+
+    public long getRealertMillis() {
+        return mRealertMinutes * MonitorScheduler.MINUTE;
+    }
+
+    /**
+     * @return the alert rules these settings ask for, indexed by the RULE_
+     * constants, with null for rules that are turned off
+     */
+    public AlertRule[] buildRules() {
+        return AlertEngine.buildRules(mCriticalThreshold, 
+                                      mThreshold, 
+                                      mWarningMinutes, 
+                                      mMaxTemperature, 
+                                      mMaxDrainRate, 
+                                      mChargedLevel);
+    }
+
+    /**
+     * @return the ringtone Uri to alert with, or an empty string for the default sound
+     */
+    public String getNotificationSound() {
+        return mNotificationSound;
+    }
+
+    public boolean isLaunchOnStartup() {
+        return mLaunchOnStartup;
+    }
+
+    public boolean isDisableAtNight() {
+        return mDisableAtNight;
+    }
+
+    /**
+     * @return whether to keep a notification showing the battery status
+     */
+    public boolean isShowStatus() {
+        return mShowStatus;
+    }
+
+    /**
+     * @return the hours in which the user wants to be alerted
+     */
+    public TimeWindow getAlertWindow() {
+        return mAlertWindow;
+    }
+}
@@ -0,0 +1,63 @@
+package uk.me.dewi.android.batteryalarm;
+
+/**
+ * The keys of the alarm preferences and the values used when they are not
+ * set.
+ *
+ * Kept apart from {@link BatteryAlarm} so classes that have no Android
+ * dependencies can use them on a plain JVM.
+ */
+public final class AlarmPrefs {
+
+    public static final String PREF_ENABLED = "prefEnabled";
+    public static final String PREF_NOTIFICATION_SOUND = "prefNotificationSound";
+    public static final String PREF_THRESHOLD = "prefThreshold";
+    public static final String PREF_LAUNCH_ON_STARTUP = "prefLaunchOnStartup";
+    public static final String PREF_DELAY_MINUTES = "prefDelayMinutes";
+    public static final String PREF_DISABLE_AT_NIGHT = "prefDisableAtNight";
+    public static final String PREF_MIN_TIME = "prefMinTime";
+    public static final String PREF_MAX_TIME = "prefMaxTime";
+    public static final String PREF_WARNING_MINUTES = "prefWarningMinutes";
+    public static final String PREF_CRITICAL_THRESHOLD = "prefCriticalThreshold";
+    public static final String PREF_CHARGED_LEVEL = "prefChargedLevel";
+    public static final String PREF_MAX_TEMPERATURE = "prefMaxTemperature";
+    public static final String PREF_MAX_DRAIN_RATE = "prefMaxDrainRate";
+    public static final String PREF_REALERT_STEP = "prefRealertStep";
+    public static final String PREF_REALERT_MINUTES = "prefRealertMinutes";
+    public static final String PREF_SHOW_STATUS = "prefShowStatus";
+    
+    /** Keys only found in the preferences of an alarm profile. */
+    public static final String PREF_PROFILE_ACTIVE = "prefProfileActive";
+    public static final String PREF_PROFILE_NAME = "prefProfileName";
+    public static final String PREF_PROFILE_START = "prefProfileStart";
+    public static final String PREF_PROFILE_END = "prefProfileEnd";
+    public static final String[] PREF_PROFILE_DAYS = {
+        "prefProfileMonday", "prefProfileTuesday", "prefProfileWednesday", "prefProfileThursday",
+        "prefProfileFriday", "prefProfileSaturday", "prefProfileSunday"
+    };
+    
+    public static final int SOUND_TYPE_DEFAULT = 0;
+    public static final int SOUND_TYPE_SYSTEM = 1;
+    public static final int SOUND_TYPE_CUSTOM = 2;
+    
+    public static final boolean DEFAULT_ENABLED = false;
+    public static final int DEFAULT_DELAY_MINUTES = 20;
+    public static final int DEFAULT_THRESHOLD = 15;
+    public static final boolean DEFAULT_LAUNCH_ON_STARTUP = true;
+    public static final int DEFAULT_NOTIFICATION_SOUND_TYPE = SOUND_TYPE_DEFAULT;
+    
+    public static final boolean DEFAULT_DISABLE_AT_NIGHT = false;
+    public static final String DEFAULT_MIN_TIME = "9:00";
+    public static final String DEFAULT_MAX_TIME = "23:00";
+    
+    public static final int DEFAULT_WARNING_MINUTES = 0;
+    public static final int DEFAULT_CRITICAL_THRESHOLD = 0;
+    public static final int DEFAULT_CHARGED_LEVEL = 0;
+    public static final int DEFAULT_MAX_TEMPERATURE = 0;
+    public static final int DEFAULT_MAX_DRAIN_RATE = 0;
+    public static final int DEFAULT_REALERT_STEP = 5;
+    public static final int DEFAULT_REALERT_MINUTES = 60;
+    public static final boolean DEFAULT_SHOW_STATUS = false;
+
+    private AlarmPrefs(){}
+}
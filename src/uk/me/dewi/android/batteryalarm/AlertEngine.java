@@ -0,0 +1,125 @@
+package uk.me.dewi.android.batteryalarm;
+
+/**
+ * Evaluates a set of {@link AlertRule}s against each sample in a single pass.
+ *
+ * Which rules are firing is kept as a bit mask, bit n for the rule at index
+ * n, so a rule is only reported when it starts firing rather than on every
+ * sample while its condition holds. Evaluating does not allocate.
+ */
+public class AlertEngine {
+
+    public static final int MAX_RULES = 32;
+
+    /** Indexes of the alert rules, in priority order. */
+    public static final int RULE_CRITICAL = 0;
+    public static final int RULE_LOW = 1;
+    public static final int RULE_WARNING = 2;
+    public static final int RULE_TEMPERATURE = 3;
+    public static final int RULE_DRAIN_RATE = 4;
+    public static final int RULE_CHARGED = 5;
+    public static final int RULE_COUNT = 6;
+
+    public static final int LEVEL_HYSTERESIS = 2;
+    public static final int WARNING_HYSTERESIS_MINUTES = 10;
+    public static final int TEMPERATURE_HYSTERESIS = 2;
+    public static final int DRAIN_RATE_HYSTERESIS = 5;
+    public static final int CHARGED_HYSTERESIS = 5;
+
+    private final AlertRule[] mRules;
+    private int mFiring;
+
+    /**
+     * @param rules the rules, in priority order. A null entry is a rule that
+     * has been turned off.
+     */
+    public AlertEngine(AlertRule[] rules){
+        if(rules.length > MAX_RULES){
+            throw new IllegalArgumentException("At most "+MAX_RULES+" rules");
+        }
+        mRules = rules;
+    }
+
+    /**
+     * Evaluates every rule against the sample.
+     *
+     * @return the mask of rules that started firing with this sample
+     */
+    public int evaluate(BatterySample sample){
+        int firing = 0;
+        AlertRule[] rules = mRules;
+        for(int i = 0; i < rules.length; i++){
+            AlertRule rule = rules[i];
+            if(rule != null && rule.evaluate(sample, (mFiring & (1 << i)) != 0)){
+                firing |= 1 << i;
+            }
+        }
+        int started = firing & ~mFiring;
+        mFiring = firing;
+        return started;
+    }
+
+    /**
+     * @return the mask of rules that are firing
+     */
+    public int getFiring(){
+        return mFiring;
+    }
+
+    /**
+     * Restores the firing state, for example after the rules have been rebuilt.
+     */
+    public void setFiring(int firing){
+        mFiring = firing;
+    }
+
+    public int size(){
+        return mRules.length;
+    }
+
+    /**
+     * Builds the rules the settings ask for, indexed by the RULE_
+     * constants, with null for rules that are turned off. Every setting but
+     * the threshold is off at 0.
+     */
+    public static AlertRule[] buildRules(int criticalThreshold, int threshold, int warningMinutes, 
+                                         int maxTemperature, int maxDrainRate, int chargedLevel) {
+        AlertRule[] rules = new AlertRule[RULE_COUNT];
+        if(criticalThreshold > 0){
+            rules[RULE_CRITICAL] = ThresholdRule.levelBelow(criticalThreshold, 
+                                                                        LEVEL_HYSTERESIS);
+        }
+        rules[RULE_LOW] = ThresholdRule.levelBelow(threshold, LEVEL_HYSTERESIS);
+        if(warningMinutes > 0){
+            rules[RULE_WARNING] = ThresholdRule.minutesLeftBelow(warningMinutes, 
+                                                                             WARNING_HYSTERESIS_MINUTES);
+        }
+        if(maxTemperature > 0){
+            rules[RULE_TEMPERATURE] = ThresholdRule.temperatureAbove(maxTemperature * 10, 
+                                                                                 TEMPERATURE_HYSTERESIS * 10);
+        }
+        if(maxDrainRate > 0){
+            rules[RULE_DRAIN_RATE] = ThresholdRule.drainAbove(maxDrainRate, 
+                                                                          DRAIN_RATE_HYSTERESIS);
+        }
+        if(chargedLevel > 0){
+            rules[RULE_CHARGED] = ThresholdRule.chargedTo(chargedLevel, CHARGED_HYSTERESIS);
+        }
+        return rules;
+    }
+
+    /**
+     * @return the index of the highest priority rule in the mask, or -1 if it is empty
+     */
+    public static int first(int mask){
+        if(mask == 0){
+            return -1;
+        }
+        int index = 0;
+        while((mask & 1) == 0){
+            mask >>>= 1;
+            index++;
+        }
+        return index;
+    }
+}
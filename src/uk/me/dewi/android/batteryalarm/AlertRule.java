@@ -0,0 +1,16 @@
+package uk.me.dewi.android.batteryalarm;
+
+/**
+ * A condition on a battery sample that the user should be alerted about.
+ */
+public interface AlertRule {
+
+    /**
+     * Checks the sample. Implementations must not allocate.
+     *
+     * @param firing whether the rule was firing for the previous sample, so
+     * the rule can apply hysteresis instead of flapping around its limit
+     * @return whether the rule is firing for this sample
+     */
+    boolean evaluate(BatterySample sample, boolean firing);
+}
@@ -0,0 +1,230 @@
+package uk.me.dewi.android.batteryalarm;
+
+/**
+ * Plays the alert sound, keeping the players prepared between alerts.
+ *
+ * The chosen sound is only prepared again when the source changes. If it
+ * can not be prepared or fails while playing, the built in sound is played
+ * instead. Playback is asynchronous, the {@link Listener} is told once the
+ * sound has finished.
+ *
+ * All calls, including the callbacks from the players, must be made on the
+ * same thread.
+ */
+public class AlertSoundEngine {
+
+    /** The source of the built in sound. */
+    public static final String DEFAULT_SOUND = "";
+
+    public static final int STATE_IDLE = 0;
+    public static final int STATE_READY = 1;
+    public static final int STATE_PLAYING = 2;
+
+    /**
+     * A sound player, normally backed by a MediaPlayer.
+     */
+    public interface Player {
+
+        /**
+         * Loads a sound so it can be started without delay.
+         *
+         * @param source Uri of the sound, or {@link AlertSoundEngine#DEFAULT_SOUND}
+         */
+        void prepare(String source) throws Exception;
+
+        /**
+         * Starts playing. The player must call {@link AlertSoundEngine#onFinished(Player)}
+         * once the sound has finished or has played for long enough, or
+         * {@link AlertSoundEngine#onError(Player)} if it fails.
+         */
+        void start(AlertSoundEngine engine);
+
+        /**
+         * Stops playing and rewinds, leaving the sound prepared.
+         */
+        void stop();
+
+        void release();
+    }
+
+    public interface Listener {
+        void onSoundFinished();
+    }
+
+    private final Player mCustomPlayer;
+    private final Player mDefaultPlayer;
+
+    private String mCustomSource;
+    private boolean mDefaultPrepared;
+
+    private Player mPlaying;
+    private Listener mListener;
+
+    /**
+     * @param customPlayer plays the sound chosen by the user
+     * @param defaultPlayer plays the built in sound
+     */
+    public AlertSoundEngine(Player customPlayer, Player defaultPlayer){
+        mCustomPlayer = customPlayer;
+        mDefaultPlayer = defaultPlayer;
+    }
+
+    public int getState(){
+        if(mPlaying != null){
+            return STATE_PLAYING;
+        }
+        if(mCustomSource != null || mDefaultPrepared){
+            return STATE_READY;
+        }
+        return STATE_IDLE;
+    }
+
+    /**
+     * Prepares a sound ahead of an alert so it starts without delay.
+     *
+     * @return whether the sound, or the built in sound standing in for it, is ready
+     */
+    public boolean prepare(String source){
+        if(source != null && source.length() > 0 && prepareCustom(source)){
+            return true;
+        }
+        return prepareDefault();
+    }
+
+    /**
+     * Starts playing a sound.
+     *
+     * @return true if the sound has started, in which case the listener will
+     * be told when it finishes, or false if nothing is played
+     */
+    public boolean play(String source, Listener listener){
+        if(mPlaying != null){
+            // Already alerting
+            return false;
+        }
+
+        if(source != null && source.length() > 0 && prepareCustom(source)){
+            if(start(mCustomPlayer, listener)){
+                return true;
+            }
+            releaseCustom();
+        }
+        if(prepareDefault() && start(mDefaultPlayer, listener)){
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Called by the playing player once the sound has finished.
+     */
+    public void onFinished(Player player){
+        if(player != mPlaying){
+            return;
+        }
+        player.stop();
+        finish();
+    }
+
+    /**
+     * Called by the playing player if it fails. The built in sound is played
+     * instead of a failed custom sound.
+     */
+    public void onError(Player player){
+        if(player != mPlaying){
+            return;
+        }
+        Listener listener = mListener;
+        mPlaying = null;
+        mListener = null;
+
+        if(player == mCustomPlayer){
+            releaseCustom();
+            if(prepareDefault() && start(mDefaultPlayer, listener)){
+                return;
+            }
+        }
+        else{
+            mDefaultPlayer.release();
+            mDefaultPrepared = false;
+        }
+        listener.onSoundFinished();
+    }
+
+    /**
+     * Frees both players, for example while the device is charging and no
+     * alert can happen.
+     */
+    public void release(){
+        if(mPlaying != null){
+            mPlaying.stop();
+            finish();
+        }
+        releaseCustom();
+        if(mDefaultPrepared){
+            mDefaultPlayer.release();
+            mDefaultPrepared = false;
+        }
+    }
+
+    private boolean prepareCustom(String source){
+        if(source.equals(mCustomSource)){
+            return true;
+        }
+        releaseCustom();
+        try{
+            mCustomPlayer.prepare(source);
+            mCustomSource = source;
+            return true;
+        }
+        catch(Exception e){
+            mCustomPlayer.release();
+            return false;
+        }
+    }
+
+    private void releaseCustom(){
+        if(mCustomSource != null){
+            mCustomPlayer.release();
+            mCustomSource = null;
+        }
+    }
+
+    private boolean prepareDefault(){
+        if(mDefaultPrepared){
+            return true;
+        }
+        try{
+            mDefaultPlayer.prepare(DEFAULT_SOUND);
+            mDefaultPrepared = true;
+            return true;
+        }
+        catch(Exception e){
+            mDefaultPlayer.release();
+            return false;
+        }
+    }
+
+    private boolean start(Player player, Listener listener){
+        mPlaying = player;
+        mListener = listener;
+        try{
+            player.start(this);
+            return true;
+        }
+        catch(RuntimeException e){
+            mPlaying = null;
+            mListener = null;
+            return false;
+        }
+    }
+
+    private void finish(){
+        Listener listener = mListener;
+        mPlaying = null;
+        mListener = null;
+        if(listener != null){
+            listener.onSoundFinished();
+        }
+    }
+}
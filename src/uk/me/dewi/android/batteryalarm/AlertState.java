@@ -0,0 +1,182 @@
+package uk.me.dewi.android.batteryalarm;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * Decides whether the user should be alerted again while an alert is
+ * already outstanding.
+ *
+ * <ul>
+ * <li>ARMED - nothing outstanding, the next rule to fire alerts.</li>
+ * <li>FIRED - the user has been alerted. They are alerted again once
+ * another step of battery has been lost or the re-alert interval has
+ * passed.</li>
+ * <li>SNOOZED - the user dismissed the alert, only another step of battery
+ * lost alerts them again.</li>
+ * </ul>
+ *
+ * Plugging in a charger, or every rule clearing, re-arms the alert.
+ *
+ * The state is small enough to be saved as one fixed size record so that
+ * it survives the process being killed between checks.
+ */
+public class AlertState {
+
+    public static final int ARMED = 0;
+    public static final int FIRED = 1;
+    public static final int SNOOZED = 2;
+
+    public static final int RECORD_SIZE = 16;
+
+    private final byte[] mRecord = new byte[RECORD_SIZE];
+
+    private int mState = ARMED;
+    private int mFiring;
+    private int mLevel;
+    private long mTime;
+    private boolean mDirty;
+
+    /**
+     * Works out whether this sample should alert the user.
+     *
+     * @param now wall clock time of the sample
+     * @param firing mask of the rules that are firing
+     * @param started mask of the rules that started firing with this sample
+     * @param step percent of battery that must be lost before alerting again
+     * @param interval milliseconds after which to alert again, 0 for never
+     * @return whether the user should be alerted
+     */
+    public boolean onSample(long now, int level, boolean plugged, int firing, int started, int step, long interval){
+        boolean alert;
+        if(firing == 0){
+            setState(ARMED);
+            alert = false;
+        }
+        else if(started != 0){
+            alert = true;
+        }
+        else if(plugged){
+            // Don't nag while charging, anything still wrong after
+            // unplugging alerts straight away
+            setState(ARMED);
+            alert = false;
+        }
+        else if(mState == FIRED){
+            alert = (step > 0 && level <= mLevel - step)
+                 || (interval > 0 && now - mTime >= interval);
+        }
+        else if(mState == SNOOZED){
+            alert = step > 0 && level <= mLevel - step;
+        }
+        else{
+            alert = true;
+        }
+
+        if(alert){
+            setState(FIRED);
+            mLevel = level;
+            mTime = now;
+            mDirty = true;
+        }
+        if(firing != mFiring){
+            mFiring = firing;
+            mDirty = true;
+        }
+        return alert;
+    }
+
+    /**
+     * The user has dismissed the alert.
+     */
+    public void snooze(){
+        if(mState == FIRED){
+            setState(SNOOZED);
+        }
+    }
+
+    private void setState(int state){
+        if(mState != state){
+            mState = state;
+            mDirty = true;
+        }
+    }
+
+    public int getState(){
+        return mState;
+    }
+
+    /**
+     * @return the mask of rules that were firing at the last sample
+     */
+    public int getFiring(){
+        return mFiring;
+    }
+
+    /**
+     * Loads the state saved by {@link #save(File)}, leaving it armed if
+     * there is nothing valid to load.
+     */
+    public void load(File file) throws IOException {
+        if(!file.exists()){
+            return;
+        }
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try{
+            if(raf.length() < RECORD_SIZE){
+                return;
+            }
+            raf.readFully(mRecord);
+        }
+        finally{
+            raf.close();
+        }
+        int state = mRecord[0];
+        if(state < ARMED || state > SNOOZED){
+            return;
+        }
+        mState = state;
+        mLevel = mRecord[1];
+        mFiring = getInt(mRecord, 4);
+        mTime = (long)getInt(mRecord, 8) << 32 | (getInt(mRecord, 12) & 0xffffffffL);
+        mDirty = false;
+    }
+
+    /**
+     * Writes the state if it has changed since it was last loaded or saved.
+     */
+    public void save(File file) throws IOException {
+        if(!mDirty){
+            return;
+        }
+        mRecord[0] = (byte)mState;
+        mRecord[1] = (byte)mLevel;
+        mRecord[2] = 0;
+        mRecord[3] = 0;
+        putInt(mRecord, 4, mFiring);
+        putInt(mRecord, 8, (int)(mTime >>> 32));
+        putInt(mRecord, 12, (int)mTime);
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try{
+            raf.write(mRecord);
+        }
+        finally{
+            raf.close();
+        }
+        mDirty = false;
+    }
+
+    private static int getInt(byte[] b, int offset){
+        return (b[offset] & 0xff) << 24 | (b[offset + 1] & 0xff) << 16
+             | (b[offset + 2] & 0xff) << 8 | (b[offset + 3] & 0xff);
+    }
+
+    private static void putInt(byte[] b, int offset, int value){
+        b[offset] = (byte)(value >>> 24);
+        b[offset + 1] = (byte)(value >>> 16);
+        b[offset + 2] = (byte)(value >>> 8);
+        b[offset + 3] = (byte)value;
+    }
+}
@@ -0,0 +1,26 @@
+package uk.me.dewi.android.batteryalarm;
+
+import java.util.TimeZone;
+
+import android.os.SystemClock;
+
+/**
+ * The device clock. The default time zone is looked up on every call so
+ * that a change of zone is picked up without restarting the process.
+ */
+public class AndroidClock implements Clock {
+
+    public static final AndroidClock INSTANCE = new AndroidClock();
+
+    public long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+
+    public long elapsedRealtime() {
+        return SystemClock.elapsedRealtime();
+    }
+
+    public int getOffset(long millis) {
+        return TimeZone.getDefault().getOffset(millis);
+    }
+}
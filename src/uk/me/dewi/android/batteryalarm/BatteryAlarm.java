@@ -1,6 +1,15 @@
 package uk.me.dewi.android.batteryalarm;
 
+import static uk.me.dewi.android.batteryalarm.AlarmPrefs.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Date;
+
 import uk.me.dewi.android.preference.EditTimePreference;
+import android.app.AlertDialog;
+import android.content.DialogInterface;
+import android.content.Intent;
 import android.content.SharedPreferences;
 import android.content.SharedPreferences.Editor;
 import android.content.SharedPreferences.OnSharedPreferenceChangeListener;
@@ -9,33 +18,29 @@ import android.preference.Preference;
 import android.preference.PreferenceActivity;
 import android.preference.PreferenceManager;
 import android.util.Log;
+import android.view.Menu;
+import android.view.MenuItem;
+import android.widget.Toast;
 
-public class BatteryAlarm extends PreferenceActivity implements OnSharedPreferenceChangeListener{
+public class BatteryAlarm extends PreferenceActivity 
+                          implements OnSharedPreferenceChangeListener, SettingsApplier.Listener{
 
-    public static final String PREF_ENABLED = "prefEnabled";
-    public static final String PREF_NOTIFICATION_SOUND = "prefNotificationSound";
-    public static final String PREF_THRESHOLD = "prefThreshold";
-    public static final String PREF_LAUNCH_ON_STARTUP = "prefLaunchOnStartup";
-    public static final String PREF_DELAY_MINUTES = "prefDelayMinutes";
-    public static final String PREF_DISABLE_AT_NIGHT = "prefDisableAtNight";
-    public static final String PREF_MIN_TIME = "prefMinTime";
-    public static final String PREF_MAX_TIME = "prefMaxTime";
+    private static final int MENU_STATISTICS = Menu.FIRST;
+    private static final int MENU_ANALYTICS = Menu.FIRST + 1;
+    private static final int MENU_PROFILES = Menu.FIRST + 2;
     
-    public static final int SOUND_TYPE_DEFAULT = 0;
-    public static final int SOUND_TYPE_SYSTEM = 1;
-    public static final int SOUND_TYPE_CUSTOM = 2;
+    public static SharedPreferences mSettings;
+    public static BatteryAlarmLauncher mLauncher;
     
-    public static final int DEFAULT_DELAY_MINUTES = 20;
-    public static final int DEFAULT_THRESHOLD = 15;
-    public static final boolean DEFAULT_LAUNCH_ON_STARTUP = true;
-    public static final int DEFAULT_NOTIFICATION_SOUND_TYPE = SOUND_TYPE_DEFAULT;
+    /** Set while one of our own screens is shown on top of this one. */
+    private boolean mShowingChild;
     
-    public static final boolean DEFAULT_DISABLE_AT_NIGHT = false;
-    public static final String DEFAULT_MIN_TIME = "9:00";
-    public static final String DEFAULT_MAX_TIME = "23:00";
+    /** The settings last applied by {@link SettingsApplier}, for the summaries. */
+    private AlarmConfig mShown;
     
-    public static SharedPreferences mSettings;
-    public static BatteryAlarmLauncher mLauncher;
+    private Preference mDisableAtNightPref;
+    private Preference mMinTimePref;
+    private Preference mMaxTimePref;
     
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -43,85 +48,157 @@ public class BatteryAlarm extends PreferenceActivity implements OnSharedPreferen
     
         addPreferencesFromResource(R.layout.main);  
         
+        // Looked up before the listener is registered, setDefaultsIfEmpty() calls it
+        mDisableAtNightPref = getPreferenceScreen().findPreference(PREF_DISABLE_AT_NIGHT);
+        mMinTimePref = getPreferenceScreen().findPreference(PREF_MIN_TIME);
+        mMaxTimePref = getPreferenceScreen().findPreference(PREF_MAX_TIME);
+        
         mSettings = PreferenceManager.getDefaultSharedPreferences(this);
         mSettings.registerOnSharedPreferenceChangeListener(this);
+        SettingsApplier.setListener(this);
         mLauncher = new BatteryAlarmLauncher();
         
         setDefaultsIfEmpty();
+        mShown = ConfigCache.get(this);
         
         if(mSettings.getBoolean(PREF_ENABLED, true)){
-            if(!mLauncher.isRunning()){
-                start();
-            }
+            start();
         }
         
         updateDelay(getPreferenceScreen().findPreference(PREF_DELAY_MINUTES));
         updateLauchOnStartup(getPreferenceScreen().findPreference(PREF_LAUNCH_ON_STARTUP));
         updateThreshold(getPreferenceScreen().findPreference(PREF_THRESHOLD));
+        updateWarning(getPreferenceScreen().findPreference(PREF_WARNING_MINUTES));
+        updateRules();
         updateNotificationSound(getPreferenceScreen().findPreference(PREF_NOTIFICATION_SOUND));
-        
-        Preference disableAtNightPref = getPreferenceScreen().findPreference(PREF_DISABLE_AT_NIGHT);
-        Preference minTimePref = getPreferenceScreen().findPreference(PREF_MIN_TIME);
-        Preference maxTimePref = getPreferenceScreen().findPreference(PREF_MAX_TIME);
-        updateDisableAtNight(disableAtNightPref, minTimePref, maxTimePref);
+        updateDisableAtNight();
     }
 
     @Override
     protected void onDestroy() {
         mSettings.unregisterOnSharedPreferenceChangeListener(this);
+        SettingsApplier.removeListener(this);
         super.onDestroy();
     }
     
+    @Override
+    protected void onResume(){
+        super.onResume();
+        mShowingChild = false;
+    }
+    
     @Override
     protected void onStop(){
         super.onStop();
-        System.exit(0);
+        if(!mShowingChild){
+            // Don't lose the last edit to the exit
+            SettingsApplier.flush(this);
+            System.exit(0);
+        }
     }
     
     @Override
     public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
-        Preference preference = getPreferenceScreen().findPreference(key);
+        // Starting, stopping and rescheduling happen in the background once
+        // the user stops editing. The summaries showing parsed settings wait
+        // for that too, see onApplied(), here only the simple ones are updated.
+        SettingsApplier.onChanged(this, key);
         
-        Preference disableAtNightPref = getPreferenceScreen().findPreference(PREF_DISABLE_AT_NIGHT);
-        Preference minTimePref = getPreferenceScreen().findPreference(PREF_MIN_TIME);
-        Preference maxTimePref = getPreferenceScreen().findPreference(PREF_MAX_TIME);
-        
-        if(PREF_ENABLED.equals(preference.getKey())){
-            if(mSettings.getBoolean(preference.getKey(), false)){
-                start();
-            }
-            else {
-                stop();
+        if(PREF_ENABLED.equals(key)){
+            if(mSettings.getBoolean(PREF_ENABLED, DEFAULT_ENABLED) && !BatteryAlarmLauncher.isRunning(this)){
+                Toast.makeText(this, R.string.monitoring_battery, Toast.LENGTH_LONG).show();
             }
-            
         }
-        else if(PREF_DELAY_MINUTES.equals(preference.getKey())){
-            updateDelay(preference);
-            restart();
+        else if(PREF_LAUNCH_ON_STARTUP.equals(key)){
+            updateLauchOnStartup(getPreferenceScreen().findPreference(key));
         }
-        else if(PREF_LAUNCH_ON_STARTUP.equals(preference.getKey())){
-            updateLauchOnStartup(preference);
+        else if(PREF_NOTIFICATION_SOUND.equals(key)){
+            updateNotificationSound(getPreferenceScreen().findPreference(key));
         }
-        else if(PREF_THRESHOLD.equals(preference.getKey())){
-            updateThreshold(preference);
-            restart();
+        else if(PREF_DISABLE_AT_NIGHT.equals(key)
+                || PREF_MIN_TIME.equals(key)
+                || PREF_MAX_TIME.equals(key)){
+            updateDisableAtNight();
         }
-        else if(PREF_NOTIFICATION_SOUND.equals(preference.getKey())){
-            updateNotificationSound(preference);
-            restart();
+    }
+    
+    public void onApplied(AlarmConfig config) {
+        mShown = config;
+        updateDelay(getPreferenceScreen().findPreference(PREF_DELAY_MINUTES));
+        updateThreshold(getPreferenceScreen().findPreference(PREF_THRESHOLD));
+        updateWarning(getPreferenceScreen().findPreference(PREF_WARNING_MINUTES));
+        updateRules();
+    }
+
+    @Override
+    public boolean onCreateOptionsMenu(Menu menu) {
+        menu.add(0, MENU_PROFILES, 0, R.string.profiles);
+        menu.add(0, MENU_ANALYTICS, 0, R.string.analytics);
+        menu.add(0, MENU_STATISTICS, 0, R.string.statistics);
+        return true;
+    }
+    
+    @Override
+    public boolean onOptionsItemSelected(MenuItem item) {
+        if(item.getItemId() == MENU_STATISTICS){
+            showStatistics();
+            return true;
         }
-        else if(PREF_DISABLE_AT_NIGHT.equals(preference.getKey())){
-            updateDisableAtNight(preference, minTimePref, maxTimePref);
-            restart();
+        if(item.getItemId() == MENU_ANALYTICS){
+            mShowingChild = true;
+            startActivity(new Intent(this, BatteryAnalytics.class));
+            return true;
         }
-        else if(PREF_MIN_TIME.equals(preference.getKey())){
-            updateDisableAtNight(disableAtNightPref, preference, maxTimePref);
-            restart();
+        if(item.getItemId() == MENU_PROFILES){
+            showProfiles();
+            return true;
         }
-        else if(PREF_MAX_TIME.equals(preference.getKey())){
-            updateDisableAtNight(disableAtNightPref, minTimePref, preference);
-            restart();
+        return super.onOptionsItemSelected(item);
+    }
+    
+    /**
+     * Shows the service metrics, with a button to write them to a file.
+     */
+    public void showStatistics() {
+        ServiceMetrics metrics = BatteryAlarmService.sMetrics;
+        new AlertDialog.Builder(this)
+            .setTitle(R.string.statistics)
+            .setMessage(getString(R.string.statistics_since) + ' ' 
+                        + new Date(metrics.getSince()) + "\n\n" 
+                        + metrics.dump())
+            .setPositiveButton(R.string.export_statistics, new DialogInterface.OnClickListener() {
+                public void onClick(DialogInterface dialog, int which) {
+                    try{
+                        File file = BatteryAlarmService.exportMetrics(BatteryAlarm.this);
+                        Toast.makeText(BatteryAlarm.this, file.getPath(), Toast.LENGTH_LONG).show();
+                    }
+                    catch(IOException e){
+                        Log.e(getClass().getName(), "Could not export statistics", e);
+                    }
+                }
+            })
+            .show();
+    }
+
+    /**
+     * Lets the user pick an alarm profile to edit.
+     */
+    public void showProfiles() {
+        CharSequence[] names = new CharSequence[AlarmConfig.PROFILE_COUNT];
+        for(int i = 0; i < names.length; i++){
+            names[i] = ProfileSettings.getTitle(this, i + 1);
         }
+        new AlertDialog.Builder(this)
+            .setTitle(R.string.profiles)
+            .setItems(names, new DialogInterface.OnClickListener() {
+                public void onClick(DialogInterface dialog, int which) {
+                    mShowingChild = true;
+                    Intent intent = new Intent(BatteryAlarm.this, ProfileSettings.class);
+                    intent.putExtra(ProfileSettings.EXTRA_PROFILE, which + 1);
+                    startActivity(intent);
+                }
+            })
+            .show();
     }
 
     public void stop() {
@@ -129,13 +206,8 @@ public class BatteryAlarm extends PreferenceActivity implements OnSharedPreferen
     }
 
     public void start() {
-        mLauncher.launch(this);
-    }
-
-    public void restart(){
-        if(mLauncher.isRunning()){
-            stop();
-            start();
+        if(mLauncher.launch(this)){
+            Toast.makeText(this, R.string.monitoring_battery, Toast.LENGTH_LONG).show();
         }
     }
 
@@ -147,6 +219,47 @@ public class BatteryAlarm extends PreferenceActivity implements OnSharedPreferen
     }
 
 
+    public void updateWarning(Preference preference) {
+        int minutes = mShown.getWarningMinutes();
+        if(minutes > 0){
+            preference.setSummary(getString(R.string.warning_summary)
+                                        + ' '
+                                        + minutes
+                                        + ' '
+                                        + getString(R.string.minutes));
+        }
+        else{
+            preference.setSummary(getString(R.string.warning_off));
+        }
+    }
+
+
+    public void updateRules() {
+        AlarmConfig config = mShown;
+        updateRule(getPreferenceScreen().findPreference(PREF_CRITICAL_THRESHOLD), 
+                   R.string.critical_summary, config.getCriticalThreshold(), "%");
+        updateRule(getPreferenceScreen().findPreference(PREF_CHARGED_LEVEL), 
+                   R.string.charged_summary, config.getChargedLevel(), "%");
+        updateRule(getPreferenceScreen().findPreference(PREF_MAX_TEMPERATURE), 
+                   R.string.max_temperature_summary, config.getMaxTemperature(), "\u00b0C");
+        updateRule(getPreferenceScreen().findPreference(PREF_MAX_DRAIN_RATE), 
+                   R.string.max_drain_rate_summary, config.getMaxDrainRate(), "%/h");
+        updateRule(getPreferenceScreen().findPreference(PREF_REALERT_STEP), 
+                   R.string.realert_step_summary, config.getRealertStep(), "%");
+        updateRule(getPreferenceScreen().findPreference(PREF_REALERT_MINUTES), 
+                   R.string.realert_minutes_summary, config.getRealertMinutes(), getString(R.string.minutes));
+    }
+    
+    private void updateRule(Preference preference, int summary, int value, String unit) {
+        if(value > 0){
+            preference.setSummary(getString(summary) + ' ' + value + unit);
+        }
+        else{
+            preference.setSummary(getString(R.string.rule_off));
+        }
+    }
+
+
     public void updateDelay(Preference preference) {
         preference.setSummary(getString(R.string.delay_summary)
                                     + ' '
@@ -176,7 +289,10 @@ public class BatteryAlarm extends PreferenceActivity implements OnSharedPreferen
         
     }
     
-    private void updateDisableAtNight(Preference disableAtNightPref, Preference minTimePref, Preference maxTimePref) {
+    private void updateDisableAtNight() {
+        Preference disableAtNightPref = mDisableAtNightPref;
+        Preference minTimePref = mMinTimePref;
+        Preference maxTimePref = mMaxTimePref;
 
         String minTime = convert24hrTo12(mSettings.getString(PREF_MIN_TIME, DEFAULT_MIN_TIME));
         String maxTime = convert24hrTo12(mSettings.getString(PREF_MAX_TIME, DEFAULT_MAX_TIME));
@@ -199,49 +315,83 @@ public class BatteryAlarm extends PreferenceActivity implements OnSharedPreferen
     }
     
     public int getDelayMinutes(){
-        try {
-            return Integer.parseInt(mSettings.getString(PREF_DELAY_MINUTES, Integer.valueOf(DEFAULT_DELAY_MINUTES).toString()));
-        }
-        catch(NumberFormatException e){
-            Log.e(BatteryAlarm.class.getName(), "Could not parse delay, using default: "+DEFAULT_DELAY_MINUTES, e);
-            return DEFAULT_DELAY_MINUTES;
-        }
+        return mShown.getDelayMinutes();
     }
     
     public int getThreshold(){
-        try {
-            return Integer.parseInt(mSettings.getString(PREF_THRESHOLD, Integer.valueOf(DEFAULT_THRESHOLD).toString()));
-        }
-        catch(NumberFormatException e){
-            Log.e(BatteryAlarm.class.getName(), "Could not parse threshold, using default: "+DEFAULT_THRESHOLD, e);
-            return DEFAULT_THRESHOLD;
-        }
+        return mShown.getThreshold();
     }
     
     public void setDefaultsIfEmpty(){
-        Editor editor = mSettings.edit();
+        // Only write when something is missing, which is normally just the first run
+        Editor editor = null;
         if(!mSettings.contains(PREF_ENABLED)){
+            editor = edit(editor);
             editor.putBoolean(PREF_ENABLED, false);
         }
         if(!mSettings.contains(PREF_DELAY_MINUTES)){
+            editor = edit(editor);
             editor.putString(PREF_DELAY_MINUTES, Integer.valueOf(DEFAULT_DELAY_MINUTES).toString());
         }
         if(!mSettings.contains(PREF_THRESHOLD)){
+            editor = edit(editor);
             editor.putString(PREF_THRESHOLD, Integer.valueOf(DEFAULT_THRESHOLD).toString());
         }
+        if(!mSettings.contains(PREF_WARNING_MINUTES)){
+            editor = edit(editor);
+            editor.putString(PREF_WARNING_MINUTES, Integer.valueOf(DEFAULT_WARNING_MINUTES).toString());
+        }
+        if(!mSettings.contains(PREF_CRITICAL_THRESHOLD)){
+            editor = edit(editor);
+            editor.putString(PREF_CRITICAL_THRESHOLD, Integer.valueOf(DEFAULT_CRITICAL_THRESHOLD).toString());
+        }
+        if(!mSettings.contains(PREF_CHARGED_LEVEL)){
+            editor = edit(editor);
+            editor.putString(PREF_CHARGED_LEVEL, Integer.valueOf(DEFAULT_CHARGED_LEVEL).toString());
+        }
+        if(!mSettings.contains(PREF_MAX_TEMPERATURE)){
+            editor = edit(editor);
+            editor.putString(PREF_MAX_TEMPERATURE, Integer.valueOf(DEFAULT_MAX_TEMPERATURE).toString());
+        }
+        if(!mSettings.contains(PREF_MAX_DRAIN_RATE)){
+            editor = edit(editor);
+            editor.putString(PREF_MAX_DRAIN_RATE, Integer.valueOf(DEFAULT_MAX_DRAIN_RATE).toString());
+        }
+        if(!mSettings.contains(PREF_REALERT_STEP)){
+            editor = edit(editor);
+            editor.putString(PREF_REALERT_STEP, Integer.valueOf(DEFAULT_REALERT_STEP).toString());
+        }
+        if(!mSettings.contains(PREF_REALERT_MINUTES)){
+            editor = edit(editor);
+            editor.putString(PREF_REALERT_MINUTES, Integer.valueOf(DEFAULT_REALERT_MINUTES).toString());
+        }
+        if(!mSettings.contains(PREF_SHOW_STATUS)){
+            editor = edit(editor);
+            editor.putBoolean(PREF_SHOW_STATUS, DEFAULT_SHOW_STATUS);
+        }
         if(!mSettings.contains(PREF_LAUNCH_ON_STARTUP)){
+            editor = edit(editor);
             editor.putBoolean(PREF_LAUNCH_ON_STARTUP, false);
         }
         if(!mSettings.contains(PREF_DISABLE_AT_NIGHT)){
+            editor = edit(editor);
             editor.putBoolean(PREF_DISABLE_AT_NIGHT, false);
         }
         if(!mSettings.contains(PREF_MIN_TIME)){
+            editor = edit(editor);
             editor.putString(PREF_MIN_TIME, DEFAULT_MIN_TIME);
         }
         if(!mSettings.contains(PREF_MAX_TIME)){
+            editor = edit(editor);
             editor.putString(PREF_MAX_TIME, DEFAULT_MAX_TIME);
         }
-        editor.commit();
+        if(editor != null){
+            editor.commit();
+        }
+    }
+    
+    private Editor edit(Editor editor){
+        return editor != null ? editor : mSettings.edit();
     }
 
     public static int parseHours(String time){
@@ -1,60 +1,258 @@
 package uk.me.dewi.android.batteryalarm;
 
-import static uk.me.dewi.android.batteryalarm.BatteryAlarm.DEFAULT_DELAY_MINUTES;
+import java.util.Random;
+
 import android.app.AlarmManager;
 import android.app.PendingIntent;
 import android.content.Context;
 import android.content.Intent;
-import android.content.SharedPreferences;
 import android.os.SystemClock;
-import android.preference.PreferenceManager;
-import android.util.Log;
-import android.widget.Toast;
 
+/**
+ * Starts and stops the alarm that runs the battery checks.
+ * 
+ * Nothing is kept in fields: whether monitoring is running is worked out
+ * from which of the alarms' PendingIntents exist, see {@link MonitorAlarms},
+ * so the answer survives the process being killed and launching twice does
+ * not stack up alarms.
+ */
 public class BatteryAlarmLauncher {
+    
+    private static final Random sRandom = new Random();
+    
+    /** How often the battery is read while charging, see {@link #sampleCharge(Context, boolean)}. */
+    public static final long CHARGE_SAMPLE_INTERVAL = 15 * MonitorScheduler.MINUTE;
+    
+    /** Identifies the marker left while monitoring is suspended, never sent. */
+    private static final String ACTION_SUSPENDED = "uk.me.dewi.android.batteryalarm.SUSPENDED";
+    
+    /**
+     * Starts monitoring, unless it is already running or suspended.
+     * 
+     * @return false if monitoring was already on
+     */
+    public boolean launch(Context context){
+        AlarmConfig config = ConfigCache.get(context).getActive(AndroidClock.INSTANCE);
+        
+        // Check straight away, the service works out the next check from there
+        return getAlarms(context).launch(config.getDelayMillis());
+    }
+
+    /**
+     * Schedules the next battery check.
+     * 
+     * The alarm keeps repeating at the same interval so that a check which
+     * dies before rescheduling does not end the monitoring. Each check
+     * replaces it with a new one.
+     * 
+     * @param delayMillis how long to wait before the next check
+     * @param intervalMillis how long to wait between checks after that
+     * @param wakeup whether the device should be woken for the check,
+     * otherwise it happens the next time the device wakes up anyway
+     */
+    public static void schedule(Context context, long delayMillis, long intervalMillis, boolean wakeup){
+        schedule(context, delayMillis, intervalMillis, wakeup, MonitorScheduler.NO_CHECK);
+    }
+    
+    /**
+     * Schedules the next battery check, and a check that wakes the device
+     * in case that one has not run by the deadline.
+     * 
+     * @param deadlineMillis how long to wait for the next check before
+     * waking the device for one, or {@link MonitorScheduler#NO_CHECK}
+     * @see MonitorScheduler#getDeadline()
+     */
+    public static void schedule(Context context, long delayMillis, long intervalMillis, boolean wakeup, 
+                                long deadlineMillis){
+        getAlarms(context).schedule(delayMillis, intervalMillis, wakeup, deadlineMillis);
+    }
+    
+    /**
+     * Schedules the next battery check like {@link #schedule(Context, long, long, boolean)},
+     * but only if monitoring has not been stopped or suspended in the meantime.
+     * 
+     * @return false if monitoring is no longer checking
+     */
+    public static boolean reschedule(Context context, long delayMillis, long intervalMillis, boolean wakeup){
+        return reschedule(context, delayMillis, intervalMillis, wakeup, MonitorScheduler.NO_CHECK);
+    }
+    
+    /**
+     * Schedules the next battery check like {@link #schedule(Context, long, long, boolean, long)},
+     * but only if monitoring has not been stopped or suspended in the meantime.
+     * 
+     * @return false if monitoring is no longer checking
+     */
+    public static boolean reschedule(Context context, long delayMillis, long intervalMillis, boolean wakeup, 
+                                     long deadlineMillis){
+        return getAlarms(context).reschedule(delayMillis, intervalMillis, wakeup, deadlineMillis);
+    }
+
+    /**
+     * Starts checking again, for example once the device has been unplugged,
+     * with the first check worked out from the current level.
+     */
+    public static void resume(Context context, int level){
+        AlarmConfig config = ConfigCache.get(context).getActive(AndroidClock.INSTANCE);
+        int threshold = config.getThreshold();
+        schedule(context, 
+                 MonitorScheduler.firstDelay(level, threshold, config.getDelayMillis()), 
+                 config.getDelayMillis(), 
+                 MonitorScheduler.isNear(level, threshold, config.getDelayMillis()), 
+                 MonitorScheduler.deadline(level, threshold, config.getDelayMillis()));
+        StatusPublisher.setState(context, StatusCache.STATE_MONITORING);
+    }
+    
+    /**
+     * Checks straight away, for example once the device has been plugged in
+     * and a rule applies on the charger. The check plans the next one.
+     */
+    public static void checkNow(Context context){
+        AlarmConfig config = ConfigCache.get(context).getActive(AndroidClock.INSTANCE);
+        schedule(context, 0, config.getDelayMillis(), true);
+    }
+    
+    /**
+     * Starts checking after the device has booted, with the first check
+     * put off a random few minutes past the busy start up.
+     */
+    public static void boot(Context context, int level){
+        AlarmConfig config = ConfigCache.get(context).getActive(AndroidClock.INSTANCE);
+        int threshold = config.getThreshold();
+        float jitter;
+        synchronized(sRandom){
+            jitter = sRandom.nextFloat();
+        }
+        schedule(context, 
+                 MonitorScheduler.bootDelay(level, threshold, config.getDelayMillis(), jitter), 
+                 config.getDelayMillis(), 
+                 MonitorScheduler.isNear(level, threshold, config.getDelayMillis()), 
+                 MonitorScheduler.deadline(level, threshold, config.getDelayMillis()));
+        StatusPublisher.setState(context, StatusCache.STATE_MONITORING);
+    }
+    
+    /**
+     * Stops checking until {@link #resume(Context, int)} is called, for
+     * example while the device is charging. Monitoring still counts as
+     * running, see {@link #isRunning(Context)}.
+     */
+    public static void suspend(Context context){
+        getAlarms(context).suspend();
+        StatusPublisher.setState(context, StatusCache.STATE_CHARGING);
+    }
+
+    /**
+     * Suspends like {@link #suspend(Context)}, but only if monitoring has
+     * not been stopped in the meantime.
+     */
+    public static void suspendIfChecking(Context context){
+        if(getAlarms(context).suspendIfChecking()){
+            StatusPublisher.setState(context, StatusCache.STATE_CHARGING);
+        }
+    }
 
-    public static PendingIntent mAlarmSender;
+    public void stop(Context context) {
+        getAlarms(context).stop();
+        StatusPublisher.setState(context, StatusCache.STATE_OFF);
+    }
     
-    private boolean mRunning = false;
+    /**
+     * Reads the battery now and again while it charges, so the
+     * {@link BatteryHealthTracker} can time the charge. The readings are
+     * taken whenever the device is awake anyway. A charge unplugged before
+     * {@link BatteryHealthTracker#MAX_CHARGE_LEVEL} is timed without them.
+     * 
+     * @param sample false to stop
+     */
+    public static void sampleCharge(Context context, boolean sample){
+        AndroidAlarms alarms = new AndroidAlarms(context);
+        if(sample){
+            alarms.set(MonitorAlarms.CHARGE, CHARGE_SAMPLE_INTERVAL, CHARGE_SAMPLE_INTERVAL, false);
+        }
+        else if(alarms.exists(MonitorAlarms.CHARGE)){
+            alarms.cancel(MonitorAlarms.CHARGE);
+        }
+    }
+    
+    /**
+     * @return whether monitoring is on, with a battery check alarm set or
+     * suspended while the device charges
+     */
+    public static boolean isRunning(Context context){
+        return getAlarms(context).isRunning();
+    }
+    
+    /**
+     * @return whether monitoring is suspended while the device charges
+     */
+    public static boolean isSuspended(Context context){
+        return getAlarms(context).isSuspended();
+    }
+    
+    private static MonitorAlarms getAlarms(Context context){
+        return new MonitorAlarms(new AndroidAlarms(context));
+    }
     
-    public void launch(Context context){
+    /**
+     * The alarms as PendingIntents for the service. Each is always built
+     * from the same Intent, so it can be looked up again at any time.
+     */
+    private static class AndroidAlarms implements MonitorAlarms.Alarms {
         
-        SharedPreferences settings = PreferenceManager.getDefaultSharedPreferences(context);
+        private final Context mContext;
         
-        int delayMinutes = BatteryAlarm.DEFAULT_DELAY_MINUTES;
-        try {
-            Integer.valueOf(settings.getString(BatteryAlarm.PREF_DELAY_MINUTES,
-                Integer.valueOf(DEFAULT_DELAY_MINUTES).toString()));
+        AndroidAlarms(Context context){
+            mContext = context;
         }
-        catch(NumberFormatException e){
-            Log.e(getClass().getName(), "Could not parse delay", e);
+        
+        /**
+         * @param flags PendingIntent.FLAG_NO_CREATE to only return an existing one
+         */
+        private PendingIntent getSender(int alarm, int flags){
+            Intent intent = new Intent(mContext, BatteryAlarmService.class);
+            switch(alarm){
+                case MonitorAlarms.DEADLINE:
+                    intent.setAction(BatteryAlarmService.ACTION_DEADLINE);
+                    break;
+                case MonitorAlarms.SUSPENDED:
+                    intent.setAction(ACTION_SUSPENDED);
+                    break;
+                case MonitorAlarms.CHARGE:
+                    intent.setAction(BatteryAlarmService.ACTION_POWER);
+                    break;
+            }
+            return PendingIntent.getService(mContext, alarm, intent, flags);
         }
- 
-        mAlarmSender = PendingIntent.getService(context,
-                0, new Intent(context, BatteryAlarmService.class), 0); 
         
-        long firstTime = SystemClock.elapsedRealtime();
+        private AlarmManager getAlarmManager(){
+            return (AlarmManager)mContext.getSystemService(Context.ALARM_SERVICE);
+        }
         
-        AlarmManager am = (AlarmManager)context.getSystemService(Context.ALARM_SERVICE);
+        public boolean exists(int alarm) {
+            return getSender(alarm, PendingIntent.FLAG_NO_CREATE) != null;
+        }
         
-        am.setRepeating(AlarmManager.ELAPSED_REALTIME_WAKEUP,
-                        firstTime, 
-                        delayMinutes*60*1000, 
-                        mAlarmSender);
-        mRunning = true;
+        public void set(int alarm, long delayMillis, long intervalMillis, boolean wakeup) {
+            int type = wakeup ? AlarmManager.ELAPSED_REALTIME_WAKEUP : AlarmManager.ELAPSED_REALTIME;
+            long firstTime = SystemClock.elapsedRealtime() + delayMillis;
+            if(intervalMillis > 0){
+                getAlarmManager().setInexactRepeating(type, firstTime, intervalMillis, getSender(alarm, 0));
+            }
+            else{
+                getAlarmManager().set(type, firstTime, getSender(alarm, 0));
+            }
+        }
         
-        Toast.makeText(context, 
-                R.string.monitoring_battery,
-                Toast.LENGTH_LONG).show();
-    }
-
-    public void stop(Context context) {
-        AlarmManager am = (AlarmManager)context.getSystemService(BatteryAlarm.ALARM_SERVICE);
-        am.cancel(BatteryAlarmLauncher.mAlarmSender);
-        mRunning = false;
-    }
-    
-    public boolean isRunning(){
-        return this.mRunning;
+        public void mark(int alarm) {
+            getSender(alarm, 0);
+        }
+        
+        public void cancel(int alarm) {
+            PendingIntent sender = getSender(alarm, PendingIntent.FLAG_NO_CREATE);
+            if(sender != null){
+                getAlarmManager().cancel(sender);
+                sender.cancel();
+            }
+        }
     }
 }
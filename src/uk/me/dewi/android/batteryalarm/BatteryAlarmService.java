@@ -1,24 +1,34 @@
 package uk.me.dewi.android.batteryalarm;
 
-import java.util.Calendar;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.util.Date;
+import java.util.List;
 
 import android.app.Notification;
 import android.app.NotificationManager;
 import android.app.PendingIntent;
 import android.app.Service;
-import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
-import android.content.SharedPreferences;
-import android.content.res.AssetFileDescriptor;
-import android.media.MediaPlayer;
-import android.net.Uri;
 import android.os.Binder;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
+import android.os.Looper;
+import android.os.Message;
 import android.os.Parcel;
+import android.os.PowerManager;
+import android.os.Process;
 import android.os.RemoteException;
-import android.preference.PreferenceManager;
+import android.os.SystemClock;
 import android.util.Log;
 
  /**
@@ -30,44 +40,140 @@ import android.util.Log;
   */
 public class BatteryAlarmService extends Service {
     public static final long PLAYBACK_DURATION = 5000;
+    
+    /** Sent when the user dismisses the alert notification. */
+    public static final String ACTION_SNOOZE = "uk.me.dewi.android.batteryalarm.SNOOZE";
+    
+    /** Sent by {@link BatteryAlarmStartup} to start monitoring once the device has booted. */
+    public static final String ACTION_BOOT = "uk.me.dewi.android.batteryalarm.BOOT";
+    
+    /**
+     * Sent by {@link BatteryAlarmStartup} when the charger goes in or out,
+     * and by {@link BatteryAlarmLauncher#sampleCharge(Context, boolean)} while charging.
+     */
+    public static final String ACTION_POWER = "uk.me.dewi.android.batteryalarm.POWER";
+    
+    /**
+     * Extra of {@link #ACTION_POWER}, true when the charger has just gone in
+     * and false when it has come out. The readings taken while charging
+     * leave it out.
+     */
+    public static final String EXTRA_PLUGGED = "uk.me.dewi.android.batteryalarm.PLUGGED";
+    
+    /**
+     * Sent by the alarm that wakes the device for a check when the last one
+     * was left to run whenever the device woke up anyway, and it has not.
+     * Handled like any other check.
+     */
+    public static final String ACTION_DEADLINE = "uk.me.dewi.android.batteryalarm.DEADLINE";
+    
+    private static final int MSG_CHECK = 1;
+    private static final int MSG_SNOOZE = 2;
+    private static final int MSG_BOOT = 3;
+    private static final int MSG_POWER = 4;
+    
+    // What an ACTION_POWER was sent for, the arg2 of MSG_POWER
+    private static final int POWER_SAMPLE = 0;
+    private static final int POWER_CONNECTED = 1;
+    private static final int POWER_DISCONNECTED = 2;
+    
+    private static final String ALERT_STATE_FILE = "alert.state";
+    private static final String DRAIN_PROFILE_FILE = "drain.profile";
+    private static final String HEALTH_FILE = "battery.health";
+    
+    /** Written by {@link #exportMetrics(Context)} so it can be pulled off the device. */
+    public static final String METRICS_FILE = "metrics.txt";
+    
+    /** Written by {@link #exportHistory(Context)}, see {@link HistoryCodec}. */
+    public static final String HISTORY_EXPORT_FILE = "history.bahx";
+    
+    /** Binder transactions, each must start with a {@link #DESCRIPTOR} token. */
+    public static final String DESCRIPTOR = "uk.me.dewi.android.batteryalarm.BatteryAlarmService";
+    /** Replies with {@link ServiceMetrics#dump()} as a string. */
+    public static final int TRANSACTION_DUMP_METRICS = IBinder.FIRST_CALL_TRANSACTION;
+    /** Replies with {@link ServiceMetrics#getCounters()} as a long array. */
+    public static final int TRANSACTION_GET_COUNTERS = IBinder.FIRST_CALL_TRANSACTION + 1;
+    public static final int TRANSACTION_RESET_METRICS = IBinder.FIRST_CALL_TRANSACTION + 2;
      
     NotificationManager mNM;
 
-    int mThreshold = BatteryAlarm.DEFAULT_THRESHOLD;
-    Uri mSoundUri;
-     
-    boolean mReceivedBatteryStatus = false;
+    /**
+     * Whether the platform tells us when the charger is unplugged, without
+     * that checks have to carry on while charging.
+     */
+    static final boolean POWER_EVENTS_SUPPORTED = AlarmConfig.parseInt(Build.VERSION.SDK, 0) >= 4;
+    
+    /** Kept for the life of the process so the discharge rate survives between checks. */
+    static final MonitorScheduler sScheduler = new MonitorScheduler(POWER_EVENTS_SUPPORTED);
+    
+    static Clock sClock = AndroidClock.INSTANCE;
+    
+    /** The most recent samples, also written to the history log after every check. */
+    static final HistoryBuffer sHistory = new HistoryBuffer();
+    private static HistoryLog sHistoryLog;
+    private static DischargeAnalytics sAnalytics;
+    
+    static final ServiceMetrics sMetrics = new ServiceMetrics(System.currentTimeMillis());
+    
+    private static HandlerThread sWorker;
+    private static PowerManager.WakeLock sWakeLock;
+    
+    // Only touched on the worker thread
+    private static AlertSoundEngine sSoundEngine;
+    private static CheckPipeline sPipeline;
+    private static AlertState sAlertState;
+    private static BatteryHealthTracker sHealthTracker;
+    private static Notification sNotification;
+    private static PendingIntent sContentIntent;
+    private final BatterySample mSample = new BatterySample();
+    
+    private Handler mHandler;
 
     @Override
     public void onCreate() {
         super.onCreate();
         mNM = (NotificationManager)getSystemService(NOTIFICATION_SERVICE);
+        mHandler = new Handler(getWorkerLooper()){
+            @Override
+            public void handleMessage(Message msg) {
+                // Sent straight from onStart(), so this is when the wake lock was taken
+                long started = msg.getWhen();
+                if(msg.what == MSG_CHECK){
+                    runCheck(msg.arg1, started);
+                }
+                else if(msg.what == MSG_SNOOZE){
+                    snooze(msg.arg1, started);
+                }
+                else if(msg.what == MSG_BOOT){
+                    boot(msg.arg1, started);
+                }
+                else if(msg.what == MSG_POWER){
+                    powerChanged(msg.arg1, started, msg.arg2);
+                }
+            }
+        };
+    }
+    
+    @Override
+    public void onStart(Intent intent, int startId) {
+        super.onStart(intent, startId);
         
-        SharedPreferences settings = PreferenceManager.getDefaultSharedPreferences(this);
-        
-        if(!isEnabledTime(settings)){
-            return;
+        // Keep the CPU awake until the check has finished, it is released by runCheck()
+        getWakeLock(this).acquire();
+        if(intent != null && ACTION_SNOOZE.equals(intent.getAction())){
+            mHandler.obtainMessage(MSG_SNOOZE, startId, 0).sendToTarget();
         }
-        
-        try{
-            mThreshold = Integer.parseInt(settings.getString(BatteryAlarm.PREF_THRESHOLD, 
-                                          Integer.valueOf(BatteryAlarm.DEFAULT_THRESHOLD)
-                                          .toString()));
+        else if(intent != null && ACTION_BOOT.equals(intent.getAction())){
+            mHandler.obtainMessage(MSG_BOOT, startId, 0).sendToTarget();
         }
-        catch(Exception e){
-            Log.e(getClass().getName(), "Could not parse threshold", e);
+        else if(intent != null && ACTION_POWER.equals(intent.getAction())){
+            int change = !intent.hasExtra(EXTRA_PLUGGED) ? POWER_SAMPLE
+                         : intent.getBooleanExtra(EXTRA_PLUGGED, false) ? POWER_CONNECTED : POWER_DISCONNECTED;
+            mHandler.obtainMessage(MSG_POWER, startId, change).sendToTarget();
         }
-        
-        if(settings.contains(BatteryAlarm.PREF_NOTIFICATION_SOUND)){
-            String sound = settings.getString(BatteryAlarm.PREF_NOTIFICATION_SOUND, "");
-            if(sound.length() > 0){
-                mSoundUri = Uri.parse(sound);
-            }
+        else{
+            mHandler.obtainMessage(MSG_CHECK, startId, 0).sendToTarget();
         }
-        
-        // Start up the thread running the service.
-        Thread thr = new Thread(null, mTask, "BatteryAlarmService");
-        thr.start();
     }
 
     @Override
@@ -75,80 +181,595 @@ public class BatteryAlarmService extends Service {
         
         super.onDestroy();
     }
-
+    
     /**
-     * The function that runs in our worker thread
+     * The single thread every check runs on. It is started the first time it
+     * is needed and then kept for the life of the process.
      */
-    Runnable mTask = new Runnable() {
-        public void run() {
-            mReceivedBatteryStatus = false;
-             
-            // read battery status
-            registerReceiver(mBatInfoReceiver,
-                             new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+    static synchronized Looper getWorkerLooper(){
+        if(sWorker == null){
+            sWorker = new HandlerThread("BatteryAlarmService", Process.THREAD_PRIORITY_BACKGROUND);
+            sWorker.start();
         }
-    };
+        return sWorker.getLooper();
+    }
     
-    Runnable mPlayerTask = new Runnable() {
-        public void run() {
-         // Make a noise
-            playCustomSound();
+    private static synchronized PowerManager.WakeLock getWakeLock(Context context){
+        if(sWakeLock == null){
+            PowerManager pm = (PowerManager)context.getSystemService(POWER_SERVICE);
+            sWakeLock = pm.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, "BatteryAlarmService");
         }
-    };
+        return sWakeLock;
+    }
      
-    BroadcastReceiver mBatInfoReceiver = new BroadcastReceiver(){
-        @Override
-        public void onReceive(Context context, Intent intent) {
-            try{
-                if(!mReceivedBatteryStatus){
-                    mReceivedBatteryStatus = true;
-                    int level = intent.getIntExtra("level", 0);
-                    
-                    if(level < mThreshold){
-                        showNotification("Battery down to "+String.valueOf(level) + "%");
+    /**
+     * Runs one check on the worker thread. The stages run one after another
+     * so the latency from the alarm to the alert is the time the stages take
+     * plus any checks queued in front of this one.
+     */
+    private void runCheck(final int startId, final long started) {
+        boolean playing = false;
+        sMetrics.increment(ServiceMetrics.CHECKS);
+        try{
+            AlarmConfig config = ConfigCache.get(this).getActive(sClock);
+            long minDelay = config.getDelayMillis();
+            
+            long untilOpen = config.getAlertWindow().millisUntilOpen(sClock);
+            if(untilOpen > 0){
+                // Sleep through the night rather than waking up to do nothing
+                sMetrics.increment(ServiceMetrics.SKIPPED_AT_NIGHT);
+                BatteryAlarmLauncher.reschedule(this, untilOpen, minDelay, true);
+                return;
+            }
+            
+            if(!readLevel(mSample)){
+                Log.e(getClass().getName(), "Could not read battery status");
+                sMetrics.increment(ServiceMetrics.READ_FAILURES);
+                BatteryAlarmLauncher.reschedule(this, minDelay, minDelay, true);
+                return;
+            }
+            long read = SystemClock.uptimeMillis();
+            sMetrics.startToRead.record(read - started);
+            
+            CheckPipeline pipeline = getPipeline();
+            boolean alert = evaluate(pipeline, mSample, config);
+            
+            record(mSample);
+            saveAlertState();
+            trackHealth(mSample);
+            
+            int firing = pipeline.getFiring();
+            if(alert){
+                sMetrics.increment(ServiceMetrics.ALERTS_FIRED);
+                notify(mSample, pipeline.getAlertRule(), config);
+                long notified = SystemClock.uptimeMillis();
+                sMetrics.readToNotify.record(notified - read);
+                
+                playing = playSound(config, startId, started);
+                if(playing){
+                    sMetrics.soundStart.record(SystemClock.uptimeMillis() - notified);
+                }
+            }
+            else{
+                if(firing != 0){
+                    // Held back by the repeat settings or a snooze
+                    sMetrics.increment(ServiceMetrics.ALERTS_SUPPRESSED);
+                }
+                else{
+                    mNM.cancel(R.string.alarm_service_started);
+                }
+                
+                if(mSample.plugged){
+                    getSoundEngine().release();
+                }
+                else if(pipeline.isWakeupRequired()){
+                    // Getting close, have the sound ready so the alert is not delayed
+                    getSoundEngine().prepare(config.getNotificationSound());
+                }
+            }
+            
+            StatusPublisher.update(this, 
+                                   mSample.level, 
+                                   mSample.minutesLeft, 
+                                   alert || firing != 0 ? StatusCache.STATE_ALERTING
+                                   : mSample.plugged ? StatusCache.STATE_CHARGING 
+                                   : StatusCache.STATE_MONITORING);
+        }
+        catch(RuntimeException e){
+            Log.e(getClass().getName(), "Battery check failed", e);
+        }
+        finally{
+            if(!playing){
+                finish(startId, started);
+            }
+        }
+    }
+    
+    /**
+     * The user dismissed the alert, stop repeating it until more battery has been lost.
+     */
+    private void snooze(int startId, long started) {
+        try{
+            getAlertState().snooze();
+            saveAlertState();
+        }
+        finally{
+            finish(startId, started);
+        }
+    }
+    
+    /**
+     * Starts monitoring after boot if the user wants it. This is the work
+     * the boot receiver used to do, moved here so the receiver returns
+     * straight away.
+     */
+    private void boot(int startId, long started) {
+        try{
+            AlarmConfig config = ConfigCache.get(this);
+            Intent status = registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+            boolean plugged = status != null && status.getIntExtra("plugged", 0) != 0;
+            
+            switch(MonitorPolicy.onBoot(config.isLaunchOnStartup(), plugged, 
+                                        config.getActive(sClock).isCheckedWhilePlugged())){
+                case MonitorPolicy.RESUME:
+                    BatteryAlarmLauncher.boot(this, status != null ? getLevel(status) : 0);
+                    break;
+                case MonitorPolicy.SUSPEND:
+                    if(POWER_EVENTS_SUPPORTED){
+                        // Nothing to check until BatteryAlarmStartup hears the charger go
+                        BatteryAlarmLauncher.suspend(this);
                     }
                     else{
-                      mNM.cancel(R.string.alarm_service_started);
+                        // Nothing will say when the charger goes, look now and again
+                        BatteryAlarmLauncher.schedule(this, MonitorScheduler.MAX_DELAY, 
+                                                      MonitorScheduler.MAX_DELAY, false);
+                        StatusPublisher.setState(this, StatusCache.STATE_CHARGING);
                     }
+                    break;
+            }
+        }
+        catch(RuntimeException e){
+            Log.e(getClass().getName(), "Could not start monitoring after boot", e);
+        }
+        finally{
+            finish(startId, started);
+        }
+    }
+    
+    /**
+     * Records the battery as the charger goes in or out and while it
+     * charges. Checks are usually suspended while charging, so these are
+     * the only readings the {@link BatteryHealthTracker} gets to time a
+     * charge with.
+     * 
+     * When the charger has gone in or out, monitoring is also suspended,
+     * checked or resumed as {@link MonitorPolicy#onPowerChanged(boolean, boolean, boolean)}
+     * decides. This is the work the power receiver used to do, moved here
+     * so the receiver returns straight away.
+     * 
+     * @param change POWER_SAMPLE, POWER_CONNECTED or POWER_DISCONNECTED
+     */
+    private void powerChanged(int startId, long started, int change) {
+        try{
+            AlarmConfig config = ConfigCache.get(this);
+            boolean read = readLevel(mSample);
+            if(read){
+                record(mSample);
+                trackHealth(mSample);
+                // Past the top the charge slows down and is no use for timing
+                BatteryAlarmLauncher.sampleCharge(this, config.isEnabled()
+                                                  && mSample.plugged 
+                                                  && mSample.level <= BatteryHealthTracker.MAX_CHARGE_LEVEL);
+            }
+            if(change != POWER_SAMPLE){
+                switch(MonitorPolicy.onPowerChanged(config.isEnabled(), change == POWER_CONNECTED, 
+                                                    config.getActive(sClock).isCheckedWhilePlugged())){
+                    case MonitorPolicy.SUSPEND:
+                        BatteryAlarmLauncher.suspend(this);
+                        break;
+                    case MonitorPolicy.CHECK:
+                        BatteryAlarmLauncher.checkNow(this);
+                        break;
+                    case MonitorPolicy.RESUME:
+                        BatteryAlarmLauncher.resume(this, read ? mSample.level : 0);
+                        break;
                 }
             }
-            finally {
-                unregisterReceiver(mBatInfoReceiver);
-                BatteryAlarmService.this.stopSelf();
+        }
+        catch(RuntimeException e){
+            Log.e(getClass().getName(), "Could not record power change", e);
+        }
+        finally{
+            finish(startId, started);
+        }
+    }
+    
+    /**
+     * Feeds the sample to the health tracker, telling the user once if the
+     * battery has worn out.
+     */
+    private void trackHealth(BatterySample sample) {
+        BatteryHealthTracker tracker = getHealthTracker(this);
+        if(tracker.onSample(sample.time, sample.level, sample.plugType, sample.health)){
+            showHealthNotification(tracker);
+        }
+        if(tracker.isDirty()){
+            try{
+                tracker.save(new File(getFilesDir(), HEALTH_FILE));
+            }
+            catch(IOException e){
+                Log.e(getClass().getName(), "Could not save battery health", e);
             }
         }
-    };
+    }
+    
+    /**
+     * @return the battery health, loaded from disk the first time it is needed
+     */
+    static synchronized BatteryHealthTracker getHealthTracker(Context context) {
+        if(sHealthTracker == null){
+            BatteryHealthTracker tracker = new BatteryHealthTracker();
+            try{
+                tracker.load(new File(context.getFilesDir(), HEALTH_FILE));
+            }
+            catch(IOException e){
+                Log.e(BatteryAlarmService.class.getName(), "Could not read battery health", e);
+            }
+            sHealthTracker = tracker;
+        }
+        return sHealthTracker;
+    }
+    
+    /**
+     * @return the alert state, loaded from disk the first time it is needed.
+     * Must be called on the worker thread.
+     */
+    private AlertState getAlertState() {
+        if(sAlertState == null){
+            sAlertState = new AlertState();
+            try{
+                sAlertState.load(new File(getFilesDir(), ALERT_STATE_FILE));
+            }
+            catch(IOException e){
+                Log.e(getClass().getName(), "Could not read alert state", e);
+            }
+        }
+        return sAlertState;
+    }
+    
+    /**
+     * @return the decisions of the checks, carrying on from the saved alert
+     * state. Must be called on the worker thread.
+     */
+    private CheckPipeline getPipeline() {
+        if(sPipeline == null){
+            sPipeline = new CheckPipeline(sScheduler, getAlertState());
+        }
+        return sPipeline;
+    }
+    
+    /**
+     * @return the drain profile the scheduler plans with, loaded from disk
+     * the first time it is needed. Must be called on the worker thread.
+     */
+    private DrainProfile getDrainProfile() {
+        DrainProfile profile = sScheduler.getProfile();
+        if(profile == null){
+            profile = new DrainProfile();
+            try{
+                profile.load(new File(getFilesDir(), DRAIN_PROFILE_FILE));
+            }
+            catch(IOException e){
+                Log.e(getClass().getName(), "Could not read drain profile", e);
+            }
+            sScheduler.setProfile(profile);
+        }
+        return profile;
+    }
+    
+    private void saveAlertState() {
+        try{
+            getAlertState().save(new File(getFilesDir(), ALERT_STATE_FILE));
+        }
+        catch(IOException e){
+            Log.e(getClass().getName(), "Could not save alert state", e);
+        }
+    }
+    
+    /**
+     * Ends a check once everything it started has finished.
+     * 
+     * @param started uptime at which the check took the wake lock
+     */
+    private void finish(int startId, long started) {
+        sMetrics.wakeLockHeld.record(SystemClock.uptimeMillis() - started);
+        getWakeLock(this).release();
+        stopSelf(startId);
+    }
+    
+    /**
+     * Reads the current battery status into the sample.
+     * 
+     * @return false if the status is not available
+     */
+    private boolean readLevel(BatterySample sample) {
+        // The battery status is sticky, so it can be read straight away
+        // without registering a receiver and waiting for a broadcast.
+        Intent status = registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        if(status == null){
+            return false;
+        }
+        sample.time = sClock.currentTimeMillis();
+        sample.elapsed = sClock.elapsedRealtime();
+        sample.level = getLevel(status);
+        sample.scale = status.getIntExtra("scale", 100);
+        sample.plugType = status.getIntExtra("plugged", 0);
+        sample.plugged = sample.plugType != 0;
+        sample.temperature = status.getIntExtra("temperature", 0);
+        sample.voltage = status.getIntExtra("voltage", 0);
+        sample.health = status.getIntExtra("health", 0);
+        return true;
+    }
+    
+    /**
+     * @return the battery level in percent from an ACTION_BATTERY_CHANGED intent
+     */
+    static int getLevel(Intent status) {
+        int level = status.getIntExtra("level", 0);
+        int scale = status.getIntExtra("scale", 100);
+        if(scale > 0 && scale != 100){
+            level = level * 100 / scale;
+        }
+        return level;
+    }
+    
+    /**
+     * Adds the sample to the history and writes it to disk.
+     */
+    private void record(BatterySample sample) {
+        sHistory.add(sample);
+        // Locked against getAnalytics() so a sample is neither missed nor counted twice
+        synchronized(BatteryAlarmService.class){
+            try{
+                getHistoryLog(this).flush(sHistory);
+            }
+            catch(IOException e){
+                Log.e(getClass().getName(), "Could not write battery history", e);
+            }
+            if(sAnalytics != null){
+                sAnalytics.onSample(sample.time, sample.level, sample.plugged);
+            }
+        }
+    }
+    
+    static synchronized HistoryLog getHistoryLog(Context context) {
+        if(sHistoryLog == null){
+            sHistoryLog = new HistoryLog(context.getFilesDir(), "history");
+        }
+        return sHistoryLog;
+    }
+    
+    /**
+     * @return the discharge statistics, read from the history log the first
+     * time they are needed and kept up to date by every check after that
+     */
+    static synchronized DischargeAnalytics getAnalytics(Context context) {
+        if(sAnalytics == null){
+            DischargeAnalytics analytics = new DischargeAnalytics(sClock);
+            try{
+                for(HistoryLog.View view : getHistoryLog(context).openViews()){
+                    analytics.addAll(view);
+                }
+            }
+            catch(IOException e){
+                Log.e(BatteryAlarmService.class.getName(), "Could not read battery history", e);
+            }
+            sAnalytics = analytics;
+        }
+        return sAnalytics;
+    }
+    
+    /**
+     * Runs the decisions for the sample and schedules the next check.
+     * 
+     * @return whether the user should be alerted
+     */
+    private boolean evaluate(CheckPipeline pipeline, BatterySample sample, AlarmConfig config) {
+        DrainProfile profile = getDrainProfile();
+        boolean alert = pipeline.check(sample, sample.time + sClock.getOffset(sample.time), config);
+        long delay = pipeline.getDelay();
+        if(delay == MonitorScheduler.NO_CHECK){
+            // Resumed by BatteryAlarmStartup once the charger is unplugged
+            sMetrics.increment(ServiceMetrics.SUSPENDS);
+            BatteryAlarmLauncher.suspendIfChecking(this);
+        }
+        else{
+            BatteryAlarmLauncher.reschedule(this, delay, delay, pipeline.isWakeupRequired(), 
+                                            pipeline.getDeadline());
+        }
+        if(profile.isDirty()){
+            try{
+                profile.save(new File(getFilesDir(), DRAIN_PROFILE_FILE));
+            }
+            catch(IOException e){
+                Log.e(getClass().getName(), "Could not save drain profile", e);
+            }
+        }
+        return alert;
+    }
+    
+    private void notify(BatterySample sample, int rule, AlarmConfig config) {
+        switch(rule){
+            case AlertEngine.RULE_CRITICAL:
+                showNotification("Battery critical, down to " + sample.level + "%");
+                break;
+            case AlertEngine.RULE_WARNING:
+                showNotification("Battery will hit " + config.getThreshold() + "% in ~" 
+                                 + sample.minutesLeft + " min");
+                break;
+            case AlertEngine.RULE_TEMPERATURE:
+                showNotification("Battery hot: " + sample.temperature / 10f + "\u00b0C");
+                break;
+            case AlertEngine.RULE_DRAIN_RATE:
+                showNotification("Battery draining fast: " + Math.round(sample.drainPerHour) + "%/h");
+                break;
+            case AlertEngine.RULE_CHARGED:
+                showNotification("Battery charged to " + sample.level + "%, unplug the charger");
+                break;
+            default:
+                long untilEmpty = sScheduler.getEstimator().millisUntil(sample.level, 0);
+                if(untilEmpty != DischargeEstimator.UNKNOWN && !sample.plugged){
+                    showNotification("Battery down to " + sample.level + "%, empty in ~" 
+                                     + untilEmpty / MonitorScheduler.MINUTE + " min");
+                }
+                else{
+                    showNotification("Battery down to "+String.valueOf(sample.level) + "%");
+                }
+        }
+    }
+    
+    private void showHealthNotification(BatteryHealthTracker tracker) {
+        String text;
+        float capacity = tracker.getCapacity();
+        if(Float.isNaN(capacity) || capacity >= BatteryHealthTracker.DEGRADED_CAPACITY){
+            text = "Battery reports a fault, it may need replacing";
+        }
+        else{
+            text = "Battery worn, about " + Math.round(capacity * 100) + "% of its capacity left after " 
+                   + Math.round(tracker.getCycles()) + " cycles";
+        }
+        Context context = getApplicationContext();
+        Notification notification = new Notification(R.drawable.status_icon, text, System.currentTimeMillis());
+        notification.flags |= Notification.FLAG_AUTO_CANCEL;
+        PendingIntent intent = PendingIntent.getActivity(context, 0, new Intent(context, BatteryAnalytics.class), 0);
+        notification.setLatestEventInfo(this, getText(R.string.battery_degraded), text, intent);
+        mNM.notify(R.string.battery_degraded, notification);
+    }
+    
+    /**
+     * Starts the alert sound.
+     * 
+     * @return true if the sound is playing, the check is then finished once
+     * it has stopped
+     */
+    private boolean playSound(AlarmConfig config, final int startId, final long started) {
+        return getSoundEngine().play(config.getNotificationSound(), new AlertSoundEngine.Listener() {
+            public void onSoundFinished() {
+                finish(startId, started);
+            }
+        });
+    }
+    
+    /**
+     * The sound engine lives as long as the process so the sound stays
+     * prepared between checks. Must be called on the worker thread.
+     */
+    private AlertSoundEngine getSoundEngine() {
+        if(sSoundEngine == null){
+            Context context = getApplicationContext();
+            Handler handler = new Handler(getWorkerLooper());
+            sSoundEngine = new AlertSoundEngine(
+                    new MediaAlertPlayer(context, handler, PLAYBACK_DURATION),
+                    new MediaAlertPlayer(context, handler, PLAYBACK_DURATION));
+        }
+        return sSoundEngine;
+    }
 
 
     @Override
     public IBinder onBind(Intent intent) {
         return mBinder;
     }
+    
+    /**
+     * Prints the metrics for <code>adb shell dumpsys activity service BatteryAlarmService</code>.
+     */
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        writer.println("Since " + new Date(sMetrics.getSince()));
+        writer.print(sMetrics.dump());
+    }
+    
+    /**
+     * Writes the metrics to {@link #METRICS_FILE} in the files directory.
+     * The file is private, on a debug build adb reads it with
+     * <code>adb shell run-as uk.me.dewi.android.batteryalarm cat files/metrics.txt</code>,
+     * otherwise use <code>dumpsys</code>, see {@link #dump(FileDescriptor, PrintWriter, String[])}.
+     * 
+     * @return the file written
+     */
+    static File exportMetrics(Context context) throws IOException {
+        FileOutputStream out = context.openFileOutput(METRICS_FILE, Context.MODE_PRIVATE);
+        try{
+            out.write(("Since " + new Date(sMetrics.getSince()) + "\n" 
+                       + sMetrics.dump()).getBytes());
+        }
+        finally{
+            out.close();
+        }
+        return context.getFileStreamPath(METRICS_FILE);
+    }
+
+    /**
+     * Writes the battery history to {@link #HISTORY_EXPORT_FILE} in the files
+     * directory. The file is private, other apps read it through
+     * {@link HistoryProvider#EXPORT_URI}. Reads the history log from disk, so
+     * don't call it on the UI thread.
+     * 
+     * @return the file written
+     */
+    static File exportHistory(Context context) throws IOException {
+        List<HistoryLog.View> views;
+        // Locked against record() so no file is rotated while they are opened
+        synchronized(BatteryAlarmService.class){
+            views = getHistoryLog(context).openViews();
+        }
+        OutputStream out = new BufferedOutputStream(context.openFileOutput(HISTORY_EXPORT_FILE, 
+                                                                           Context.MODE_PRIVATE));
+        try{
+            HistoryCodec.export(views, out);
+        }
+        finally{
+            out.close();
+        }
+        return context.getFileStreamPath(HISTORY_EXPORT_FILE);
+    }
 
     /**
      * Show a notification while this service is running.
      */
     private void showNotification(CharSequence text) {
 
-        // Set the icon, scrolling text and timestamp
-        Notification notification = new Notification(R.drawable.status_icon, 
-                                                     text,
-                                                     System.currentTimeMillis());
-         
-        Intent intent = new Intent(this, BatteryAlarm.class);
-        
-        // Start up the player thread
-        Thread thr = new Thread(null, mPlayerTask, "BatteryAlarmPlayer");
-        thr.start();
+        // The notification is built once and only its text changes after that
+        Notification notification = sNotification;
+        if(notification == null){
+            Context context = getApplicationContext();
+            notification = new Notification(R.drawable.status_icon, 
+                                            text,
+                                            System.currentTimeMillis());
             
-        // The PendingIntent to launch our activity if the user selects this notification
-        PendingIntent contentIntent = PendingIntent.getActivity(this, 0, intent, 0);
+            Intent intent = new Intent(context, BatteryAlarm.class);
+            
+            // The PendingIntent to launch our activity if the user selects this notification
+            sContentIntent = PendingIntent.getActivity(context, 0, intent, 0);
+            
+            // Dismissing the notification snoozes the alert
+            Intent snooze = new Intent(context, BatteryAlarmService.class);
+            snooze.setAction(ACTION_SNOOZE);
+            notification.deleteIntent = PendingIntent.getService(context, 0, snooze, 0);
+            
+            sNotification = notification;
+        }
+        
+        // Set the scrolling text and timestamp
+        notification.tickerText = text;
+        notification.when = System.currentTimeMillis();
 
         // Set the info for the views that show in the notification panel.
         notification.setLatestEventInfo(this, 
                                         getText(R.string.app_name),
                                         text, 
-                                        contentIntent);
+                                        sContentIntent);
 
         // Send the notification.
         // We use a layout id because it is a unique number.  We use it later to cancel.
@@ -157,101 +778,32 @@ public class BatteryAlarmService extends Service {
         
     }
 
-    private void playCustomSound() {
-        MediaPlayer mediaPlayer = null;
-        try{
-            mediaPlayer = MediaPlayer.create(this, mSoundUri);
-            mediaPlayer.setVolume(1, 1);
-            mediaPlayer.start();
-            
-            try{
-                Thread.sleep(PLAYBACK_DURATION);
-            }catch(InterruptedException ignored){}
-            
-            
-        }
-        catch (Exception e){
-            Log.e(getClass().getName(), "Could not play Uri "+mSoundUri + " - " + e);
-            
-            // Play the default sound instead
-            playDefaultSound();
-        }
-        finally {
-            try{
-                if(mediaPlayer != null) mediaPlayer.release();
-            }
-            catch(Exception ignored){}
-        }
-    }
-
-    private void playDefaultSound() {
-        MediaPlayer mediaPlayer = null;
-        try {
-            mediaPlayer = new MediaPlayer();
-            AssetFileDescriptor fd = getResources().openRawResourceFd(R.raw.record_stop1);
-            mediaPlayer.setDataSource(fd.getFileDescriptor(), fd.getStartOffset(), fd.getLength());
-            fd.close();
-            mediaPlayer.setVolume(1, 1);
-            
-            mediaPlayer.prepare();
-            mediaPlayer.start();
-            
-            try{
-                Thread.sleep(PLAYBACK_DURATION);
-            }catch(InterruptedException ignored){}
-            
-        } catch (Exception e) {
-            Log.e(getClass().getName(), "Could not play raw sound "+R.raw.record_stop1 + " - " +e);
-        }
-        finally{
-            try{
-                if(mediaPlayer != null) mediaPlayer.release();
-            }
-            catch(Exception ignored){}
-        }
-    }
-    
-    private boolean isEnabledTime(SharedPreferences settings) {
-        boolean disableAtNight = settings.getBoolean(BatteryAlarm.PREF_DISABLE_AT_NIGHT, 
-                                                     BatteryAlarm.DEFAULT_DISABLE_AT_NIGHT);
-        if(!disableAtNight){
-            return true;
-        }
-        
-        String minTimeStr = settings.getString(BatteryAlarm.PREF_MIN_TIME, BatteryAlarm.DEFAULT_MIN_TIME);
-        String maxTimeStr = settings.getString(BatteryAlarm.PREF_MAX_TIME, BatteryAlarm.DEFAULT_MAX_TIME);
-        
-        int minHrs = BatteryAlarm.parseHours(minTimeStr);
-        int minMins = BatteryAlarm.parseMinutes(minTimeStr);
-        int maxHrs = BatteryAlarm.parseHours(maxTimeStr);
-        int maxMins = BatteryAlarm.parseMinutes(maxTimeStr);
-        
-        Calendar now = Calendar.getInstance();
-        Calendar min = Calendar.getInstance();
-        Calendar max = Calendar.getInstance();
-        
-        if(max.before(min)){
-            max.add(Calendar.DATE, 1);
-        }
-        
-        min.set(Calendar.HOUR_OF_DAY, minHrs);
-        min.set(Calendar.MINUTE, minMins);
-        if(now.before(min)) return false;
-        
-        max.set(Calendar.HOUR_OF_DAY, maxHrs);
-        max.set(Calendar.MINUTE, maxMins);
-        if(now.after(max)) return false;
-        
-        return true;
-    }
-
     /**
      * This is the object that receives interactions from clients.
+     * Clients read the metrics with the TRANSACTION_ codes.
      */
     private final IBinder mBinder = new Binder() {
         @Override
         protected boolean onTransact(int code, Parcel data, Parcel reply,
                 int flags) throws RemoteException {
+            switch(code){
+                case TRANSACTION_DUMP_METRICS:
+                    data.enforceInterface(DESCRIPTOR);
+                    reply.writeNoException();
+                    reply.writeString(sMetrics.dump());
+                    return true;
+                case TRANSACTION_GET_COUNTERS:
+                    data.enforceInterface(DESCRIPTOR);
+                    reply.writeNoException();
+                    reply.writeLong(sMetrics.getSince());
+                    reply.writeLongArray(sMetrics.getCounters());
+                    return true;
+                case TRANSACTION_RESET_METRICS:
+                    data.enforceInterface(DESCRIPTOR);
+                    sMetrics.reset(System.currentTimeMillis());
+                    reply.writeNoException();
+                    return true;
+            }
             return super.onTransact(code, data, reply, flags);
         }
     };
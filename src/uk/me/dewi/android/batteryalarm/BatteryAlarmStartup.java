@@ -1,31 +1,45 @@
 package uk.me.dewi.android.batteryalarm;
 
-import static uk.me.dewi.android.batteryalarm.BatteryAlarm.*;
-
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
-import android.content.SharedPreferences;
-import android.preference.PreferenceManager;
+import android.os.SystemClock;
 
 /**
- * Launches the battery alarm on system startup
+ * Launches the battery alarm on system startup, and suspends it while the
+ * device is on a charger unless a rule applies there.
+ * 
+ * Boot is when every app is starting at once, so the receiver only hands
+ * over to the service and the first check is put off a few minutes. Power
+ * events are handed over in the same way, so the receiver never reads the
+ * settings or the battery itself.
  * @author dewi
  *
  */
 public class BatteryAlarmStartup extends BroadcastReceiver {
 
     static final String ACTION = "android.intent.action.BOOT_COMPLETED";
+    static final String ACTION_POWER_CONNECTED = "android.intent.action.ACTION_POWER_CONNECTED";
+    static final String ACTION_POWER_DISCONNECTED = "android.intent.action.ACTION_POWER_DISCONNECTED";
     
     public void onReceive(Context context, Intent intent) {
-        if (intent.getAction().equals(ACTION)) {
-            
-            SharedPreferences settings = PreferenceManager.getDefaultSharedPreferences(context);
-            
-            if(settings.getBoolean(BatteryAlarm.PREF_LAUNCH_ON_STARTUP, DEFAULT_LAUNCH_ON_STARTUP)){
-                BatteryAlarmLauncher launcher = new BatteryAlarmLauncher();
-                launcher.launch(context);
-            }
+        long started = SystemClock.uptimeMillis();
+        String action = intent.getAction();
+        
+        if (ACTION.equals(action)) {
+            // Reading the settings and the battery is left to the service's worker thread
+            Intent boot = new Intent(context, BatteryAlarmService.class);
+            boot.setAction(BatteryAlarmService.ACTION_BOOT);
+            context.startService(boot);
+        }
+        else if (ACTION_POWER_CONNECTED.equals(action) || ACTION_POWER_DISCONNECTED.equals(action)) {
+            // Suspending or resuming monitoring and timing the charge are
+            // left to the service's worker thread too
+            Intent power = new Intent(context, BatteryAlarmService.class);
+            power.setAction(BatteryAlarmService.ACTION_POWER);
+            power.putExtra(BatteryAlarmService.EXTRA_PLUGGED, ACTION_POWER_CONNECTED.equals(action));
+            context.startService(power);
         }
+        BatteryAlarmService.sMetrics.receiver.record(SystemClock.uptimeMillis() - started);
     }
 }
\ No newline at end of file
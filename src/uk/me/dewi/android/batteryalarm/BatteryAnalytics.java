@@ -0,0 +1,204 @@
+package uk.me.dewi.android.batteryalarm;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.DateFormat;
+import java.text.DateFormatSymbols;
+import java.util.Date;
+
+import android.app.Activity;
+import android.content.ActivityNotFoundException;
+import android.content.Intent;
+import android.graphics.Typeface;
+import android.os.AsyncTask;
+import android.os.Bundle;
+import android.util.Log;
+import android.view.Menu;
+import android.view.MenuItem;
+import android.widget.ScrollView;
+import android.widget.TextView;
+import android.widget.Toast;
+
+/**
+ * Shows when and how fast the battery drains, from the {@link DischargeAnalytics}
+ * kept by the service.
+ */
+public class BatteryAnalytics extends Activity {
+
+    private static final int BAR_WIDTH = 20;
+    
+    private static final int MENU_EXPORT = Menu.FIRST;
+
+    private TextView mText;
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+
+        mText = new TextView(this);
+        mText.setTypeface(Typeface.MONOSPACE);
+        mText.setPadding(8, 8, 8, 8);
+        mText.setText(R.string.analytics_loading);
+
+        ScrollView scroll = new ScrollView(this);
+        scroll.addView(mText);
+        setContentView(scroll);
+
+        // Reading the history the first time takes a moment, keep it off the UI thread
+        new AsyncTask<Void, Void, String>() {
+            @Override
+            protected String doInBackground(Void... params) {
+                return report(BatteryAlarmService.getAnalytics(BatteryAnalytics.this),
+                              BatteryAlarmService.getHealthTracker(BatteryAnalytics.this));
+            }
+
+            @Override
+            protected void onPostExecute(String result) {
+                mText.setText(result);
+            }
+        }.execute();
+    }
+
+    @Override
+    public boolean onCreateOptionsMenu(Menu menu) {
+        menu.add(0, MENU_EXPORT, 0, R.string.export_history);
+        return true;
+    }
+    
+    @Override
+    public boolean onOptionsItemSelected(MenuItem item) {
+        if(item.getItemId() == MENU_EXPORT){
+            exportHistory();
+            return true;
+        }
+        return super.onOptionsItemSelected(item);
+    }
+    
+    /**
+     * Writes the history to a file and offers to send it on, through the
+     * {@link HistoryProvider} so the file itself stays private.
+     */
+    private void exportHistory() {
+        new AsyncTask<Void, Void, File>() {
+            @Override
+            protected File doInBackground(Void... params) {
+                try{
+                    return BatteryAlarmService.exportHistory(BatteryAnalytics.this);
+                }
+                catch(IOException e){
+                    Log.e(BatteryAnalytics.class.getName(), "Could not export battery history", e);
+                    return null;
+                }
+            }
+
+            @Override
+            protected void onPostExecute(File file) {
+                if(file != null){
+                    Intent send = new Intent(Intent.ACTION_SEND);
+                    send.setType(HistoryProvider.EXPORT_TYPE);
+                    send.putExtra(Intent.EXTRA_STREAM, HistoryProvider.EXPORT_URI);
+                    send.addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION);
+                    try{
+                        startActivity(send);
+                    }
+                    catch(ActivityNotFoundException e){
+                        Toast.makeText(BatteryAnalytics.this, HistoryProvider.EXPORT_URI.toString(), Toast.LENGTH_LONG).show();
+                    }
+                }
+                else{
+                    Toast.makeText(BatteryAnalytics.this, R.string.export_failed, Toast.LENGTH_LONG).show();
+                }
+            }
+        }.execute();
+    }
+
+    private String report(DischargeAnalytics analytics, BatteryHealthTracker health) {
+        StringBuilder out = new StringBuilder(2048);
+        if(analytics.getSampleCount() == 0){
+            return getString(R.string.analytics_empty);
+        }
+
+        long now = System.currentTimeMillis();
+        out.append(getString(R.string.analytics_recent)).append('\n');
+        appendRate(out, "24h", analytics.getDrainPerHour(now - DischargeAnalytics.DAY, now));
+        appendRate(out, "7d", analytics.getDrainPerHour(now - 7 * DischargeAnalytics.DAY, now));
+        appendRate(out, "30d", analytics.getDrainPerHour(now - 30 * DischargeAnalytics.DAY, now));
+
+        float[] hours = new float[24];
+        analytics.getHourOfDay(hours);
+        out.append('\n').append(getString(R.string.analytics_by_hour)).append('\n');
+        float max = max(hours);
+        for(int hour = 0; hour < 24; hour++){
+            appendBar(out, (hour < 10 ? "0" : "") + hour, hours[hour], max);
+        }
+
+        float[] days = new float[7];
+        analytics.getDayOfWeek(days);
+        out.append('\n').append(getString(R.string.analytics_by_day)).append('\n');
+        String[] names = new DateFormatSymbols().getShortWeekdays();
+        max = max(days);
+        for(int day = 0; day < 7; day++){
+            // Calendar numbers the days from Sunday = 1, ours start on Monday
+            appendBar(out, names[(day + 1) % 7 + 1], days[day], max);
+        }
+
+        out.append('\n').append(getString(R.string.analytics_health)).append('\n');
+        float capacity = health.getCapacity();
+        out.append("capacity ").append(Float.isNaN(capacity) ? "-" : Math.round(capacity * 100) + "%")
+           .append(health.isDegraded() ? " (worn)" : "").append('\n')
+           .append("cycles ").append(format(health.getCycles())).append('\n');
+
+        out.append('\n').append(getString(R.string.analytics_cycles)).append('\n');
+        DateFormat format = DateFormat.getDateTimeInstance(DateFormat.SHORT, DateFormat.SHORT);
+        DischargeAnalytics.Cycle cycle = new DischargeAnalytics.Cycle();
+        for(int i = analytics.getCycleCount() - 1; i >= 0; i--){
+            analytics.getCycle(i, cycle);
+            long minutes = (cycle.end - cycle.start) / MonitorScheduler.MINUTE;
+            out.append(format.format(new Date(cycle.start)))
+               .append(cycle.charging ? "  + " : "  - ")
+               .append(cycle.startLevel).append("% -> ").append(cycle.endLevel).append("% in ")
+               .append(minutes / 60).append('h').append(minutes % 60).append('m');
+            float rate = cycle.getRatePerHour();
+            if(!Float.isNaN(rate)){
+                out.append(" (").append(format(Math.abs(rate))).append("%/h)");
+            }
+            out.append('\n');
+        }
+        return out.toString();
+    }
+
+    private static void appendRate(StringBuilder out, String label, float rate) {
+        out.append(label).append(' ').append(Float.isNaN(rate) ? "-" : format(rate) + "%/h").append('\n');
+    }
+
+    private static void appendBar(StringBuilder out, String label, float rate, float max) {
+        out.append(label).append(' ');
+        if(Float.isNaN(rate)){
+            out.append('\n');
+            return;
+        }
+        int width = max > 0 ? Math.round(rate / max * BAR_WIDTH) : 0;
+        for(int i = 0; i < width; i++){
+            out.append('#');
+        }
+        out.append(' ').append(format(rate)).append('\n');
+    }
+
+    private static float max(float[] values) {
+        float max = 0;
+        for(int i = 0; i < values.length; i++){
+            if(values[i] > max){
+                max = values[i];
+            }
+        }
+        return max;
+    }
+
+    /**
+     * @return the value to one decimal place
+     */
+    private static String format(float value) {
+        int tenths = Math.round(value * 10);
+        return (tenths / 10) + "." + (tenths % 10);
+    }
+}
@@ -0,0 +1,295 @@
+package uk.me.dewi.android.batteryalarm;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+/**
+ * Follows the battery's wear from the readings as they come in, counting
+ * charge cycles and estimating how much of its capacity is left.
+ *
+ * Phones don't report the charge in the battery, so capacity is estimated
+ * from how long a percent takes to charge. A charger pushes a steady current
+ * until the battery is nearly full, so a worn battery holding less charge
+ * goes up each percent faster. Charges that stay below
+ * {@link #MAX_CHARGE_LEVEL} are timed and compared, per charger type, with
+ * the first charges seen. Cycles are counted in equivalent full cycles,
+ * every 100% discharged being one.
+ *
+ * Only a fixed handful of numbers are kept and updated with each reading,
+ * so the history never has to be read again. They include the last reading
+ * and the charge in progress, so a charge is still timed when the process
+ * is killed part way through.
+ */
+public class BatteryHealthTracker {
+
+    /** Battery health values from ACTION_BATTERY_CHANGED. */
+    public static final int HEALTH_GOOD = 2;
+    public static final int HEALTH_DEAD = 4;
+    public static final int HEALTH_OVER_VOLTAGE = 5;
+    public static final int HEALTH_FAILURE = 6;
+
+    /** Charges above this slow down as the battery fills, so are not timed. */
+    public static final int MAX_CHARGE_LEVEL = 90;
+
+    /** Charges of fewer percent than this are too short to time. */
+    public static final int MIN_CHARGE = 10;
+
+    /** Readings further apart than this while charging are not timed, the device may have been off. */
+    public static final long MAX_GAP = 6 * MonitorScheduler.HOUR;
+
+    /** Number of charges averaged into what a new battery looked like. */
+    public static final int BASELINE_CHARGES = 5;
+
+    /** Weight of each new charge in the recent average. */
+    public static final float ALPHA = 0.1f;
+
+    /** The battery is worn once less than this much of its capacity is left. */
+    public static final float DEGRADED_CAPACITY = 0.8f;
+
+    /** Charges timed since the baseline before wear is reported. */
+    public static final int MIN_CHARGES = 10;
+
+    /** Charger types kept apart, indexed by the plug type. */
+    private static final int PLUG_TYPES = 3;
+
+    public static final int MAGIC = 0x42414854; // "BAHT"
+    public static final int VERSION = 2;
+    private static final int FILE_SIZE_V1 = 8 + 8 + 1 + PLUG_TYPES * 16;
+    private static final int FILE_SIZE = FILE_SIZE_V1 + 13 + 16;
+
+    private float mDischarged;
+    private int mHealth = HEALTH_GOOD;
+    private boolean mReported;
+
+    private final float[] mBaseline = new float[PLUG_TYPES];
+    private final float[] mRecent = new float[PLUG_TYPES];
+    private final int[] mBaselineCount = new int[PLUG_TYPES];
+    private final int[] mRecentCount = new int[PLUG_TYPES];
+
+    // The charge in progress
+    private long mChargeStart = -1;
+    private int mChargeStartLevel;
+    private int mChargePlugType;
+
+    private long mLastTime = -1;
+    private int mLastLevel;
+    private boolean mLastPlugged;
+
+    private boolean mDirty;
+
+    /**
+     * Adds a reading.
+     *
+     * @return true the first time the battery is found to be worn or failing,
+     * when the user should be told
+     */
+    public synchronized boolean onSample(long time, int level, int plugType, int health){
+        boolean plugged = plugType != 0;
+        if(mLastTime >= 0 && time > mLastTime){
+            if(!plugged && !mLastPlugged && level < mLastLevel){
+                mDischarged += mLastLevel - level;
+                mDirty = true;
+            }
+            if(plugged && mLastPlugged && time - mLastTime > MAX_GAP){
+                // Can't tell what happened in between
+                mChargeStart = -1;
+            }
+        }
+
+        if(plugged && (!mLastPlugged || plugType != mChargePlugType)){
+            if(mLastPlugged && mChargeStart >= 0){
+                // Moved to another charger
+                endCharge(mLastTime, mLastLevel);
+            }
+            mChargeStart = time;
+            mChargeStartLevel = level;
+            mChargePlugType = plugType;
+        }
+        else if(plugged && mChargeStart >= 0 && level > MAX_CHARGE_LEVEL){
+            // Into the slow part of the charge, time it up to the last reading
+            endCharge(mLastTime, mLastLevel);
+        }
+        else if(!plugged && mLastPlugged && mChargeStart >= 0){
+            endCharge(time, level);
+        }
+
+        if(health != 0 && health != mHealth){
+            mHealth = health;
+            mDirty = true;
+        }
+
+        if(mLastTime < 0 || time >= mLastTime){
+            mLastTime = time;
+            mLastLevel = level;
+            mLastPlugged = plugged;
+            mDirty = true;
+        }
+
+        if(!mReported && isDegraded()){
+            mReported = true;
+            mDirty = true;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Times the charge that has just ended, if it is one worth timing.
+     */
+    private void endCharge(long end, int level){
+        long start = mChargeStart;
+        mChargeStart = -1;
+        int charged = level - mChargeStartLevel;
+        int type = mChargePlugType;
+        if(start < 0 || charged < MIN_CHARGE || level > MAX_CHARGE_LEVEL
+           || end <= start || type < 0 || type >= PLUG_TYPES){
+            return;
+        }
+        float minutesPerPercent = (end - start) / (float)MonitorScheduler.MINUTE / charged;
+        if(mBaselineCount[type] < BASELINE_CHARGES){
+            int count = ++mBaselineCount[type];
+            mBaseline[type] += (minutesPerPercent - mBaseline[type]) / count;
+            mRecent[type] = mBaseline[type];
+        }
+        else{
+            mRecent[type] += ALPHA * (minutesPerPercent - mRecent[type]);
+            mRecentCount[type]++;
+        }
+        mDirty = true;
+    }
+
+    /**
+     * @return the estimated fraction of the battery's original capacity left,
+     * or NaN until enough charges have been timed
+     */
+    public synchronized float getCapacity(){
+        // Use the charger seen most often
+        int best = -1;
+        for(int type = 0; type < PLUG_TYPES; type++){
+            if(mBaselineCount[type] == BASELINE_CHARGES && mRecentCount[type] >= MIN_CHARGES
+               && (best < 0 || mRecentCount[type] > mRecentCount[best])){
+                best = type;
+            }
+        }
+        if(best < 0 || mBaseline[best] <= 0){
+            return Float.NaN;
+        }
+        return Math.min(1, mRecent[best] / mBaseline[best]);
+    }
+
+    /**
+     * @return the number of equivalent full cycles, every 100% discharged
+     * being one
+     */
+    public synchronized float getCycles(){
+        return mDischarged / 100;
+    }
+
+    /**
+     * @return the last health the battery reported
+     */
+    public synchronized int getHealth(){
+        return mHealth;
+    }
+
+    /**
+     * @return whether the battery reports a failure or has lost more than
+     * its allowance of capacity
+     */
+    public synchronized boolean isDegraded(){
+        if(mHealth == HEALTH_DEAD || mHealth == HEALTH_OVER_VOLTAGE || mHealth == HEALTH_FAILURE){
+            return true;
+        }
+        float capacity = getCapacity();
+        return !Float.isNaN(capacity) && capacity < DEGRADED_CAPACITY;
+    }
+
+    /**
+     * @return whether anything has changed since the tracker was last
+     * loaded or saved
+     */
+    public synchronized boolean isDirty(){
+        return mDirty;
+    }
+
+    public synchronized void load(File file) throws IOException {
+        if(!file.exists()){
+            return;
+        }
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        ByteBuffer in;
+        try{
+            long length = raf.length();
+            if(length < FILE_SIZE_V1){
+                return;
+            }
+            in = ByteBuffer.allocate((int)Math.min(length, FILE_SIZE));
+            raf.readFully(in.array());
+        }
+        finally{
+            raf.close();
+        }
+        if(in.getInt() != MAGIC){
+            return;
+        }
+        int version = in.getInt();
+        // Version 1 had no last reading or charge in progress
+        if(!(version == 1 || (version == VERSION && in.capacity() == FILE_SIZE))){
+            return;
+        }
+        mDischarged = in.getFloat();
+        mHealth = in.getInt();
+        mReported = in.get() != 0;
+        for(int type = 0; type < PLUG_TYPES; type++){
+            mBaseline[type] = in.getFloat();
+            mRecent[type] = in.getFloat();
+            mBaselineCount[type] = in.getInt();
+            mRecentCount[type] = in.getInt();
+        }
+        if(version == VERSION){
+            mLastTime = in.getLong();
+            mLastLevel = in.getInt();
+            mLastPlugged = in.get() != 0;
+            mChargeStart = in.getLong();
+            mChargeStartLevel = in.getInt();
+            mChargePlugType = in.getInt();
+        }
+        mDirty = false;
+    }
+
+    /**
+     * Writes the tracker if it has changed since it was last loaded or saved.
+     */
+    public synchronized void save(File file) throws IOException {
+        if(!mDirty){
+            return;
+        }
+        ByteBuffer out = ByteBuffer.allocate(FILE_SIZE);
+        out.putInt(MAGIC).putInt(VERSION);
+        out.putFloat(mDischarged);
+        out.putInt(mHealth);
+        out.put((byte)(mReported ? 1 : 0));
+        for(int type = 0; type < PLUG_TYPES; type++){
+            out.putFloat(mBaseline[type]);
+            out.putFloat(mRecent[type]);
+            out.putInt(mBaselineCount[type]);
+            out.putInt(mRecentCount[type]);
+        }
+        out.putLong(mLastTime);
+        out.putInt(mLastLevel);
+        out.put((byte)(mLastPlugged ? 1 : 0));
+        out.putLong(mChargeStart);
+        out.putInt(mChargeStartLevel);
+        out.putInt(mChargePlugType);
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try{
+            raf.write(out.array());
+        }
+        finally{
+            raf.close();
+        }
+        mDirty = false;
+    }
+}
@@ -0,0 +1,69 @@
+package uk.me.dewi.android.batteryalarm;
+
+/**
+ * A single reading of the battery status.
+ *
+ * The fields are public primitives so one instance can be refilled for
+ * every reading instead of allocating a new object each time. An instance
+ * must only be used by one thread at a time.
+ */
+public final class BatterySample {
+
+    /** Wall clock time of the reading in milliseconds since the epoch. */
+    public long time;
+
+    /** Milliseconds since boot when the reading was taken. */
+    public long elapsed;
+
+    /** Battery level in percent. */
+    public int level;
+
+    /** The scale the battery reported its level against. */
+    public int scale;
+
+    /** The charger type as reported in ACTION_BATTERY_CHANGED, 0 when on battery. */
+    public int plugType;
+
+    /** Whether the device is on a charger. */
+    public boolean plugged;
+
+    /** Battery temperature in tenths of a degree Celsius. */
+    public int temperature;
+
+    /** Battery voltage in millivolts. */
+    public int voltage;
+
+    /** Battery health as reported in ACTION_BATTERY_CHANGED. */
+    public int health;
+
+    /** Alert rules that started firing with this sample, as a bit mask. */
+    public int flags;
+
+    /** Estimated discharge rate in percent per hour, not recorded in the history. */
+    public float drainPerHour;
+
+    /** Estimated minutes until the threshold is reached, not recorded in the history. */
+    public int minutesLeft = Integer.MAX_VALUE;
+
+    public void set(BatterySample other){
+        time = other.time;
+        elapsed = other.elapsed;
+        level = other.level;
+        scale = other.scale;
+        plugType = other.plugType;
+        plugged = other.plugged;
+        temperature = other.temperature;
+        voltage = other.voltage;
+        health = other.health;
+        flags = other.flags;
+        drainPerHour = other.drainPerHour;
+        minutesLeft = other.minutesLeft;
+    }
+
+    @Override
+    public String toString() {
+        return "BatterySample[" + time + ", " + level + "%" 
+             + ", " + temperature / 10f + "C, " + voltage + "mV" 
+             + (plugged ? ", plugged]" : "]");
+    }
+}
@@ -0,0 +1,165 @@
+package uk.me.dewi.android.batteryalarm;
+
+import java.util.Random;
+
+/**
+ * A battery trace for the {@link TraceSimulator}: the level, whether the
+ * device was on a charger and whether it was in use, minute by minute.
+ *
+ * Traces are either resampled from a recorded {@link HistoryLog} or made up
+ * from a seed, so a run can always be repeated exactly.
+ */
+public class BatteryTrace {
+
+    public static final long STEP = MonitorScheduler.MINUTE;
+
+    private static final int PLUGGED = 1;
+    private static final int AWAKE = 2;
+
+    private final String mName;
+    private final long mStart;
+    private final byte[] mLevels;
+    private final byte[] mStates;
+
+    private BatteryTrace(String name, long start, byte[] levels, byte[] states){
+        mName = name;
+        mStart = start;
+        mLevels = levels;
+        mStates = states;
+    }
+
+    public String getName(){
+        return mName;
+    }
+
+    /**
+     * @return the number of minutes in the trace
+     */
+    public int size(){
+        return mLevels.length;
+    }
+
+    /**
+     * @return wall clock time of the minute
+     */
+    public long getTime(int index){
+        return mStart + index * STEP;
+    }
+
+    public int getLevel(int index){
+        return mLevels[index];
+    }
+
+    public boolean isPlugged(int index){
+        return (mStates[index] & PLUGGED) != 0;
+    }
+
+    /**
+     * @return whether the device was awake anyway, so a check then costs no
+     * extra wakeup
+     */
+    public boolean isAwake(int index){
+        return (mStates[index] & AWAKE) != 0;
+    }
+
+    /**
+     * Resamples a recorded history to one reading a minute, drawing a
+     * straight line between readings. The history does not say when the
+     * device was in use, so it is taken to be asleep throughout.
+     *
+     * @return the trace, or null if the history has fewer than two readings
+     */
+    public static BatteryTrace fromHistory(String name, HistoryLog.View view){
+        if(view.size() < 2){
+            return null;
+        }
+        long start = view.getTime(0);
+        int minutes = (int)((view.getTime(view.size() - 1) - start) / STEP) + 1;
+        byte[] levels = new byte[minutes];
+        byte[] states = new byte[minutes];
+        int record = 0;
+        for(int i = 0; i < minutes; i++){
+            long time = start + i * STEP;
+            while(record < view.size() - 2 && view.getTime(record + 1) <= time){
+                record++;
+            }
+            long from = view.getTime(record);
+            long to = view.getTime(record + 1);
+            int level = view.getLevel(record);
+            if(to > from && time > from){
+                level += (int)((view.getLevel(record + 1) - level) * Math.min(time - from, to - from) / (to - from));
+            }
+            levels[i] = (byte)level;
+            states[i] = (byte)(view.isPlugged(record) ? PLUGGED : 0);
+        }
+        return new BatteryTrace(name, start, levels, states);
+    }
+
+    /**
+     * Makes up a plausible trace: the phone is charged overnight on most
+     * nights, used in short sessions during the day and plugged in when
+     * the owner notices it getting low, which they don't always.
+     *
+     * @param start wall clock time of the first minute, in UTC
+     */
+    public static BatteryTrace synthetic(long seed, int days, long start){
+        Random random = new Random(seed);
+        int minutes = days * TimeWindow.MINUTES_PER_DAY;
+        byte[] levels = new byte[minutes];
+        byte[] states = new byte[minutes];
+
+        float level = 60 + random.nextInt(41);
+        int chargeUntil = -1;
+        int session = 0;
+        float sessionDrain = 0;
+        int wake = 0;
+        int sleep = 0;
+        boolean chargeAtNight = false;
+        for(int i = 0; i < minutes; i++){
+            int minuteOfDay = i % TimeWindow.MINUTES_PER_DAY;
+            if(minuteOfDay == 0){
+                wake = 7 * 60 + random.nextInt(120) - 60;
+                sleep = 23 * 60 + random.nextInt(120) - 60;
+            }
+            if(minuteOfDay == sleep){
+                chargeAtNight = random.nextInt(10) < 7;
+            }
+            boolean night = minuteOfDay < wake || minuteOfDay >= sleep;
+
+            boolean plugged;
+            if(night){
+                plugged = chargeAtNight;
+                chargeUntil = plugged ? i : -1;
+                session = 0;
+            }
+            else{
+                if(chargeUntil < 0 && level < 25 && random.nextInt(100) < 2){
+                    // Noticed it was getting low
+                    chargeUntil = i + 60 + random.nextInt(60);
+                }
+                plugged = chargeUntil >= i;
+                if(!plugged){
+                    chargeUntil = -1;
+                }
+                if(session > 0){
+                    session--;
+                }
+                else if(random.nextInt(100) < 3){
+                    session = 2 + random.nextInt(20);
+                    sessionDrain = random.nextInt(10) == 0 ? 35 : 10 + random.nextInt(10);
+                }
+            }
+
+            if(plugged){
+                level = Math.min(100, level + 1.2f);
+            }
+            else{
+                float drainPerHour = session > 0 ? sessionDrain : night ? 0.8f : 1.5f;
+                level = Math.max(0, level - drainPerHour / 60);
+            }
+            levels[i] = (byte)level;
+            states[i] = (byte)((plugged ? PLUGGED : 0) | (session > 0 ? AWAKE : 0));
+        }
+        return new BatteryTrace("synthetic-" + seed, start, levels, states);
+    }
+}
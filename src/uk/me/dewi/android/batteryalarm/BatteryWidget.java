@@ -0,0 +1,40 @@
+package uk.me.dewi.android.batteryalarm;
+
+import android.appwidget.AppWidgetManager;
+import android.appwidget.AppWidgetProvider;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.SystemClock;
+
+/**
+ * Home screen widget showing the battery level, the time left and whether
+ * the battery is being monitored.
+ *
+ * It has no update period of its own, the battery checks push new values
+ * through {@link StatusPublisher} when what it shows changes.
+ */
+public class BatteryWidget extends AppWidgetProvider {
+
+    @Override
+    public void onUpdate(Context context, AppWidgetManager appWidgetManager, int[] appWidgetIds) {
+        StatusCache status = StatusPublisher.sStatus;
+        if(!status.hasLevel()){
+            // A new process, start from the sticky battery status rather than
+            // waiting for the next check
+            Intent battery = context.getApplicationContext()
+                    .registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+            if(battery != null){
+                boolean plugged = battery.getIntExtra("plugged", 0) != 0;
+                int state = !ConfigCache.get(context).isEnabled() ? StatusCache.STATE_OFF
+                            : plugged ? StatusCache.STATE_CHARGING 
+                            : StatusCache.STATE_MONITORING;
+                status.update(SystemClock.elapsedRealtime(),
+                              BatteryAlarmService.getLevel(battery),
+                              Integer.MAX_VALUE,
+                              state);
+            }
+        }
+        appWidgetManager.updateAppWidget(appWidgetIds, StatusPublisher.buildViews(context));
+    }
+}
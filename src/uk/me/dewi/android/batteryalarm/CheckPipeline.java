@@ -0,0 +1,139 @@
+package uk.me.dewi.android.batteryalarm;
+
+/**
+ * The decisions made by a battery check: when to check next, which alert
+ * rules are firing and whether the user should be alerted.
+ *
+ * The service acts on the decisions, setting the alarm, notifying and
+ * playing the sound. This class has no Android dependencies so the
+ * {@link TraceSimulator} can replay battery traces through the same code.
+ */
+public class CheckPipeline {
+
+    private final MonitorScheduler mScheduler;
+    private final AlertState mState;
+
+    private AlertEngine mEngine;
+    private CheckSettings mEngineSettings;
+
+    private long mDelay = MonitorScheduler.NO_CHECK;
+    private int mStarted;
+    private boolean mAlert;
+
+    /**
+     * @param state the alert state, which also says which rules were
+     * firing before the process was last killed
+     */
+    public CheckPipeline(MonitorScheduler scheduler, AlertState state){
+        mScheduler = scheduler;
+        mState = state;
+    }
+
+    /**
+     * Decides what to do about a reading, filling in the estimates and the
+     * rules that started firing in the sample.
+     *
+     * @param local local wall clock time of the reading, or -1 to not use
+     * the drain profile
+     * @return whether the user should be alerted
+     */
+    public boolean check(BatterySample sample, long local, CheckSettings settings){
+        int threshold = settings.getThreshold();
+
+        mScheduler.setLead(settings.getWarningMillis());
+        mScheduler.setCheckWhilePlugged(settings.isCheckedWhilePlugged());
+        mDelay = mScheduler.onSample(sample.elapsed, 
+                                     local, 
+                                     sample.level, 
+                                     sample.plugged, 
+                                     threshold, 
+                                     settings.getDelayMillis());
+
+        DischargeEstimator estimator = mScheduler.getEstimator();
+        sample.drainPerHour = estimator.getDrainPerHour();
+        long untilThreshold = estimator.millisUntil(sample.level, threshold);
+        sample.minutesLeft = untilThreshold == DischargeEstimator.UNKNOWN 
+                             ? Integer.MAX_VALUE 
+                             : (int)Math.min(untilThreshold / MonitorScheduler.MINUTE, Integer.MAX_VALUE);
+
+        mStarted = getAlertEngine(settings).evaluate(sample);
+        sample.flags = mStarted;
+
+        mAlert = mState.onSample(sample.time, 
+                                 sample.level, 
+                                 sample.plugged, 
+                                 mEngine.getFiring(), 
+                                 mStarted, 
+                                 settings.getRealertStep(), 
+                                 settings.getRealertMillis());
+        return mAlert;
+    }
+
+    /**
+     * Builds the rules again when the settings change, keeping track of
+     * which rules were already firing.
+     */
+    private AlertEngine getAlertEngine(CheckSettings settings) {
+        if(settings != mEngineSettings){
+            AlertEngine engine = new AlertEngine(settings.buildRules());
+            if(mEngine != null){
+                engine.setFiring(mEngine.getFiring());
+            }
+            else{
+                // Carry on from before the process was last killed
+                engine.setFiring(mState.getFiring());
+            }
+            mEngine = engine;
+            mEngineSettings = settings;
+        }
+        return mEngine;
+    }
+
+    /**
+     * @return the delay in milliseconds before the next check, or
+     * {@link MonitorScheduler#NO_CHECK} until the device is unplugged
+     */
+    public long getDelay(){
+        return mDelay;
+    }
+
+    /**
+     * @return whether the next check needs to wake the device
+     */
+    public boolean isWakeupRequired(){
+        return mScheduler.isWakeupRequired();
+    }
+
+    /**
+     * @return the delay in milliseconds by which a check that wakes the
+     * device must run if the next one has not, or
+     * {@link MonitorScheduler#NO_CHECK} if the next check wakes it anyway
+     */
+    public long getDeadline(){
+        return mScheduler.getDeadline();
+    }
+
+    /**
+     * @return the mask of rules that are firing
+     */
+    public int getFiring(){
+        return mEngine != null ? mEngine.getFiring() : 0;
+    }
+
+    /**
+     * @return the rule the last alert is about, the highest priority rule
+     * that started firing or else the highest priority rule still firing,
+     * -1 if none are
+     */
+    public int getAlertRule(){
+        return AlertEngine.first(mStarted != 0 ? mStarted : getFiring());
+    }
+
+    public MonitorScheduler getScheduler(){
+        return mScheduler;
+    }
+
+    public AlertState getAlertState(){
+        return mState;
+    }
+}
@@ -0,0 +1,50 @@
+package uk.me.dewi.android.batteryalarm;
+
+/**
+ * The settings a battery check is decided by, so the decisions can be made
+ * without the Android preferences behind {@link AlarmConfig}.
+ */
+public interface CheckSettings {
+
+    /**
+     * @return the level in percent at which the user is alerted
+     */
+    int getThreshold();
+
+    /**
+     * @return the configured delay between checks near the threshold
+     */
+    long getDelayMillis();
+
+    /**
+     * @return how long before the threshold the user wants to be warned, 0 for no warning
+     */
+    long getWarningMillis();
+
+    /**
+     * @return percent of battery that must be lost before alerting again
+     */
+    int getRealertStep();
+
+    /**
+     * @return milliseconds after which to alert again, 0 for never
+     */
+    long getRealertMillis();
+
+    /**
+     * @return the hours in which the user wants to be alerted
+     */
+    TimeWindow getAlertWindow();
+
+    /**
+     * @return whether any alert rule applies while the device is on a
+     * charger, so checks must go on while it charges
+     */
+    boolean isCheckedWhilePlugged();
+
+    /**
+     * @return the alert rules, indexed by the AlertEngine.RULE_ constants.
+     * A new array means the rules have changed.
+     */
+    AlertRule[] buildRules();
+}
@@ -0,0 +1,24 @@
+package uk.me.dewi.android.batteryalarm;
+
+/**
+ * Source of the current time, so that time dependent decisions can be made
+ * against a fake clock.
+ */
+public interface Clock {
+
+    /**
+     * @return wall clock time in milliseconds since the epoch
+     */
+    long currentTimeMillis();
+
+    /**
+     * @return milliseconds since boot, the time base used for alarms
+     */
+    long elapsedRealtime();
+
+    /**
+     * @return the offset of local time from UTC in milliseconds at the given
+     * wall clock time
+     */
+    int getOffset(long millis);
+}
@@ -0,0 +1,129 @@
+package uk.me.dewi.android.batteryalarm;
+
+import java.io.File;
+import java.io.IOException;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.content.SharedPreferences.OnSharedPreferenceChangeListener;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+/**
+ * Holds the current {@link AlarmConfig}, read from the config file or parsed
+ * from the preferences, until a preference changes.
+ */
+public final class ConfigCache {
+
+    private static AlarmConfig sCurrent;
+    private static SharedPreferences sSettings;
+    private static final SharedPreferences[] sProfileSettings = new SharedPreferences[AlarmConfig.PROFILE_COUNT + 1];
+
+    /** Set when the preferences have changed since the config file was written. */
+    private static boolean sStale;
+
+    // Held here because SharedPreferences only keeps a weak reference to its listeners
+    private static final OnSharedPreferenceChangeListener sInvalidator = new OnSharedPreferenceChangeListener() {
+        public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
+            invalidate();
+        }
+    };
+
+    private ConfigCache(){
+    }
+
+    /**
+     * @return the current settings, read from the config file or parsed from
+     * the preferences only if they have changed since the last call
+     */
+    public static synchronized AlarmConfig get(Context context){
+        if(sCurrent == null){
+            File file = new File(context.getFilesDir(), AlarmConfig.CONFIG_FILE);
+            if(!sStale){
+                try{
+                    sCurrent = AlarmConfig.load(file);
+                }
+                catch(IOException e){
+                    Log.e(ConfigCache.class.getName(), "Could not read "+file, e);
+                }
+            }
+            if(sCurrent == null){
+                // First run, an upgrade or the preferences have changed
+                sCurrent = parse(context);
+                try{
+                    sCurrent.save(file);
+                    sStale = false;
+                }
+                catch(IOException e){
+                    Log.e(ConfigCache.class.getName(), "Could not write "+file, e);
+                }
+            }
+        }
+        return sCurrent;
+    }
+
+    private static AlarmConfig parse(Context context){
+        AlarmConfig.Preferences[] settings = new AlarmConfig.Preferences[AlarmConfig.PROFILE_COUNT + 1];
+        settings[0] = listen(0, PreferenceManager.getDefaultSharedPreferences(context));
+        for(int i = 1; i <= AlarmConfig.PROFILE_COUNT; i++){
+            settings[i] = listen(i, context.getSharedPreferences(AlarmConfig.getProfileName(i), Context.MODE_PRIVATE));
+        }
+        return AlarmConfig.parse(settings);
+    }
+
+    private static AlarmConfig.Preferences listen(int profile, SharedPreferences settings){
+        SharedPreferences previous = profile == 0 ? sSettings : sProfileSettings[profile];
+        if(settings != previous){
+            if(previous != null){
+                previous.unregisterOnSharedPreferenceChangeListener(sInvalidator);
+            }
+            settings.registerOnSharedPreferenceChangeListener(sInvalidator);
+            if(profile == 0){
+                sSettings = settings;
+            }
+            else{
+                sProfileSettings[profile] = settings;
+            }
+        }
+        return new Preferences(settings);
+    }
+
+    /**
+     * Forces the preferences to be parsed again, and the config file
+     * rewritten, on the next call to {@link #get(Context)}.
+     */
+    public static synchronized void invalidate(){
+        sCurrent = null;
+        sStale = true;
+    }
+
+    /**
+     * Parses the preferences again and writes the config file straight away,
+     * so other processes see the change.
+     */
+    public static synchronized AlarmConfig update(Context context){
+        invalidate();
+        return get(context);
+    }
+
+    private static class Preferences implements AlarmConfig.Preferences {
+
+        private final SharedPreferences mSettings;
+
+        Preferences(SharedPreferences settings){
+            mSettings = settings;
+        }
+
+        public String getString(String key, String defValue) {
+            return mSettings.getString(key, defValue);
+        }
+
+        public boolean getBoolean(String key, boolean defValue) {
+            return mSettings.getBoolean(key, defValue);
+        }
+
+        public void onBadValue(String key, String value) {
+            Log.e(ConfigCache.class.getName(), "Could not parse "+key+" "+value+", using the default");
+        }
+    }
+}
@@ -0,0 +1,285 @@
+package uk.me.dewi.android.batteryalarm;
+
+/**
+ * Running statistics of how fast and when the battery drains, built one
+ * sample at a time so nothing has to be recomputed from the history.
+ *
+ * Every stretch between two samples taken off the charger is split at hour
+ * boundaries and added to the bucket for that hour of the week, and to the
+ * bucket for its day. Hour of day and day of week figures merge the hour of
+ * week buckets, and a range of days merges the day buckets, so queries cost
+ * at most a few hundred additions whatever the number of samples.
+ *
+ * Charge and discharge cycles are kept in a small ring of summaries.
+ *
+ * All methods are synchronized, samples are added on the service's worker
+ * thread while the analytics screen reads them.
+ */
+public class DischargeAnalytics {
+
+    public static final long HOUR = MonitorScheduler.HOUR;
+    public static final long DAY = TimeWindow.MILLIS_PER_DAY;
+
+    public static final int HOURS_PER_WEEK = 7 * 24;
+
+    /** Number of days the day buckets go back. */
+    public static final int DAYS = 400;
+
+    /** Number of cycles remembered, including the current one. */
+    public static final int CYCLES = 32;
+
+    /** Longer gaps between samples, such as the device being off, are not counted. */
+    public static final long MAX_GAP = 6 * HOUR;
+
+    // Drained is in hundredths of a percent so partial hours add up exactly enough
+    private final long[] mWeekDrained = new long[HOURS_PER_WEEK];
+    private final long[] mWeekMillis = new long[HOURS_PER_WEEK];
+
+    private final long[] mDayDrained = new long[DAYS];
+    private final long[] mDayMillis = new long[DAYS];
+    /** The local day, counted from the epoch, each day bucket currently holds. */
+    private final int[] mDayIndex = new int[DAYS];
+
+    private final long[] mCycleStart = new long[CYCLES];
+    private final long[] mCycleEnd = new long[CYCLES];
+    private final byte[] mCycleStartLevel = new byte[CYCLES];
+    private final byte[] mCycleEndLevel = new byte[CYCLES];
+    private final boolean[] mCycleCharging = new boolean[CYCLES];
+    private int mCycleHead = -1;
+    private int mCycleCount;
+
+    private final Clock mClock;
+
+    private long mLastTime = -1;
+    private int mLastLevel;
+    private boolean mLastPlugged;
+    private int mSamples;
+
+    /**
+     * @param clock gives the local time zone offset used to find the hour and day
+     */
+    public DischargeAnalytics(Clock clock){
+        mClock = clock;
+        for(int i = 0; i < DAYS; i++){
+            mDayIndex[i] = -1;
+        }
+    }
+
+    /**
+     * Adds a sample. Samples must be added in time order, older ones are ignored.
+     *
+     * @param time wall clock time of the sample
+     */
+    public synchronized void onSample(long time, int level, boolean plugged){
+        if(mLastTime >= 0 && time <= mLastTime){
+            return;
+        }
+        mSamples++;
+
+        if(mLastTime >= 0){
+            long gap = time - mLastTime;
+            if(gap <= MAX_GAP && !plugged && !mLastPlugged && level <= mLastLevel){
+                addDrain(mLastTime, time, (mLastLevel - level) * 100);
+            }
+        }
+
+        if(mCycleHead < 0 || mLastPlugged != plugged){
+            startCycle(time, level, plugged);
+        }
+        mCycleEnd[mCycleHead] = time;
+        mCycleEndLevel[mCycleHead] = (byte)level;
+
+        mLastTime = time;
+        mLastLevel = level;
+        mLastPlugged = plugged;
+    }
+
+    /**
+     * Adds every sample of a history log file.
+     */
+    public void addAll(HistoryLog.View view){
+        for(int i = 0; i < view.size(); i++){
+            onSample(view.getTime(i), view.getLevel(i), view.isPlugged(i));
+        }
+    }
+
+    /**
+     * Spreads the drop over the hours between from and to in proportion to
+     * the time spent in each.
+     */
+    private void addDrain(long from, long to, long drained){
+        long duration = to - from;
+        if(duration <= 0){
+            return;
+        }
+        int offset = mClock.getOffset(from);
+        long local = from + offset;
+        long end = to + offset;
+        long remaining = drained;
+        while(local < end){
+            long hourEnd = Math.min((floorDiv(local, HOUR) + 1) * HOUR, end);
+            long millis = hourEnd - local;
+            long share = hourEnd == end ? remaining : drained * millis / duration;
+            remaining -= share;
+
+            int hourOfWeek = hourOfWeek(local);
+            mWeekDrained[hourOfWeek] += share;
+            mWeekMillis[hourOfWeek] += millis;
+
+            int day = (int)floorDiv(local, DAY);
+            int slot = slot(day);
+            if(mDayIndex[slot] != day){
+                mDayIndex[slot] = day;
+                mDayDrained[slot] = 0;
+                mDayMillis[slot] = 0;
+            }
+            mDayDrained[slot] += share;
+            mDayMillis[slot] += millis;
+
+            local = hourEnd;
+        }
+    }
+
+    private void startCycle(long time, int level, boolean charging){
+        mCycleHead = (mCycleHead + 1) % CYCLES;
+        if(mCycleCount < CYCLES){
+            mCycleCount++;
+        }
+        mCycleStart[mCycleHead] = time;
+        mCycleStartLevel[mCycleHead] = (byte)level;
+        mCycleCharging[mCycleHead] = charging;
+    }
+
+    /**
+     * @param local local time in ms since the epoch
+     * @return the hour of the week, counted from midnight on Monday
+     */
+    static int hourOfWeek(long local){
+        long hours = floorDiv(local, HOUR);
+        // The epoch was a Thursday
+        return (int)((hours + 3 * 24) % HOURS_PER_WEEK + HOURS_PER_WEEK) % HOURS_PER_WEEK;
+    }
+
+    private static long floorDiv(long a, long b){
+        long q = a / b;
+        return (a % b != 0 && (a < 0)) ? q - 1 : q;
+    }
+
+    private static int slot(int day){
+        int slot = day % DAYS;
+        return slot < 0 ? slot + DAYS : slot;
+    }
+
+    private static float rate(long drained, long millis){
+        return millis == 0 ? Float.NaN : drained / 100f / millis * HOUR;
+    }
+
+    public synchronized int getSampleCount(){
+        return mSamples;
+    }
+
+    /**
+     * @return the average drain in percent per hour in the hour of the week,
+     * or NaN if the device has never been off the charger then
+     */
+    public synchronized float getDrainPerHour(int hourOfWeek){
+        return rate(mWeekDrained[hourOfWeek], mWeekMillis[hourOfWeek]);
+    }
+
+    /**
+     * Fills in the average drain in percent per hour for each hour of the
+     * day, NaN for hours with no data.
+     *
+     * @param out array of at least 24
+     */
+    public synchronized void getHourOfDay(float[] out){
+        for(int hour = 0; hour < 24; hour++){
+            long drained = 0;
+            long millis = 0;
+            for(int day = 0; day < 7; day++){
+                drained += mWeekDrained[day * 24 + hour];
+                millis += mWeekMillis[day * 24 + hour];
+            }
+            out[hour] = rate(drained, millis);
+        }
+    }
+
+    /**
+     * Fills in the average drain in percent per hour for each day of the
+     * week, starting with Monday, NaN for days with no data.
+     *
+     * @param out array of at least 7
+     */
+    public synchronized void getDayOfWeek(float[] out){
+        for(int day = 0; day < 7; day++){
+            long drained = 0;
+            long millis = 0;
+            for(int hour = day * 24; hour < day * 24 + 24; hour++){
+                drained += mWeekDrained[hour];
+                millis += mWeekMillis[hour];
+            }
+            out[day] = rate(drained, millis);
+        }
+    }
+
+    /**
+     * @return the average drain in percent per hour over the local days
+     * that overlap the given times, or NaN if there is no data
+     */
+    public synchronized float getDrainPerHour(long from, long to){
+        int first = (int)floorDiv(from + mClock.getOffset(from), DAY);
+        int last = (int)floorDiv(to + mClock.getOffset(to), DAY);
+        first = Math.max(first, last - DAYS + 1);
+        long drained = 0;
+        long millis = 0;
+        for(int day = first; day <= last; day++){
+            int slot = slot(day);
+            if(mDayIndex[slot] == day){
+                drained += mDayDrained[slot];
+                millis += mDayMillis[slot];
+            }
+        }
+        return rate(drained, millis);
+    }
+
+    /**
+     * @return the number of cycles remembered, the last being the current one
+     */
+    public synchronized int getCycleCount(){
+        return mCycleCount;
+    }
+
+    /**
+     * @param index 0 for the oldest cycle remembered
+     */
+    public synchronized void getCycle(int index, Cycle cycle){
+        if(index < 0 || index >= mCycleCount){
+            throw new IndexOutOfBoundsException("index "+index+", size "+mCycleCount);
+        }
+        int slot = (mCycleHead - mCycleCount + 1 + index + CYCLES) % CYCLES;
+        cycle.start = mCycleStart[slot];
+        cycle.end = mCycleEnd[slot];
+        cycle.startLevel = mCycleStartLevel[slot];
+        cycle.endLevel = mCycleEndLevel[slot];
+        cycle.charging = mCycleCharging[slot];
+    }
+
+    /**
+     * A stretch of time spent either on or off the charger.
+     */
+    public static class Cycle {
+        public long start;
+        public long end;
+        public int startLevel;
+        public int endLevel;
+        public boolean charging;
+
+        /**
+         * @return the change in level in percent per hour, positive while charging
+         */
+        public float getRatePerHour(){
+            long millis = end - start;
+            return millis <= 0 ? Float.NaN : (endLevel - startLevel) * (float)HOUR / millis;
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package uk.me.dewi.android.batteryalarm;
+
+/**
+ * Estimates how fast the battery is draining from a stream of readings.
+ *
+ * The rate is an exponentially weighted moving average of the rate seen
+ * each time the level drops, weighted by how long the drop took so a burst
+ * of quick readings does not outweigh a long quiet spell. It uses constant
+ * memory and constant work per reading.
+ *
+ * This class has no Android dependencies so it can be exercised on a plain
+ * JVM.
+ */
+public class DischargeEstimator {
+
+    public static final long HOUR = 60 * 60 * 1000L;
+
+    /** Time constant of the average, older drops count for less after this long. */
+    public static final long TIME_CONSTANT = HOUR;
+
+    /** Returned when no prediction can be made. */
+    public static final long UNKNOWN = Long.MAX_VALUE;
+
+    private long mAnchorTime = -1;
+    private int mAnchorLevel = -1;
+    private float mDrainPerHour = 0;
+
+    /**
+     * Adds a reading.
+     *
+     * @param elapsed time of the reading in milliseconds, must not go backwards
+     * @param level battery level in percent
+     * @param plugged whether the device is on a charger
+     */
+    public void onSample(long elapsed, int level, boolean plugged){
+        if(plugged || mAnchorLevel < 0 || level > mAnchorLevel || elapsed < mAnchorTime){
+            // Start measuring again from here. The last rate is kept as the
+            // best guess until a new drop has been seen.
+            mAnchorTime = plugged ? -1 : elapsed;
+            mAnchorLevel = plugged ? -1 : level;
+            return;
+        }
+
+        long dt = elapsed - mAnchorTime;
+        if(level < mAnchorLevel){
+            if(dt <= 0){
+                return;
+            }
+            float rate = (mAnchorLevel - level) * (float)HOUR / dt;
+            if(mDrainPerHour <= 0){
+                mDrainPerHour = rate;
+            }
+            else{
+                float alpha = (float)dt / (dt + TIME_CONSTANT);
+                mDrainPerHour += alpha * (rate - mDrainPerHour);
+            }
+            mAnchorTime = elapsed;
+            mAnchorLevel = level;
+        }
+        else if(dt > 0){
+            // The level has not dropped a whole percent in all this time,
+            // so the battery can not be draining faster than that.
+            float bound = (float)HOUR / dt;
+            if(mDrainPerHour > bound){
+                mDrainPerHour = bound;
+            }
+        }
+    }
+
+    /**
+     * @return the estimated discharge rate in percent per hour, or 0 if it
+     * is not known yet
+     */
+    public float getDrainPerHour(){
+        return mDrainPerHour;
+    }
+
+    /**
+     * @return the estimated milliseconds until the battery goes from the
+     * given level down to the target level, 0 if it is already there, or
+     * {@link #UNKNOWN}
+     */
+    public long millisUntil(int level, int target){
+        if(level <= target){
+            return 0;
+        }
+        if(mDrainPerHour <= 0){
+            return UNKNOWN;
+        }
+        return (long)((level - target) / mDrainPerHour * HOUR);
+    }
+
+    public void reset(){
+        mAnchorTime = -1;
+        mAnchorLevel = -1;
+        mDrainPerHour = 0;
+    }
+}
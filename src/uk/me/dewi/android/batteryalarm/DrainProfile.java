@@ -0,0 +1,266 @@
+package uk.me.dewi.android.batteryalarm;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+/**
+ * Learns how fast the battery usually drains at each hour of the day, so
+ * checks can be spread out at quiet times, such as overnight on a desk, and
+ * kept close together at busy ones.
+ *
+ * For each hour it keeps a moving average of the drain and a peak that
+ * jumps up to any faster hour seen and slowly decays back towards the
+ * average. Predictions use the peak, so as long as the battery does not
+ * drain faster than it has recently done at that hour the threshold is not
+ * passed before the next check. The model is three arrays of 24 numbers and
+ * is updated once per hour.
+ */
+public class DrainProfile {
+
+    public static final int HOURS = 24;
+    public static final long HOUR = MonitorScheduler.HOUR;
+
+    /** Hours with less time than this off the charger are not learned from. */
+    public static final long MIN_OBSERVED = 15 * MonitorScheduler.MINUTE;
+
+    /** Longer gaps between samples, such as the device being off, are not learned from. */
+    public static final long MAX_GAP = 6 * HOUR;
+
+    /** Weight of each new hour in the average. */
+    public static final float ALPHA = 0.25f;
+
+    /** How much of the distance between the peak and the average is kept each hour. */
+    public static final float PEAK_DECAY = 0.8f;
+
+    /** Predictions never assume the battery drains slower than this, in percent per hour. */
+    public static final float MIN_DRAIN_PER_HOUR = 0.5f;
+
+    /** How far ahead predictions look before giving up. */
+    public static final int MAX_HOURS_AHEAD = 48;
+
+    public static final int MAGIC = 0x42414450; // "BADP"
+    public static final int VERSION = 1;
+    private static final int FILE_SIZE = 8 + HOURS * 10;
+
+    private final float[] mMean = new float[HOURS];
+    private final float[] mPeak = new float[HOURS];
+    private final short[] mObserved = new short[HOURS];
+
+    // The hour being measured, as hours since the epoch in local time
+    private long mHour = -1;
+    private float mHourDrained;
+    private long mHourMillis;
+
+    private long mLastTime = -1;
+    private int mLastLevel;
+    private boolean mLastPlugged;
+
+    private boolean mDirty;
+
+    /**
+     * Adds a reading.
+     *
+     * @param local local wall clock time of the reading, wall clock time plus
+     * the time zone offset
+     */
+    public void onSample(long local, int level, boolean plugged){
+        if(mLastTime >= 0 && local > mLastTime){
+            long gap = local - mLastTime;
+            if(gap <= MAX_GAP && !plugged && !mLastPlugged && level <= mLastLevel){
+                addDrain(mLastTime, local, mLastLevel - level);
+            }
+        }
+        if(mLastTime < 0 || local > mLastTime){
+            mLastTime = local;
+            mLastLevel = level;
+            mLastPlugged = plugged;
+        }
+    }
+
+    /**
+     * Spreads the drop over the hours it happened in, learning from each
+     * hour once it is over.
+     */
+    private void addDrain(long from, long to, int drained){
+        long duration = to - from;
+        long t = from;
+        while(t < to){
+            long hour = t / HOUR;
+            long end = Math.min((hour + 1) * HOUR, to);
+            if(hour != mHour){
+                learn();
+                mHour = hour;
+            }
+            mHourDrained += drained * (float)(end - t) / duration;
+            mHourMillis += end - t;
+            t = end;
+        }
+    }
+
+    private void learn(){
+        if(mHour >= 0 && mHourMillis >= MIN_OBSERVED){
+            int hour = (int)(mHour % HOURS);
+            float rate = mHourDrained * HOUR / mHourMillis;
+            if(mObserved[hour] == 0){
+                mMean[hour] = rate;
+                mPeak[hour] = rate;
+            }
+            else{
+                mMean[hour] += ALPHA * (rate - mMean[hour]);
+                mPeak[hour] = Math.max(rate, mMean[hour] + (mPeak[hour] - mMean[hour]) * PEAK_DECAY);
+            }
+            if(mObserved[hour] < Short.MAX_VALUE){
+                mObserved[hour]++;
+            }
+            mDirty = true;
+        }
+        mHourDrained = 0;
+        mHourMillis = 0;
+    }
+
+    /**
+     * @param local local wall clock time
+     * @return the hour of the day
+     */
+    public static int hourOf(long local){
+        return (int)((local / HOUR) % HOURS);
+    }
+
+    /**
+     * @return whether anything has been learned about the hour of the day
+     */
+    public boolean isKnown(int hour){
+        return mObserved[hour] > 0;
+    }
+
+    /**
+     * @return the drain in percent per hour predictions use for the hour of
+     * the day, or NaN if nothing has been learned about it
+     */
+    public float getPeak(int hour){
+        return isKnown(hour) ? mPeak[hour] : Float.NaN;
+    }
+
+    /**
+     * @return the average drain in percent per hour at the hour of the day,
+     * or NaN if nothing has been learned about it
+     */
+    public float getMean(int hour){
+        return isKnown(hour) ? mMean[hour] : Float.NaN;
+    }
+
+    /**
+     * Predicts how long the battery will take to drain to the target level,
+     * hour by hour.
+     *
+     * @param local local wall clock time now
+     * @param currentRate the drain measured just now in percent per hour, used
+     * for the current hour if it is faster than usual and for hours nothing
+     * has been learned about, 0 if not known
+     * @param fallbackRate used for hours nothing is known about when the
+     * current rate is not known either
+     * @return the predicted milliseconds, 0 if the battery is already at the
+     * target, capped at {@link #MAX_HOURS_AHEAD}
+     */
+    public long millisUntil(long local, int level, int target, float currentRate, float fallbackRate){
+        return millisUntil(local, level, target, currentRate, fallbackRate, 1f);
+    }
+
+    /**
+     * Predicts how long the battery would take to drain to the target level
+     * if it drained some times faster than the prediction assumes.
+     *
+     * @param margin how many times faster than the predicted rate
+     * @see #millisUntil(long, int, int, float, float)
+     */
+    public long millisUntil(long local, int level, int target, float currentRate, float fallbackRate, 
+                            float margin){
+        if(level <= target){
+            return 0;
+        }
+        float remaining = level - target;
+        long t = local;
+        long total = 0;
+        for(int i = 0; i < MAX_HOURS_AHEAD; i++){
+            int hour = hourOf(t);
+            float rate;
+            if(isKnown(hour)){
+                rate = i == 0 ? Math.max(mPeak[hour], currentRate) : mPeak[hour];
+            }
+            else{
+                rate = currentRate > 0 ? currentRate : fallbackRate;
+            }
+            rate = Math.max(rate, MIN_DRAIN_PER_HOUR) * margin;
+
+            long segment = (t / HOUR + 1) * HOUR - t;
+            float drop = rate * segment / HOUR;
+            if(drop >= remaining){
+                return total + (long)(remaining / rate * HOUR);
+            }
+            remaining -= drop;
+            total += segment;
+            t += segment;
+        }
+        return total;
+    }
+
+    /**
+     * @return whether something has been learned since the profile was last
+     * loaded or saved
+     */
+    public boolean isDirty(){
+        return mDirty;
+    }
+
+    public void load(File file) throws IOException {
+        if(!file.exists()){
+            return;
+        }
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        ByteBuffer in = ByteBuffer.allocate(FILE_SIZE);
+        try{
+            if(raf.length() < FILE_SIZE){
+                return;
+            }
+            raf.readFully(in.array());
+        }
+        finally{
+            raf.close();
+        }
+        if(in.getInt() != MAGIC || in.getInt() != VERSION){
+            return;
+        }
+        for(int hour = 0; hour < HOURS; hour++){
+            mMean[hour] = in.getFloat();
+            mPeak[hour] = in.getFloat();
+            mObserved[hour] = in.getShort();
+        }
+        mDirty = false;
+    }
+
+    /**
+     * Writes the profile if it has changed since it was last loaded or saved.
+     */
+    public void save(File file) throws IOException {
+        if(!mDirty){
+            return;
+        }
+        ByteBuffer out = ByteBuffer.allocate(FILE_SIZE);
+        out.putInt(MAGIC).putInt(VERSION);
+        for(int hour = 0; hour < HOURS; hour++){
+            out.putFloat(mMean[hour]);
+            out.putFloat(mPeak[hour]);
+            out.putShort(mObserved[hour]);
+        }
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try{
+            raf.write(out.array());
+        }
+        finally{
+            raf.close();
+        }
+        mDirty = false;
+    }
+}
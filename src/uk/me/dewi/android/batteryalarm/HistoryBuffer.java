@@ -0,0 +1,116 @@
+package uk.me.dewi.android.batteryalarm;
+
+/**
+ * A fixed size ring of the most recent battery samples, held in primitive
+ * arrays so adding a sample never allocates. Once full, the oldest sample
+ * is overwritten.
+ *
+ * Samples that have not yet been written to the {@link HistoryLog} are
+ * tracked so they can be flushed in one go.
+ */
+public class HistoryBuffer {
+
+    public static final int DEFAULT_CAPACITY = 256;
+
+    private final int mCapacity;
+    private final long[] mTime;
+    private final byte[] mLevel;
+    private final short[] mScale;
+    private final byte[] mPlugType;
+    private final short[] mTemperature;
+    private final short[] mVoltage;
+    private final byte[] mHealth;
+    private final short[] mFlags;
+
+    private int mHead;
+    private int mSize;
+    private int mUnflushed;
+
+    public HistoryBuffer(){
+        this(DEFAULT_CAPACITY);
+    }
+
+    public HistoryBuffer(int capacity){
+        mCapacity = capacity;
+        mTime = new long[capacity];
+        mLevel = new byte[capacity];
+        mScale = new short[capacity];
+        mPlugType = new byte[capacity];
+        mTemperature = new short[capacity];
+        mVoltage = new short[capacity];
+        mHealth = new byte[capacity];
+        mFlags = new short[capacity];
+    }
+
+    public synchronized void add(BatterySample sample){
+        int i = mHead;
+        mTime[i] = sample.time;
+        mLevel[i] = (byte)sample.level;
+        mScale[i] = (short)sample.scale;
+        mPlugType[i] = (byte)sample.plugType;
+        mTemperature[i] = (short)sample.temperature;
+        mVoltage[i] = (short)sample.voltage;
+        mHealth[i] = (byte)sample.health;
+        mFlags[i] = (short)sample.flags;
+
+        mHead = (mHead + 1) % mCapacity;
+        if(mSize < mCapacity){
+            mSize++;
+        }
+        if(mUnflushed < mCapacity){
+            mUnflushed++;
+        }
+    }
+
+    public synchronized int size(){
+        return mSize;
+    }
+
+    public int capacity(){
+        return mCapacity;
+    }
+
+    /**
+     * @return the number of samples added since the last call to {@link #markFlushed()}
+     */
+    public synchronized int unflushed(){
+        return mUnflushed;
+    }
+
+    public synchronized void markFlushed(){
+        mUnflushed = 0;
+    }
+
+    /**
+     * Copies a sample into the given instance.
+     *
+     * @param index 0 for the oldest sample held, size() - 1 for the newest
+     */
+    public synchronized void get(int index, BatterySample sample){
+        if(index < 0 || index >= mSize){
+            throw new IndexOutOfBoundsException("index "+index+", size "+mSize);
+        }
+        int i = (mHead - mSize + index + mCapacity) % mCapacity;
+        sample.time = mTime[i];
+        sample.elapsed = 0;
+        sample.level = mLevel[i];
+        sample.scale = mScale[i];
+        sample.plugType = mPlugType[i];
+        sample.plugged = mPlugType[i] != 0;
+        sample.temperature = mTemperature[i];
+        sample.voltage = mVoltage[i];
+        sample.health = mHealth[i];
+        sample.flags = mFlags[i] & 0xffff;
+    }
+
+    /**
+     * @return false if there are no samples
+     */
+    public synchronized boolean getLatest(BatterySample sample){
+        if(mSize == 0){
+            return false;
+        }
+        get(mSize - 1, sample);
+        return true;
+    }
+}
@@ -0,0 +1,413 @@
+package uk.me.dewi.android.batteryalarm;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * A compact export format for the battery history, for pulling it off
+ * devices and merging many devices' histories for analysis.
+ *
+ * Samples are written in blocks of up to {@link #BLOCK_SAMPLES}, each field
+ * stored as a column of its own. Times, levels, scales and flags change
+ * little from one sample to the next, so they are stored as differences,
+ * zig-zag encoded into variable length integers that mostly take a byte.
+ * Temperatures and voltages are stored as plain shorts. Every block starts
+ * its differences from 0, so a block can be decoded on its own.
+ *
+ * <pre>
+ * header  int magic, int version
+ * block   int sample count (0 ends the file), int data length, int CRC32 of data
+ * data    times | levels | plug types | scales | temperatures | voltages | health | flags
+ * </pre>
+ *
+ * Both sides stream through one block sized buffer, so an export or import
+ * never holds more than a block of the history in memory.
+ */
+public class HistoryCodec {
+
+    public static final int MAGIC = 0x42414858; // "BAHX"
+    public static final int VERSION = 1;
+
+    public static final int BLOCK_SAMPLES = 512;
+
+    private static final int BLOCK_HEADER_SIZE = 12;
+
+    // Largest encoded sample: time, level, plug type, scale, temperature, voltage, health, flags
+    private static final int MAX_SAMPLE_SIZE = 10 + 5 + 1 + 5 + 2 + 2 + 1 + 5;
+    private static final int MAX_DATA_SIZE = BLOCK_SAMPLES * MAX_SAMPLE_SIZE;
+
+    /**
+     * Writes samples in the export format. Samples should be written
+     * oldest first, though any order can be stored.
+     */
+    public static class Writer {
+
+        private final OutputStream mOut;
+        private final ByteBuffer mBuffer = ByteBuffer.allocate(BLOCK_HEADER_SIZE + MAX_DATA_SIZE);
+        private final CRC32 mCrc = new CRC32();
+
+        private final long[] mTimes = new long[BLOCK_SAMPLES];
+        private final int[] mLevels = new int[BLOCK_SAMPLES];
+        private final byte[] mPlugTypes = new byte[BLOCK_SAMPLES];
+        private final int[] mScales = new int[BLOCK_SAMPLES];
+        private final short[] mTemperatures = new short[BLOCK_SAMPLES];
+        private final short[] mVoltages = new short[BLOCK_SAMPLES];
+        private final byte[] mHealth = new byte[BLOCK_SAMPLES];
+        private final int[] mFlags = new int[BLOCK_SAMPLES];
+        private int mCount;
+        private long mWritten;
+
+        public Writer(OutputStream out) throws IOException {
+            mOut = out;
+            mBuffer.putInt(MAGIC).putInt(VERSION);
+            mOut.write(mBuffer.array(), 0, mBuffer.position());
+            mBuffer.clear();
+        }
+
+        public void write(BatterySample sample) throws IOException {
+            int i = mCount;
+            mTimes[i] = sample.time;
+            mLevels[i] = sample.level;
+            mPlugTypes[i] = (byte)sample.plugType;
+            mScales[i] = sample.scale;
+            mTemperatures[i] = (short)sample.temperature;
+            mVoltages[i] = (short)sample.voltage;
+            mHealth[i] = (byte)sample.health;
+            mFlags[i] = sample.flags;
+            mCount++;
+            mWritten++;
+            if(mCount == BLOCK_SAMPLES){
+                writeBlock();
+            }
+        }
+
+        /**
+         * @return the number of samples written
+         */
+        public long getCount(){
+            return mWritten;
+        }
+
+        private void writeBlock() throws IOException {
+            ByteBuffer out = mBuffer;
+            int count = mCount;
+            out.clear();
+            out.position(BLOCK_HEADER_SIZE);
+
+            long lastTime = 0;
+            for(int i = 0; i < count; i++){
+                putVarLong(out, zigZag(mTimes[i] - lastTime));
+                lastTime = mTimes[i];
+            }
+            int last = 0;
+            for(int i = 0; i < count; i++){
+                putVarLong(out, zigZag(mLevels[i] - last));
+                last = mLevels[i];
+            }
+            out.put(mPlugTypes, 0, count);
+            last = 0;
+            for(int i = 0; i < count; i++){
+                putVarLong(out, zigZag(mScales[i] - last));
+                last = mScales[i];
+            }
+            for(int i = 0; i < count; i++){
+                out.putShort(mTemperatures[i]);
+            }
+            for(int i = 0; i < count; i++){
+                out.putShort(mVoltages[i]);
+            }
+            out.put(mHealth, 0, count);
+            for(int i = 0; i < count; i++){
+                putVarLong(out, mFlags[i] & 0xffffffffL);
+            }
+
+            int length = out.position() - BLOCK_HEADER_SIZE;
+            mCrc.reset();
+            mCrc.update(out.array(), BLOCK_HEADER_SIZE, length);
+            out.putInt(0, count).putInt(4, length).putInt(8, (int)mCrc.getValue());
+            mOut.write(out.array(), 0, out.position());
+            mCount = 0;
+        }
+
+        /**
+         * Writes any samples still buffered and the end of the file, and
+         * closes the stream.
+         */
+        public void close() throws IOException {
+            try{
+                if(mCount > 0){
+                    writeBlock();
+                }
+                mBuffer.clear();
+                mBuffer.putInt(0).putInt(0).putInt(0);
+                mOut.write(mBuffer.array(), 0, BLOCK_HEADER_SIZE);
+                mOut.flush();
+            }
+            finally{
+                mOut.close();
+            }
+        }
+    }
+
+    /**
+     * Reads samples back from the export format, a block at a time.
+     */
+    public static class Reader {
+
+        private final DataInputStream mIn;
+        private final ByteBuffer mBuffer = ByteBuffer.allocate(MAX_DATA_SIZE);
+        private final CRC32 mCrc = new CRC32();
+
+        private final long[] mTimes = new long[BLOCK_SAMPLES];
+        private final int[] mLevels = new int[BLOCK_SAMPLES];
+        private final byte[] mPlugTypes = new byte[BLOCK_SAMPLES];
+        private final int[] mScales = new int[BLOCK_SAMPLES];
+        private final short[] mTemperatures = new short[BLOCK_SAMPLES];
+        private final short[] mVoltages = new short[BLOCK_SAMPLES];
+        private final byte[] mHealth = new byte[BLOCK_SAMPLES];
+        private final int[] mFlags = new int[BLOCK_SAMPLES];
+        private int mCount;
+        private int mNext;
+        private boolean mEnded;
+
+        /**
+         * @throws IOException if the stream is not in the export format
+         */
+        public Reader(InputStream in) throws IOException {
+            mIn = new DataInputStream(in);
+            if(mIn.readInt() != MAGIC || mIn.readInt() != VERSION){
+                throw new IOException("Not a battery history export");
+            }
+        }
+
+        /**
+         * Reads the next sample.
+         *
+         * @return false at the end of the file
+         * @throws IOException if the file is damaged or cut short
+         */
+        public boolean next(BatterySample sample) throws IOException {
+            if(mNext == mCount){
+                if(mEnded || !readBlock()){
+                    return false;
+                }
+            }
+            int i = mNext++;
+            sample.time = mTimes[i];
+            sample.elapsed = 0;
+            sample.level = mLevels[i];
+            sample.plugType = mPlugTypes[i];
+            sample.plugged = sample.plugType != 0;
+            sample.scale = mScales[i];
+            sample.temperature = mTemperatures[i];
+            sample.voltage = mVoltages[i];
+            sample.health = mHealth[i];
+            sample.flags = mFlags[i];
+            return true;
+        }
+
+        private boolean readBlock() throws IOException {
+            int count;
+            int length;
+            int crc;
+            try{
+                count = mIn.readInt();
+                length = mIn.readInt();
+                crc = mIn.readInt();
+            }
+            catch(EOFException e){
+                throw new IOException("Battery history export cut short");
+            }
+            if(count == 0){
+                mEnded = true;
+                return false;
+            }
+            if(count < 0 || count > BLOCK_SAMPLES || length < 0 || length > count * MAX_SAMPLE_SIZE){
+                throw new IOException("Bad block in battery history export");
+            }
+            ByteBuffer in = mBuffer;
+            in.clear();
+            try{
+                mIn.readFully(in.array(), 0, length);
+            }
+            catch(EOFException e){
+                throw new IOException("Battery history export cut short");
+            }
+            mCrc.reset();
+            mCrc.update(in.array(), 0, length);
+            if((int)mCrc.getValue() != crc){
+                throw new IOException("Damaged block in battery history export");
+            }
+            in.limit(length);
+
+            try{
+                long time = 0;
+                for(int i = 0; i < count; i++){
+                    time += unZigZag(getVarLong(in));
+                    mTimes[i] = time;
+                }
+                int last = 0;
+                for(int i = 0; i < count; i++){
+                    last += (int)unZigZag(getVarLong(in));
+                    mLevels[i] = last;
+                }
+                in.get(mPlugTypes, 0, count);
+                last = 0;
+                for(int i = 0; i < count; i++){
+                    last += (int)unZigZag(getVarLong(in));
+                    mScales[i] = last;
+                }
+                for(int i = 0; i < count; i++){
+                    mTemperatures[i] = in.getShort();
+                }
+                for(int i = 0; i < count; i++){
+                    mVoltages[i] = in.getShort();
+                }
+                in.get(mHealth, 0, count);
+                for(int i = 0; i < count; i++){
+                    mFlags[i] = (int)getVarLong(in);
+                }
+            }
+            catch(BufferUnderflowException e){
+                throw new IOException("Bad block in battery history export");
+            }
+            if(in.hasRemaining()){
+                throw new IOException("Bad block in battery history export");
+            }
+            mCount = count;
+            mNext = 0;
+            return true;
+        }
+
+        public void close() throws IOException {
+            mIn.close();
+        }
+    }
+
+    static long zigZag(long value){
+        return (value << 1) ^ (value >> 63);
+    }
+
+    static long unZigZag(long value){
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    static void putVarLong(ByteBuffer out, long value){
+        while((value & ~0x7fL) != 0){
+            out.put((byte)((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        out.put((byte)value);
+    }
+
+    static long getVarLong(ByteBuffer in) throws IOException {
+        long value = 0;
+        for(int shift = 0; shift < 64; shift += 7){
+            byte b = in.get();
+            value |= (long)(b & 0x7f) << shift;
+            if(b >= 0){
+                return value;
+            }
+        }
+        throw new IOException("Bad number in battery history export");
+    }
+
+    /**
+     * Exports the history log, oldest sample first.
+     *
+     * @return the number of samples exported
+     */
+    public static long export(List<HistoryLog.View> views, OutputStream out) throws IOException {
+        Writer writer = new Writer(out);
+        BatterySample sample = new BatterySample();
+        for(HistoryLog.View view : views){
+            for(int i = 0; i < view.size(); i++){
+                view.get(i, sample);
+                writer.write(sample);
+            }
+        }
+        writer.close();
+        return writer.getCount();
+    }
+
+    /**
+     * Merges exports into one in time order, reading each a block at a
+     * time. Each export must be in time order. A sample that is the same in
+     * every field as one already written, such as the same history exported
+     * twice, is only kept once. Different samples at the same time are all
+     * kept.
+     *
+     * @return the number of samples written
+     */
+    public static long merge(List<Reader> readers, Writer writer) throws IOException {
+        int count = readers.size();
+        BatterySample[] heads = new BatterySample[count];
+        for(int i = 0; i < count; i++){
+            BatterySample head = new BatterySample();
+            if(readers.get(i).next(head)){
+                heads[i] = head;
+            }
+        }
+        // The samples written at the latest time, rarely more than one
+        BatterySample[] written = new BatterySample[4];
+        int writtenCount = 0;
+        while(true){
+            // Few files are merged at once, a scan is cheaper than a heap
+            int oldest = -1;
+            for(int i = 0; i < count; i++){
+                if(heads[i] != null && (oldest < 0 || heads[i].time < heads[oldest].time)){
+                    oldest = i;
+                }
+            }
+            if(oldest < 0){
+                break;
+            }
+            BatterySample head = heads[oldest];
+            if(writtenCount > 0 && written[0].time != head.time){
+                writtenCount = 0;
+            }
+            boolean duplicate = false;
+            for(int i = 0; i < writtenCount && !duplicate; i++){
+                duplicate = sameRecord(written[i], head);
+            }
+            if(!duplicate){
+                writer.write(head);
+                if(writtenCount == written.length){
+                    BatterySample[] grown = new BatterySample[writtenCount * 2];
+                    System.arraycopy(written, 0, grown, 0, writtenCount);
+                    written = grown;
+                }
+                if(written[writtenCount] == null){
+                    written[writtenCount] = new BatterySample();
+                }
+                written[writtenCount++].set(head);
+            }
+            if(!readers.get(oldest).next(head)){
+                heads[oldest] = null;
+            }
+        }
+        writer.close();
+        return writer.getCount();
+    }
+
+    /**
+     * @return whether the samples are the same in every field that is exported
+     */
+    static boolean sameRecord(BatterySample a, BatterySample b){
+        return a.time == b.time
+            && a.level == b.level
+            && a.plugType == b.plugType
+            && a.scale == b.scale
+            && a.temperature == b.temperature
+            && a.voltage == b.voltage
+            && a.health == b.health
+            && a.flags == b.flags;
+    }
+}
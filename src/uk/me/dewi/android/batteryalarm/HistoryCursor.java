@@ -0,0 +1,136 @@
+package uk.me.dewi.android.batteryalarm;
+
+import android.database.AbstractCursor;
+import android.database.CursorWindow;
+
+/**
+ * A cursor over a {@link HistoryIndex.Range}. Rows are read from the memory
+ * mapped history as the cursor moves, so nothing is copied up front.
+ *
+ * Across processes the cursor is read a window at a time, and
+ * {@link #fillWindow(int, CursorWindow)} copies only the rows that fit in
+ * the window from the position asked for.
+ */
+public class HistoryCursor extends AbstractCursor {
+
+    private final HistoryIndex.Range mRange;
+    private final String[] mColumnNames;
+    private final int[] mColumns;
+    private final BatterySample mSample = new BatterySample();
+
+    /**
+     * @param projection the columns to return, from {@link HistoryProvider#COLUMNS},
+     * or null for all of them
+     */
+    public HistoryCursor(HistoryIndex.Range range, String[] projection){
+        mRange = range;
+        mColumnNames = projection != null ? projection : HistoryProvider.COLUMNS;
+        mColumns = new int[mColumnNames.length];
+        for(int i = 0; i < mColumnNames.length; i++){
+            mColumns[i] = indexOf(mColumnNames[i]);
+        }
+    }
+
+    private static int indexOf(String name){
+        for(int column = 0; column < HistoryProvider.COLUMNS.length; column++){
+            if(HistoryProvider.COLUMNS[column].equals(name)){
+                return column;
+            }
+        }
+        throw new IllegalArgumentException("Unknown column " + name);
+    }
+
+    @Override
+    public int getCount() {
+        return mRange.size();
+    }
+
+    @Override
+    public String[] getColumnNames() {
+        return mColumnNames;
+    }
+
+    @Override
+    public boolean onMove(int oldPosition, int newPosition) {
+        mRange.get(newPosition, mSample);
+        return true;
+    }
+
+    @Override
+    public long getLong(int column) {
+        return getValue(mPos, mSample, mColumns[column]);
+    }
+
+    @Override
+    public int getInt(int column) {
+        return (int)getLong(column);
+    }
+
+    @Override
+    public short getShort(int column) {
+        return (short)getLong(column);
+    }
+
+    @Override
+    public float getFloat(int column) {
+        return getLong(column);
+    }
+
+    @Override
+    public double getDouble(int column) {
+        return getLong(column);
+    }
+
+    @Override
+    public String getString(int column) {
+        return String.valueOf(getLong(column));
+    }
+
+    @Override
+    public boolean isNull(int column) {
+        return false;
+    }
+
+    private long getValue(int row, BatterySample sample, int column){
+        switch(column){
+            case 0: return mRange.getPosition(row);
+            case 1: return sample.time;
+            case 2: return sample.level;
+            case 3: return sample.plugType;
+            case 4: return sample.temperature;
+            case 5: return sample.voltage;
+            case 6: return sample.health;
+            default: return sample.flags;
+        }
+    }
+
+    @Override
+    public void fillWindow(int position, CursorWindow window) {
+        if(position < 0 || position >= getCount()){
+            return;
+        }
+        BatterySample sample = new BatterySample();
+        window.acquireReference();
+        try{
+            window.clear();
+            window.setStartPosition(position);
+            window.setNumColumns(mColumns.length);
+            for(int row = position; row < getCount(); row++){
+                if(!window.allocRow()){
+                    return;
+                }
+                mRange.get(row, sample);
+                for(int i = 0; i < mColumns.length; i++){
+                    if(!window.putLong(getValue(row, sample, mColumns[i]), row, i)){
+                        // Full, the rest go in the next window
+                        window.freeLastRow();
+                        return;
+                    }
+                }
+            }
+        }
+        finally{
+            window.releaseReference();
+        }
+    }
+}
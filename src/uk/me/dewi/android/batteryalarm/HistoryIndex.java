@@ -0,0 +1,288 @@
+package uk.me.dewi.android.batteryalarm;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A sparse index over the times in the {@link HistoryLog}, so a time range
+ * can be found without reading through the history.
+ *
+ * The time of every {@link #STRIDE}th record is kept in memory. A lookup
+ * searches those first and then the one block of records they point to, so
+ * it only touches a page or two of the memory mapped files however long the
+ * history is. Files are only ever appended to and keep their first record
+ * when they are rotated, so the index is kept between lookups and only the
+ * blocks written since the last one are added.
+ *
+ * Each block also keeps how many of its records have an alert rule
+ * starting to fire, so {@link #findAlerts(List, long, long)} can step over
+ * the blocks without any and count a range without reading it.
+ *
+ * Records are taken to be in time order. If the clock was set back a range
+ * may start or end a little off.
+ */
+public class HistoryIndex {
+
+    /** Records per block. */
+    public static final int STRIDE = 256;
+
+    /** The index of one file. */
+    private static class Entry {
+        long firstTime;
+        long lastTime = Long.MIN_VALUE;
+        int size;
+        long[] blocks = new long[16];
+        /** Records in each block where an alert rule started firing. */
+        int[] alerts = new int[16];
+        int blockCount;
+
+        /**
+         * Adds the blocks written to the file since it was last seen.
+         */
+        void extend(HistoryLog.View view){
+            int counted = size;
+            size = view.size();
+            if(size == 0){
+                return;
+            }
+            for(int block = blockCount; block * STRIDE < size; block++){
+                if(blockCount == blocks.length){
+                    long[] grown = new long[blocks.length * 2];
+                    System.arraycopy(blocks, 0, grown, 0, blockCount);
+                    blocks = grown;
+                    int[] grownAlerts = new int[blocks.length];
+                    System.arraycopy(alerts, 0, grownAlerts, 0, blockCount);
+                    alerts = grownAlerts;
+                }
+                blocks[blockCount++] = view.getTime(block * STRIDE);
+            }
+            for(int i = counted; i < size; i++){
+                if(view.getFlags(i) != 0){
+                    alerts[i / STRIDE]++;
+                }
+            }
+            lastTime = view.getTime(size - 1);
+        }
+    }
+
+    private List<Entry> mEntries = new ArrayList<Entry>();
+
+    /**
+     * Finds the records in a time range.
+     *
+     * @param views the files of the log, oldest first, as from
+     * {@link HistoryLog#openViews()}
+     * @param from time of the first record wanted
+     * @param to time past the last record wanted
+     */
+    public synchronized Range find(List<HistoryLog.View> views, long from, long to){
+        update(views);
+        int[] starts = new int[views.size() + 1];
+        for(int i = 0; i < views.size(); i++){
+            starts[i + 1] = starts[i] + views.get(i).size();
+        }
+        int first = locate(views, starts, from);
+        int end = to > from ? locate(views, starts, to) : first;
+        return new Range(views, starts, first, Math.max(end - first, 0), null);
+    }
+
+    /**
+     * Finds the records in a time range where an alert rule started firing.
+     * The range reads its records from the files as they are asked for,
+     * like one from {@link #find(List, long, long)}.
+     *
+     * @param views the files of the log, oldest first, as from
+     * {@link HistoryLog#openViews()}
+     * @param from time of the first record wanted
+     * @param to time past the last record wanted
+     */
+    public synchronized Range findAlerts(List<HistoryLog.View> views, long from, long to){
+        Range range = find(views, from, to);
+        // Only the counts of full blocks, which can not change, the last
+        // block of each file is read
+        int[][] alerts = new int[views.size()][];
+        for(int i = 0; i < views.size(); i++){
+            Entry entry = mEntries.get(i);
+            alerts[i] = new int[entry.size / STRIDE];
+            System.arraycopy(entry.alerts, 0, alerts[i], 0, alerts[i].length);
+        }
+        return new Range(views, range.mStarts, range.mFirst, range.mCount, alerts);
+    }
+
+    /**
+     * Brings the index up to date with the files, reusing what is known
+     * about any that were seen before.
+     */
+    private void update(List<HistoryLog.View> views){
+        List<Entry> entries = new ArrayList<Entry>(views.size());
+        for(HistoryLog.View view : views){
+            Entry entry = null;
+            if(view.size() > 0){
+                long firstTime = view.getTime(0);
+                for(Entry old : mEntries){
+                    if(old.size > 0 && old.firstTime == firstTime && old.size <= view.size()){
+                        entry = old;
+                        break;
+                    }
+                }
+                if(entry == null){
+                    entry = new Entry();
+                    entry.firstTime = firstTime;
+                }
+            }
+            else{
+                entry = new Entry();
+            }
+            entry.extend(view);
+            entries.add(entry);
+        }
+        mEntries = entries;
+    }
+
+    /**
+     * @return the position of the first record at or after the time, or
+     * the number of records if there is none
+     */
+    private int locate(List<HistoryLog.View> views, int[] starts, long time){
+        for(int i = 0; i < views.size(); i++){
+            Entry entry = mEntries.get(i);
+            if(entry.lastTime < time){
+                continue;
+            }
+            // The block before the first one starting at or after the time,
+            // records at the time may run back into it
+            int low = 0;
+            int high = entry.blockCount;
+            while(low < high){
+                int mid = (low + high) >>> 1;
+                if(entry.blocks[mid] < time){
+                    low = mid + 1;
+                }
+                else{
+                    high = mid;
+                }
+            }
+            int block = Math.max(low - 1, 0);
+
+            HistoryLog.View view = views.get(i);
+            low = block * STRIDE;
+            high = Math.min(low + STRIDE, view.size());
+            while(low < high){
+                int mid = (low + high) >>> 1;
+                if(view.getTime(mid) < time){
+                    low = mid + 1;
+                }
+                else{
+                    high = mid;
+                }
+            }
+            return starts[i] + low;
+        }
+        return starts[views.size()];
+    }
+
+    /**
+     * Records of the log found by {@link HistoryIndex#find(List, long, long)}
+     * or {@link HistoryIndex#findAlerts(List, long, long)}, read from the
+     * files as they are asked for.
+     *
+     * The rows of an alerts range are found by reading on from the last row
+     * asked for, so a cursor moving through them reads each record once.
+     */
+    public static class Range {
+
+        private final List<HistoryLog.View> mViews;
+        private final int[] mStarts;
+        /** Position of the first record in the time range. */
+        private final int mFirst;
+        /** Records in the time range. */
+        private final int mCount;
+        /** Alerts in each full block of each file, null to return every record. */
+        private final int[][] mAlerts;
+        private final int mSize;
+
+        private int mLastRow = -1;
+        private int mLastPosition;
+
+        private Range(List<HistoryLog.View> views, int[] starts, int first, int count, int[][] alerts){
+            mViews = views;
+            mStarts = starts;
+            mFirst = first;
+            mCount = count;
+            mAlerts = alerts;
+            mSize = alerts != null ? seek(first, Integer.MAX_VALUE) : count;
+        }
+
+        public int size(){
+            return mSize;
+        }
+
+        /**
+         * @return the record's position in the whole log, oldest first. It
+         * changes when the oldest file is rotated out.
+         */
+        public int getPosition(int row){
+            if(row < 0 || row >= mSize){
+                throw new IndexOutOfBoundsException("row "+row+", size "+mSize);
+            }
+            if(mAlerts == null){
+                return mFirst + row;
+            }
+            synchronized(this){
+                if(row != mLastRow){
+                    mLastPosition = row > mLastRow && mLastRow >= 0 
+                                    ? seek(mLastPosition + 1, row - mLastRow - 1) 
+                                    : seek(mFirst, row);
+                    mLastRow = row;
+                }
+                return mLastPosition;
+            }
+        }
+
+        public void get(int row, BatterySample sample){
+            int position = getPosition(row);
+            int view = mViews.size() - 1;
+            while(mStarts[view] > position){
+                view--;
+            }
+            mViews.get(view).get(position - mStarts[view], sample);
+        }
+
+        /**
+         * Reads on from a position, stepping over whole blocks where the
+         * alerts in them are counted.
+         *
+         * @param skip how many alerts to pass over
+         * @return the position of the alert after those skipped, or if the
+         * time range ends first the number of alerts that were found
+         */
+        private int seek(int position, int skip){
+            int end = mFirst + mCount;
+            int found = 0;
+            int view = 0;
+            while(position < end){
+                while(mStarts[view + 1] <= position){
+                    view++;
+                }
+                int record = position - mStarts[view];
+                int[] alerts = mAlerts[view];
+                if(record % STRIDE == 0 && record / STRIDE < alerts.length && position + STRIDE <= end){
+                    int count = alerts[record / STRIDE];
+                    if(count <= skip - found){
+                        found += count;
+                        position += STRIDE;
+                        continue;
+                    }
+                }
+                if(mViews.get(view).getFlags(record) != 0){
+                    if(found == skip){
+                        return position;
+                    }
+                    found++;
+                }
+                position++;
+            }
+            return found;
+        }
+    }
+}
@@ -0,0 +1,308 @@
+package uk.me.dewi.android.batteryalarm;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An append only log of battery samples on disk.
+ *
+ * Each file starts with an 8 byte header (magic number and version)
+ * followed by fixed width records, so a record can be found by its index
+ * without parsing anything before it:
+ *
+ * <pre>
+ *  0  long   wall clock time in ms
+ *  8  byte   level in percent
+ *  9  byte   plug type
+ * 10  short  scale
+ * 12  short  temperature in tenths of a degree C
+ * 14  short  voltage in mV
+ * 16  byte   health
+ * 17  byte   reserved
+ * 18  short  alert rules that started firing, see {@link AlertEngine}
+ * </pre>
+ *
+ * When the current file reaches its size cap it is rotated out and only the
+ * last few files are kept, so the history never grows without bound. The
+ * files are read through memory mapped {@link View}s.
+ */
+public class HistoryLog {
+
+    public static final int MAGIC = 0x42414C48; // "BALH"
+    public static final int VERSION = 1;
+
+    public static final int HEADER_SIZE = 8;
+    public static final int RECORD_SIZE = 20;
+
+    public static final long DEFAULT_MAX_BYTES = 512 * 1024;
+    public static final int DEFAULT_MAX_FILES = 4;
+
+    private static final int BATCH_RECORDS = 64;
+
+    private final File mDir;
+    private final String mName;
+    private final long mMaxBytes;
+    private final int mMaxFiles;
+
+    private final ByteBuffer mBatch = ByteBuffer.allocate(BATCH_RECORDS * RECORD_SIZE);
+    private final BatterySample mScratch = new BatterySample();
+
+    public HistoryLog(File dir, String name){
+        this(dir, name, DEFAULT_MAX_BYTES, DEFAULT_MAX_FILES);
+    }
+
+    /**
+     * @param maxBytes size at which the current file is rotated
+     * @param maxFiles number of files to keep, including the current one
+     */
+    public HistoryLog(File dir, String name, long maxBytes, int maxFiles){
+        mDir = dir;
+        mName = name;
+        mMaxBytes = Math.max(maxBytes, HEADER_SIZE + RECORD_SIZE * BATCH_RECORDS);
+        mMaxFiles = Math.max(maxFiles, 1);
+    }
+
+    /**
+     * @param generation 0 for the file being written, higher for older files
+     */
+    public File getFile(int generation){
+        if(generation == 0){
+            return new File(mDir, mName + ".log");
+        }
+        return new File(mDir, mName + "." + generation + ".log");
+    }
+
+    /**
+     * Writes the samples that have been added to the buffer since it was
+     * last flushed.
+     */
+    public synchronized void flush(HistoryBuffer buffer) throws IOException {
+        int count = buffer.unflushed();
+        if(count == 0){
+            return;
+        }
+        int size = buffer.size();
+        FileChannel channel = openForAppend(count);
+        try{
+            mBatch.clear();
+            for(int i = size - count; i < size; i++){
+                buffer.get(i, mScratch);
+                if(mBatch.remaining() < RECORD_SIZE){
+                    writeBatch(channel);
+                }
+                encode(mScratch, mBatch);
+            }
+            writeBatch(channel);
+        }
+        finally{
+            channel.close();
+        }
+        buffer.markFlushed();
+    }
+
+    public synchronized void append(BatterySample sample) throws IOException {
+        FileChannel channel = openForAppend(1);
+        try{
+            mBatch.clear();
+            encode(sample, mBatch);
+            writeBatch(channel);
+        }
+        finally{
+            channel.close();
+        }
+    }
+
+    public static void encode(BatterySample sample, ByteBuffer out){
+        out.putLong(sample.time);
+        out.put((byte)sample.level);
+        out.put((byte)sample.plugType);
+        out.putShort((short)sample.scale);
+        out.putShort((short)sample.temperature);
+        out.putShort((short)sample.voltage);
+        out.put((byte)sample.health);
+        out.put((byte)0);
+        out.putShort((short)sample.flags);
+    }
+
+    /**
+     * Reads the record starting at the given absolute position.
+     */
+    public static void decode(ByteBuffer in, int position, BatterySample sample){
+        sample.time = in.getLong(position);
+        sample.elapsed = 0;
+        sample.level = in.get(position + 8);
+        sample.plugType = in.get(position + 9);
+        sample.plugged = sample.plugType != 0;
+        sample.scale = in.getShort(position + 10);
+        sample.temperature = in.getShort(position + 12);
+        sample.voltage = in.getShort(position + 14);
+        sample.health = in.get(position + 16);
+        sample.flags = in.getShort(position + 18) & 0xffff;
+    }
+
+    private void writeBatch(FileChannel channel) throws IOException {
+        mBatch.flip();
+        while(mBatch.hasRemaining()){
+            channel.write(mBatch);
+        }
+        mBatch.clear();
+    }
+
+    /**
+     * Opens the current file positioned after its last whole record,
+     * rotating first if the records would take it over the size cap.
+     */
+    private FileChannel openForAppend(int records) throws IOException {
+        File file = getFile(0);
+        long length = file.length();
+        if(length > HEADER_SIZE && length + (long)records * RECORD_SIZE > mMaxBytes){
+            rotate();
+            length = 0;
+        }
+
+        if(!mDir.exists()){
+            mDir.mkdirs();
+        }
+        FileChannel channel = new RandomAccessFile(file, "rw").getChannel();
+        try{
+            if(length < HEADER_SIZE || !hasValidHeader(channel)){
+                channel.truncate(0);
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                header.putInt(MAGIC).putInt(VERSION).flip();
+                channel.write(header, 0);
+                length = HEADER_SIZE;
+            }
+            else{
+                // Drop a record left half written by a crash
+                long aligned = HEADER_SIZE + (length - HEADER_SIZE) / RECORD_SIZE * RECORD_SIZE;
+                if(aligned != length){
+                    channel.truncate(aligned);
+                    length = aligned;
+                }
+            }
+            channel.position(length);
+            return channel;
+        }
+        catch(IOException e){
+            channel.close();
+            throw e;
+        }
+    }
+
+    private static boolean hasValidHeader(FileChannel channel) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        while(header.hasRemaining()){
+            if(channel.read(header, header.position()) < 0){
+                return false;
+            }
+        }
+        return header.getInt(0) == MAGIC && header.getInt(4) == VERSION;
+    }
+
+    private void rotate(){
+        getFile(mMaxFiles - 1).delete();
+        for(int generation = mMaxFiles - 2; generation >= 0; generation--){
+            File file = getFile(generation);
+            if(file.exists()){
+                file.renameTo(getFile(generation + 1));
+            }
+        }
+    }
+
+    /**
+     * Maps every file of the log into memory.
+     *
+     * @return the views, oldest first
+     */
+    public synchronized List<View> openViews() throws IOException {
+        List<View> views = new ArrayList<View>(mMaxFiles);
+        for(int generation = mMaxFiles - 1; generation >= 0; generation--){
+            View view = View.open(getFile(generation));
+            if(view != null){
+                views.add(view);
+            }
+        }
+        return views;
+    }
+
+    /**
+     * A read only, memory mapped view of one file of the log.
+     */
+    public static class View {
+
+        private final ByteBuffer mRecords;
+        private final int mSize;
+
+        private View(ByteBuffer records, int size){
+            mRecords = records;
+            mSize = size;
+        }
+
+        /**
+         * @return the view, or null if the file does not exist or is not a
+         * history log
+         */
+        public static View open(File file) throws IOException {
+            if(!file.exists()){
+                return null;
+            }
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try{
+                FileChannel channel = raf.getChannel();
+                long length = channel.size();
+                if(length < HEADER_SIZE || !hasValidHeader(channel)){
+                    return null;
+                }
+                int size = (int)((length - HEADER_SIZE) / RECORD_SIZE);
+                MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY,
+                                                   HEADER_SIZE,
+                                                   (long)size * RECORD_SIZE);
+                return new View(map, size);
+            }
+            finally{
+                raf.close();
+            }
+        }
+
+        public int size(){
+            return mSize;
+        }
+
+        public long getTime(int index){
+            return mRecords.getLong(index * RECORD_SIZE);
+        }
+
+        public int getLevel(int index){
+            return mRecords.get(index * RECORD_SIZE + 8);
+        }
+
+        public boolean isPlugged(int index){
+            return mRecords.get(index * RECORD_SIZE + 9) != 0;
+        }
+
+        public int getTemperature(int index){
+            return mRecords.getShort(index * RECORD_SIZE + 12);
+        }
+
+        public int getVoltage(int index){
+            return mRecords.getShort(index * RECORD_SIZE + 14);
+        }
+
+        public int getFlags(int index){
+            return mRecords.getShort(index * RECORD_SIZE + 18) & 0xffff;
+        }
+
+        public void get(int index, BatterySample sample){
+            if(index < 0 || index >= mSize){
+                throw new IndexOutOfBoundsException("index "+index+", size "+mSize);
+            }
+            decode(mRecords, index * RECORD_SIZE, sample);
+        }
+    }
+}
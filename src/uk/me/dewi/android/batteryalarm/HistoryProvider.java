@@ -0,0 +1,166 @@
+package uk.me.dewi.android.batteryalarm;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import android.content.ContentProvider;
+import android.content.ContentValues;
+import android.content.UriMatcher;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import android.util.Log;
+
+/**
+ * Lets other apps read the battery history, for example a device management
+ * agent collecting it from a fleet of phones. It is read only.
+ *
+ * {@link #SAMPLES_URI} returns every reading and {@link #ALERTS_URI} only
+ * the readings where an alert rule started firing. Both take the query
+ * parameters {@link #PARAM_FROM} and {@link #PARAM_TO} to limit them to a
+ * time range, which is found through a {@link HistoryIndex}. The selection
+ * and sort order are not supported, rows always come oldest first.
+ *
+ * {@link #EXPORT_URI} opens the last history export, see
+ * {@link BatteryAlarmService#exportHistory(android.content.Context)}. The
+ * file itself is private to the app.
+ */
+public class HistoryProvider extends ContentProvider {
+
+    public static final String AUTHORITY = "uk.me.dewi.android.batteryalarm.history";
+
+    public static final Uri SAMPLES_URI = Uri.parse("content://" + AUTHORITY + "/samples");
+    public static final Uri ALERTS_URI = Uri.parse("content://" + AUTHORITY + "/alerts");
+    public static final Uri EXPORT_URI = Uri.parse("content://" + AUTHORITY + "/export");
+
+    public static final String CONTENT_TYPE = "vnd.android.cursor.dir/vnd.dewi.batteryalarm.sample";
+    public static final String EXPORT_TYPE = "application/vnd.dewi.batteryalarm.history";
+
+    /** Time of the first reading wanted, in ms since the epoch. */
+    public static final String PARAM_FROM = "from";
+    /** Time past the last reading wanted, in ms since the epoch. */
+    public static final String PARAM_TO = "to";
+
+    /** Position in the history, changes when the oldest readings are dropped. */
+    public static final String _ID = "_id";
+    /** Wall clock time in ms. */
+    public static final String TIME = "time";
+    /** Level in percent. */
+    public static final String LEVEL = "level";
+    /** Plug type from ACTION_BATTERY_CHANGED, 0 on battery. */
+    public static final String PLUG_TYPE = "plug_type";
+    /** Temperature in tenths of a degree C. */
+    public static final String TEMPERATURE = "temperature";
+    /** Voltage in mV. */
+    public static final String VOLTAGE = "voltage";
+    /** Health from ACTION_BATTERY_CHANGED. */
+    public static final String HEALTH = "health";
+    /** Bit mask of the alert rules that started firing, see {@link AlertEngine}. */
+    public static final String ALERTS = "alerts";
+
+    public static final String[] COLUMNS = {
+        _ID, TIME, LEVEL, PLUG_TYPE, TEMPERATURE, VOLTAGE, HEALTH, ALERTS
+    };
+
+    private static final int MATCH_SAMPLES = 1;
+    private static final int MATCH_ALERTS = 2;
+    private static final int MATCH_EXPORT = 3;
+
+    private static final UriMatcher sMatcher = new UriMatcher(UriMatcher.NO_MATCH);
+    static {
+        sMatcher.addURI(AUTHORITY, "samples", MATCH_SAMPLES);
+        sMatcher.addURI(AUTHORITY, "alerts", MATCH_ALERTS);
+        sMatcher.addURI(AUTHORITY, "export", MATCH_EXPORT);
+    }
+
+    private final HistoryIndex mIndex = new HistoryIndex();
+
+    @Override
+    public boolean onCreate() {
+        // The history is opened for each query, nothing to set up
+        return true;
+    }
+
+    @Override
+    public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
+                        String sortOrder) {
+        int match = sMatcher.match(uri);
+        if(match != MATCH_SAMPLES && match != MATCH_ALERTS){
+            throw new IllegalArgumentException("Unknown URI " + uri);
+        }
+        long from = parseTime(uri.getQueryParameter(PARAM_FROM), Long.MIN_VALUE);
+        long to = parseTime(uri.getQueryParameter(PARAM_TO), Long.MAX_VALUE);
+
+        List<HistoryLog.View> views;
+        try{
+            // Locked against record() so no file is rotated while they are opened
+            synchronized(BatteryAlarmService.class){
+                views = BatteryAlarmService.getHistoryLog(getContext()).openViews();
+            }
+        }
+        catch(IOException e){
+            Log.e(getClass().getName(), "Could not read battery history", e);
+            views = new ArrayList<HistoryLog.View>();
+        }
+
+        HistoryIndex.Range range = match == MATCH_ALERTS 
+                                   ? mIndex.findAlerts(views, from, to) 
+                                   : mIndex.find(views, from, to);
+        return new HistoryCursor(range, projection);
+    }
+
+    private static long parseTime(String value, long defaultValue){
+        if(value == null || value.length() == 0){
+            return defaultValue;
+        }
+        try{
+            return Long.parseLong(value);
+        }
+        catch(NumberFormatException e){
+            throw new IllegalArgumentException("Not a time in ms: " + value);
+        }
+    }
+
+    @Override
+    public ParcelFileDescriptor openFile(Uri uri, String mode) throws FileNotFoundException {
+        if(sMatcher.match(uri) != MATCH_EXPORT){
+            throw new FileNotFoundException("Unknown URI " + uri);
+        }
+        if(!"r".equals(mode)){
+            throw new FileNotFoundException("The battery history export is read only");
+        }
+        File file = getContext().getFileStreamPath(BatteryAlarmService.HISTORY_EXPORT_FILE);
+        return ParcelFileDescriptor.open(file, ParcelFileDescriptor.MODE_READ_ONLY);
+    }
+
+    @Override
+    public String getType(Uri uri) {
+        switch(sMatcher.match(uri)){
+            case MATCH_SAMPLES:
+            case MATCH_ALERTS:
+                return CONTENT_TYPE;
+            case MATCH_EXPORT:
+                return EXPORT_TYPE;
+            default:
+                return null;
+        }
+    }
+
+    @Override
+    public Uri insert(Uri uri, ContentValues values) {
+        throw new UnsupportedOperationException("The battery history is read only");
+    }
+
+    @Override
+    public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+        throw new UnsupportedOperationException("The battery history is read only");
+    }
+
+    @Override
+    public int delete(Uri uri, String selection, String[] selectionArgs) {
+        throw new UnsupportedOperationException("The battery history is read only");
+    }
+}
@@ -0,0 +1,133 @@
+package uk.me.dewi.android.batteryalarm;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts durations into fixed buckets so latencies can be recorded from any
+ * thread without locking or allocating.
+ *
+ * The buckets grow roughly 1-2-5, so percentiles are only known to within a
+ * bucket, which is plenty to see whether a change made something slower.
+ */
+public class LatencyHistogram {
+
+    /** Upper bounds of the buckets in ms, anything longer goes in a last overflow bucket. */
+    private static final long[] BOUNDS = {
+        1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000, 30000, 60000
+    };
+
+    private final String mName;
+    private final AtomicLongArray mBuckets = new AtomicLongArray(BOUNDS.length + 1);
+    private final AtomicLong mCount = new AtomicLong();
+    private final AtomicLong mSum = new AtomicLong();
+    private final AtomicLong mMax = new AtomicLong();
+
+    public LatencyHistogram(String name){
+        mName = name;
+    }
+
+    public String getName(){
+        return mName;
+    }
+
+    /**
+     * @param millis the duration, negative values are counted as 0
+     */
+    public void record(long millis){
+        if(millis < 0){
+            millis = 0;
+        }
+        mBuckets.incrementAndGet(bucketOf(millis));
+        mCount.incrementAndGet();
+        mSum.addAndGet(millis);
+
+        long max = mMax.get();
+        while(millis > max && !mMax.compareAndSet(max, millis)){
+            max = mMax.get();
+        }
+    }
+
+    private static int bucketOf(long millis){
+        for(int i = 0; i < BOUNDS.length; i++){
+            if(millis <= BOUNDS[i]){
+                return i;
+            }
+        }
+        return BOUNDS.length;
+    }
+
+    public long getCount(){
+        return mCount.get();
+    }
+
+    public long getMax(){
+        return mMax.get();
+    }
+
+    public long getMean(){
+        long count = mCount.get();
+        return count == 0 ? 0 : mSum.get() / count;
+    }
+
+    /**
+     * @param percent between 0 and 100
+     * @return the upper bound of the bucket holding the percentile, or the
+     * maximum if it is in the overflow bucket, 0 if nothing was recorded
+     */
+    public long getPercentile(int percent){
+        long count = mCount.get();
+        if(count == 0){
+            return 0;
+        }
+        long rank = Math.max(1, (count * percent + 99) / 100);
+        long seen = 0;
+        for(int i = 0; i < BOUNDS.length; i++){
+            seen += mBuckets.get(i);
+            if(seen >= rank){
+                return Math.min(BOUNDS[i], mMax.get());
+            }
+        }
+        return mMax.get();
+    }
+
+    /**
+     * Adds everything recorded in another histogram to this one.
+     */
+    public void add(LatencyHistogram other){
+        for(int i = 0; i < mBuckets.length(); i++){
+            mBuckets.addAndGet(i, other.mBuckets.get(i));
+        }
+        mCount.addAndGet(other.mCount.get());
+        mSum.addAndGet(other.mSum.get());
+
+        long otherMax = other.mMax.get();
+        long max = mMax.get();
+        while(otherMax > max && !mMax.compareAndSet(max, otherMax)){
+            max = mMax.get();
+        }
+    }
+
+    public void reset(){
+        for(int i = 0; i < mBuckets.length(); i++){
+            mBuckets.set(i, 0);
+        }
+        mCount.set(0);
+        mSum.set(0);
+        mMax.set(0);
+    }
+
+    /**
+     * Appends a one line summary, for example
+     * <code>read: n=12 mean=3 p50=5 p90=10 max=8 ms</code>.
+     */
+    public void appendTo(StringBuilder out){
+        out.append(mName)
+           .append(": n=").append(getCount())
+           .append(" mean=").append(getMean())
+           .append(" p50=").append(getPercentile(50))
+           .append(" p90=").append(getPercentile(90))
+           .append(" max=").append(getMax())
+           .append(" ms");
+    }
+}
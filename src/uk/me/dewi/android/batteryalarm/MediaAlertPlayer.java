@@ -0,0 +1,115 @@
+package uk.me.dewi.android.batteryalarm;
+
+import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+import android.media.MediaPlayer;
+import android.media.MediaPlayer.OnCompletionListener;
+import android.media.MediaPlayer.OnErrorListener;
+import android.net.Uri;
+import android.os.Handler;
+
+/**
+ * Plays an alert sound through a MediaPlayer that is kept prepared between
+ * alerts. Must be created on the thread whose Handler is passed in, so the
+ * MediaPlayer callbacks arrive on that thread too.
+ */
+public class MediaAlertPlayer implements AlertSoundEngine.Player, OnCompletionListener, OnErrorListener {
+
+    private final Context mContext;
+    private final Handler mHandler;
+    private final long mMaxDuration;
+
+    private MediaPlayer mMediaPlayer;
+    private AlertSoundEngine mEngine;
+
+    private final Runnable mTimeout = new Runnable() {
+        public void run() {
+            if(mEngine != null){
+                mEngine.onFinished(MediaAlertPlayer.this);
+            }
+        }
+    };
+
+    /**
+     * @param maxDuration how long to play a sound for before stopping it
+     */
+    public MediaAlertPlayer(Context context, Handler handler, long maxDuration){
+        mContext = context;
+        mHandler = handler;
+        mMaxDuration = maxDuration;
+    }
+
+    public void prepare(String source) throws Exception {
+        release();
+        MediaPlayer mediaPlayer = new MediaPlayer();
+        try{
+            if(source.length() == 0){
+                AssetFileDescriptor fd = mContext.getResources().openRawResourceFd(R.raw.record_stop1);
+                try{
+                    mediaPlayer.setDataSource(fd.getFileDescriptor(), fd.getStartOffset(), fd.getLength());
+                }
+                finally{
+                    fd.close();
+                }
+            }
+            else{
+                mediaPlayer.setDataSource(mContext, Uri.parse(source));
+            }
+            mediaPlayer.setVolume(1, 1);
+            mediaPlayer.setOnCompletionListener(this);
+            mediaPlayer.setOnErrorListener(this);
+            mediaPlayer.prepare();
+        }
+        catch(Exception e){
+            mediaPlayer.release();
+            throw e;
+        }
+        mMediaPlayer = mediaPlayer;
+    }
+
+    public void start(AlertSoundEngine engine) {
+        mEngine = engine;
+        mMediaPlayer.start();
+        mHandler.postDelayed(mTimeout, mMaxDuration);
+    }
+
+    public void stop() {
+        mHandler.removeCallbacks(mTimeout);
+        mEngine = null;
+        try{
+            if(mMediaPlayer.isPlaying()){
+                mMediaPlayer.pause();
+            }
+            mMediaPlayer.seekTo(0);
+        }
+        catch(IllegalStateException ignored){}
+    }
+
+    public void release() {
+        mHandler.removeCallbacks(mTimeout);
+        mEngine = null;
+        if(mMediaPlayer != null){
+            try{
+                mMediaPlayer.release();
+            }
+            catch(Exception ignored){}
+            mMediaPlayer = null;
+        }
+    }
+
+    public void onCompletion(MediaPlayer mp) {
+        if(mEngine != null){
+            mEngine.onFinished(this);
+        }
+    }
+
+    public boolean onError(MediaPlayer mp, int what, int extra) {
+        AlertSoundEngine engine = mEngine;
+        mHandler.removeCallbacks(mTimeout);
+        mEngine = null;
+        if(engine != null){
+            engine.onError(this);
+        }
+        return true;
+    }
+}
@@ -0,0 +1,175 @@
+package uk.me.dewi.android.batteryalarm;
+
+/**
+ * Keeps track of whether monitoring is running, suspended or stopped.
+ *
+ * Nothing is kept in fields: the answer is worked out from which alarms
+ * exist, and the system keeps those when the process is killed. While the
+ * device charges there is no check alarm, so suspending leaves a
+ * {@link #SUSPENDED} marker behind to tell it apart from being stopped.
+ * Launching while running or suspended does nothing, so alarms never stack
+ * up.
+ *
+ * The alarms are reached through {@link Alarms}, the AlarmManager and
+ * PendingIntents on a device, so the bookkeeping has no Android
+ * dependencies and can be exercised on a plain JVM.
+ */
+public class MonitorAlarms {
+
+    /** The repeating alarm that runs the battery checks. */
+    public static final int CHECK = 0;
+
+    /** The alarm that wakes the device for a check by its deadline. */
+    public static final int DEADLINE = 1;
+
+    /** Never set, it exists while monitoring is suspended. */
+    public static final int SUSPENDED = 2;
+
+    /** The repeating alarm that reads the battery while it charges. */
+    public static final int CHARGE = 3;
+
+    /**
+     * The alarms, each looked up again from the same identity every time.
+     */
+    public interface Alarms {
+
+        /**
+         * @return whether the alarm has been set or marked, and not cancelled since
+         */
+        boolean exists(int alarm);
+
+        /**
+         * Sets the alarm, replacing it if it is already set.
+         *
+         * @param intervalMillis how long to wait between repeats after the
+         * first, 0 to go off once
+         * @param wakeup whether the device should be woken for it,
+         * otherwise it goes off the next time the device wakes up anyway
+         */
+        void set(int alarm, long delayMillis, long intervalMillis, boolean wakeup);
+
+        /**
+         * Makes the alarm exist without setting it.
+         */
+        void mark(int alarm);
+
+        /**
+         * Cancels the alarm, after which it no longer exists.
+         */
+        void cancel(int alarm);
+    }
+
+    private final Alarms mAlarms;
+
+    public MonitorAlarms(Alarms alarms){
+        mAlarms = alarms;
+    }
+
+    /**
+     * @return whether monitoring is on, checking or suspended
+     */
+    public boolean isRunning(){
+        return mAlarms.exists(CHECK) || mAlarms.exists(SUSPENDED);
+    }
+
+    /**
+     * @return whether monitoring is on but not checking, while charging
+     */
+    public boolean isSuspended(){
+        return mAlarms.exists(SUSPENDED);
+    }
+
+    /**
+     * Starts monitoring with a check straight away, unless it is already
+     * running or suspended.
+     *
+     * @return false if monitoring was already on
+     */
+    public boolean launch(long intervalMillis){
+        if(isRunning()){
+            return false;
+        }
+        schedule(0, intervalMillis, true, MonitorScheduler.NO_CHECK);
+        return true;
+    }
+
+    /**
+     * Schedules the next check, starting or resuming monitoring.
+     *
+     * @param deadlineMillis how long to wait for the next check before
+     * waking the device for one, or {@link MonitorScheduler#NO_CHECK}
+     */
+    public void schedule(long delayMillis, long intervalMillis, boolean wakeup, long deadlineMillis){
+        mAlarms.set(CHECK, delayMillis, intervalMillis, wakeup);
+        setDeadline(deadlineMillis);
+        cancel(SUSPENDED);
+    }
+
+    /**
+     * Schedules the next check like {@link #schedule(long, long, boolean, long)},
+     * but only if monitoring has not been stopped or suspended in the meantime.
+     *
+     * @return false if monitoring is not checking
+     */
+    public boolean reschedule(long delayMillis, long intervalMillis, boolean wakeup, long deadlineMillis){
+        if(!mAlarms.exists(CHECK)){
+            return false;
+        }
+        mAlarms.set(CHECK, delayMillis, intervalMillis, wakeup);
+        setDeadline(deadlineMillis);
+        return true;
+    }
+
+    /**
+     * Each check moves the deadline on, so it only goes off when the device
+     * has slept through the checks that do not wake it.
+     */
+    private void setDeadline(long deadlineMillis){
+        if(deadlineMillis != MonitorScheduler.NO_CHECK){
+            mAlarms.set(DEADLINE, deadlineMillis, 0, true);
+        }
+        else{
+            cancel(DEADLINE);
+        }
+    }
+
+    /**
+     * Stops checking but stays on, until the next {@link #schedule(long, long, boolean, long)}.
+     */
+    public void suspend(){
+        cancel(CHECK);
+        cancel(DEADLINE);
+        mAlarms.mark(SUSPENDED);
+    }
+
+    /**
+     * Suspends like {@link #suspend()}, but only if monitoring has not been
+     * stopped or suspended in the meantime.
+     *
+     * @return false if monitoring is not checking
+     */
+    public boolean suspendIfChecking(){
+        if(!mAlarms.exists(CHECK)){
+            return false;
+        }
+        suspend();
+        return true;
+    }
+
+    /**
+     * Cancels every alarm, including the charge readings, so nothing is
+     * left to go off once monitoring is stopped.
+     */
+    public void stop(){
+        cancel(CHECK);
+        cancel(DEADLINE);
+        cancel(SUSPENDED);
+        cancel(CHARGE);
+    }
+
+    private void cancel(int alarm){
+        if(mAlarms.exists(alarm)){
+            mAlarms.cancel(alarm);
+        }
+    }
+}
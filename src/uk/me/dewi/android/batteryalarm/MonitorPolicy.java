@@ -0,0 +1,54 @@
+package uk.me.dewi.android.batteryalarm;
+
+/**
+ * Decides whether monitoring should run when the device boots or is
+ * plugged in or unplugged. Unless the user wants to hear when the battery
+ * has charged or gets too hot, nothing can go wrong while the device is on
+ * a charger, so monitoring is suspended until it is unplugged again.
+ *
+ * This class has no Android dependencies so the decisions can be
+ * exercised on a plain JVM.
+ */
+public final class MonitorPolicy {
+
+    /** Leave monitoring as it is. */
+    public static final int KEEP = 0;
+
+    /** Schedule the next check from the current level. */
+    public static final int RESUME = 1;
+
+    /** Cancel the alarm, no check is needed until the device is unplugged. */
+    public static final int SUSPEND = 2;
+
+    /** Check straight away, the check plans the next one. */
+    public static final int CHECK = 3;
+
+    private MonitorPolicy(){}
+
+    /**
+     * @param launchOnStartup whether the user wants monitoring to start on boot
+     * @param plugged whether the device booted on a charger
+     * @param checkWhilePlugged whether any alert rule applies on a charger
+     */
+    public static int onBoot(boolean launchOnStartup, boolean plugged, boolean checkWhilePlugged){
+        if(!launchOnStartup){
+            return KEEP;
+        }
+        return plugged && !checkWhilePlugged ? SUSPEND : RESUME;
+    }
+
+    /**
+     * @param enabled whether the user has monitoring turned on
+     * @param plugged whether the device has just been plugged in, rather than unplugged
+     * @param checkWhilePlugged whether any alert rule applies on a charger
+     */
+    public static int onPowerChanged(boolean enabled, boolean plugged, boolean checkWhilePlugged){
+        if(!enabled){
+            return KEEP;
+        }
+        if(plugged){
+            return checkWhilePlugged ? CHECK : SUSPEND;
+        }
+        return RESUME;
+    }
+}
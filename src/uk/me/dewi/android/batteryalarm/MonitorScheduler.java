@@ -0,0 +1,329 @@
+package uk.me.dewi.android.batteryalarm;
+
+/**
+ * Decides when the battery should next be checked.
+ *
+ * The delay is worked out from how long the battery is expected to take to
+ * reach the alarm threshold at the rate estimated by a
+ * {@link DischargeEstimator}, so the device is left alone while the level is
+ * high and checked at the configured delay once the threshold is close.
+ *
+ * No check is put off more than {@link #MAX_DELAY} after the last one. A
+ * check that does not wake the device comes with a deadline,
+ * {@link #getDeadline()}, by which a check that does must have run in case
+ * the device has slept through it.
+ *
+ * Without a {@link DrainProfile} the estimate only ever shortens the
+ * delay. No check is put off past the time the battery could reach the
+ * threshold draining at {@link #MAX_DRAIN_PER_HOUR}, checks only stop
+ * waking the device while the threshold is out of reach at that rate until
+ * after the configured delay, and the deadline is the time it would take
+ * at that rate plus the delay. So as long as the battery drains no faster
+ * than {@link #MAX_DRAIN_PER_HOUR} it is checked within the configured
+ * delay of reaching the threshold.
+ *
+ * Given a drain profile and the local time, the prediction follows the
+ * peak drain learned for each hour of the day instead. Checks may then be
+ * put off past the time the battery could reach the threshold at
+ * {@link #MAX_DRAIN_PER_HOUR} until the end of the quiet hours, see
+ * {@link #QUIET_DRAIN_PER_HOUR}. At other times that rate still limits
+ * them. Checks only stop waking the device while the threshold is out of
+ * reach until after the configured delay at {@link #PROFILE_MARGIN} times
+ * the prediction, and the deadline is the time it would take at that rate
+ * plus the delay. So as long as the battery drains no faster than
+ * {@link #PROFILE_MARGIN} times the learned peak for each hour, or the
+ * current rate in this one, it is checked within the configured delay of
+ * reaching the threshold. Hours nothing has been learned about are taken
+ * to drain at the current rate or {@link #ASSUMED_DRAIN_PER_HOUR}.
+ *
+ * This class has no Android dependencies so the scheduling can be exercised
+ * on a plain JVM.
+ */
+public class MonitorScheduler {
+
+    public static final long MINUTE = 60 * 1000L;
+    public static final long HOUR = 60 * MINUTE;
+
+    /** Returned when no check is needed until the device is unplugged. */
+    public static final long NO_CHECK = -1;
+
+    /** The longest we will ever wait between two checks. */
+    public static final long MAX_DELAY = 2 * HOUR;
+
+    /**
+     * The fastest the battery is taken to drain, in percent per hour. Heavy
+     * use such as navigation with the screen on or a game drains a phone at
+     * up to about 35% an hour.
+     */
+    public static final float MAX_DRAIN_PER_HOUR = 40f;
+
+    /** Discharge rate assumed by the drain profile for hours it has not learned, in percent per hour. */
+    public static final float ASSUMED_DRAIN_PER_HOUR = 30f;
+
+    /**
+     * How many times faster than the drain profile predicts the battery can
+     * drain before a check that wakes the device is late.
+     */
+    public static final float PROFILE_MARGIN = 4f;
+
+    /**
+     * Hours the drain profile has seen drain no faster than this, in percent
+     * per hour, are quiet, such as overnight on a desk.
+     */
+    public static final float QUIET_DRAIN_PER_HOUR = 1f;
+
+    /** Fraction of the predicted time to the threshold we are prepared to sleep for. */
+    public static final float SAFETY_FACTOR = 0.5f;
+
+    /** The first check after boot waits at least this long, while everything else is starting. */
+    public static final long BOOT_SETTLE = 2 * MINUTE;
+
+    /** The first check after boot is spread over this long, so devices and apps don't all check at once. */
+    public static final long BOOT_JITTER = 3 * MINUTE;
+
+    private final DischargeEstimator mEstimator = new DischargeEstimator();
+    private final boolean mSuspendWhilePlugged;
+    private DrainProfile mProfile;
+    private long mLead = 0;
+    private boolean mCheckWhilePlugged;
+    private boolean mWakeup = true;
+    private long mDeadline = NO_CHECK;
+
+    public MonitorScheduler(){
+        this(true);
+    }
+
+    /**
+     * @param suspendWhilePlugged whether checks can stop entirely while the
+     * device is charging, which needs something else to resume them once it
+     * is unplugged
+     */
+    public MonitorScheduler(boolean suspendWhilePlugged){
+        mSuspendWhilePlugged = suspendWhilePlugged;
+    }
+
+    /**
+     * Records a battery reading and returns the delay until the next check.
+     *
+     * @param now elapsed time of the reading in milliseconds
+     * @param level battery level in percent
+     * @param plugged whether the device is on a charger
+     * @param threshold the level at which the user is alerted
+     * @param minDelay the configured delay between checks, in milliseconds
+     * @return the delay in milliseconds before the battery should be read
+     * again, or {@link #NO_CHECK}
+     */
+    public long onSample(long now, int level, boolean plugged, int threshold, long minDelay){
+        return onSample(now, -1, level, plugged, threshold, minDelay);
+    }
+
+    /**
+     * Records a battery reading and returns the delay until the next check,
+     * planning with the drain profile if there is one.
+     *
+     * @param local local wall clock time of the reading, or -1 to not use
+     * the drain profile
+     * @see #onSample(long, int, boolean, int, long)
+     */
+    public long onSample(long now, long local, int level, boolean plugged, int threshold, long minDelay){
+        mEstimator.onSample(now, level, plugged);
+        boolean useProfile = mProfile != null && local >= 0;
+        if(useProfile){
+            mProfile.onSample(local, level, plugged);
+        }
+
+        mDeadline = NO_CHECK;
+        if(plugged){
+            if(mCheckWhilePlugged){
+                // Watching the charge or the temperature. Waking the device
+                // on a charger costs no battery.
+                mWakeup = true;
+                return minDelay;
+            }
+            // Nothing can go wrong while charging, only look again once
+            // unplugged or when something else has woken the device up.
+            mWakeup = false;
+            return mSuspendWhilePlugged ? NO_CHECK : MAX_DELAY;
+        }
+
+        if(level <= threshold){
+            mWakeup = true;
+            return minDelay;
+        }
+
+        long untilThreshold;
+        if(useProfile){
+            untilThreshold = mProfile.millisUntil(local, level, threshold, 
+                                                  mEstimator.getDrainPerHour(), 
+                                                  ASSUMED_DRAIN_PER_HOUR);
+        }
+        else{
+            untilThreshold = mEstimator.millisUntil(level, threshold);
+        }
+        if(untilThreshold != DischargeEstimator.UNKNOWN && untilThreshold - mLead <= minDelay){
+            // An early warning is due within the next check
+            mWakeup = true;
+            return minDelay;
+        }
+
+        long delay;
+        if(useProfile){
+            delay = (long)((untilThreshold - mLead) * SAFETY_FACTOR);
+            // An hour's average hides bursts of heavy use, which checks
+            // that do not wake the device are there to catch
+            delay = Math.min(delay, Math.max(millisAtMaxDrain(level, threshold), millisQuiet(local)));
+            long untilLate = mProfile.millisUntil(local, level, threshold, 
+                                                  mEstimator.getDrainPerHour(), 
+                                                  ASSUMED_DRAIN_PER_HOUR, PROFILE_MARGIN);
+            mWakeup = untilLate <= minDelay;
+            mDeadline = mWakeup ? NO_CHECK : untilLate + minDelay;
+        }
+        else{
+            delay = millisAtMaxDrain(level, threshold);
+            if(untilThreshold != DischargeEstimator.UNKNOWN){
+                delay = Math.min(delay, (long)((untilThreshold - mLead) * SAFETY_FACTOR));
+            }
+            mWakeup = isNear(level, threshold, minDelay);
+            mDeadline = deadline(level, threshold, minDelay);
+        }
+        return clamp(delay, minDelay);
+    }
+
+    /**
+     * @return how long from the local time the drain profile has only seen
+     * the battery drain slowly, up to {@link #MAX_DELAY}, 0 if it is not
+     * draining slowly now
+     */
+    private long millisQuiet(long local){
+        if(mEstimator.getDrainPerHour() > QUIET_DRAIN_PER_HOUR){
+            return 0;
+        }
+        long t = local;
+        while(t - local < MAX_DELAY){
+            int hour = DrainProfile.hourOf(t);
+            if(!mProfile.isKnown(hour) || mProfile.getPeak(hour) > QUIET_DRAIN_PER_HOUR){
+                break;
+            }
+            t = (t / HOUR + 1) * HOUR;
+        }
+        return t - local;
+    }
+
+    /**
+     * @return the milliseconds the battery would take to drain from the
+     * level to the threshold at {@link #MAX_DRAIN_PER_HOUR}, 0 if it is
+     * already there
+     */
+    public static long millisAtMaxDrain(int level, int threshold){
+        return level <= threshold ? 0 : (long)((level - threshold) / MAX_DRAIN_PER_HOUR * HOUR);
+    }
+
+    private static long clamp(long delay, long minDelay){
+        return Math.max(Math.min(delay, MAX_DELAY), minDelay);
+    }
+
+    /**
+     * Works out the first check when monitoring starts or resumes and no
+     * discharge rate has been measured yet.
+     *
+     * @return the delay in milliseconds before the first check
+     */
+    public static long firstDelay(int level, int threshold, long minDelay){
+        if(level <= threshold){
+            return 0;
+        }
+        return clamp(millisAtMaxDrain(level, threshold), minDelay);
+    }
+
+    /**
+     * Works out the first check after the device has booted, held back past
+     * the rush of everything else starting.
+     *
+     * @param jitter a random number from 0 to 1
+     * @return the delay in milliseconds before the first check
+     */
+    public static long bootDelay(int level, int threshold, long minDelay, float jitter){
+        return Math.max(firstDelay(level, threshold, minDelay), BOOT_SETTLE) 
+               + (long)(BOOT_JITTER * jitter);
+    }
+
+    /**
+     * @return whether the level is close enough to the threshold for checks
+     * to wake the device, that is the battery could reach the threshold
+     * within the configured delay
+     */
+    public static boolean isNear(int level, int threshold, long minDelay){
+        return millisAtMaxDrain(level, threshold) <= minDelay;
+    }
+
+    /**
+     * @return how long after a reading a check that wakes the device must
+     * run if none has run since, so the threshold can not have been reached
+     * for longer than the configured delay at {@link #MAX_DRAIN_PER_HOUR},
+     * or {@link #NO_CHECK} if the checks wake the device anyway
+     */
+    public static long deadline(int level, int threshold, long minDelay){
+        if(isNear(level, threshold, minDelay)){
+            return NO_CHECK;
+        }
+        return millisAtMaxDrain(level, threshold) + minDelay;
+    }
+
+    /**
+     * @return the deadline for the check chosen by the last call to
+     * {@link #onSample(long, int, boolean, int, long)}, see
+     * {@link #deadline(int, int, long)}, or worked out from the drain
+     * profile if there is one
+     */
+    public long getDeadline(){
+        return mDeadline;
+    }
+
+    /**
+     * @return whether the check chosen by the last call to
+     * {@link #onSample(long, int, boolean, int, long)} needs to wake the device
+     */
+    public boolean isWakeupRequired(){
+        return mWakeup;
+    }
+
+    /**
+     * Sets how long before the threshold is reached the user wants to be
+     * warned, so checks are planned around the warning rather than the
+     * threshold itself.
+     */
+    public void setLead(long leadMillis){
+        mLead = leadMillis;
+    }
+
+    /**
+     * Sets whether any alert rule applies on a charger, such as the charged
+     * level or the temperature, so checks go on at the configured delay
+     * while the device charges instead of stopping.
+     */
+    public void setCheckWhilePlugged(boolean checkWhilePlugged){
+        mCheckWhilePlugged = checkWhilePlugged;
+    }
+
+    /**
+     * @param profile the drain profile to learn into and plan with, or null
+     * to plan with the current drain rate alone
+     */
+    public void setProfile(DrainProfile profile){
+        mProfile = profile;
+    }
+
+    public DrainProfile getProfile(){
+        return mProfile;
+    }
+
+    public DischargeEstimator getEstimator(){
+        return mEstimator;
+    }
+
+    public void reset(){
+        mEstimator.reset();
+        mWakeup = true;
+        mDeadline = NO_CHECK;
+    }
+}
@@ -0,0 +1,68 @@
+package uk.me.dewi.android.batteryalarm;
+
+import static uk.me.dewi.android.batteryalarm.AlarmPrefs.*;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.content.SharedPreferences.OnSharedPreferenceChangeListener;
+import android.os.Bundle;
+import android.preference.PreferenceActivity;
+
+/**
+ * Edits one alarm profile. Each profile is kept in its own preferences file
+ * with the same keys as the main settings, anything left empty is taken
+ * from the main settings.
+ */
+public class ProfileSettings extends PreferenceActivity implements OnSharedPreferenceChangeListener {
+
+    /** The profile to edit, 1 to {@link AlarmConfig#PROFILE_COUNT}. */
+    public static final String EXTRA_PROFILE = "uk.me.dewi.android.batteryalarm.PROFILE";
+
+    private int mProfile;
+    private SharedPreferences mSettings;
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+
+        mProfile = getIntent().getIntExtra(EXTRA_PROFILE, 1);
+        getPreferenceManager().setSharedPreferencesName(AlarmConfig.getProfileName(mProfile));
+        addPreferencesFromResource(R.layout.profile);
+
+        mSettings = getPreferenceManager().getSharedPreferences();
+        mSettings.registerOnSharedPreferenceChangeListener(this);
+        setTitle(getTitle(this, mProfile));
+    }
+
+    @Override
+    protected void onDestroy() {
+        mSettings.unregisterOnSharedPreferenceChangeListener(this);
+        super.onDestroy();
+    }
+
+    public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
+        // Compiles the schedules again and writes them for the service once
+        // the user stops editing
+        SettingsApplier.onChanged(this, key);
+
+        if(PREF_PROFILE_NAME.equals(key) || PREF_PROFILE_ACTIVE.equals(key)){
+            setTitle(getTitle(this, mProfile));
+        }
+    }
+
+    /**
+     * @return the name the user gave the profile, or a numbered one, marked
+     * if the profile is not in use
+     */
+    public static String getTitle(Context context, int profile) {
+        SharedPreferences settings = context.getSharedPreferences(AlarmConfig.getProfileName(profile),
+                                                                  Context.MODE_PRIVATE);
+        String name = settings.getString(PREF_PROFILE_NAME, null);
+        if(name == null || name.trim().length() == 0){
+            name = context.getString(R.string.profile) + " " + profile;
+        }
+        if(!settings.getBoolean(PREF_PROFILE_ACTIVE, false)){
+            name += " (" + context.getString(R.string.profile_not_used) + ")";
+        }
+        return name;
+    }
+}
@@ -0,0 +1,90 @@
+package uk.me.dewi.android.batteryalarm;
+
+/**
+ * Says which alarm profile is active at each minute of the week.
+ *
+ * The table is compiled once from the profile schedules whenever they
+ * change, after which finding the active profile is a single array lookup
+ * that does not allocate.
+ */
+public final class ProfileTable {
+
+    public static final int MINUTES_PER_WEEK = 7 * TimeWindow.MINUTES_PER_DAY;
+
+    /** Profile used when no other profile is active. */
+    public static final int DEFAULT_PROFILE = 0;
+
+    /** Days for {@link #compile(int[], TimeWindow[])}, bit 0 is Monday. */
+    public static final int EVERY_DAY = 0x7f;
+
+    public static final ProfileTable DEFAULT = new ProfileTable(new byte[MINUTES_PER_WEEK]);
+
+    private final byte[] mTable;
+
+    private ProfileTable(byte[] table){
+        mTable = table;
+    }
+
+    /**
+     * Builds the table from the schedules of the profiles. Where schedules
+     * overlap the profile with the lowest index wins. A window that wraps
+     * past midnight belongs to the day it starts on.
+     *
+     * @param days for each profile the days it is active, bit 0 for Monday,
+     * index 0 being the default profile which is ignored
+     * @param windows for each profile the time it is active on those days
+     */
+    public static ProfileTable compile(int[] days, TimeWindow[] windows){
+        byte[] table = new byte[MINUTES_PER_WEEK];
+        for(int profile = days.length - 1; profile > DEFAULT_PROFILE; profile--){
+            TimeWindow window = windows[profile];
+            if(days[profile] == 0 || window == null){
+                continue;
+            }
+            int start = window.getStart();
+            int length = window.getEnd() - start;
+            if(length <= 0){
+                length += TimeWindow.MINUTES_PER_DAY;
+            }
+            for(int day = 0; day < 7; day++){
+                if((days[profile] & (1 << day)) == 0){
+                    continue;
+                }
+                int from = day * TimeWindow.MINUTES_PER_DAY + start;
+                for(int i = 0; i < length; i++){
+                    table[(from + i) % MINUTES_PER_WEEK] = (byte)profile;
+                }
+            }
+        }
+        return new ProfileTable(table);
+    }
+
+    /**
+     * @return the minute of the local week at the given wall clock time,
+     * counted from midnight on Monday
+     */
+    public static int minuteOfWeek(long millis, int offset){
+        long minutes = (millis + offset) / TimeWindow.MILLIS_PER_MINUTE;
+        if(millis + offset < 0 && (millis + offset) % TimeWindow.MILLIS_PER_MINUTE != 0){
+            minutes--;
+        }
+        // The epoch was a Thursday
+        int minute = (int)((minutes + 3 * TimeWindow.MINUTES_PER_DAY) % MINUTES_PER_WEEK);
+        return minute < 0 ? minute + MINUTES_PER_WEEK : minute;
+    }
+
+    /**
+     * @return the index of the profile active at the minute of the week
+     */
+    public int get(int minuteOfWeek){
+        return mTable[minuteOfWeek];
+    }
+
+    /**
+     * @return the index of the profile active now
+     */
+    public int get(Clock clock){
+        long now = clock.currentTimeMillis();
+        return mTable[minuteOfWeek(now, clock.getOffset(now))];
+    }
+}
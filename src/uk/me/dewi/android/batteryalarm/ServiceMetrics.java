@@ -0,0 +1,104 @@
+package uk.me.dewi.android.batteryalarm;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters and latencies of the battery checks, kept for the life of the
+ * process so the check interval can be tuned on a real device.
+ *
+ * Everything can be updated from any thread without locking. The numbers
+ * are read through the service's binder, the statistics screen and
+ * <code>adb shell dumpsys activity service BatteryAlarmService</code>.
+ */
+public class ServiceMetrics {
+
+    /** Indexes of the counters, as returned by {@link #getCounters()}. */
+    public static final int CHECKS = 0;
+    public static final int ALERTS_FIRED = 1;
+    public static final int ALERTS_SUPPRESSED = 2;
+    public static final int SKIPPED_AT_NIGHT = 3;
+    public static final int READ_FAILURES = 4;
+    public static final int SUSPENDS = 5;
+    public static final int COUNTER_COUNT = 6;
+
+    private static final String[] COUNTER_NAMES = {
+        "checks", "alerts fired", "alerts suppressed", "skipped at night", "read failures", "suspends"
+    };
+
+    private final AtomicLong[] mCounters = new AtomicLong[COUNTER_COUNT];
+
+    /** From the check being started to the battery level having been read. */
+    public final LatencyHistogram startToRead = new LatencyHistogram("start to read");
+    /** From the battery level having been read to the notification being shown. */
+    public final LatencyHistogram readToNotify = new LatencyHistogram("read to notify");
+    /** Time taken to get the alert sound playing. */
+    public final LatencyHistogram soundStart = new LatencyHistogram("sound start");
+    /** How long the wake lock was held for each check. */
+    public final LatencyHistogram wakeLockHeld = new LatencyHistogram("wake lock held");
+    /** Time spent in the boot and power receiver, which holds up the broadcast. */
+    public final LatencyHistogram receiver = new LatencyHistogram("receiver");
+
+    private final LatencyHistogram[] mHistograms = {
+        startToRead, readToNotify, soundStart, wakeLockHeld, receiver
+    };
+
+    private volatile long mSince;
+
+    public ServiceMetrics(long now){
+        for(int i = 0; i < COUNTER_COUNT; i++){
+            mCounters[i] = new AtomicLong();
+        }
+        mSince = now;
+    }
+
+    public void increment(int counter){
+        mCounters[counter].incrementAndGet();
+    }
+
+    public long get(int counter){
+        return mCounters[counter].get();
+    }
+
+    /**
+     * @return a copy of the counters, indexed by the constants above
+     */
+    public long[] getCounters(){
+        long[] counters = new long[COUNTER_COUNT];
+        for(int i = 0; i < COUNTER_COUNT; i++){
+            counters[i] = mCounters[i].get();
+        }
+        return counters;
+    }
+
+    /**
+     * @return the wall clock time the numbers have been collected since
+     */
+    public long getSince(){
+        return mSince;
+    }
+
+    public void reset(long now){
+        for(int i = 0; i < COUNTER_COUNT; i++){
+            mCounters[i].set(0);
+        }
+        for(int i = 0; i < mHistograms.length; i++){
+            mHistograms[i].reset();
+        }
+        mSince = now;
+    }
+
+    /**
+     * @return the numbers as text, one per line
+     */
+    public String dump(){
+        StringBuilder out = new StringBuilder(512);
+        for(int i = 0; i < COUNTER_COUNT; i++){
+            out.append(COUNTER_NAMES[i]).append(": ").append(mCounters[i].get()).append('\n');
+        }
+        for(int i = 0; i < mHistograms.length; i++){
+            mHistograms[i].appendTo(out);
+            out.append('\n');
+        }
+        return out.toString();
+    }
+}
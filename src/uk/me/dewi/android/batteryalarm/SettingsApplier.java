@@ -0,0 +1,146 @@
+package uk.me.dewi.android.batteryalarm;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
+import android.os.SystemClock;
+
+/**
+ * Applies changes to the settings on the service's worker thread, so the
+ * settings screen never waits for the config file or the alarm manager.
+ *
+ * Changes are batched by {@link SettingsChanges} and applied once the user
+ * has stopped editing. Running them on the same thread as the battery
+ * checks means a check never sees half applied settings.
+ */
+public class SettingsApplier {
+
+    /**
+     * Told on the UI thread once a batch of changes has been applied, to
+     * show the settings as they were parsed.
+     */
+    public interface Listener {
+        void onApplied(AlarmConfig config);
+    }
+    
+    private static final int MSG_APPLY = 1;
+
+    private static final SettingsChanges sChanges = new SettingsChanges();
+    private static final BatteryAlarmLauncher sLauncher = new BatteryAlarmLauncher();
+
+    private static Handler sHandler;
+    private static Context sContext;
+    
+    private static Listener sListener;
+    private static Handler sMainHandler;
+
+    /**
+     * Records a changed preference, to be applied once the settings have
+     * been left alone for a moment.
+     */
+    public static void onChanged(Context context, String key){
+        sChanges.add(SystemClock.elapsedRealtime(), key);
+        Handler handler = getHandler(context);
+        // A batch already waiting picks this change up, see handleMessage()
+        if(!handler.hasMessages(MSG_APPLY)){
+            handler.sendEmptyMessageDelayed(MSG_APPLY, SettingsChanges.DEBOUNCE);
+        }
+    }
+
+    /**
+     * Applies any waiting changes straight away, on the calling thread.
+     */
+    public static void flush(Context context){
+        apply(context.getApplicationContext(), true);
+    }
+
+    /**
+     * Sets the one listener, replacing any other. Must be called on the UI thread.
+     */
+    public static synchronized void setListener(Listener listener){
+        if(sMainHandler == null){
+            sMainHandler = new Handler(Looper.getMainLooper());
+        }
+        sListener = listener;
+    }
+    
+    public static synchronized void removeListener(Listener listener){
+        if(sListener == listener){
+            sListener = null;
+        }
+    }
+    
+    private static synchronized Listener getListener(){
+        return sListener;
+    }
+    
+    private static synchronized Handler getHandler(Context context){
+        if(sHandler == null){
+            sContext = context.getApplicationContext();
+            sHandler = new Handler(BatteryAlarmService.getWorkerLooper()){
+                @Override
+                public void handleMessage(Message msg) {
+                    if(!apply(sContext, false)){
+                        // Edited again since this was sent, wait for the rest of the burst
+                        long delay = sChanges.getDelay(SystemClock.elapsedRealtime());
+                        if(delay >= 0){
+                            sendEmptyMessageDelayed(MSG_APPLY, delay);
+                        }
+                    }
+                }
+            };
+        }
+        return sHandler;
+    }
+
+    /**
+     * @return false if there was nothing to apply yet
+     */
+    private static synchronized boolean apply(Context context, boolean force){
+        int work = sChanges.take(SystemClock.elapsedRealtime(), force);
+        if(work == 0){
+            return false;
+        }
+
+        // Parse once for the whole batch, and write the file for the service
+        final AlarmConfig config = ConfigCache.update(context);
+        final Listener listener = sListener;
+        if(listener != null){
+            sMainHandler.post(new Runnable() {
+                public void run() {
+                    // Unless the screen has gone in the meantime
+                    if(getListener() == listener){
+                        listener.onApplied(config);
+                    }
+                }
+            });
+        }
+
+        boolean started = false;
+        if((work & SettingsChanges.APPLY_START_STOP) != 0){
+            if(config.isEnabled()){
+                // Checks straight away, which plans the following checks
+                started = sLauncher.launch(context);
+            }
+            else{
+                sLauncher.stop(context);
+                return true;
+            }
+        }
+        if(!started && (work & SettingsChanges.APPLY_RESCHEDULE) != 0){
+            // Check now with the new settings, unless monitoring is stopped
+            // or suspended, and let the check plan the next one
+            AlarmConfig active = config.getActive(AndroidClock.INSTANCE);
+            if(!BatteryAlarmLauncher.reschedule(context, 0, active.getDelayMillis(), true)
+               && active.isCheckedWhilePlugged() && BatteryAlarmLauncher.isSuspended(context)){
+                // A rule that applies on the charger has been turned on
+                BatteryAlarmLauncher.checkNow(context);
+            }
+        }
+        if((work & SettingsChanges.APPLY_STATUS) != 0){
+            StatusPublisher.refresh(context);
+        }
+        return true;
+    }
+}
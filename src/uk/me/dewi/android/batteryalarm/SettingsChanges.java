@@ -0,0 +1,126 @@
+package uk.me.dewi.android.batteryalarm;
+
+import static uk.me.dewi.android.batteryalarm.AlarmPrefs.*;
+
+/**
+ * Collects changes to the settings until the user stops editing, and works
+ * out the least that has to be done to apply them.
+ *
+ * Every change means the config file has to be written again, but only
+ * some need more: a new delay or threshold means the next check has to be
+ * planned again, while a new sound is simply picked up by the next alert.
+ * A burst of edits is applied once, {@link #DEBOUNCE} after the last one.
+ *
+ * This class has no Android dependencies so the batching can be exercised
+ * on a plain JVM.
+ */
+public class SettingsChanges {
+
+    /** Parse the preferences and write the config file. */
+    public static final int APPLY_CONFIG = 1;
+
+    /** Show the status on the widget and notification again. */
+    public static final int APPLY_STATUS = 2;
+
+    /** Plan the next check again, if monitoring is running. */
+    public static final int APPLY_RESCHEDULE = 4;
+
+    /** Start or stop monitoring to match the setting. */
+    public static final int APPLY_START_STOP = 8;
+
+    /** How long the settings have to be left alone before changes are applied. */
+    public static final long DEBOUNCE = 1000;
+
+    private int mPending;
+    private int mCount;
+    private long mLastChange;
+
+    /**
+     * @return what has to be done to apply a change to the preference,
+     * whether in the main settings or in a profile
+     */
+    public static int getWork(String key){
+        int work = APPLY_CONFIG;
+        if(PREF_ENABLED.equals(key)){
+            work |= APPLY_START_STOP;
+        }
+        else if(PREF_THRESHOLD.equals(key)){
+            // The status shows the time left to the threshold
+            work |= APPLY_RESCHEDULE | APPLY_STATUS;
+        }
+        else if(PREF_DELAY_MINUTES.equals(key)
+                || PREF_DISABLE_AT_NIGHT.equals(key)
+                || PREF_MIN_TIME.equals(key)
+                || PREF_MAX_TIME.equals(key)
+                || PREF_PROFILE_ACTIVE.equals(key)
+                || PREF_PROFILE_START.equals(key)
+                || PREF_PROFILE_END.equals(key)
+                || isProfileDay(key)){
+            work |= APPLY_RESCHEDULE;
+        }
+        else if(PREF_CHARGED_LEVEL.equals(key) || PREF_MAX_TEMPERATURE.equals(key)){
+            // These decide whether checks go on while charging
+            work |= APPLY_RESCHEDULE;
+        }
+        else if(PREF_SHOW_STATUS.equals(key)){
+            work |= APPLY_STATUS;
+        }
+        return work;
+    }
+
+    private static boolean isProfileDay(String key){
+        for(int i = 0; i < PREF_PROFILE_DAYS.length; i++){
+            if(PREF_PROFILE_DAYS[i].equals(key)){
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Records a change.
+     *
+     * @param now elapsed time in milliseconds
+     */
+    public synchronized void add(long now, String key){
+        mPending |= getWork(key);
+        mCount++;
+        mLastChange = now;
+    }
+
+    /**
+     * Takes the work for the changes so far, once no change has been made
+     * for {@link #DEBOUNCE}.
+     *
+     * @param force take the work even if the user may still be editing, for
+     * example because the settings are being closed
+     * @return the work to do, 0 if there is none or it is not due yet
+     */
+    public synchronized int take(long now, boolean force){
+        if(mPending == 0 || (!force && now - mLastChange < DEBOUNCE)){
+            return 0;
+        }
+        int work = mPending;
+        mPending = 0;
+        mCount = 0;
+        return work;
+    }
+
+    /**
+     * @return the milliseconds until the pending work is due, 0 if it is due
+     * now or -1 if nothing is pending
+     */
+    public synchronized long getDelay(long now){
+        if(mPending == 0){
+            return -1;
+        }
+        return Math.max(0, mLastChange + DEBOUNCE - now);
+    }
+
+    /**
+     * @return the number of changes waiting to be applied
+     */
+    public synchronized int getCount(){
+        return mCount;
+    }
+}
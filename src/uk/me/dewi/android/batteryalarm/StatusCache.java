@@ -0,0 +1,114 @@
+package uk.me.dewi.android.batteryalarm;
+
+/**
+ * The latest battery status as shown on the home screen widget and in the
+ * status notification, updated by each battery check.
+ *
+ * It works out whether what is shown would change, so the widget and the
+ * notification are only pushed when it does. A new level or state is
+ * pushed straight away. A new estimate of the time left is rounded to what
+ * is shown, and pushed at most every {@link #THROTTLE} because it wobbles
+ * with every reading. Updates only happen during checks, so they never wake
+ * the device by themselves.
+ */
+public class StatusCache {
+
+    public static final int STATE_OFF = 0;
+    public static final int STATE_MONITORING = 1;
+    public static final int STATE_CHARGING = 2;
+    public static final int STATE_ALERTING = 3;
+
+    /** Returned by {@link #getMinutesLeft()} when the time left is not known. */
+    public static final int UNKNOWN = -1;
+
+    /** Shortest time between pushes that only change the time left. */
+    public static final long THROTTLE = 30 * MonitorScheduler.MINUTE;
+
+    private int mLevel = UNKNOWN;
+    private int mMinutesLeft = UNKNOWN;
+    private int mState = STATE_OFF;
+
+    private int mShownLevel = UNKNOWN;
+    private int mShownMinutesLeft = UNKNOWN;
+    private int mShownState = -1;
+    private long mLastPush = -1;
+
+    /**
+     * Stores the latest status.
+     *
+     * @param now elapsed time in milliseconds
+     * @param minutesLeft estimated minutes until the threshold, or
+     * Integer.MAX_VALUE if not known
+     * @return whether the widget and notification should be pushed, in which
+     * case {@link #onPushed(long)} must be called once they have been
+     */
+    public synchronized boolean update(long now, int level, int minutesLeft, int state){
+        mLevel = level;
+        mMinutesLeft = round(minutesLeft);
+        mState = state;
+        return isPushDue(now);
+    }
+
+    /**
+     * Changes the state, keeping the last level.
+     *
+     * @return whether the widget and notification should be pushed
+     */
+    public synchronized boolean setState(long now, int state){
+        mState = state;
+        return isPushDue(now);
+    }
+
+    private boolean isPushDue(long now){
+        if(mLevel != mShownLevel || mState != mShownState){
+            return true;
+        }
+        if(mMinutesLeft == mShownMinutesLeft){
+            return false;
+        }
+        return mLastPush < 0 || now - mLastPush >= THROTTLE;
+    }
+
+    /**
+     * Records that the current status has been shown.
+     */
+    public synchronized void onPushed(long now){
+        mShownLevel = mLevel;
+        mShownMinutesLeft = mMinutesLeft;
+        mShownState = mState;
+        mLastPush = now;
+    }
+
+    /**
+     * Rounds the time left to what is worth showing, the further away the
+     * coarser.
+     *
+     * @return the rounded minutes, or {@link #UNKNOWN}
+     */
+    public static int round(int minutes){
+        if(minutes < 0 || minutes == Integer.MAX_VALUE){
+            return UNKNOWN;
+        }
+        int step = minutes < 60 ? 5 : minutes < 10 * 60 ? 15 : 60;
+        return (minutes + step / 2) / step * step;
+    }
+
+    public synchronized boolean hasLevel(){
+        return mLevel != UNKNOWN;
+    }
+
+    public synchronized int getLevel(){
+        return mLevel;
+    }
+
+    /**
+     * @return the rounded minutes until the threshold, or {@link #UNKNOWN}
+     */
+    public synchronized int getMinutesLeft(){
+        return mMinutesLeft;
+    }
+
+    public synchronized int getState(){
+        return mState;
+    }
+}
@@ -0,0 +1,142 @@
+package uk.me.dewi.android.batteryalarm;
+
+import android.app.Notification;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.appwidget.AppWidgetManager;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.os.SystemClock;
+import android.widget.RemoteViews;
+
+/**
+ * Shows the {@link StatusCache} on the home screen widgets and, if the user
+ * wants it, in an ongoing notification. Both are only touched when what
+ * they show has changed.
+ */
+public class StatusPublisher {
+
+    /** The status shown everywhere, kept for the life of the process. */
+    static final StatusCache sStatus = new StatusCache();
+
+    private static Notification sNotification;
+
+    /**
+     * Stores a new battery reading and pushes it if it changes what is shown.
+     *
+     * @param minutesLeft estimated minutes until the threshold, or
+     * Integer.MAX_VALUE if not known
+     */
+    public static void update(Context context, int level, int minutesLeft, int state){
+        long now = SystemClock.elapsedRealtime();
+        if(sStatus.update(now, level, minutesLeft, state)){
+            push(context, now);
+        }
+    }
+
+    /**
+     * Changes the monitoring state and pushes it if it changes what is shown.
+     */
+    public static void setState(Context context, int state){
+        long now = SystemClock.elapsedRealtime();
+        if(sStatus.setState(now, state)){
+            push(context, now);
+        }
+    }
+
+    /**
+     * Shows the current status again, for example after a setting has changed.
+     */
+    public static void refresh(Context context){
+        push(context, SystemClock.elapsedRealtime());
+    }
+
+    private static synchronized void push(Context context, long now){
+        context = context.getApplicationContext();
+
+        AppWidgetManager widgets = AppWidgetManager.getInstance(context);
+        int[] ids = widgets.getAppWidgetIds(new ComponentName(context, BatteryWidget.class));
+        if(ids != null && ids.length > 0){
+            widgets.updateAppWidget(ids, buildViews(context));
+        }
+
+        NotificationManager nm = (NotificationManager)context.getSystemService(Context.NOTIFICATION_SERVICE);
+        if(ConfigCache.get(context).isShowStatus() && sStatus.getState() != StatusCache.STATE_OFF){
+            nm.notify(R.string.show_status, buildNotification(context));
+        }
+        else{
+            nm.cancel(R.string.show_status);
+        }
+        sStatus.onPushed(now);
+    }
+
+    static RemoteViews buildViews(Context context){
+        RemoteViews views = new RemoteViews(context.getPackageName(), R.layout.widget);
+        views.setTextViewText(R.id.widget_level,
+                              sStatus.hasLevel() ? sStatus.getLevel() + "%" : "-");
+        views.setTextViewText(R.id.widget_time_left, getTimeLeft(context));
+        views.setTextViewText(R.id.widget_state, context.getText(getStateText(sStatus.getState())));
+        views.setOnClickPendingIntent(R.id.widget, getContentIntent(context));
+        return views;
+    }
+
+    private static Notification buildNotification(Context context){
+        // The notification is built once and only its text changes after that
+        Notification notification = sNotification;
+        if(notification == null){
+            notification = new Notification(R.drawable.status_icon, null, System.currentTimeMillis());
+            notification.flags |= Notification.FLAG_ONGOING_EVENT | Notification.FLAG_NO_CLEAR;
+            sNotification = notification;
+        }
+        CharSequence title = sStatus.hasLevel()
+                             ? context.getString(R.string.app_name) + ": " + sStatus.getLevel() + "%"
+                             : context.getText(R.string.app_name);
+        CharSequence timeLeft = getTimeLeft(context);
+        CharSequence state = context.getText(getStateText(sStatus.getState()));
+        notification.setLatestEventInfo(context,
+                                        title,
+                                        timeLeft.length() > 0 ? state + ", " + timeLeft : state,
+                                        getContentIntent(context));
+        return notification;
+    }
+
+    private static PendingIntent getContentIntent(Context context){
+        return PendingIntent.getActivity(context, 0, new Intent(context, BatteryAlarm.class), 0);
+    }
+
+    /**
+     * @return the estimated time to the threshold as text, or an empty string
+     * if it is not known or not relevant
+     */
+    static CharSequence getTimeLeft(Context context){
+        int minutes = sStatus.getMinutesLeft();
+        if(minutes == StatusCache.UNKNOWN || sStatus.getState() != StatusCache.STATE_MONITORING){
+            return "";
+        }
+        StringBuilder text = new StringBuilder(16);
+        text.append('~');
+        if(minutes >= 60){
+            text.append(minutes / 60).append('h');
+        }
+        if(minutes % 60 != 0 || minutes < 60){
+            text.append(minutes % 60).append('m');
+        }
+        text.append(' ').append(context.getString(R.string.status_to)).append(' ')
+            .append(ConfigCache.get(context).getActive(AndroidClock.INSTANCE).getThreshold()).append('%');
+        return text;
+    }
+
+    private static int getStateText(int state){
+        switch(state){
+            case StatusCache.STATE_MONITORING:
+                return R.string.status_monitoring;
+            case StatusCache.STATE_CHARGING:
+                return R.string.status_charging;
+            case StatusCache.STATE_ALERTING:
+                return R.string.status_alerting;
+            default:
+                return R.string.status_off;
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package uk.me.dewi.android.batteryalarm;
+
+/**
+ * Fires when one value of a sample goes past a limit, and stops firing only
+ * once it has come back past the limit by the hysteresis margin.
+ */
+public class ThresholdRule implements AlertRule {
+
+    public static final int VALUE_LEVEL = 0;
+    public static final int VALUE_TEMPERATURE = 1;
+    public static final int VALUE_DRAIN_RATE = 2;
+    public static final int VALUE_MINUTES_LEFT = 3;
+
+    public static final int ON_BATTERY = 0;
+    public static final int ON_CHARGER = 1;
+    public static final int ALWAYS = 2;
+
+    private final int mValue;
+    private final boolean mAbove;
+    private final float mLimit;
+    private final float mHysteresis;
+    private final int mPower;
+
+    /**
+     * @param value which value of the sample to check, one of the VALUE_ constants
+     * @param above true to fire when the value is above the limit, false for below
+     * @param limit the value at which the rule fires
+     * @param hysteresis how far back past the limit the value must go for
+     * the rule to stop firing
+     * @param power when the rule applies, one of ON_BATTERY, ON_CHARGER or ALWAYS
+     */
+    public ThresholdRule(int value, boolean above, float limit, float hysteresis, int power){
+        mValue = value;
+        mAbove = above;
+        mLimit = limit;
+        mHysteresis = hysteresis;
+        mPower = power;
+    }
+
+    public static ThresholdRule levelBelow(int level, int hysteresis){
+        return new ThresholdRule(VALUE_LEVEL, false, level, hysteresis, ON_BATTERY);
+    }
+
+    public static ThresholdRule chargedTo(int level, int hysteresis){
+        // Fire on reaching the level, not only once past it
+        return new ThresholdRule(VALUE_LEVEL, true, level - 0.5f, hysteresis, ON_CHARGER);
+    }
+
+    /**
+     * @param tenths temperature in tenths of a degree Celsius
+     */
+    public static ThresholdRule temperatureAbove(int tenths, int hysteresis){
+        return new ThresholdRule(VALUE_TEMPERATURE, true, tenths, hysteresis, ALWAYS);
+    }
+
+    /**
+     * @param percentPerHour discharge rate in percent per hour
+     */
+    public static ThresholdRule drainAbove(float percentPerHour, float hysteresis){
+        return new ThresholdRule(VALUE_DRAIN_RATE, true, percentPerHour, hysteresis, ON_BATTERY);
+    }
+
+    public static ThresholdRule minutesLeftBelow(int minutes, int hysteresis){
+        return new ThresholdRule(VALUE_MINUTES_LEFT, false, minutes, hysteresis, ON_BATTERY);
+    }
+
+    public boolean evaluate(BatterySample sample, boolean firing) {
+        if((mPower == ON_BATTERY && sample.plugged) || (mPower == ON_CHARGER && !sample.plugged)){
+            return false;
+        }
+
+        float value;
+        switch(mValue){
+            case VALUE_TEMPERATURE:
+                value = sample.temperature;
+                break;
+            case VALUE_DRAIN_RATE:
+                value = sample.drainPerHour;
+                break;
+            case VALUE_MINUTES_LEFT:
+                value = sample.minutesLeft;
+                break;
+            default:
+                value = sample.level;
+        }
+
+        if(mAbove){
+            return firing ? value > mLimit - mHysteresis : value > mLimit;
+        }
+        return firing ? value < mLimit + mHysteresis : value < mLimit;
+    }
+}
@@ -0,0 +1,164 @@
+package uk.me.dewi.android.batteryalarm;
+
+/**
+ * A daily window of time between two minutes of the day, such as the hours
+ * in which the user wants to be alerted.
+ *
+ * The bounds are stored as minutes since midnight so checking a time does
+ * not allocate anything. A window whose end is before its start wraps past
+ * midnight, so 22:00 to 07:00 is open overnight. A window that starts and
+ * ends at the same minute is always open.
+ */
+public final class TimeWindow {
+
+    public static final int MINUTES_PER_DAY = 24 * 60;
+    public static final long MILLIS_PER_MINUTE = 60 * 1000L;
+    public static final long MILLIS_PER_DAY = MINUTES_PER_DAY * MILLIS_PER_MINUTE;
+
+    public static final TimeWindow ALWAYS = new TimeWindow(0, 0);
+
+    private final int mStart;
+    private final int mEnd;
+
+    /**
+     * @param start first minute of the day that is inside the window
+     * @param end first minute of the day after the window has closed
+     */
+    public TimeWindow(int start, int end){
+        mStart = normalise(start);
+        mEnd = normalise(end);
+    }
+
+    /**
+     * @param start time the window opens, as "H:MM"
+     * @param end time the window closes, as "H:MM"
+     */
+    public static TimeWindow parse(String start, String end){
+        return new TimeWindow(parseMinuteOfDay(start, 0), parseMinuteOfDay(end, 0));
+    }
+
+    /**
+     * @return the minutes since midnight of a "H:MM" time, or the default if
+     * it is missing or not a time of day
+     */
+    public static int parseMinuteOfDay(String time, int defaultValue){
+        if(time == null){
+            return defaultValue;
+        }
+        time = time.trim();
+        int colon = time.indexOf(':');
+        if(colon < 0){
+            return defaultValue;
+        }
+        int hours = parseDigits(time, 0, colon);
+        int minutes = parseDigits(time, colon + 1, time.length());
+        if(hours < 0 || hours >= 24 || minutes < 0 || minutes >= 60){
+            return defaultValue;
+        }
+        return hours * 60 + minutes;
+    }
+
+    /**
+     * @return the value of one or two digits, or -1 if they are not
+     */
+    private static int parseDigits(String s, int from, int to){
+        if(from >= to || to - from > 2){
+            return -1;
+        }
+        int value = 0;
+        for(int i = from; i < to; i++){
+            char c = s.charAt(i);
+            if(c < '0' || c > '9'){
+                return -1;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
+    private static int normalise(int minuteOfDay){
+        int m = minuteOfDay % MINUTES_PER_DAY;
+        return m < 0 ? m + MINUTES_PER_DAY : m;
+    }
+
+    /**
+     * @return the minute of the local day at the given wall clock time
+     */
+    public static int minuteOfDay(long millis, int offset){
+        return (int)(millisOfDay(millis, offset) / MILLIS_PER_MINUTE);
+    }
+
+    private static long millisOfDay(long millis, int offset){
+        long local = (millis + offset) % MILLIS_PER_DAY;
+        return local < 0 ? local + MILLIS_PER_DAY : local;
+    }
+
+    public boolean isOpen(int minuteOfDay){
+        if(mStart == mEnd){
+            return true;
+        }
+        if(mStart < mEnd){
+            return minuteOfDay >= mStart && minuteOfDay < mEnd;
+        }
+        return minuteOfDay >= mStart || minuteOfDay < mEnd;
+    }
+
+    public boolean isOpen(Clock clock){
+        long now = clock.currentTimeMillis();
+        return isOpen(minuteOfDay(now, clock.getOffset(now)));
+    }
+
+    /**
+     * @return the number of minutes from the given minute of the day until
+     * the window next opens, or 0 if it is already open
+     */
+    public int minutesUntilOpen(int minuteOfDay){
+        if(isOpen(minuteOfDay)){
+            return 0;
+        }
+        int minutes = mStart - minuteOfDay;
+        return minutes < 0 ? minutes + MINUTES_PER_DAY : minutes;
+    }
+
+    /**
+     * @return the number of milliseconds until the window next opens, or 0
+     * if it is already open
+     */
+    public long millisUntilOpen(Clock clock){
+        long now = clock.currentTimeMillis();
+        long millisOfDay = millisOfDay(now, clock.getOffset(now));
+        if(isOpen((int)(millisOfDay / MILLIS_PER_MINUTE))){
+            return 0;
+        }
+        long millis = mStart * MILLIS_PER_MINUTE - millisOfDay;
+        return millis < 0 ? millis + MILLIS_PER_DAY : millis;
+    }
+
+    public int getStart() {
+        return mStart;
+    }
+
+    public int getEnd() {
+        return mEnd;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if(!(o instanceof TimeWindow)){
+            return false;
+        }
+        TimeWindow other = (TimeWindow)o;
+        return mStart == other.mStart && mEnd == other.mEnd;
+    }
+
+    @Override
+    public int hashCode() {
+        return mStart * MINUTES_PER_DAY + mEnd;
+    }
+
+    @Override
+    public String toString() {
+        return mStart / 60 + ":" + mStart % 60 / 10 + mStart % 10 
+             + "-" + mEnd / 60 + ":" + mEnd % 60 / 10 + mEnd % 10;
+    }
+}
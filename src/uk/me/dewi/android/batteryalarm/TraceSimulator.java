@@ -0,0 +1,371 @@
+package uk.me.dewi.android.batteryalarm;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Replays battery traces through the decisions the service makes, on a
+ * plain JVM in virtual time, to see what a change to the scheduling or the
+ * alert rules does to wakeups and alerts without waiting days on a device.
+ *
+ * Each trace runs against a {@link CheckPipeline} of its own with a fake
+ * clock, alarm and notification standing in for the Android ones, and
+ * power events handled the way {@link BatteryAlarmStartup} handles them.
+ * A check runs when its alarm is due and it either wakes the device or the
+ * device is in use anyway, or when its deadline is due. A low battery event lasts as long as the low
+ * battery rule would fire on the trace's own readings, and is missed if it
+ * lasts longer than the configured delay and ends before the user is
+ * alerted.
+ *
+ * Traces are independent, so {@link #replayAll(List, Settings, int)} runs
+ * them in parallel. SimulateTraces in the tools runs them from the command
+ * line.
+ */
+public class TraceSimulator {
+
+    /**
+     * The settings to replay with. The fields are public so runs can sweep
+     * them.
+     */
+    public static class Settings implements CheckSettings {
+        public int threshold = AlarmPrefs.DEFAULT_THRESHOLD;
+        public int delayMinutes = AlarmPrefs.DEFAULT_DELAY_MINUTES;
+        public int warningMinutes = AlarmPrefs.DEFAULT_WARNING_MINUTES;
+        public int criticalThreshold = AlarmPrefs.DEFAULT_CRITICAL_THRESHOLD;
+        public int realertStep = AlarmPrefs.DEFAULT_REALERT_STEP;
+        public int realertMinutes = AlarmPrefs.DEFAULT_REALERT_MINUTES;
+        /** Level to alert at while charging, 0 for none. */
+        public int chargedLevel = 0;
+        /** Temperature in degrees C to alert above, 0 for none. */
+        public int maxTemperature = 0;
+        public TimeWindow alertWindow = TimeWindow.ALWAYS;
+
+        /** Whether checks are planned with a learned {@link DrainProfile}. */
+        public boolean useDrainProfile = true;
+
+        /**
+         * Whether to wake the device every {@link #delayMinutes} whatever the
+         * battery is doing, as the app did before checks were planned, to
+         * compare against.
+         */
+        public boolean fixedSchedule = false;
+
+        /** Offset of the device's local time from UTC. */
+        public int timeZoneOffset = 0;
+
+        public int getThreshold() {
+            return threshold;
+        }
+
+        public long getDelayMillis() {
+            return delayMinutes * MonitorScheduler.MINUTE;
+        }
+
+        public long getWarningMillis() {
+            return warningMinutes * MonitorScheduler.MINUTE;
+        }
+
+        public int getRealertStep() {
+            return realertStep;
+        }
+
+        public long getRealertMillis() {
+            return realertMinutes * MonitorScheduler.MINUTE;
+        }
+
+        public TimeWindow getAlertWindow() {
+            return alertWindow;
+        }
+
+        public boolean isCheckedWhilePlugged() {
+            return chargedLevel > 0 || maxTemperature > 0;
+        }
+
+        public AlertRule[] buildRules() {
+            return AlertEngine.buildRules(criticalThreshold, threshold, warningMinutes, 
+                                          maxTemperature, 0, chargedLevel);
+        }
+    }
+
+    /**
+     * What happened over one or more traces.
+     */
+    public static class Result {
+        public int traces;
+        public long minutes;
+        public long checks;
+        /** Checks that had to wake the device. */
+        public long wakeups;
+        public long alerts;
+        public long lowEvents;
+        public long missed;
+        /** Time spent in the decisions, in nanoseconds. */
+        public long cpuNanos;
+        /** Minutes from the level reaching the threshold to the alert. */
+        public final LatencyHistogram latency = new LatencyHistogram("latency");
+        /** Minutes from the level reaching the threshold to the next check. */
+        public final LatencyHistogram checkLatency = new LatencyHistogram("check latency");
+
+        public void add(Result other){
+            traces += other.traces;
+            minutes += other.minutes;
+            checks += other.checks;
+            wakeups += other.wakeups;
+            alerts += other.alerts;
+            lowEvents += other.lowEvents;
+            missed += other.missed;
+            cpuNanos += other.cpuNanos;
+            latency.add(other.latency);
+            checkLatency.add(other.checkLatency);
+        }
+
+        public float getDays(){
+            return minutes / (float)TimeWindow.MINUTES_PER_DAY;
+        }
+
+        @Override
+        public String toString() {
+            float days = Math.max(getDays(), 1);
+            StringBuilder out = new StringBuilder();
+            out.append(traces).append(" traces, ").append(Math.round(getDays())).append(" days\n")
+               .append("checks/day=").append(checks / days)
+               .append(" wakeups/day=").append(wakeups / days)
+               .append(" alerts/day=").append(alerts / days).append('\n')
+               .append("low events=").append(lowEvents)
+               .append(" missed=").append(missed)
+               .append(" latency mean=").append(latency.getMean())
+               .append(" p90=").append(latency.getPercentile(90))
+               .append(" max=").append(latency.getMax()).append(" min\n")
+               .append("check latency mean=").append(checkLatency.getMean())
+               .append(" p90=").append(checkLatency.getPercentile(90))
+               .append(" max=").append(checkLatency.getMax()).append(" min\n")
+               .append("cpu/day=").append(cpuNanos / days / 1000).append(" us");
+            return out.toString();
+        }
+    }
+
+    /** Virtual time, moved on by the replay. */
+    private static class SimClock implements Clock {
+        private final long mStart;
+        private final int mOffset;
+        private long mElapsed;
+
+        SimClock(long start, int offset){
+            mStart = start;
+            mOffset = offset;
+        }
+
+        public long currentTimeMillis() {
+            return mStart + mElapsed;
+        }
+
+        public long elapsedRealtime() {
+            return mElapsed;
+        }
+
+        public int getOffset(long millis) {
+            return mOffset;
+        }
+    }
+
+    /** Stands in for the AlarmManager, holding the battery check alarm and its deadline. */
+    private static class SimAlarm {
+        long due = -1;
+        boolean wakeup;
+        long deadline = -1;
+
+        void set(long time, boolean wakeupRequired){
+            set(time, wakeupRequired, -1);
+        }
+
+        void set(long time, boolean wakeupRequired, long deadlineTime){
+            due = time;
+            wakeup = wakeupRequired;
+            deadline = deadlineTime;
+        }
+
+        void cancel(){
+            due = -1;
+            deadline = -1;
+        }
+
+        boolean fires(long now, boolean awake){
+            return (due >= 0 && now >= due && (wakeup || awake))
+                || (deadline >= 0 && now >= deadline);
+        }
+    }
+
+    private static long after(long now, long delay){
+        return delay == MonitorScheduler.NO_CHECK ? -1 : now + delay;
+    }
+
+    /**
+     * Replays one trace from monitoring being turned on at its start.
+     */
+    public static Result replay(BatteryTrace trace, Settings settings){
+        Result result = new Result();
+        result.traces = 1;
+        result.minutes = trace.size();
+
+        SimClock clock = new SimClock(trace.getTime(0), settings.timeZoneOffset);
+        SimAlarm alarm = new SimAlarm();
+        MonitorScheduler scheduler = new MonitorScheduler(true);
+        if(settings.useDrainProfile){
+            scheduler.setProfile(new DrainProfile());
+        }
+        CheckPipeline pipeline = new CheckPipeline(scheduler, new AlertState());
+        BatterySample sample = new BatterySample();
+        int threshold = settings.getThreshold();
+        
+        // What the user should be told about, judged the way the rule judges it
+        AlertRule lowRule = ThresholdRule.levelBelow(threshold, AlertEngine.LEVEL_HYSTERESIS);
+        BatterySample truth = new BatterySample();
+
+        // As BatteryAlarmLauncher.launch(), check straight away
+        alarm.set(0, true);
+        boolean wasPlugged = trace.isPlugged(0);
+        long lowSince = -1;
+        boolean lowAlerted = false;
+        boolean lowChecked = false;
+
+        for(int i = 0; i < trace.size(); i++){
+            long now = i * BatteryTrace.STEP;
+            clock.mElapsed = now;
+            int level = trace.getLevel(i);
+            boolean plugged = trace.isPlugged(i);
+            boolean awake = trace.isAwake(i);
+
+            if(plugged != wasPlugged && !settings.fixedSchedule){
+                switch(MonitorPolicy.onPowerChanged(true, plugged, settings.isCheckedWhilePlugged())){
+                    case MonitorPolicy.SUSPEND:
+                        alarm.cancel();
+                        break;
+                    case MonitorPolicy.CHECK:
+                        alarm.set(now, true);
+                        break;
+                    case MonitorPolicy.RESUME:
+                        long minDelay = settings.getDelayMillis();
+                        alarm.set(now + MonitorScheduler.firstDelay(level, threshold, minDelay),
+                                  MonitorScheduler.isNear(level, threshold, minDelay),
+                                  after(now, MonitorScheduler.deadline(level, threshold, minDelay)));
+                        break;
+                }
+                wasPlugged = plugged;
+            }
+
+            truth.level = level;
+            truth.plugged = plugged;
+            boolean low = lowRule.evaluate(truth, lowSince >= 0);
+            if(low){
+                if(lowSince < 0){
+                    lowSince = now;
+                    lowAlerted = false;
+                    lowChecked = false;
+                    result.lowEvents++;
+                }
+            }
+            else if(lowSince >= 0){
+                if(!lowAlerted){
+                    if(now - lowSince >= settings.getDelayMillis()){
+                        result.missed++;
+                    }
+                    else{
+                        // Over before a check at the configured delay could have caught it
+                        result.lowEvents--;
+                    }
+                }
+                lowSince = -1;
+            }
+
+            if(!alarm.fires(now, awake)){
+                continue;
+            }
+            result.checks++;
+            if(!awake){
+                result.wakeups++;
+            }
+            if(lowSince >= 0 && !lowChecked){
+                result.checkLatency.record((now - lowSince) / MonitorScheduler.MINUTE);
+                lowChecked = true;
+            }
+
+            long started = System.nanoTime();
+            long untilOpen = settings.getAlertWindow().millisUntilOpen(clock);
+            if(untilOpen > 0){
+                alarm.set(now + untilOpen, true);
+                result.cpuNanos += System.nanoTime() - started;
+                continue;
+            }
+            sample.time = clock.currentTimeMillis();
+            sample.elapsed = now;
+            sample.level = level;
+            sample.scale = 100;
+            sample.plugType = plugged ? 1 : 0;
+            sample.plugged = plugged;
+            sample.temperature = 250;
+            boolean alert = pipeline.check(sample, sample.time + clock.getOffset(sample.time), settings);
+            long delay = pipeline.getDelay();
+            if(settings.fixedSchedule){
+                alarm.set(now + settings.getDelayMillis(), true);
+            }
+            else if(delay == MonitorScheduler.NO_CHECK){
+                alarm.cancel();
+            }
+            else{
+                alarm.set(now + delay, pipeline.isWakeupRequired(), after(now, pipeline.getDeadline()));
+            }
+            result.cpuNanos += System.nanoTime() - started;
+
+            if(alert){
+                result.alerts++;
+                int rule = pipeline.getAlertRule();
+                if(lowSince >= 0 && !lowAlerted
+                   && (rule == AlertEngine.RULE_LOW || rule == AlertEngine.RULE_CRITICAL)){
+                    result.latency.record((now - lowSince) / MonitorScheduler.MINUTE);
+                    lowAlerted = true;
+                }
+            }
+        }
+        if(lowSince >= 0 && !lowAlerted){
+            // Still going when the trace ends, neither caught nor missed
+            result.lowEvents--;
+        }
+        return result;
+    }
+
+    /**
+     * Replays the traces in parallel.
+     *
+     * @param threads the number of threads, 0 for one per processor
+     */
+    public static Result replayAll(List<BatteryTrace> traces, final Settings settings, int threads)
+            throws InterruptedException, ExecutionException {
+        if(threads <= 0){
+            threads = Runtime.getRuntime().availableProcessors();
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try{
+            List<Future<Result>> results = new ArrayList<Future<Result>>(traces.size());
+            for(final BatteryTrace trace : traces){
+                results.add(executor.submit(new Callable<Result>() {
+                    public Result call() {
+                        return replay(trace, settings);
+                    }
+                }));
+            }
+            Result total = new Result();
+            for(Future<Result> result : results){
+                total.add(result.get());
+            }
+            return total;
+        }
+        finally{
+            executor.shutdown();
+        }
+    }
+}
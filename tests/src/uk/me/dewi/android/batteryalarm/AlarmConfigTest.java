@@ -0,0 +1,260 @@
+package uk.me.dewi.android.batteryalarm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static uk.me.dewi.android.batteryalarm.AlarmPrefs.*;
+import static uk.me.dewi.android.batteryalarm.TimeWindow.MILLIS_PER_MINUTE;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class AlarmConfigTest {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void defaultsWhenNothingIsSet(){
+        AlarmConfig config = AlarmConfig.parse(MapPreferences.forProfiles());
+        assertEquals(DEFAULT_ENABLED, config.isEnabled());
+        assertEquals(DEFAULT_THRESHOLD, config.getThreshold());
+        assertEquals(DEFAULT_DELAY_MINUTES, config.getDelayMinutes());
+        assertEquals(DEFAULT_DELAY_MINUTES * MILLIS_PER_MINUTE, config.getDelayMillis());
+        assertEquals(DEFAULT_CRITICAL_THRESHOLD, config.getCriticalThreshold());
+        assertEquals(DEFAULT_LAUNCH_ON_STARTUP, config.isLaunchOnStartup());
+        assertEquals("", config.getNotificationSound());
+        assertSame(TimeWindow.ALWAYS, config.getAlertWindow());
+        assertFalse(config.isCheckedWhilePlugged());
+        assertSame(config, config.getActive(new FakeClock(FakeClock.MONDAY)));
+    }
+
+    @Test
+    public void readsTheSettings(){
+        MapPreferences[] settings = MapPreferences.forProfiles();
+        settings[0].put(PREF_ENABLED, true)
+                   .put(PREF_THRESHOLD, "25")
+                   .put(PREF_DELAY_MINUTES, "10")
+                   .put(PREF_CHARGED_LEVEL, "90")
+                   .put(PREF_NOTIFICATION_SOUND, "content://media/internal/audio/media/7")
+                   .put(PREF_DISABLE_AT_NIGHT, true)
+                   .put(PREF_MIN_TIME, "7:30")
+                   .put(PREF_MAX_TIME, "22:00");
+        AlarmConfig config = AlarmConfig.parse(settings);
+        assertTrue(config.isEnabled());
+        assertEquals(25, config.getThreshold());
+        assertEquals(10 * MILLIS_PER_MINUTE, config.getDelayMillis());
+        assertEquals(90, config.getChargedLevel());
+        assertTrue(config.isCheckedWhilePlugged());
+        assertEquals("content://media/internal/audio/media/7", config.getNotificationSound());
+        assertEquals(new TimeWindow(7 * 60 + 30, 22 * 60), config.getAlertWindow());
+    }
+
+    @Test
+    public void badNumbersFallBackToTheDefault(){
+        assertEquals(7, AlarmConfig.parseInt(null, 7));
+        assertEquals(7, AlarmConfig.parseInt("", 7));
+        assertEquals(7, AlarmConfig.parseInt("  ", 7));
+        assertEquals(7, AlarmConfig.parseInt("ten", 7));
+        assertEquals(7, AlarmConfig.parseInt("99999999999", 7));
+        assertEquals(30, AlarmConfig.parseInt(" 30 ", 7));
+        assertEquals(-2, AlarmConfig.parseInt("-2", 7));
+
+        MapPreferences[] settings = MapPreferences.forProfiles();
+        settings[0].put(PREF_THRESHOLD, "fifteen").put(PREF_DELAY_MINUTES, "")
+                   .put(PREF_MIN_TIME, "9").put(PREF_MAX_TIME, " ");
+        settings[2].put(PREF_CHARGED_LEVEL, "90%").put(PREF_PROFILE_START, "9:60");
+        AlarmConfig config = AlarmConfig.parse(settings);
+        assertEquals(DEFAULT_THRESHOLD, config.getThreshold());
+        assertEquals(DEFAULT_DELAY_MINUTES, config.getDelayMinutes());
+        // Only values that are set are reported, so they can be logged
+        assertEquals(Arrays.asList(PREF_THRESHOLD, PREF_MIN_TIME), settings[0].badKeys);
+        assertEquals(Arrays.asList(PREF_CHARGED_LEVEL, PREF_PROFILE_START), settings[2].badKeys);
+        assertTrue(settings[1].badKeys.isEmpty());
+    }
+
+    @Test
+    public void profilesTakeWhatTheyDoNotSetFromTheMainSettings(){
+        MapPreferences[] settings = MapPreferences.forProfiles();
+        settings[0].put(PREF_THRESHOLD, "25")
+                   .put(PREF_DISABLE_AT_NIGHT, true)
+                   .put(PREF_MIN_TIME, "8:00")
+                   .put(PREF_MAX_TIME, "20:00");
+        settings[1].put(PREF_DELAY_MINUTES, "5")
+                   .put(PREF_MIN_TIME, "25:99");
+        AlarmConfig profile = AlarmConfig.parse(settings).getProfile(1);
+        assertEquals(25, profile.getThreshold());
+        assertEquals(5, profile.getDelayMinutes());
+        assertEquals(new TimeWindow(8 * 60, 20 * 60), profile.getAlertWindow());
+        assertFalse(profile.isScheduled());
+    }
+
+    @Test
+    public void activeProfileFollowsTheSchedule(){
+        MapPreferences[] settings = MapPreferences.forProfiles();
+        settings[0].put(PREF_THRESHOLD, "15");
+        // Working hours on weekdays, and overnight every day
+        settings[1].put(PREF_PROFILE_ACTIVE, true)
+                   .put(PREF_PROFILE_START, "9:00")
+                   .put(PREF_PROFILE_END, "17:00")
+                   .put(PREF_PROFILE_DAYS[5], false)
+                   .put(PREF_PROFILE_DAYS[6], false)
+                   .put(PREF_THRESHOLD, "30");
+        settings[2].put(PREF_PROFILE_ACTIVE, true)
+                   .put(PREF_PROFILE_START, "23:00")
+                   .put(PREF_PROFILE_END, "6:00")
+                   .put(PREF_THRESHOLD, "5");
+        // Not active, whatever its times
+        settings[3].put(PREF_PROFILE_START, "0:00")
+                   .put(PREF_PROFILE_END, "23:59")
+                   .put(PREF_THRESHOLD, "50");
+        AlarmConfig config = AlarmConfig.parse(settings);
+        assertTrue(config.getProfile(1).isScheduled());
+        assertFalse(config.getProfile(3).isScheduled());
+
+        long hour = 60 * MILLIS_PER_MINUTE;
+        FakeClock clock = new FakeClock(FakeClock.MONDAY + 10 * hour);
+        assertEquals(30, config.getActive(clock).getThreshold());
+        clock.time = FakeClock.MONDAY + 18 * hour;
+        assertEquals(15, config.getActive(clock).getThreshold());
+        clock.time = FakeClock.MONDAY + 24 * hour + 2 * hour;
+        assertEquals(5, config.getActive(clock).getThreshold());
+        // Saturday morning
+        clock.time = FakeClock.MONDAY + 5 * 24 * hour + 10 * hour;
+        assertEquals(15, config.getActive(clock).getThreshold());
+        // Monday 10:00 in UTC+2 is 08:00 UTC
+        clock.time = FakeClock.MONDAY + 8 * hour;
+        clock.offset = (int)(2 * hour);
+        assertEquals(30, config.getActive(clock).getThreshold());
+    }
+
+    /**
+     * @return settings with every field and profile away from its default
+     */
+    private static AlarmConfig everything(){
+        MapPreferences[] settings = MapPreferences.forProfiles();
+        for(int i = 0; i < settings.length; i++){
+            settings[i].put(PREF_ENABLED, i % 2 == 0)
+                       .put(PREF_LAUNCH_ON_STARTUP, i % 2 == 1)
+                       .put(PREF_SHOW_STATUS, true)
+                       .put(PREF_DISABLE_AT_NIGHT, i != 2)
+                       .put(PREF_DELAY_MINUTES, String.valueOf(10 + i))
+                       .put(PREF_THRESHOLD, String.valueOf(20 + i))
+                       .put(PREF_WARNING_MINUTES, String.valueOf(30 + i))
+                       .put(PREF_CRITICAL_THRESHOLD, String.valueOf(3 + i))
+                       .put(PREF_CHARGED_LEVEL, String.valueOf(80 + i))
+                       .put(PREF_MAX_TEMPERATURE, String.valueOf(40 + i))
+                       .put(PREF_MAX_DRAIN_RATE, String.valueOf(15 + i))
+                       .put(PREF_REALERT_STEP, String.valueOf(2 + i))
+                       .put(PREF_REALERT_MINUTES, String.valueOf(45 + i))
+                       .put(PREF_MIN_TIME, (6 + i) + ":15")
+                       .put(PREF_MAX_TIME, (20 + i) + ":45")
+                       .put(PREF_NOTIFICATION_SOUND, i == 1 ? "" : "content://media/external/audio/media/\u00e9" + i);
+        }
+        settings[1].put(PREF_PROFILE_ACTIVE, true)
+                   .put(PREF_PROFILE_START, "9:00")
+                   .put(PREF_PROFILE_END, "17:30")
+                   .put(PREF_PROFILE_DAYS[6], false);
+        settings[2].put(PREF_PROFILE_ACTIVE, true)
+                   .put(PREF_PROFILE_START, "22:00")
+                   .put(PREF_PROFILE_END, "7:00");
+        return AlarmConfig.parse(settings);
+    }
+
+    private static void assertSameSettings(AlarmConfig expected, AlarmConfig actual){
+        assertEquals(expected.isEnabled(), actual.isEnabled());
+        assertEquals(expected.isLaunchOnStartup(), actual.isLaunchOnStartup());
+        assertEquals(expected.isShowStatus(), actual.isShowStatus());
+        assertEquals(expected.isDisableAtNight(), actual.isDisableAtNight());
+        assertEquals(expected.getDelayMinutes(), actual.getDelayMinutes());
+        assertEquals(expected.getThreshold(), actual.getThreshold());
+        assertEquals(expected.getWarningMinutes(), actual.getWarningMinutes());
+        assertEquals(expected.getCriticalThreshold(), actual.getCriticalThreshold());
+        assertEquals(expected.getChargedLevel(), actual.getChargedLevel());
+        assertEquals(expected.getMaxTemperature(), actual.getMaxTemperature());
+        assertEquals(expected.getMaxDrainRate(), actual.getMaxDrainRate());
+        assertEquals(expected.getRealertStep(), actual.getRealertStep());
+        assertEquals(expected.getRealertMinutes(), actual.getRealertMinutes());
+        assertEquals(expected.getAlertWindow(), actual.getAlertWindow());
+        assertEquals(expected.getNotificationSound(), actual.getNotificationSound());
+        assertEquals(expected.isScheduled(), actual.isScheduled());
+    }
+
+    @Test
+    public void savedFileLoadsBackTheSameSettings() throws IOException {
+        File file = new File(mFolder.getRoot(), AlarmConfig.CONFIG_FILE);
+        AlarmConfig saved = everything();
+        saved.save(file);
+        AlarmConfig loaded = AlarmConfig.load(file);
+        for(int i = 0; i <= AlarmConfig.PROFILE_COUNT; i++){
+            assertSameSettings(saved.getProfile(i), loaded.getProfile(i));
+        }
+
+        // The schedules come back too, every half hour of the week
+        FakeClock clock = new FakeClock(FakeClock.MONDAY);
+        for(int i = 0; i < 7 * 48; i++){
+            assertEquals(saved.getActive(clock).getThreshold(), loaded.getActive(clock).getThreshold());
+            clock.advance(30 * MILLIS_PER_MINUTE);
+        }
+        assertFalse(new File(file.getPath() + ".tmp").exists());
+
+        // Saving again replaces the file
+        AlarmConfig.parse(MapPreferences.forProfiles()).save(file);
+        assertEquals(DEFAULT_THRESHOLD, AlarmConfig.load(file).getThreshold());
+    }
+
+    @Test
+    public void missingOrDamagedFilesDoNotLoad() throws IOException {
+        File file = new File(mFolder.getRoot(), AlarmConfig.CONFIG_FILE);
+        assertNull(AlarmConfig.load(file));
+        everything().save(file);
+        int length = (int)file.length();
+
+        // Every single damaged byte is caught
+        for(int offset = 0; offset < length; offset++){
+            everything().save(file);
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            raf.seek(offset);
+            int b = raf.read();
+            raf.seek(offset);
+            raf.write(b ^ 0x10);
+            raf.close();
+            assertNull("offset " + offset, AlarmConfig.load(file));
+        }
+
+        for(int cut : new int[] { 0, 4, 12, length / 2, length - 1 }){
+            everything().save(file);
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            raf.setLength(cut);
+            raf.close();
+            assertNull("cut to " + cut, AlarmConfig.load(file));
+        }
+    }
+
+    @Test
+    public void otherVersionsDoNotLoad() throws IOException {
+        File file = new File(mFolder.getRoot(), AlarmConfig.CONFIG_FILE);
+        everything().save(file);
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.seek(4);
+        raf.writeInt(AlarmConfig.VERSION + 1);
+        // With a checksum that matches, so only the version is wrong
+        byte[] contents = new byte[(int)raf.length() - 4];
+        raf.seek(0);
+        raf.readFully(contents);
+        CRC32 crc = new CRC32();
+        crc.update(contents);
+        raf.writeInt((int)crc.getValue());
+        raf.close();
+        assertNull(AlarmConfig.load(file));
+    }
+}
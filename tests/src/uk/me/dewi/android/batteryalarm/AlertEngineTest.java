@@ -0,0 +1,119 @@
+package uk.me.dewi.android.batteryalarm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static uk.me.dewi.android.batteryalarm.AlertEngine.*;
+
+import org.junit.Test;
+
+public class AlertEngineTest {
+
+    private static BatterySample sample(int level, boolean plugged){
+        BatterySample sample = new BatterySample();
+        sample.level = level;
+        sample.plugged = plugged;
+        sample.temperature = 300;
+        return sample;
+    }
+
+    @Test
+    public void levelRuleHasHysteresis(){
+        AlertRule rule = ThresholdRule.levelBelow(15, 2);
+        assertFalse(rule.evaluate(sample(15, false), false));
+        assertTrue(rule.evaluate(sample(14, false), false));
+        // Stays firing until the level is back past 17
+        assertTrue(rule.evaluate(sample(16, false), true));
+        assertFalse(rule.evaluate(sample(17, false), true));
+        assertFalse(rule.evaluate(sample(5, true), true));
+    }
+
+    @Test
+    public void chargedRuleFiresOnReachingTheLevelOnTheCharger(){
+        AlertRule rule = ThresholdRule.chargedTo(90, 5);
+        assertFalse(rule.evaluate(sample(89, true), false));
+        assertTrue(rule.evaluate(sample(90, true), false));
+        assertTrue(rule.evaluate(sample(85, true), true));
+        assertFalse(rule.evaluate(sample(84, true), true));
+        assertFalse(rule.evaluate(sample(100, false), false));
+    }
+
+    @Test
+    public void otherValues(){
+        BatterySample sample = sample(50, true);
+        sample.temperature = 455;
+        assertTrue(ThresholdRule.temperatureAbove(450, 20).evaluate(sample, false));
+        sample.temperature = 440;
+        assertTrue(ThresholdRule.temperatureAbove(450, 20).evaluate(sample, true));
+        assertFalse(ThresholdRule.temperatureAbove(450, 20).evaluate(sample, false));
+
+        sample.plugged = false;
+        sample.drainPerHour = 25;
+        assertTrue(ThresholdRule.drainAbove(20, 5).evaluate(sample, false));
+        sample.minutesLeft = 29;
+        assertTrue(ThresholdRule.minutesLeftBelow(30, 10).evaluate(sample, false));
+        sample.minutesLeft = Integer.MAX_VALUE;
+        assertFalse(ThresholdRule.minutesLeftBelow(30, 10).evaluate(sample, true));
+    }
+
+    @Test
+    public void reportsARuleOnlyWhenItStartsFiring(){
+        AlertEngine engine = new AlertEngine(buildRules(5, 15, 0, 0, 0, 0));
+        assertEquals(0, engine.evaluate(sample(20, false)));
+        assertEquals(1 << RULE_LOW, engine.evaluate(sample(14, false)));
+        assertEquals(0, engine.evaluate(sample(13, false)));
+        assertEquals(1 << RULE_LOW, engine.getFiring());
+
+        assertEquals(1 << RULE_CRITICAL, engine.evaluate(sample(4, false)));
+        assertEquals((1 << RULE_LOW) | (1 << RULE_CRITICAL), engine.getFiring());
+
+        // Charging stops both, and they start again once unplugged
+        assertEquals(0, engine.evaluate(sample(4, true)));
+        assertEquals(0, engine.getFiring());
+        assertEquals((1 << RULE_LOW) | (1 << RULE_CRITICAL), engine.evaluate(sample(4, false)));
+    }
+
+    @Test
+    public void restoredFiringStateIsNotReportedAgain(){
+        AlertEngine engine = new AlertEngine(buildRules(5, 15, 0, 0, 0, 0));
+        engine.setFiring(1 << RULE_LOW);
+        assertEquals(0, engine.evaluate(sample(10, false)));
+        assertEquals(1 << RULE_CRITICAL, engine.evaluate(sample(3, false)));
+    }
+
+    @Test
+    public void buildsOnlyTheRulesTurnedOn(){
+        AlertRule[] rules = buildRules(0, 15, 0, 0, 0, 0);
+        assertEquals(RULE_COUNT, rules.length);
+        assertNotNull(rules[RULE_LOW]);
+        assertNull(rules[RULE_CRITICAL]);
+        assertNull(rules[RULE_WARNING]);
+        assertNull(rules[RULE_TEMPERATURE]);
+        assertNull(rules[RULE_DRAIN_RATE]);
+        assertNull(rules[RULE_CHARGED]);
+
+        rules = buildRules(5, 15, 30, 45, 20, 90);
+        for(AlertRule rule : rules){
+            assertNotNull(rule);
+        }
+        // Degrees are compared against tenths
+        BatterySample hot = sample(50, false);
+        hot.temperature = 460;
+        assertTrue(rules[RULE_TEMPERATURE].evaluate(hot, false));
+    }
+
+    @Test
+    public void firstIsTheHighestPriority(){
+        assertEquals(-1, first(0));
+        assertEquals(RULE_CRITICAL, first((1 << RULE_CRITICAL) | (1 << RULE_CHARGED)));
+        assertEquals(RULE_CHARGED, first(1 << RULE_CHARGED));
+        assertEquals(31, first(1 << 31));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void atMost32Rules(){
+        new AlertEngine(new AlertRule[MAX_RULES + 1]);
+    }
+}
@@ -0,0 +1,195 @@
+package uk.me.dewi.android.batteryalarm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class AlertSoundEngineTest {
+
+    private static final String CHIME = "content://media/internal/audio/media/3";
+    private static final String SIREN = "content://media/internal/audio/media/4";
+
+    /** Records what it is asked to do, finishing only when told to. */
+    static class FakePlayer implements AlertSoundEngine.Player {
+        final Set<String> broken = new HashSet<String>();
+        boolean failToStart;
+        String prepared;
+        int prepares;
+        int starts;
+        int releases;
+        AlertSoundEngine engine;
+
+        public void prepare(String source) throws Exception {
+            prepares++;
+            if(broken.contains(source)){
+                throw new Exception("Can not decode " + source);
+            }
+            prepared = source;
+        }
+
+        public void start(AlertSoundEngine engine) {
+            if(failToStart){
+                throw new IllegalStateException();
+            }
+            starts++;
+            this.engine = engine;
+        }
+
+        public void stop() {
+        }
+
+        public void release() {
+            releases++;
+            prepared = null;
+        }
+
+        void finish(){
+            engine.onFinished(this);
+        }
+
+        void fail(){
+            engine.onError(this);
+        }
+    }
+
+    static class CountingListener implements AlertSoundEngine.Listener {
+        int finished;
+
+        public void onSoundFinished() {
+            finished++;
+        }
+    }
+
+    private FakePlayer mCustom;
+    private FakePlayer mDefault;
+    private AlertSoundEngine mEngine;
+    private CountingListener mListener;
+
+    @Before
+    public void setUp(){
+        mCustom = new FakePlayer();
+        mDefault = new FakePlayer();
+        mEngine = new AlertSoundEngine(mCustom, mDefault);
+        mListener = new CountingListener();
+    }
+
+    @Test
+    public void keepsTheSoundPreparedBetweenAlerts(){
+        assertEquals(AlertSoundEngine.STATE_IDLE, mEngine.getState());
+        assertTrue(mEngine.prepare(CHIME));
+        assertEquals(AlertSoundEngine.STATE_READY, mEngine.getState());
+
+        for(int i = 0; i < 3; i++){
+            assertTrue(mEngine.play(CHIME, mListener));
+            assertEquals(AlertSoundEngine.STATE_PLAYING, mEngine.getState());
+            mCustom.finish();
+            assertEquals(AlertSoundEngine.STATE_READY, mEngine.getState());
+        }
+        assertEquals(1, mCustom.prepares);
+        assertEquals(3, mCustom.starts);
+        assertEquals(3, mListener.finished);
+        assertEquals(0, mDefault.prepares);
+    }
+
+    @Test
+    public void preparesAgainOnlyWhenTheSoundChanges(){
+        mEngine.play(CHIME, mListener);
+        mCustom.finish();
+        mEngine.play(SIREN, mListener);
+        mCustom.finish();
+        assertEquals(2, mCustom.prepares);
+        assertEquals(1, mCustom.releases);
+        assertEquals(SIREN, mCustom.prepared);
+    }
+
+    @Test
+    public void emptySourcePlaysTheBuiltInSound(){
+        assertTrue(mEngine.play(AlertSoundEngine.DEFAULT_SOUND, mListener));
+        assertEquals(0, mCustom.prepares);
+        assertEquals(1, mDefault.starts);
+        assertFalse(mEngine.play(null, mListener));
+        mDefault.finish();
+        assertEquals(1, mListener.finished);
+    }
+
+    @Test
+    public void doesNotStartTwice(){
+        assertTrue(mEngine.play(CHIME, mListener));
+        assertFalse(mEngine.play(CHIME, mListener));
+        assertEquals(1, mCustom.starts);
+    }
+
+    @Test
+    public void fallsBackWhenTheSoundCanNotBePrepared(){
+        mCustom.broken.add(CHIME);
+        assertTrue(mEngine.play(CHIME, mListener));
+        assertEquals(1, mDefault.starts);
+        assertEquals(1, mCustom.releases);
+        mDefault.finish();
+        assertEquals(1, mListener.finished);
+    }
+
+    @Test
+    public void fallsBackWhenTheSoundFailsToStartOrPlay(){
+        mCustom.failToStart = true;
+        assertTrue(mEngine.play(CHIME, mListener));
+        assertSame(mEngine, mDefault.engine);
+        mDefault.finish();
+
+        mCustom.failToStart = false;
+        assertTrue(mEngine.play(CHIME, mListener));
+        mCustom.fail();
+        assertEquals(AlertSoundEngine.STATE_PLAYING, mEngine.getState());
+        assertEquals(2, mDefault.starts);
+        mDefault.finish();
+        assertEquals(2, mListener.finished);
+    }
+
+    @Test
+    public void givesUpWhenNeitherSoundPlays(){
+        mCustom.broken.add(CHIME);
+        mDefault.broken.add(AlertSoundEngine.DEFAULT_SOUND);
+        assertFalse(mEngine.play(CHIME, mListener));
+        assertEquals(AlertSoundEngine.STATE_IDLE, mEngine.getState());
+        assertEquals(0, mListener.finished);
+
+        // The built in sound failing while playing still ends the alert
+        mDefault.broken.clear();
+        assertTrue(mEngine.play(null, mListener));
+        mDefault.fail();
+        assertEquals(1, mListener.finished);
+        assertEquals(AlertSoundEngine.STATE_IDLE, mEngine.getState());
+    }
+
+    @Test
+    public void ignoresCallbacksFromPlayersNotPlaying(){
+        mEngine.play(CHIME, mListener);
+        mDefault.engine = mEngine;
+        mDefault.finish();
+        mDefault.fail();
+        assertEquals(AlertSoundEngine.STATE_PLAYING, mEngine.getState());
+        assertEquals(0, mListener.finished);
+    }
+
+    @Test
+    public void releaseStopsAndFreesBothPlayers(){
+        mEngine.prepare(null);
+        mEngine.play(CHIME, mListener);
+        mEngine.release();
+        assertEquals(1, mListener.finished);
+        assertEquals(1, mCustom.releases);
+        assertEquals(1, mDefault.releases);
+        assertEquals(AlertSoundEngine.STATE_IDLE, mEngine.getState());
+
+        // A late callback from the stopped player is ignored
+        mCustom.finish();
+        assertEquals(1, mListener.finished);
+    }
+}
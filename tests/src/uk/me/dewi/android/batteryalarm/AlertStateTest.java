@@ -0,0 +1,143 @@
+package uk.me.dewi.android.batteryalarm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static uk.me.dewi.android.batteryalarm.AlertState.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class AlertStateTest {
+
+    private static final long MINUTE = 60000;
+    private static final int LOW = 1 << AlertEngine.RULE_LOW;
+    private static final int CRITICAL = 1 << AlertEngine.RULE_CRITICAL;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void alertsOnceThenAgainAfterAStepOrTheInterval(){
+        AlertState state = new AlertState();
+        assertFalse(state.onSample(0, 20, false, 0, 0, 5, 30 * MINUTE));
+        assertEquals(ARMED, state.getState());
+
+        assertTrue(state.onSample(MINUTE, 14, false, LOW, LOW, 5, 30 * MINUTE));
+        assertEquals(FIRED, state.getState());
+        assertEquals(LOW, state.getFiring());
+        assertFalse(state.onSample(2 * MINUTE, 13, false, LOW, 0, 5, 30 * MINUTE));
+        // Another five percent lost
+        assertTrue(state.onSample(3 * MINUTE, 9, false, LOW, 0, 5, 30 * MINUTE));
+        assertFalse(state.onSample(20 * MINUTE, 8, false, LOW, 0, 5, 30 * MINUTE));
+        // Half an hour since the last alert
+        assertTrue(state.onSample(33 * MINUTE, 8, false, LOW, 0, 5, 30 * MINUTE));
+    }
+
+    @Test
+    public void noStepOrIntervalMeansNoRepeat(){
+        AlertState state = new AlertState();
+        assertTrue(state.onSample(0, 14, false, LOW, LOW, 0, 0));
+        assertFalse(state.onSample(10 * 60 * MINUTE, 1, false, LOW, 0, 0, 0));
+    }
+
+    @Test
+    public void snoozedOnlyAlertsAfterAStep(){
+        AlertState state = new AlertState();
+        state.snooze();
+        assertEquals(ARMED, state.getState());
+
+        state.onSample(0, 14, false, LOW, LOW, 5, 30 * MINUTE);
+        state.snooze();
+        assertEquals(SNOOZED, state.getState());
+        assertFalse(state.onSample(60 * MINUTE, 12, false, LOW, 0, 5, 30 * MINUTE));
+        assertTrue(state.onSample(61 * MINUTE, 9, false, LOW, 0, 5, 30 * MINUTE));
+        assertEquals(FIRED, state.getState());
+    }
+
+    @Test
+    public void aNewRuleAlertsEvenWhenSnoozed(){
+        AlertState state = new AlertState();
+        state.onSample(0, 14, false, LOW, LOW, 5, 0);
+        state.snooze();
+        assertTrue(state.onSample(MINUTE, 4, false, LOW | CRITICAL, CRITICAL, 0, 0));
+        assertEquals(LOW | CRITICAL, state.getFiring());
+    }
+
+    @Test
+    public void chargingOrClearingReArms(){
+        AlertState state = new AlertState();
+        state.onSample(0, 14, false, LOW, LOW, 5, 0);
+        assertFalse(state.onSample(MINUTE, 14, true, LOW, 0, 5, 0));
+        assertEquals(ARMED, state.getState());
+        // Still low once unplugged
+        assertTrue(state.onSample(2 * MINUTE, 14, false, LOW, 0, 5, 0));
+
+        state.snooze();
+        assertFalse(state.onSample(3 * MINUTE, 20, false, 0, 0, 5, 0));
+        assertEquals(ARMED, state.getState());
+        assertEquals(0, state.getFiring());
+    }
+
+    @Test
+    public void savesAndLoads() throws IOException {
+        File file = new File(mFolder.getRoot(), "alert_state");
+        AlertState state = new AlertState();
+        long now = 1262304000000L;
+        state.onSample(now, 14, false, LOW, LOW, 5, 30 * MINUTE);
+        state.snooze();
+        state.save(file);
+        assertEquals(RECORD_SIZE, file.length());
+
+        AlertState loaded = new AlertState();
+        loaded.load(file);
+        assertEquals(SNOOZED, loaded.getState());
+        assertEquals(LOW, loaded.getFiring());
+        // The level and time come back too
+        assertFalse(loaded.onSample(now + 60 * MINUTE, 10, false, LOW, 0, 5, 30 * MINUTE));
+        assertTrue(loaded.onSample(now + 61 * MINUTE, 9, false, LOW, 0, 5, 30 * MINUTE));
+    }
+
+    @Test
+    public void savesOnlyWhenChanged() throws IOException {
+        File file = new File(mFolder.getRoot(), "alert_state");
+        AlertState state = new AlertState();
+        state.save(file);
+        assertFalse(file.exists());
+
+        state.onSample(0, 14, false, LOW, LOW, 5, 0);
+        state.save(file);
+        assertTrue(file.delete());
+        state.onSample(MINUTE, 13, false, LOW, 0, 5, 0);
+        state.save(file);
+        assertFalse(file.exists());
+    }
+
+    @Test
+    public void staysArmedWithNothingValidToLoad() throws IOException {
+        File file = new File(mFolder.getRoot(), "alert_state");
+        AlertState state = new AlertState();
+        state.load(file);
+        assertEquals(ARMED, state.getState());
+
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(new byte[] { FIRED, 14, 0, 0 });
+        out.close();
+        state.load(file);
+        assertEquals(ARMED, state.getState());
+
+        byte[] record = new byte[RECORD_SIZE];
+        record[0] = 7;
+        out = new FileOutputStream(file);
+        out.write(record);
+        out.close();
+        state.load(file);
+        assertEquals(ARMED, state.getState());
+        assertEquals(0, state.getFiring());
+    }
+}
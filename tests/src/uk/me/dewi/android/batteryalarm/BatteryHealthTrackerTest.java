@@ -0,0 +1,183 @@
+package uk.me.dewi.android.batteryalarm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static uk.me.dewi.android.batteryalarm.MonitorScheduler.HOUR;
+import static uk.me.dewi.android.batteryalarm.MonitorScheduler.MINUTE;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class BatteryHealthTrackerTest {
+
+    private static final int AC = 1;
+    private static final long DAY = 24 * HOUR;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private int mReports;
+
+    /**
+     * Runs a day: down from 80% to 30% on battery through the day, then
+     * charged on AC back up to 80% at the minutes per percent, read every
+     * fifteen minutes as the service does.
+     */
+    private long day(BatteryHealthTracker tracker, long start, float minutesPerPercent){
+        long t = start;
+        for(int level = 80; level >= 30; level -= 5){
+            sample(tracker, t, level, 0);
+            t += HOUR;
+        }
+        long chargeStart = t;
+        long end = chargeStart + (long)(50 * minutesPerPercent * MINUTE);
+        for(; t < end; t += 15 * MINUTE){
+            sample(tracker, t, 30 + (int)((t - chargeStart) / (minutesPerPercent * MINUTE)), AC);
+        }
+        sample(tracker, end, 80, AC);
+        sample(tracker, end + MINUTE, 80, 0);
+        return start + DAY;
+    }
+
+    private void sample(BatteryHealthTracker tracker, long time, int level, int plugType){
+        if(tracker.onSample(time, level, plugType, BatteryHealthTracker.HEALTH_GOOD)){
+            mReports++;
+        }
+    }
+
+    @Test
+    public void countsCycles(){
+        BatteryHealthTracker tracker = new BatteryHealthTracker();
+        long t = 0;
+        for(int i = 0; i < 10; i++){
+            t = day(tracker, t, 2);
+        }
+        // 50% a day
+        assertEquals(5, tracker.getCycles(), 0.01f);
+    }
+
+    @Test
+    public void capacityIsUnknownUntilEnoughCharges(){
+        BatteryHealthTracker tracker = new BatteryHealthTracker();
+        long t = 0;
+        for(int i = 0; i < BatteryHealthTracker.BASELINE_CHARGES + BatteryHealthTracker.MIN_CHARGES - 1; i++){
+            t = day(tracker, t, 2);
+        }
+        assertTrue(Float.isNaN(tracker.getCapacity()));
+        day(tracker, t, 2);
+        assertEquals(1, tracker.getCapacity(), 0.05f);
+    }
+
+    @Test
+    public void followsFadeOverMonthsAndReportsOnce(){
+        BatteryHealthTracker tracker = new BatteryHealthTracker();
+        long t = 0;
+        // A year losing capacity steadily down to 70%
+        float worst = 1;
+        for(int i = 0; i < 365; i++){
+            float capacity = 1 - 0.3f * i / 365;
+            t = day(tracker, t, 2 * capacity);
+            if(i == 180){
+                assertEquals(capacity, tracker.getCapacity(), 0.08f);
+                assertFalse(tracker.isDegraded());
+            }
+            worst = capacity;
+        }
+        assertEquals(worst, tracker.getCapacity(), 0.08f);
+        assertTrue(tracker.isDegraded());
+        assertEquals(1, mReports);
+    }
+
+    @Test
+    public void reportsAFailureStraightAway(){
+        BatteryHealthTracker tracker = new BatteryHealthTracker();
+        assertFalse(tracker.onSample(0, 50, 0, BatteryHealthTracker.HEALTH_GOOD));
+        assertTrue(tracker.onSample(MINUTE, 49, 0, BatteryHealthTracker.HEALTH_DEAD));
+        assertFalse(tracker.onSample(2 * MINUTE, 48, 0, BatteryHealthTracker.HEALTH_DEAD));
+    }
+
+    @Test
+    public void skipsChargesWithAGap(){
+        BatteryHealthTracker tracker = new BatteryHealthTracker();
+        long t = 0;
+        for(int i = 0; i < 20; i++){
+            tracker.onSample(t, 30, AC, 0);
+            tracker.onSample(t + BatteryHealthTracker.MAX_GAP + MINUTE, 60, AC, 0);
+            tracker.onSample(t + BatteryHealthTracker.MAX_GAP + 2 * MINUTE, 60, 0, 0);
+            t += DAY;
+        }
+        assertTrue(Float.isNaN(tracker.getCapacity()));
+    }
+
+    @Test
+    public void keepsTheChargeInProgressAcrossARestart() throws Exception {
+        File file = mFolder.newFile("health");
+        BatteryHealthTracker whole = new BatteryHealthTracker();
+        BatteryHealthTracker restarted = new BatteryHealthTracker();
+        long t = 0;
+        for(int i = 0; i < 20; i++){
+            // Plugged in at 30%, the process dies half way, out at 80%
+            long half = t + 50 * MINUTE;
+            long end = t + 100 * MINUTE;
+            whole.onSample(t, 30, AC, 0);
+            whole.onSample(half, 55, AC, 0);
+            whole.onSample(end, 80, 0, 0);
+
+            restarted.onSample(t, 30, AC, 0);
+            restarted.onSample(half, 55, AC, 0);
+            restarted.save(file);
+            restarted = new BatteryHealthTracker();
+            restarted.load(file);
+            restarted.onSample(end, 80, 0, 0);
+
+            t += DAY;
+        }
+        assertEquals(whole.getCapacity(), restarted.getCapacity(), 0);
+        assertEquals(whole.getCycles(), restarted.getCycles(), 0);
+        assertFalse(Float.isNaN(restarted.getCapacity()));
+    }
+
+    @Test
+    public void savesOnlyWhenChanged() throws Exception {
+        File file = mFolder.newFile("health");
+        BatteryHealthTracker tracker = new BatteryHealthTracker();
+        day(tracker, 0, 2);
+        assertTrue(tracker.isDirty());
+        tracker.save(file);
+        assertFalse(tracker.isDirty());
+
+        BatteryHealthTracker loaded = new BatteryHealthTracker();
+        loaded.load(file);
+        assertFalse(loaded.isDirty());
+        assertEquals(tracker.getCycles(), loaded.getCycles(), 0);
+    }
+
+    @Test
+    public void readsTheFirstVersion() throws Exception {
+        File file = mFolder.newFile("health");
+        ByteBuffer out = ByteBuffer.allocate(8 + 8 + 1 + 3 * 16);
+        out.putInt(BatteryHealthTracker.MAGIC).putInt(1);
+        out.putFloat(250);
+        out.putInt(BatteryHealthTracker.HEALTH_GOOD);
+        out.put((byte)0);
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try{
+            raf.write(out.array());
+        }
+        finally{
+            raf.close();
+        }
+        BatteryHealthTracker tracker = new BatteryHealthTracker();
+        tracker.load(file);
+        assertEquals(2.5f, tracker.getCycles(), 0);
+        // With no last reading the next one starts afresh
+        tracker.onSample(0, 50, 0, 0);
+        assertEquals(2.5f, tracker.getCycles(), 0);
+    }
+}
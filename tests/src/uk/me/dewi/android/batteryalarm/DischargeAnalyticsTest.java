@@ -0,0 +1,159 @@
+package uk.me.dewi.android.batteryalarm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static uk.me.dewi.android.batteryalarm.DischargeAnalytics.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class DischargeAnalyticsTest {
+
+    private static final long MINUTE = HOUR / 60;
+    private static final long MONDAY = FakeClock.MONDAY;
+
+    private FakeClock mClock;
+    private DischargeAnalytics mAnalytics;
+
+    @Before
+    public void setUp(){
+        mClock = new FakeClock(MONDAY);
+        mAnalytics = new DischargeAnalytics(mClock);
+    }
+
+    @Test
+    public void hourOfWeekStartsOnMonday(){
+        assertEquals(0, hourOfWeek(MONDAY));
+        assertEquals(10, hourOfWeek(MONDAY + 10 * HOUR + 59 * MINUTE));
+        assertEquals(HOURS_PER_WEEK - 1, hourOfWeek(MONDAY - 1));
+        assertEquals(3 * 24, hourOfWeek(0));
+        // Before the epoch
+        assertEquals(3 * 24 - 1, hourOfWeek(-1));
+        assertEquals(3 * 24, hourOfWeek(-7 * DAY));
+    }
+
+    @Test
+    public void splitsADropBetweenTheHoursItSpans(){
+        mAnalytics.onSample(MONDAY + 9 * HOUR + 30 * MINUTE, 50, false);
+        mAnalytics.onSample(MONDAY + 10 * HOUR + 30 * MINUTE, 48, false);
+        assertEquals(2f, mAnalytics.getDrainPerHour(9), 0.001f);
+        assertEquals(2f, mAnalytics.getDrainPerHour(10), 0.001f);
+        assertTrue(Float.isNaN(mAnalytics.getDrainPerHour(11)));
+
+        float[] hours = new float[24];
+        mAnalytics.getHourOfDay(hours);
+        assertEquals(2f, hours[9], 0.001f);
+        assertTrue(Float.isNaN(hours[8]));
+        float[] days = new float[7];
+        mAnalytics.getDayOfWeek(days);
+        assertEquals(2f, days[0], 0.001f);
+        assertTrue(Float.isNaN(days[1]));
+    }
+
+    @Test
+    public void averagesTheSameHourAcrossDays(){
+        // Monday drains 4% in the hour, Tuesday 2%
+        mAnalytics.onSample(MONDAY + 9 * HOUR, 80, false);
+        mAnalytics.onSample(MONDAY + 10 * HOUR, 76, false);
+        mAnalytics.onSample(MONDAY + DAY + 9 * HOUR, 70, false);
+        mAnalytics.onSample(MONDAY + DAY + 10 * HOUR, 68, false);
+        float[] hours = new float[24];
+        mAnalytics.getHourOfDay(hours);
+        assertEquals(3f, hours[9], 0.001f);
+        assertEquals(4f, mAnalytics.getDrainPerHour(9), 0.001f);
+        assertEquals(2f, mAnalytics.getDrainPerHour(24 + 9), 0.001f);
+    }
+
+    @Test
+    public void leavesOutChargingGapsAndRises(){
+        mAnalytics.onSample(MONDAY, 80, false);
+        mAnalytics.onSample(MONDAY + HOUR, 78, true);
+        mAnalytics.onSample(MONDAY + 2 * HOUR, 90, true);
+        mAnalytics.onSample(MONDAY + 3 * HOUR, 90, false);
+        // Off for longer than the gap counted
+        mAnalytics.onSample(MONDAY + 3 * HOUR + MAX_GAP + 1, 60, false);
+        // A rise off the charger, such as a recalibration
+        mAnalytics.onSample(MONDAY + 10 * HOUR, 65, false);
+        for(int hour = 0; hour < HOURS_PER_WEEK; hour++){
+            assertTrue("hour " + hour, Float.isNaN(mAnalytics.getDrainPerHour(hour)));
+        }
+        assertEquals(6, mAnalytics.getSampleCount());
+    }
+
+    @Test
+    public void ignoresSamplesOutOfOrder(){
+        mAnalytics.onSample(MONDAY + HOUR, 80, false);
+        mAnalytics.onSample(MONDAY, 90, false);
+        mAnalytics.onSample(MONDAY + HOUR, 70, false);
+        assertEquals(1, mAnalytics.getSampleCount());
+    }
+
+    @Test
+    public void bucketsByLocalTime(){
+        // 08:00 UTC is 10:00 in UTC+2
+        mClock.offset = (int)(2 * HOUR);
+        mAnalytics.onSample(MONDAY + 8 * HOUR, 50, false);
+        mAnalytics.onSample(MONDAY + 9 * HOUR, 47, false);
+        assertEquals(3f, mAnalytics.getDrainPerHour(10), 0.001f);
+        assertTrue(Float.isNaN(mAnalytics.getDrainPerHour(8)));
+    }
+
+    @Test
+    public void rangeOfDaysAndOldDaysAreReplaced(){
+        mAnalytics.onSample(MONDAY + 9 * HOUR, 50, false);
+        mAnalytics.onSample(MONDAY + 10 * HOUR, 45, false);
+        mAnalytics.onSample(MONDAY + DAY + 9 * HOUR, 45, false);
+        mAnalytics.onSample(MONDAY + DAY + 11 * HOUR, 43, false);
+        assertEquals(5f, mAnalytics.getDrainPerHour(MONDAY, MONDAY + 1), 0.001f);
+        assertEquals(1f, mAnalytics.getDrainPerHour(MONDAY + DAY, MONDAY + DAY), 0.001f);
+        assertEquals(7f / 3, mAnalytics.getDrainPerHour(MONDAY - 5 * DAY, MONDAY + 5 * DAY), 0.001f);
+        assertTrue(Float.isNaN(mAnalytics.getDrainPerHour(MONDAY + 2 * DAY, MONDAY + 3 * DAY)));
+
+        // The same slot a full ring of days later
+        long later = MONDAY + DAYS * DAY;
+        mAnalytics.onSample(later + 9 * HOUR, 90, false);
+        mAnalytics.onSample(later + 10 * HOUR, 88, false);
+        assertEquals(2f, mAnalytics.getDrainPerHour(later, later), 0.001f);
+        assertTrue(Float.isNaN(mAnalytics.getDrainPerHour(MONDAY, MONDAY)));
+    }
+
+    @Test
+    public void remembersTheLatestCycles(){
+        Cycle cycle = new Cycle();
+        assertEquals(0, mAnalytics.getCycleCount());
+
+        mAnalytics.onSample(MONDAY, 90, false);
+        mAnalytics.onSample(MONDAY + 2 * HOUR, 80, false);
+        mAnalytics.onSample(MONDAY + 3 * HOUR, 79, true);
+        mAnalytics.onSample(MONDAY + 4 * HOUR, 99, true);
+        assertEquals(2, mAnalytics.getCycleCount());
+        mAnalytics.getCycle(0, cycle);
+        assertFalse(cycle.charging);
+        assertEquals(MONDAY, cycle.start);
+        assertEquals(MONDAY + 2 * HOUR, cycle.end);
+        assertEquals(-5f, cycle.getRatePerHour(), 0.001f);
+        mAnalytics.getCycle(1, cycle);
+        assertTrue(cycle.charging);
+        assertEquals(79, cycle.startLevel);
+        assertEquals(99, cycle.endLevel);
+        assertEquals(20f, cycle.getRatePerHour(), 0.001f);
+
+        long time = MONDAY + 5 * HOUR;
+        for(int i = 0; i < CYCLES * 2; i++){
+            mAnalytics.onSample(time + i * HOUR, 50, i % 2 == 1);
+        }
+        assertEquals(CYCLES, mAnalytics.getCycleCount());
+        mAnalytics.getCycle(0, cycle);
+        assertEquals(time + CYCLES * HOUR, cycle.start);
+        mAnalytics.getCycle(CYCLES - 1, cycle);
+        assertEquals(time + (2 * CYCLES - 1) * HOUR, cycle.start);
+        assertTrue(cycle.charging);
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void noCycleBeyondTheCount(){
+        mAnalytics.onSample(MONDAY, 90, false);
+        mAnalytics.getCycle(1, new Cycle());
+    }
+}
@@ -0,0 +1,101 @@
+package uk.me.dewi.android.batteryalarm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static uk.me.dewi.android.batteryalarm.DischargeEstimator.HOUR;
+import static uk.me.dewi.android.batteryalarm.DischargeEstimator.UNKNOWN;
+
+import org.junit.Test;
+
+public class DischargeEstimatorTest {
+
+    private static final long MINUTE = HOUR / 60;
+
+    /**
+     * Drains at the rate, reading every few minutes.
+     *
+     * @return the time after the last reading
+     */
+    private static long drain(DischargeEstimator estimator, long time, float startLevel, float perHour, long duration){
+        for(long t = 0; t <= duration; t += 5 * MINUTE){
+            estimator.onSample(time + t, (int)Math.ceil(startLevel - perHour * t / HOUR), false);
+        }
+        return time + duration;
+    }
+
+    @Test
+    public void unknownUntilALevelDrops(){
+        DischargeEstimator estimator = new DischargeEstimator();
+        assertEquals(UNKNOWN, estimator.millisUntil(50, 15));
+        assertEquals(0, estimator.millisUntil(15, 15));
+        assertEquals(0, estimator.millisUntil(10, 15));
+        estimator.onSample(0, 50, false);
+        estimator.onSample(10 * MINUTE, 50, false);
+        assertEquals(UNKNOWN, estimator.millisUntil(50, 15));
+        estimator.onSample(20 * MINUTE, 49, false);
+        assertEquals(3f, estimator.getDrainPerHour(), 0.01f);
+    }
+
+    @Test
+    public void learnsASteadyDrain(){
+        DischargeEstimator estimator = new DischargeEstimator();
+        drain(estimator, 0, 90, 6, 6 * HOUR);
+        assertEquals(6f, estimator.getDrainPerHour(), 0.5f);
+        long untilThreshold = estimator.millisUntil(54, 15);
+        assertEquals(6.5 * HOUR, untilThreshold, 0.5 * HOUR);
+    }
+
+    @Test
+    public void followsAChangeOfRate(){
+        DischargeEstimator estimator = new DischargeEstimator();
+        long time = drain(estimator, 0, 95, 4, 4 * HOUR);
+        assertEquals(4f, estimator.getDrainPerHour(), 0.5f);
+        drain(estimator, time, 79, 20, 2 * HOUR);
+        assertEquals(20f, estimator.getDrainPerHour(), 3f);
+    }
+
+    @Test
+    public void quietSpellBoundsTheRate(){
+        DischargeEstimator estimator = new DischargeEstimator();
+        drain(estimator, 0, 90, 30, HOUR);
+        assertTrue(estimator.getDrainPerHour() > 20);
+        // Two hours without losing a percent
+        long time = HOUR + 2 * HOUR;
+        estimator.onSample(time, 60, false);
+        assertTrue(estimator.getDrainPerHour() <= 0.5f + 0.01f);
+    }
+
+    @Test
+    public void chargingStartsMeasuringAgainButKeepsTheRate(){
+        DischargeEstimator estimator = new DischargeEstimator();
+        long time = drain(estimator, 0, 90, 10, 3 * HOUR);
+        float rate = estimator.getDrainPerHour();
+
+        estimator.onSample(time + 10 * MINUTE, 62, true);
+        estimator.onSample(time + HOUR, 80, true);
+        assertEquals(rate, estimator.getDrainPerHour(), 0f);
+
+        // Unplugged, the first reading only anchors the next drop
+        estimator.onSample(time + 2 * HOUR, 80, false);
+        assertEquals(rate, estimator.getDrainPerHour(), 0f);
+        estimator.onSample(time + 2 * HOUR + 30 * MINUTE, 70, false);
+        assertTrue(estimator.getDrainPerHour() > rate);
+    }
+
+    @Test
+    public void restartsWhenTheLevelRisesOrTimeGoesBack(){
+        DischargeEstimator estimator = new DischargeEstimator();
+        estimator.onSample(HOUR, 50, false);
+        estimator.onSample(2 * HOUR, 48, false);
+        float rate = estimator.getDrainPerHour();
+        assertEquals(2f, rate, 0.01f);
+
+        estimator.onSample(3 * HOUR, 55, false);
+        estimator.onSample(HOUR, 40, false);
+        assertEquals(rate, estimator.getDrainPerHour(), 0f);
+
+        estimator.reset();
+        assertEquals(0f, estimator.getDrainPerHour(), 0f);
+        assertEquals(UNKNOWN, estimator.millisUntil(50, 15));
+    }
+}
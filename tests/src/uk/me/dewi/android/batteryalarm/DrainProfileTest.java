@@ -0,0 +1,123 @@
+package uk.me.dewi.android.batteryalarm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static uk.me.dewi.android.batteryalarm.MonitorScheduler.HOUR;
+import static uk.me.dewi.android.batteryalarm.MonitorScheduler.MINUTE;
+
+import java.io.File;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class DrainProfileTest {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    /**
+     * Drains at the rate through the hour of day on each of the days,
+     * reading every ten minutes, then goes on into the next hour for too
+     * short a time to learn it, which learns the hour drained.
+     */
+    private static void drain(DrainProfile profile, int firstDay, int hour, float perHour, int days){
+        for(int day = firstDay; day < firstDay + days; day++){
+            long start = day * 24 * HOUR + hour * HOUR;
+            float level = 90;
+            for(long t = 0; t <= HOUR + 10 * MINUTE; t += 10 * MINUTE){
+                profile.onSample(start + t, Math.round(level), false);
+                level -= perHour / 6;
+            }
+            profile.onSample(start + HOUR + 20 * MINUTE, Math.round(level), true);
+        }
+    }
+
+    @Test
+    public void learnsTheDrainOfEachHour(){
+        DrainProfile profile = new DrainProfile();
+        assertFalse(profile.isKnown(9));
+        drain(profile, 0, 9, 12, 1);
+        assertTrue(profile.isKnown(9));
+        assertEquals(12, profile.getMean(9), 1.5f);
+        assertTrue(Float.isNaN(profile.getPeak(10)));
+        assertTrue(profile.isDirty());
+    }
+
+    @Test
+    public void peakJumpsUpAndDecaysBack(){
+        DrainProfile profile = new DrainProfile();
+        drain(profile, 0, 9, 6, 5);
+        drain(profile, 5, 9, 30, 1);
+        float peak = profile.getPeak(9);
+        assertTrue(peak > 25);
+        drain(profile, 6, 9, 6, 10);
+        assertTrue(profile.getPeak(9) < peak);
+        assertTrue(profile.getPeak(9) >= profile.getMean(9));
+    }
+
+    @Test
+    public void skipsChargingAndLongGaps(){
+        DrainProfile profile = new DrainProfile();
+        profile.onSample(0, 90, true);
+        profile.onSample(HOUR, 80, true);
+        profile.onSample(2 * HOUR, 80, false);
+        profile.onSample(2 * HOUR + DrainProfile.MAX_GAP + MINUTE, 40, false);
+        profile.onSample(3 * HOUR + DrainProfile.MAX_GAP, 40, false);
+        for(int hour = 0; hour < DrainProfile.HOURS; hour++){
+            assertFalse(profile.isKnown(hour));
+        }
+    }
+
+    @Test
+    public void predictsFromThePeaks(){
+        DrainProfile profile = new DrainProfile();
+        assertEquals(0, profile.millisUntil(0, 15, 15, 0, 10));
+        // Nothing learned, so the fallback rate all the way
+        assertEquals(3 * HOUR, profile.millisUntil(0, 45, 15, 0, 10));
+        // Or the current rate when there is one
+        assertEquals(HOUR, profile.millisUntil(0, 45, 15, 30, 10));
+        // Or twice as fast with a margin of two
+        assertEquals(3 * HOUR / 2, profile.millisUntil(0, 45, 15, 0, 10, 2));
+
+        drain(profile, 0, 9, 20, 1);
+        // 10% an hour up to 9:00, then the 20% an hour learned for it
+        long untilNine = 2 * HOUR;
+        long millis = profile.millisUntil(7 * HOUR, 45, 15, 0, 10);
+        assertEquals(untilNine + HOUR / 2, millis, 10 * MINUTE);
+    }
+
+    @Test
+    public void savesAndLoads() throws Exception {
+        DrainProfile profile = new DrainProfile();
+        drain(profile, 0, 9, 12, 3);
+        drain(profile, 3, 21, 4, 2);
+        File file = mFolder.newFile("profile");
+        profile.save(file);
+        assertFalse(profile.isDirty());
+
+        assertTrue(profile.isKnown(21));
+
+        DrainProfile loaded = new DrainProfile();
+        loaded.load(file);
+        assertFalse(loaded.isDirty());
+        for(int hour = 0; hour < DrainProfile.HOURS; hour++){
+            assertEquals(profile.isKnown(hour), loaded.isKnown(hour));
+            if(profile.isKnown(hour)){
+                assertEquals(profile.getMean(hour), loaded.getMean(hour), 0);
+                assertEquals(profile.getPeak(hour), loaded.getPeak(hour), 0);
+            }
+        }
+        assertEquals(profile.millisUntil(0, 80, 15, 0, 10), loaded.millisUntil(0, 80, 15, 0, 10));
+    }
+
+    @Test
+    public void ignoresAFileItDidNotWrite() throws Exception {
+        File file = mFolder.newFile("profile");
+        DrainProfile profile = new DrainProfile();
+        profile.load(file);
+        profile.load(new File(mFolder.getRoot(), "missing"));
+        assertFalse(profile.isKnown(0));
+    }
+}
@@ -0,0 +1,35 @@
+package uk.me.dewi.android.batteryalarm;
+
+/**
+ * A clock that only moves when it is told to.
+ */
+public class FakeClock implements Clock {
+
+    /** Midnight at the start of Monday 5 January 1970, UTC. */
+    public static final long MONDAY = 4 * TimeWindow.MILLIS_PER_DAY;
+
+    public long time;
+    public long elapsed;
+    public int offset;
+
+    public FakeClock(long time){
+        this.time = time;
+    }
+
+    public void advance(long millis){
+        time += millis;
+        elapsed += millis;
+    }
+
+    public long currentTimeMillis() {
+        return time;
+    }
+
+    public long elapsedRealtime() {
+        return elapsed;
+    }
+
+    public int getOffset(long millis) {
+        return offset;
+    }
+}
@@ -0,0 +1,185 @@
+package uk.me.dewi.android.batteryalarm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class HistoryCodecTest {
+
+    private static BatterySample sample(long time, int level, int flags){
+        BatterySample sample = new BatterySample();
+        sample.time = time;
+        sample.level = level;
+        sample.scale = 100;
+        sample.temperature = 250;
+        sample.voltage = 3900;
+        sample.health = 2;
+        sample.flags = flags;
+        return sample;
+    }
+
+    private static List<BatterySample> randomSamples(Random random, int count){
+        List<BatterySample> samples = new ArrayList<BatterySample>();
+        long time = 1262304000000L;
+        for(int i = 0; i < count; i++){
+            time += random.nextInt(10) == 0 ? random.nextInt(Integer.MAX_VALUE) : random.nextInt(600000);
+            BatterySample sample = sample(time, random.nextInt(101), random.nextInt(10) == 0 ? -1 : random.nextInt(4));
+            sample.plugType = random.nextInt(3);
+            sample.plugged = sample.plugType != 0;
+            sample.scale = random.nextBoolean() ? 100 : 255;
+            sample.temperature = random.nextInt(1000) - 200;
+            sample.voltage = random.nextInt(Short.MAX_VALUE);
+            sample.health = random.nextInt(8);
+            samples.add(sample);
+        }
+        return samples;
+    }
+
+    private static byte[] encode(List<BatterySample> samples) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        HistoryCodec.Writer writer = new HistoryCodec.Writer(out);
+        for(BatterySample sample : samples){
+            writer.write(sample);
+        }
+        writer.close();
+        return out.toByteArray();
+    }
+
+    private static HistoryCodec.Reader reader(byte[] data) throws IOException {
+        return new HistoryCodec.Reader(new ByteArrayInputStream(data));
+    }
+
+    private static List<BatterySample> decode(byte[] data) throws IOException {
+        List<BatterySample> samples = new ArrayList<BatterySample>();
+        HistoryCodec.Reader reader = reader(data);
+        BatterySample sample = new BatterySample();
+        while(reader.next(sample)){
+            BatterySample copy = new BatterySample();
+            copy.set(sample);
+            samples.add(copy);
+        }
+        return samples;
+    }
+
+    private static void assertSamples(List<BatterySample> expected, List<BatterySample> actual){
+        assertEquals(expected.size(), actual.size());
+        for(int i = 0; i < expected.size(); i++){
+            assertTrue("sample " + i, HistoryCodec.sameRecord(expected.get(i), actual.get(i)));
+            assertEquals(expected.get(i).plugType != 0, actual.get(i).plugged);
+        }
+    }
+
+    @Test
+    public void roundTrip() throws IOException {
+        Random random = new Random(1);
+        for(int count : new int[]{0, 1, HistoryCodec.BLOCK_SAMPLES, 3 * HistoryCodec.BLOCK_SAMPLES + 7}){
+            List<BatterySample> samples = randomSamples(random, count);
+            assertSamples(samples, decode(encode(samples)));
+        }
+    }
+
+    @Test
+    public void takesLessSpaceThanTheLog() throws IOException {
+        List<BatterySample> samples = new ArrayList<BatterySample>();
+        for(int i = 0; i < 10000; i++){
+            samples.add(sample(1262304000000L + i * 60000L, 100 - i / 100, 0));
+        }
+        // A minute apart is a 3 byte difference, 20 bytes a record in the log
+        assertTrue(encode(samples).length < samples.size() * 13);
+    }
+
+    @Test
+    public void mergeInterleavesInTimeOrder() throws IOException {
+        List<BatterySample> a = Arrays.asList(sample(1, 90, 0), sample(3, 80, 0), sample(5, 70, 1));
+        List<BatterySample> b = Arrays.asList(sample(2, 50, 0), sample(4, 40, 0), sample(6, 30, 0));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        long written = HistoryCodec.merge(Arrays.asList(reader(encode(a)), reader(encode(b))),
+                                          new HistoryCodec.Writer(out));
+        assertEquals(6, written);
+        List<BatterySample> merged = decode(out.toByteArray());
+        for(int i = 0; i < merged.size(); i++){
+            assertEquals(i + 1, merged.get(i).time);
+        }
+    }
+
+    @Test
+    public void mergeKeepsDifferentSamplesAtTheSameTime() throws IOException {
+        // Two devices reading at the same moment, and one history exported twice
+        List<BatterySample> phone = Arrays.asList(sample(1, 90, 0), sample(2, 80, 0), sample(2, 79, 1));
+        List<BatterySample> tablet = Arrays.asList(sample(1, 60, 0), sample(2, 80, 0));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        long written = HistoryCodec.merge(Arrays.asList(reader(encode(phone)), reader(encode(tablet)),
+                                                        reader(encode(phone))),
+                                          new HistoryCodec.Writer(out));
+        assertEquals(4, written);
+        List<BatterySample> merged = decode(out.toByteArray());
+        assertSamples(Arrays.asList(sample(1, 90, 0), sample(1, 60, 0), sample(2, 80, 0), sample(2, 79, 1)),
+                      merged);
+    }
+
+    @Test
+    public void rejectsOtherFiles() throws IOException {
+        try{
+            reader("not a history export".getBytes());
+            fail();
+        }
+        catch(IOException e){
+            // expected
+        }
+    }
+
+    @Test
+    public void cutShortOrDamagedFilesFail() throws IOException {
+        byte[] data = encode(randomSamples(new Random(2), 2 * HistoryCodec.BLOCK_SAMPLES));
+        assertFails(Arrays.copyOf(data, data.length - 1));
+        assertFails(Arrays.copyOf(data, data.length / 2));
+
+        byte[] damaged = data.clone();
+        damaged[data.length / 2] ^= 0x10;
+        assertFails(damaged);
+    }
+
+    @Test
+    public void fuzzedFilesOnlyFailWithIOException() throws IOException {
+        Random random = new Random(3);
+        byte[] data = encode(randomSamples(random, 700));
+        for(int i = 0; i < 2000; i++){
+            byte[] fuzzed = data.clone();
+            for(int j = random.nextInt(4); j >= 0; j--){
+                fuzzed[random.nextInt(fuzzed.length)] = (byte)random.nextInt(256);
+            }
+            if(random.nextBoolean()){
+                fuzzed = Arrays.copyOf(fuzzed, random.nextInt(fuzzed.length));
+            }
+            try{
+                decode(fuzzed);
+            }
+            catch(IOException e){
+                // expected for most of them
+            }
+        }
+    }
+
+    private static void assertFails(byte[] data){
+        try{
+            decode(data);
+            fail();
+        }
+        catch(IOException e){
+            assertFalse(e.getMessage().length() == 0);
+        }
+    }
+}
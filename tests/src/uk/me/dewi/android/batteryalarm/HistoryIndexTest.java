@@ -0,0 +1,154 @@
+package uk.me.dewi.android.batteryalarm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class HistoryIndexTest {
+
+    /** Around four blocks a file. */
+    private static final int FILE_RECORDS = 4 * HistoryIndex.STRIDE + 100;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private HistoryLog mLog;
+    private final Random mRandom = new Random(1);
+    private final BatterySample mSample = new BatterySample();
+
+    @Before
+    public void setUp() throws IOException {
+        mLog = new HistoryLog(mFolder.newFolder("history"), "history",
+                              HistoryLog.HEADER_SIZE + FILE_RECORDS * HistoryLog.RECORD_SIZE, 4);
+        mSample.time = 1262304000000L;
+        mSample.scale = 100;
+    }
+
+    /**
+     * Appends readings a minute or so apart, some at the same time, with
+     * alerts in runs so some blocks have none and some have many.
+     */
+    private void append(int count) throws IOException {
+        HistoryBuffer buffer = new HistoryBuffer(64);
+        for(int i = 0; i < count; i++){
+            if(mRandom.nextInt(20) != 0){
+                mSample.time += 1 + mRandom.nextInt(120000);
+            }
+            mSample.level = mRandom.nextInt(101);
+            int run = (int)(mSample.time / 3600000 % 7);
+            mSample.flags = run == 0 ? 1 + mRandom.nextInt(3) : run == 1 && mRandom.nextInt(10) == 0 ? 4 : 0;
+            buffer.add(mSample);
+            if(buffer.unflushed() == buffer.capacity()){
+                mLog.flush(buffer);
+            }
+        }
+        mLog.flush(buffer);
+    }
+
+    /**
+     * @return the positions in the log with a time in the range, read one
+     * by one
+     */
+    private static List<Integer> scan(List<HistoryLog.View> views, long from, long to, boolean alerts){
+        List<Integer> positions = new ArrayList<Integer>();
+        int position = 0;
+        for(HistoryLog.View view : views){
+            for(int i = 0; i < view.size(); i++, position++){
+                long time = view.getTime(i);
+                if(time >= from && time < to && (!alerts || view.getFlags(i) != 0)){
+                    positions.add(position);
+                }
+            }
+        }
+        return positions;
+    }
+
+    private static void assertRange(List<Integer> expected, HistoryIndex.Range range, List<Integer> rows){
+        assertEquals(expected.size(), range.size());
+        BatterySample sample = new BatterySample();
+        for(int row : rows){
+            assertEquals(expected.get(row).intValue(), range.getPosition(row));
+            range.get(row, sample);
+        }
+    }
+
+    private void assertMatchesScan(HistoryIndex index, List<HistoryLog.View> views, long from, long to){
+        for(int alerts = 0; alerts < 2; alerts++){
+            List<Integer> expected = scan(views, from, to, alerts == 1);
+            List<Integer> rows = new ArrayList<Integer>();
+            for(int row = 0; row < expected.size(); row++){
+                rows.add(row);
+            }
+            HistoryIndex.Range range = alerts == 1 ? index.findAlerts(views, from, to) : index.find(views, from, to);
+            assertRange(expected, range, rows);
+
+            // Back to front and jumping about, as a cursor may be moved
+            Collections.reverse(rows);
+            assertRange(expected, range, rows);
+            Collections.shuffle(rows, mRandom);
+            assertRange(expected, range, rows);
+        }
+    }
+
+    private void assertLookupsMatchScan(HistoryIndex index) throws IOException {
+        List<HistoryLog.View> views = mLog.openViews();
+        long first = views.get(0).getTime(0);
+        HistoryLog.View newest = views.get(views.size() - 1);
+        long last = newest.getTime(newest.size() - 1);
+
+        assertMatchesScan(index, views, Long.MIN_VALUE, Long.MAX_VALUE);
+        assertMatchesScan(index, views, last, last + 1);
+        assertMatchesScan(index, views, last + 1, Long.MAX_VALUE);
+        assertMatchesScan(index, views, Long.MIN_VALUE, first);
+        assertMatchesScan(index, views, last, first);
+        for(int i = 0; i < 100; i++){
+            long from = first - 60000 + (long)(mRandom.nextDouble() * (last - first + 120000));
+            long to = from + (long)(mRandom.nextDouble() * (last - first) / (1 + mRandom.nextInt(10)));
+            assertMatchesScan(index, views, from, to);
+        }
+        // Times of records themselves, where runs at the same time begin and end
+        for(int i = 0; i < 50; i++){
+            HistoryLog.View view = views.get(mRandom.nextInt(views.size()));
+            long from = view.getTime(mRandom.nextInt(view.size()));
+            assertMatchesScan(index, views, from, from + mRandom.nextInt(3) * 60000);
+        }
+    }
+
+    @Test
+    public void findsWhatALinearScanFinds() throws IOException {
+        append(3 * FILE_RECORDS + 500);
+        assertEquals(4, mLog.openViews().size());
+        assertLookupsMatchScan(new HistoryIndex());
+    }
+
+    @Test
+    public void keepsUpWithAppendsAndRotation() throws IOException {
+        HistoryIndex index = new HistoryIndex();
+        append(HistoryIndex.STRIDE / 2);
+        assertLookupsMatchScan(index);
+        for(int i = 0; i < 12; i++){
+            append(mRandom.nextInt(FILE_RECORDS));
+            assertLookupsMatchScan(index);
+        }
+    }
+
+    @Test
+    public void alertsInABlockAreCounted() throws IOException {
+        append(2 * FILE_RECORDS);
+        List<HistoryLog.View> views = mLog.openViews();
+        int alerts = scan(views, Long.MIN_VALUE, Long.MAX_VALUE, true).size();
+        assertTrue(alerts > 0);
+        assertTrue(alerts < views.get(0).size() + views.get(1).size());
+        assertEquals(alerts, new HistoryIndex().findAlerts(views, Long.MIN_VALUE, Long.MAX_VALUE).size());
+    }
+}
@@ -0,0 +1,200 @@
+package uk.me.dewi.android.batteryalarm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class HistoryLogTest {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private File mDir;
+
+    @Before
+    public void setUp() throws IOException {
+        mDir = mFolder.newFolder("history");
+    }
+
+    private static BatterySample sample(int i){
+        BatterySample sample = new BatterySample();
+        sample.time = 1262304000000L + i * 60000L;
+        sample.level = 100 - i % 100;
+        sample.scale = 100;
+        sample.plugType = i % 3;
+        sample.plugged = sample.plugType != 0;
+        sample.temperature = -50 + i % 600;
+        sample.voltage = 3500 + i % 700;
+        sample.health = 2;
+        sample.flags = i % 5 == 0 ? 1 << (i % 6) : 0;
+        return sample;
+    }
+
+    private static void assertSample(int i, BatterySample actual){
+        BatterySample expected = sample(i);
+        assertTrue("sample " + i + " " + actual, HistoryCodec.sameRecord(expected, actual));
+        assertEquals(expected.plugged, actual.plugged);
+    }
+
+    /**
+     * @return the number of the first sample in the log, checking that
+     * the rest follow it in order
+     */
+    private static int assertInOrder(List<HistoryLog.View> views){
+        BatterySample sample = new BatterySample();
+        int first = -1;
+        int next = -1;
+        for(HistoryLog.View view : views){
+            for(int i = 0; i < view.size(); i++){
+                view.get(i, sample);
+                int number = (int)((sample.time - 1262304000000L) / 60000);
+                if(first < 0){
+                    first = next = number;
+                }
+                assertEquals(next++, number);
+                assertSample(number, sample);
+                assertEquals(sample.flags, view.getFlags(i));
+                assertEquals(sample.level, view.getLevel(i));
+                assertEquals(sample.plugged, view.isPlugged(i));
+            }
+        }
+        return first;
+    }
+
+    private static int size(List<HistoryLog.View> views){
+        int size = 0;
+        for(HistoryLog.View view : views){
+            size += view.size();
+        }
+        return size;
+    }
+
+    @Test
+    public void bufferKeepsTheNewestSamples(){
+        HistoryBuffer buffer = new HistoryBuffer(8);
+        BatterySample sample = new BatterySample();
+        assertFalse(buffer.getLatest(sample));
+        for(int i = 0; i < 13; i++){
+            buffer.add(sample(i));
+        }
+        assertEquals(8, buffer.size());
+        assertEquals(8, buffer.unflushed());
+        for(int i = 0; i < 8; i++){
+            buffer.get(i, sample);
+            assertSample(5 + i, sample);
+        }
+        assertTrue(buffer.getLatest(sample));
+        assertSample(12, sample);
+
+        buffer.markFlushed();
+        assertEquals(0, buffer.unflushed());
+        buffer.add(sample(13));
+        assertEquals(1, buffer.unflushed());
+        assertEquals(8, buffer.size());
+    }
+
+    @Test
+    public void appendsAndFlushesReadBack() throws IOException {
+        HistoryLog log = new HistoryLog(mDir, "history");
+        HistoryBuffer buffer = new HistoryBuffer(100);
+        for(int i = 0; i < 250; i++){
+            buffer.add(sample(i));
+            if(i % 70 == 69){
+                log.flush(buffer);
+                assertEquals(0, buffer.unflushed());
+            }
+        }
+        log.flush(buffer);
+        log.flush(buffer);
+        for(int i = 250; i < 260; i++){
+            log.append(sample(i));
+        }
+
+        List<HistoryLog.View> views = log.openViews();
+        assertEquals(1, views.size());
+        assertEquals(260, views.get(0).size());
+        assertEquals(0, assertInOrder(views));
+        assertEquals(HistoryLog.HEADER_SIZE + 260 * HistoryLog.RECORD_SIZE, log.getFile(0).length());
+    }
+
+    @Test
+    public void rotatesAndKeepsOnlyTheNewestFiles() throws IOException {
+        int perFile = 100;
+        HistoryLog log = new HistoryLog(mDir, "history", HistoryLog.HEADER_SIZE + perFile * HistoryLog.RECORD_SIZE, 3);
+        for(int i = 0; i < 1000; i++){
+            log.append(sample(i));
+        }
+        List<HistoryLog.View> views = log.openViews();
+        assertEquals(3, views.size());
+        for(HistoryLog.View view : views){
+            assertTrue(view.size() <= perFile);
+        }
+        int first = assertInOrder(views);
+        assertEquals(1000, first + size(views));
+        assertFalse(log.getFile(3).exists());
+    }
+
+    @Test
+    public void dropsARecordLeftHalfWritten() throws IOException {
+        HistoryLog log = new HistoryLog(mDir, "history");
+        for(int i = 0; i < 10; i++){
+            log.append(sample(i));
+        }
+        RandomAccessFile raf = new RandomAccessFile(log.getFile(0), "rw");
+        raf.setLength(raf.length() - 7);
+        raf.close();
+
+        assertEquals(9, log.openViews().get(0).size());
+        log.append(sample(9));
+        log.append(sample(10));
+        List<HistoryLog.View> views = log.openViews();
+        assertEquals(11, views.get(0).size());
+        assertEquals(0, assertInOrder(views));
+    }
+
+    @Test
+    public void startsAgainOverAFileThatIsNotALog() throws IOException {
+        HistoryLog log = new HistoryLog(mDir, "history");
+        RandomAccessFile raf = new RandomAccessFile(log.getFile(0), "rw");
+        raf.write("not a battery history at all".getBytes());
+        raf.close();
+        assertNull(HistoryLog.View.open(log.getFile(0)));
+        assertTrue(log.openViews().isEmpty());
+
+        log.append(sample(0));
+        List<HistoryLog.View> views = log.openViews();
+        assertEquals(1, views.get(0).size());
+        assertEquals(0, assertInOrder(views));
+    }
+
+    @Test
+    public void exportsEverySampleOldestFirst() throws IOException {
+        HistoryLog log = new HistoryLog(mDir, "history", HistoryLog.HEADER_SIZE + 100 * HistoryLog.RECORD_SIZE, 4);
+        for(int i = 0; i < 300; i++){
+            log.append(sample(i));
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertEquals(300, HistoryCodec.export(log.openViews(), out));
+
+        HistoryCodec.Reader reader = new HistoryCodec.Reader(new ByteArrayInputStream(out.toByteArray()));
+        BatterySample sample = new BatterySample();
+        for(int i = 0; i < 300; i++){
+            assertTrue(reader.next(sample));
+            assertSample(i, sample);
+        }
+        assertFalse(reader.next(sample));
+    }
+}
@@ -0,0 +1,47 @@
+package uk.me.dewi.android.batteryalarm;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Preferences held in a map, standing in for SharedPreferences.
+ */
+public class MapPreferences implements AlarmConfig.Preferences {
+
+    private final Map<String, Object> mValues = new HashMap<String, Object>();
+
+    /** The keys reported as bad, in the order they were parsed. */
+    public final List<String> badKeys = new ArrayList<String>();
+
+    public MapPreferences put(String key, Object value){
+        mValues.put(key, value);
+        return this;
+    }
+
+    public String getString(String key, String defValue) {
+        Object value = mValues.get(key);
+        return value != null ? value.toString() : defValue;
+    }
+
+    public boolean getBoolean(String key, boolean defValue) {
+        Object value = mValues.get(key);
+        return value != null ? (Boolean)value : defValue;
+    }
+
+    public void onBadValue(String key, String value) {
+        badKeys.add(key);
+    }
+
+    /**
+     * @return empty preferences for the main settings and each profile
+     */
+    public static MapPreferences[] forProfiles(){
+        MapPreferences[] settings = new MapPreferences[AlarmConfig.PROFILE_COUNT + 1];
+        for(int i = 0; i < settings.length; i++){
+            settings[i] = new MapPreferences();
+        }
+        return settings;
+    }
+}
@@ -0,0 +1,139 @@
+package uk.me.dewi.android.batteryalarm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static uk.me.dewi.android.batteryalarm.MonitorAlarms.CHARGE;
+import static uk.me.dewi.android.batteryalarm.MonitorAlarms.CHECK;
+import static uk.me.dewi.android.batteryalarm.MonitorAlarms.DEADLINE;
+import static uk.me.dewi.android.batteryalarm.MonitorAlarms.SUSPENDED;
+import static uk.me.dewi.android.batteryalarm.MonitorScheduler.MINUTE;
+import static uk.me.dewi.android.batteryalarm.MonitorScheduler.NO_CHECK;
+
+import org.junit.Test;
+
+public class MonitorAlarmsTest {
+
+    private static final long DELAY = 20 * MINUTE;
+
+    /**
+     * Stands in for the AlarmManager and the PendingIntents, which the
+     * system keeps when the process dies.
+     */
+    static class FakeAlarms implements MonitorAlarms.Alarms {
+        final boolean[] exists = new boolean[4];
+        final long[] delay = new long[4];
+        final boolean[] wakeup = new boolean[4];
+        int sets;
+
+        public boolean exists(int alarm) {
+            return exists[alarm];
+        }
+
+        public void set(int alarm, long delayMillis, long intervalMillis, boolean wakeupRequired) {
+            exists[alarm] = true;
+            delay[alarm] = delayMillis;
+            wakeup[alarm] = wakeupRequired;
+            sets++;
+        }
+
+        public void mark(int alarm) {
+            exists[alarm] = true;
+        }
+
+        public void cancel(int alarm) {
+            assertTrue(exists[alarm]);
+            exists[alarm] = false;
+        }
+    }
+
+    private static void assertNoAlarms(FakeAlarms alarms){
+        for(int alarm = 0; alarm < alarms.exists.length; alarm++){
+            assertFalse("alarm " + alarm, alarms.exists[alarm]);
+        }
+    }
+
+    @Test
+    public void launchChecksStraightAwayOnce(){
+        FakeAlarms alarms = new FakeAlarms();
+        assertFalse(new MonitorAlarms(alarms).isRunning());
+
+        assertTrue(new MonitorAlarms(alarms).launch(DELAY));
+        assertTrue(alarms.exists[CHECK]);
+        assertEquals(0, alarms.delay[CHECK]);
+        assertTrue(alarms.wakeup[CHECK]);
+
+        // As after the process was killed and the activity opened again
+        assertFalse(new MonitorAlarms(alarms).launch(DELAY));
+        assertEquals(1, alarms.sets);
+    }
+
+    @Test
+    public void suspendedIsStillRunning(){
+        FakeAlarms alarms = new FakeAlarms();
+        MonitorAlarms monitor = new MonitorAlarms(alarms);
+        monitor.launch(DELAY);
+        monitor.suspend();
+        assertFalse(alarms.exists[CHECK]);
+        assertTrue(monitor.isSuspended());
+        assertTrue(new MonitorAlarms(alarms).isRunning());
+        assertFalse(new MonitorAlarms(alarms).launch(DELAY));
+        assertFalse(monitor.reschedule(DELAY, DELAY, false, NO_CHECK));
+        assertFalse(alarms.exists[CHECK]);
+    }
+
+    @Test
+    public void resumingClearsSuspended(){
+        FakeAlarms alarms = new FakeAlarms();
+        MonitorAlarms monitor = new MonitorAlarms(alarms);
+        monitor.suspend();
+        monitor.schedule(DELAY, DELAY, false, 3 * DELAY);
+        assertFalse(monitor.isSuspended());
+        assertTrue(monitor.isRunning());
+        assertTrue(alarms.exists[DEADLINE]);
+        assertEquals(3 * DELAY, alarms.delay[DEADLINE]);
+        assertTrue(alarms.wakeup[DEADLINE]);
+    }
+
+    @Test
+    public void stopClearsEverything(){
+        FakeAlarms alarms = new FakeAlarms();
+        MonitorAlarms monitor = new MonitorAlarms(alarms);
+        monitor.schedule(DELAY, DELAY, false, 3 * DELAY);
+        alarms.set(CHARGE, DELAY, DELAY, false);
+        monitor.stop();
+        assertFalse(monitor.isRunning());
+        assertNoAlarms(alarms);
+
+        monitor.suspend();
+        alarms.set(CHARGE, DELAY, DELAY, false);
+        monitor.stop();
+        assertFalse(monitor.isRunning());
+        assertNoAlarms(alarms);
+        assertTrue(monitor.launch(DELAY));
+    }
+
+    @Test
+    public void checkAfterStopDoesNotRestart(){
+        FakeAlarms alarms = new FakeAlarms();
+        MonitorAlarms monitor = new MonitorAlarms(alarms);
+        monitor.launch(DELAY);
+        monitor.stop();
+        // A check that was already running when monitoring was stopped
+        assertFalse(monitor.reschedule(DELAY, DELAY, true, NO_CHECK));
+        assertFalse(monitor.suspendIfChecking());
+        assertFalse(monitor.isRunning());
+    }
+
+    @Test
+    public void rescheduleMovesTheDeadline(){
+        FakeAlarms alarms = new FakeAlarms();
+        MonitorAlarms monitor = new MonitorAlarms(alarms);
+        monitor.launch(DELAY);
+        assertTrue(monitor.reschedule(2 * DELAY, 2 * DELAY, false, 4 * DELAY));
+        assertFalse(alarms.wakeup[CHECK]);
+        assertEquals(4 * DELAY, alarms.delay[DEADLINE]);
+        assertTrue(monitor.reschedule(DELAY, DELAY, true, NO_CHECK));
+        assertFalse(alarms.exists[DEADLINE]);
+    }
+}
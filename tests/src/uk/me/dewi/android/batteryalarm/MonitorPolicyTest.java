@@ -0,0 +1,44 @@
+package uk.me.dewi.android.batteryalarm;
+
+import static org.junit.Assert.assertEquals;
+import static uk.me.dewi.android.batteryalarm.MonitorPolicy.CHECK;
+import static uk.me.dewi.android.batteryalarm.MonitorPolicy.KEEP;
+import static uk.me.dewi.android.batteryalarm.MonitorPolicy.RESUME;
+import static uk.me.dewi.android.batteryalarm.MonitorPolicy.SUSPEND;
+
+import org.junit.Test;
+
+public class MonitorPolicyTest {
+
+    @Test
+    public void bootStartsOnlyIfWanted(){
+        assertEquals(KEEP, MonitorPolicy.onBoot(false, false, false));
+        assertEquals(KEEP, MonitorPolicy.onBoot(false, true, true));
+        assertEquals(RESUME, MonitorPolicy.onBoot(true, false, false));
+        assertEquals(RESUME, MonitorPolicy.onBoot(true, false, true));
+    }
+
+    @Test
+    public void bootOnAChargerSuspendsUnlessARuleAppliesThere(){
+        assertEquals(SUSPEND, MonitorPolicy.onBoot(true, true, false));
+        assertEquals(RESUME, MonitorPolicy.onBoot(true, true, true));
+    }
+
+    @Test
+    public void powerChangesLeaveMonitoringOffAlone(){
+        assertEquals(KEEP, MonitorPolicy.onPowerChanged(false, true, false));
+        assertEquals(KEEP, MonitorPolicy.onPowerChanged(false, false, true));
+    }
+
+    @Test
+    public void pluggingInSuspendsUnlessARuleAppliesThere(){
+        assertEquals(SUSPEND, MonitorPolicy.onPowerChanged(true, true, false));
+        assertEquals(CHECK, MonitorPolicy.onPowerChanged(true, true, true));
+    }
+
+    @Test
+    public void unpluggingResumes(){
+        assertEquals(RESUME, MonitorPolicy.onPowerChanged(true, false, false));
+        assertEquals(RESUME, MonitorPolicy.onPowerChanged(true, false, true));
+    }
+}
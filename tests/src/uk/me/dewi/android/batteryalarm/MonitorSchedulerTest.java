@@ -0,0 +1,240 @@
+package uk.me.dewi.android.batteryalarm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static uk.me.dewi.android.batteryalarm.MonitorScheduler.HOUR;
+import static uk.me.dewi.android.batteryalarm.MonitorScheduler.MINUTE;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class MonitorSchedulerTest {
+
+    private static final int THRESHOLD = 15;
+    private static final long DELAY = 20 * MINUTE;
+
+    @Test
+    public void checksAtTheDelayOnceBelowTheThreshold(){
+        MonitorScheduler scheduler = new MonitorScheduler();
+        assertEquals(DELAY, scheduler.onSample(0, THRESHOLD, false, THRESHOLD, DELAY));
+        assertTrue(scheduler.isWakeupRequired());
+        assertEquals(DELAY, scheduler.onSample(DELAY, 5, false, THRESHOLD, DELAY));
+        assertTrue(scheduler.isWakeupRequired());
+    }
+
+    @Test
+    public void stopsWhilePlugged(){
+        MonitorScheduler suspending = new MonitorScheduler(true);
+        assertEquals(MonitorScheduler.NO_CHECK, suspending.onSample(0, 50, true, THRESHOLD, DELAY));
+        assertFalse(suspending.isWakeupRequired());
+
+        MonitorScheduler polling = new MonitorScheduler(false);
+        assertEquals(MonitorScheduler.MAX_DELAY, polling.onSample(0, 50, true, THRESHOLD, DELAY));
+        assertFalse(polling.isWakeupRequired());
+    }
+
+    @Test
+    public void keepsCheckingWhilePluggedForChargerRules(){
+        for(int suspend = 0; suspend < 2; suspend++){
+            MonitorScheduler scheduler = new MonitorScheduler(suspend == 1);
+            scheduler.setCheckWhilePlugged(true);
+            assertEquals(DELAY, scheduler.onSample(0, 50, true, THRESHOLD, DELAY));
+            assertTrue(scheduler.isWakeupRequired());
+            assertEquals(MonitorScheduler.NO_CHECK, scheduler.getDeadline());
+        }
+    }
+
+    @Test
+    public void chargedRuleAlertsWhileCharging() throws Exception {
+        List<BatteryTrace> traces = new ArrayList<BatteryTrace>();
+        for(int i = 0; i < 5; i++){
+            traces.add(BatteryTrace.synthetic(i, 7, 0));
+        }
+        TraceSimulator.Settings settings = new TraceSimulator.Settings();
+        TraceSimulator.Result suspended = TraceSimulator.replayAll(traces, settings, 0);
+        settings.chargedLevel = 90;
+        TraceSimulator.Result charging = TraceSimulator.replayAll(traces, settings, 0);
+        assertTrue(charging.checks > suspended.checks);
+        assertTrue(charging.alerts > suspended.alerts);
+    }
+
+    @Test
+    public void farFromTheThresholdDoesNotWake(){
+        MonitorScheduler scheduler = new MonitorScheduler();
+        long delay = scheduler.onSample(0, 90, false, THRESHOLD, DELAY);
+        assertFalse(scheduler.isWakeupRequired());
+        assertTrue(delay > DELAY);
+        assertTrue(delay <= MonitorScheduler.millisAtMaxDrain(90, THRESHOLD));
+    }
+
+    @Test
+    public void slowDrainDoesNotStretchPastTheFastestDrain(){
+        MonitorScheduler scheduler = new MonitorScheduler();
+        // One percent in four hours, a very slow estimate
+        scheduler.onSample(0, 61, false, THRESHOLD, DELAY);
+        long delay = scheduler.onSample(4 * HOUR, 60, false, THRESHOLD, DELAY);
+        assertTrue(scheduler.getEstimator().getDrainPerHour() < 1);
+        assertEquals(MonitorScheduler.millisAtMaxDrain(60, THRESHOLD), delay);
+    }
+
+    @Test
+    public void neverWaitsLongerThanTheThresholdCouldBeReached(){
+        for(int level = THRESHOLD + 1; level <= 100; level++){
+            for(int drop = 0; drop <= 10; drop++){
+                MonitorScheduler scheduler = new MonitorScheduler();
+                scheduler.onSample(0, Math.min(level + drop, 100), false, THRESHOLD, DELAY);
+                long delay = scheduler.onSample(HOUR, level, false, THRESHOLD, DELAY);
+
+                long untilWorst = MonitorScheduler.millisAtMaxDrain(level, THRESHOLD);
+                assertTrue(delay <= Math.max(untilWorst, DELAY));
+                assertTrue(delay <= MonitorScheduler.MAX_DELAY);
+                if(!scheduler.isWakeupRequired()){
+                    assertTrue(untilWorst > DELAY);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void checksThatDoNotWakeHaveADeadline(){
+        MonitorScheduler scheduler = new MonitorScheduler();
+        scheduler.onSample(0, 90, false, THRESHOLD, DELAY);
+        assertFalse(scheduler.isWakeupRequired());
+        assertEquals(MonitorScheduler.millisAtMaxDrain(90, THRESHOLD) + DELAY, scheduler.getDeadline());
+
+        scheduler.onSample(HOUR, THRESHOLD + 1, false, THRESHOLD, DELAY);
+        assertTrue(scheduler.isWakeupRequired());
+        assertEquals(MonitorScheduler.NO_CHECK, scheduler.getDeadline());
+
+        scheduler.onSample(2 * HOUR, 50, true, THRESHOLD, DELAY);
+        assertEquals(MonitorScheduler.NO_CHECK, scheduler.getDeadline());
+    }
+
+    @Test
+    public void profileStretchesQuietHoursWithinTheMargin(){
+        MonitorScheduler scheduler = new MonitorScheduler();
+        DrainProfile profile = new DrainProfile();
+        scheduler.setProfile(profile);
+        // A day of almost nothing draining
+        for(long t = 0; t <= 24 * HOUR; t += HOUR){
+            scheduler.onSample(t, t, 90 - (int)(t / (8 * HOUR)), false, THRESHOLD, DELAY);
+        }
+        long local = 25 * HOUR;
+        long delay = scheduler.onSample(local, local, 86, false, THRESHOLD, DELAY);
+        assertFalse(scheduler.isWakeupRequired());
+        assertEquals(MonitorScheduler.MAX_DELAY, delay);
+        assertTrue(delay > MonitorScheduler.millisAtMaxDrain(86, THRESHOLD));
+
+        // The deadline is how long the threshold would take at the margin
+        long untilLate = profile.millisUntil(local, 86, THRESHOLD, 
+                                             scheduler.getEstimator().getDrainPerHour(), 
+                                             MonitorScheduler.ASSUMED_DRAIN_PER_HOUR, 
+                                             MonitorScheduler.PROFILE_MARGIN);
+        assertEquals(untilLate + DELAY, scheduler.getDeadline());
+        assertTrue(scheduler.getDeadline() > MonitorScheduler.deadline(86, THRESHOLD, DELAY));
+    }
+
+    @Test
+    public void profileDoesNotStretchBusyHours(){
+        MonitorScheduler scheduler = new MonitorScheduler();
+        scheduler.setProfile(new DrainProfile());
+        // Nothing learned yet and draining fast
+        scheduler.onSample(0, 0, 90, false, THRESHOLD, DELAY);
+        long delay = scheduler.onSample(HOUR, HOUR, 80, false, THRESHOLD, DELAY);
+        assertTrue(delay <= MonitorScheduler.millisAtMaxDrain(80, THRESHOLD));
+        assertTrue(scheduler.getDeadline() <= MonitorScheduler.deadline(80, THRESHOLD, DELAY));
+    }
+
+    @Test
+    public void firstDelay(){
+        assertEquals(0, MonitorScheduler.firstDelay(THRESHOLD, THRESHOLD, DELAY));
+        assertEquals(DELAY, MonitorScheduler.firstDelay(THRESHOLD + 1, THRESHOLD, DELAY));
+        assertEquals(MonitorScheduler.millisAtMaxDrain(50, THRESHOLD), MonitorScheduler.firstDelay(50, THRESHOLD, DELAY));
+        assertEquals(MonitorScheduler.MAX_DELAY, MonitorScheduler.firstDelay(100, 0, DELAY));
+        assertTrue(MonitorScheduler.isNear(THRESHOLD + 1, THRESHOLD, DELAY));
+        assertFalse(MonitorScheduler.isNear(50, THRESHOLD, DELAY));
+    }
+
+    @Test
+    public void wakesLessThanTheFixedDelayWithoutMissingMore() throws Exception {
+        List<BatteryTrace> traces = new ArrayList<BatteryTrace>();
+        for(int i = 0; i < 20; i++){
+            traces.add(BatteryTrace.synthetic(i, 28, 0));
+        }
+        TraceSimulator.Settings settings = new TraceSimulator.Settings();
+        settings.fixedSchedule = true;
+        TraceSimulator.Result fixed = TraceSimulator.replayAll(traces, settings, 0);
+
+        settings.fixedSchedule = false;
+        settings.useDrainProfile = false;
+        TraceSimulator.Result scheduled = TraceSimulator.replayAll(traces, settings, 0);
+
+        assertTrue(fixed.lowEvents > 0);
+        assertTrue(scheduled.wakeups * 5 < fixed.wakeups);
+        assertTrue(scheduled.missed <= fixed.missed);
+    }
+
+    @Test
+    public void profileWakesLessWithoutMissingMore() throws Exception {
+        List<BatteryTrace> traces = new ArrayList<BatteryTrace>();
+        for(int i = 0; i < 20; i++){
+            traces.add(BatteryTrace.synthetic(i, 28, 0));
+        }
+        TraceSimulator.Settings settings = new TraceSimulator.Settings();
+        settings.fixedSchedule = true;
+        TraceSimulator.Result fixed = TraceSimulator.replayAll(traces, settings, 0);
+
+        settings.fixedSchedule = false;
+        settings.useDrainProfile = false;
+        TraceSimulator.Result rateOnly = TraceSimulator.replayAll(traces, settings, 0);
+
+        settings.useDrainProfile = true;
+        TraceSimulator.Result profile = TraceSimulator.replayAll(traces, settings, 0);
+
+        assertTrue(fixed.lowEvents > 0);
+        assertTrue(profile.wakeups < rateOnly.wakeups);
+        assertTrue(profile.missed <= fixed.missed);
+    }
+
+    @Test
+    public void bootDelayWaitsForTheDeviceToSettle(){
+        // Already low, so only the settling time holds the check back
+        assertEquals(MonitorScheduler.BOOT_SETTLE, MonitorScheduler.bootDelay(10, THRESHOLD, DELAY, 0f));
+        assertEquals(MonitorScheduler.BOOT_SETTLE, MonitorScheduler.bootDelay(THRESHOLD, THRESHOLD, 0, 0f));
+        // A full battery waits as long as it would have anyway
+        assertEquals(MonitorScheduler.MAX_DELAY, MonitorScheduler.bootDelay(100, THRESHOLD, DELAY, 0f));
+        assertEquals(MonitorScheduler.firstDelay(30, THRESHOLD, DELAY), MonitorScheduler.bootDelay(30, THRESHOLD, DELAY, 0f));
+    }
+
+    @Test
+    public void bootDelayIsSpreadByTheJitter(){
+        long settle = MonitorScheduler.BOOT_SETTLE;
+        assertEquals(settle + MonitorScheduler.BOOT_JITTER, MonitorScheduler.bootDelay(10, THRESHOLD, DELAY, 1f));
+        assertEquals(settle + MonitorScheduler.BOOT_JITTER / 2, MonitorScheduler.bootDelay(10, THRESHOLD, DELAY, 0.5f));
+        long last = -1;
+        for(int i = 0; i <= 100; i++){
+            long delay = MonitorScheduler.bootDelay(100, THRESHOLD, DELAY, i / 100f);
+            assertTrue(delay > last);
+            assertTrue(delay <= MonitorScheduler.MAX_DELAY + MonitorScheduler.BOOT_JITTER);
+            last = delay;
+        }
+    }
+
+    @Test
+    public void checksWithinTheDelayOfReachingTheThreshold() throws Exception {
+        List<BatteryTrace> traces = new ArrayList<BatteryTrace>();
+        for(int i = 0; i < 20; i++){
+            traces.add(BatteryTrace.synthetic(100 + i, 28, 0));
+        }
+        TraceSimulator.Settings settings = new TraceSimulator.Settings();
+        for(int profile = 0; profile < 2; profile++){
+            settings.useDrainProfile = profile == 1;
+            TraceSimulator.Result result = TraceSimulator.replayAll(traces, settings, 0);
+            assertTrue(result.checkLatency.getCount() > 0);
+            assertTrue(result.checkLatency.getMax() < settings.delayMinutes);
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package uk.me.dewi.android.batteryalarm;
+
+import static org.junit.Assert.assertEquals;
+import static uk.me.dewi.android.batteryalarm.ProfileTable.*;
+import static uk.me.dewi.android.batteryalarm.TimeWindow.MILLIS_PER_MINUTE;
+import static uk.me.dewi.android.batteryalarm.TimeWindow.MINUTES_PER_DAY;
+
+import org.junit.Test;
+
+public class ProfileTableTest {
+
+    private static final int MONDAY = 1;
+    private static final int FRIDAY = 1 << 4;
+    private static final int SUNDAY = 1 << 6;
+
+    private static int minute(int day, int hour, int minute){
+        return day * MINUTES_PER_DAY + hour * 60 + minute;
+    }
+
+    @Test
+    public void minuteOfWeekCountsFromMondayInLocalTime(){
+        assertEquals(0, minuteOfWeek(FakeClock.MONDAY, 0));
+        assertEquals(minute(3, 0, 0), minuteOfWeek(0, 0));
+        assertEquals(minute(0, 10, 30), minuteOfWeek(FakeClock.MONDAY + 630 * MILLIS_PER_MINUTE, 0));
+        // The last millisecond of a minute is still in it
+        assertEquals(minute(0, 10, 30), minuteOfWeek(FakeClock.MONDAY + 631 * MILLIS_PER_MINUTE - 1, 0));
+
+        assertEquals(minute(0, 2, 0), minuteOfWeek(FakeClock.MONDAY, (int)(120 * MILLIS_PER_MINUTE)));
+        assertEquals(minute(6, 23, 0), minuteOfWeek(FakeClock.MONDAY, (int)(-60 * MILLIS_PER_MINUTE)));
+        // Before the epoch
+        assertEquals(minute(2, 23, 59), minuteOfWeek(-1, 0));
+        assertEquals(minute(2, 23, 59), minuteOfWeek(-MILLIS_PER_MINUTE, 0));
+        assertEquals(minute(2, 23, 58), minuteOfWeek(-MILLIS_PER_MINUTE - 1, 0));
+        assertEquals(minute(3, 0, 0), minuteOfWeek(-7 * TimeWindow.MILLIS_PER_DAY, 0));
+        assertEquals(minute(3, 0, 0), minuteOfWeek(-MILLIS_PER_MINUTE, (int)MILLIS_PER_MINUTE));
+    }
+
+    @Test
+    public void defaultIsAlwaysTheDefaultProfile(){
+        for(int minute = 0; minute < MINUTES_PER_WEEK; minute++){
+            assertEquals(DEFAULT_PROFILE, DEFAULT.get(minute));
+        }
+        assertEquals(DEFAULT_PROFILE, DEFAULT.get(new FakeClock(-1)));
+    }
+
+    @Test
+    public void lowestProfileWinsWhereSchedulesOverlap(){
+        ProfileTable table = ProfileTable.compile(
+                new int[] { EVERY_DAY, EVERY_DAY, MONDAY, EVERY_DAY },
+                new TimeWindow[] { null, new TimeWindow(9 * 60, 12 * 60), new TimeWindow(8 * 60, 18 * 60), null });
+        assertEquals(DEFAULT_PROFILE, table.get(minute(0, 7, 59)));
+        assertEquals(2, table.get(minute(0, 8, 0)));
+        assertEquals(1, table.get(minute(0, 9, 0)));
+        assertEquals(1, table.get(minute(0, 11, 59)));
+        assertEquals(2, table.get(minute(0, 12, 0)));
+        assertEquals(2, table.get(minute(0, 17, 59)));
+        assertEquals(DEFAULT_PROFILE, table.get(minute(0, 18, 0)));
+        assertEquals(1, table.get(minute(1, 10, 0)));
+        assertEquals(DEFAULT_PROFILE, table.get(minute(1, 13, 0)));
+    }
+
+    @Test
+    public void windowsPastMidnightBelongToTheDayTheyStart(){
+        ProfileTable table = ProfileTable.compile(
+                new int[] { 0, FRIDAY | SUNDAY },
+                new TimeWindow[] { null, new TimeWindow(22 * 60, 6 * 60) });
+        assertEquals(DEFAULT_PROFILE, table.get(minute(4, 5, 0)));
+        assertEquals(1, table.get(minute(4, 22, 0)));
+        assertEquals(1, table.get(minute(5, 5, 59)));
+        assertEquals(DEFAULT_PROFILE, table.get(minute(5, 6, 0)));
+        assertEquals(DEFAULT_PROFILE, table.get(minute(5, 23, 0)));
+        // Sunday night runs into Monday morning
+        assertEquals(1, table.get(minute(6, 23, 0)));
+        assertEquals(1, table.get(minute(0, 3, 0)));
+        assertEquals(DEFAULT_PROFILE, table.get(minute(0, 6, 0)));
+    }
+
+    @Test
+    public void sameStartAndEndIsTheWholeDay(){
+        ProfileTable table = ProfileTable.compile(
+                new int[] { 0, SUNDAY, 0 },
+                new TimeWindow[] { null, new TimeWindow(0, 0), new TimeWindow(0, 0) });
+        assertEquals(DEFAULT_PROFILE, table.get(minute(5, 23, 59)));
+        assertEquals(1, table.get(minute(6, 0, 0)));
+        assertEquals(1, table.get(minute(6, 23, 59)));
+        assertEquals(DEFAULT_PROFILE, table.get(minute(0, 0, 0)));
+    }
+
+    @Test
+    public void looksUpTheClockInLocalTime(){
+        ProfileTable table = ProfileTable.compile(
+                new int[] { 0, MONDAY },
+                new TimeWindow[] { null, new TimeWindow(9 * 60, 17 * 60) });
+        FakeClock clock = new FakeClock(FakeClock.MONDAY + 8 * 60 * MILLIS_PER_MINUTE);
+        assertEquals(DEFAULT_PROFILE, table.get(clock));
+        clock.offset = (int)(60 * MILLIS_PER_MINUTE);
+        assertEquals(1, table.get(clock));
+    }
+}
@@ -0,0 +1,83 @@
+package uk.me.dewi.android.batteryalarm;
+
+import static org.junit.Assert.assertEquals;
+import static uk.me.dewi.android.batteryalarm.AlarmPrefs.*;
+import static uk.me.dewi.android.batteryalarm.SettingsChanges.*;
+
+import org.junit.Test;
+
+public class SettingsChangesTest {
+
+    @Test
+    public void eachSettingOnlyDoesWhatItNeeds(){
+        assertEquals(APPLY_CONFIG, getWork(PREF_NOTIFICATION_SOUND));
+        assertEquals(APPLY_CONFIG, getWork(PREF_LAUNCH_ON_STARTUP));
+        assertEquals(APPLY_CONFIG | APPLY_START_STOP, getWork(PREF_ENABLED));
+        assertEquals(APPLY_CONFIG | APPLY_RESCHEDULE | APPLY_STATUS, getWork(PREF_THRESHOLD));
+        assertEquals(APPLY_CONFIG | APPLY_RESCHEDULE, getWork(PREF_DELAY_MINUTES));
+        assertEquals(APPLY_CONFIG | APPLY_RESCHEDULE, getWork(PREF_MAX_TIME));
+        assertEquals(APPLY_CONFIG | APPLY_RESCHEDULE, getWork(PREF_PROFILE_DAYS[3]));
+        assertEquals(APPLY_CONFIG | APPLY_RESCHEDULE, getWork(PREF_CHARGED_LEVEL));
+        assertEquals(APPLY_CONFIG | APPLY_STATUS, getWork(PREF_SHOW_STATUS));
+        assertEquals(APPLY_CONFIG, getWork("somethingElse"));
+    }
+
+    @Test
+    public void aBurstOfEditsIsAppliedOnce(){
+        SettingsChanges changes = new SettingsChanges();
+        String[] keys = { PREF_THRESHOLD, PREF_DELAY_MINUTES, PREF_MIN_TIME, PREF_MAX_TIME, PREF_NOTIFICATION_SOUND };
+        int applied = 0;
+        // Twenty edits a fifth of a second apart, checked for work every 100ms
+        long now = 0;
+        for(int i = 0; i < 20; i++){
+            changes.add(now, keys[i % keys.length]);
+            for(int tick = 0; tick < 2; tick++){
+                now += 100;
+                if(changes.take(now, false) != 0){
+                    applied++;
+                }
+            }
+        }
+        assertEquals(0, applied);
+        assertEquals(20, changes.getCount());
+
+        for(int tick = 0; tick < 20; tick++){
+            now += 100;
+            int work = changes.take(now, false);
+            if(work != 0){
+                assertEquals(APPLY_CONFIG | APPLY_RESCHEDULE | APPLY_STATUS, work);
+                applied++;
+            }
+        }
+        // One config write and one reschedule for the lot
+        assertEquals(1, applied);
+        assertEquals(0, changes.getCount());
+    }
+
+    @Test
+    public void reportsWhenTheWorkIsDue(){
+        SettingsChanges changes = new SettingsChanges();
+        assertEquals(-1, changes.getDelay(0));
+        assertEquals(0, changes.take(5000, true));
+
+        changes.add(1000, PREF_SHOW_STATUS);
+        assertEquals(DEBOUNCE, changes.getDelay(1000));
+        changes.add(1400, PREF_ENABLED);
+        assertEquals(DEBOUNCE, changes.getDelay(1400));
+        assertEquals(DEBOUNCE - 300, changes.getDelay(1700));
+        assertEquals(0, changes.getDelay(1400 + DEBOUNCE + 1));
+
+        assertEquals(0, changes.take(1400 + DEBOUNCE - 1, false));
+        assertEquals(APPLY_CONFIG | APPLY_STATUS | APPLY_START_STOP, changes.take(1400 + DEBOUNCE, false));
+        assertEquals(-1, changes.getDelay(1400 + DEBOUNCE));
+    }
+
+    @Test
+    public void forceTakesTheWorkStraightAway(){
+        SettingsChanges changes = new SettingsChanges();
+        changes.add(0, PREF_DELAY_MINUTES);
+        assertEquals(0, changes.take(1, false));
+        assertEquals(APPLY_CONFIG | APPLY_RESCHEDULE, changes.take(1, true));
+        assertEquals(0, changes.take(DEBOUNCE * 2, false));
+    }
+}
@@ -0,0 +1,76 @@
+package uk.me.dewi.android.batteryalarm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static uk.me.dewi.android.batteryalarm.StatusCache.*;
+
+import org.junit.Test;
+
+public class StatusCacheTest {
+
+    private static final long MINUTE = MonitorScheduler.MINUTE;
+
+    @Test
+    public void roundsTheFurtherAwayTheCoarser(){
+        assertEquals(UNKNOWN, round(Integer.MAX_VALUE));
+        assertEquals(UNKNOWN, round(-5));
+        assertEquals(0, round(2));
+        assertEquals(5, round(3));
+        assertEquals(60, round(59));
+        assertEquals(60, round(67));
+        assertEquals(75, round(68));
+        assertEquals(600, round(599));
+        assertEquals(600, round(629));
+        assertEquals(660, round(630));
+    }
+
+    @Test
+    public void pushesTheFirstStatusAndThenOnlyChanges(){
+        StatusCache cache = new StatusCache();
+        assertFalse(cache.hasLevel());
+        assertTrue(cache.update(0, 80, Integer.MAX_VALUE, STATE_MONITORING));
+        assertTrue(cache.hasLevel());
+        cache.onPushed(0);
+        assertFalse(cache.update(MINUTE, 80, Integer.MAX_VALUE, STATE_MONITORING));
+        // Until pushed it stays due
+        assertTrue(cache.update(2 * MINUTE, 79, Integer.MAX_VALUE, STATE_MONITORING));
+        assertTrue(cache.update(3 * MINUTE, 79, Integer.MAX_VALUE, STATE_MONITORING));
+        cache.onPushed(3 * MINUTE);
+        assertFalse(cache.update(4 * MINUTE, 79, Integer.MAX_VALUE, STATE_MONITORING));
+        assertTrue(cache.update(5 * MINUTE, 79, Integer.MAX_VALUE, STATE_CHARGING));
+    }
+
+    @Test
+    public void throttlesChangesOfOnlyTheTimeLeft(){
+        StatusCache cache = new StatusCache();
+        cache.update(0, 50, 300, STATE_MONITORING);
+        cache.onPushed(0);
+        assertEquals(300, cache.getMinutesLeft());
+        // Wobbles within the rounding are not changes at all
+        assertFalse(cache.update(MINUTE, 50, 305, STATE_MONITORING));
+        assertFalse(cache.update(2 * MINUTE, 50, 280, STATE_MONITORING));
+        assertEquals(285, cache.getMinutesLeft());
+        assertTrue(cache.update(THROTTLE, 50, 280, STATE_MONITORING));
+        cache.onPushed(THROTTLE);
+
+        // A new level goes straight out whatever the time left
+        assertTrue(cache.update(THROTTLE + MINUTE, 49, 200, STATE_MONITORING));
+        cache.onPushed(THROTTLE + MINUTE);
+        assertEquals(195, cache.getMinutesLeft());
+    }
+
+    @Test
+    public void setStateKeepsTheLevel(){
+        StatusCache cache = new StatusCache();
+        cache.update(0, 12, 40, STATE_MONITORING);
+        cache.onPushed(0);
+        assertFalse(cache.setState(MINUTE, STATE_MONITORING));
+        assertTrue(cache.setState(MINUTE, STATE_ALERTING));
+        cache.onPushed(MINUTE);
+        assertEquals(12, cache.getLevel());
+        assertEquals(40, cache.getMinutesLeft());
+        assertEquals(STATE_ALERTING, cache.getState());
+        assertFalse(cache.update(2 * MINUTE, 12, 40, STATE_ALERTING));
+    }
+}
@@ -0,0 +1,113 @@
+package uk.me.dewi.android.batteryalarm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static uk.me.dewi.android.batteryalarm.TimeWindow.MILLIS_PER_DAY;
+import static uk.me.dewi.android.batteryalarm.TimeWindow.MILLIS_PER_MINUTE;
+import static uk.me.dewi.android.batteryalarm.TimeWindow.MINUTES_PER_DAY;
+
+import org.junit.Test;
+
+public class TimeWindowTest {
+
+    private static final int DEFAULT = 123;
+
+    private static class FixedClock implements Clock {
+        final long time;
+        final int offset;
+
+        FixedClock(long time, int offset){
+            this.time = time;
+            this.offset = offset;
+        }
+
+        public long currentTimeMillis() {
+            return time;
+        }
+
+        public long elapsedRealtime() {
+            return time;
+        }
+
+        public int getOffset(long millis) {
+            return offset;
+        }
+    }
+
+    @Test
+    public void parsesTimesOfDay(){
+        assertEquals(0, TimeWindow.parseMinuteOfDay("0:00", DEFAULT));
+        assertEquals(9 * 60 + 5, TimeWindow.parseMinuteOfDay("9:05", DEFAULT));
+        assertEquals(9 * 60 + 5, TimeWindow.parseMinuteOfDay("09:5", DEFAULT));
+        assertEquals(9 * 60 + 5, TimeWindow.parseMinuteOfDay(" 9:05 ", DEFAULT));
+        assertEquals(MINUTES_PER_DAY - 1, TimeWindow.parseMinuteOfDay("23:59", DEFAULT));
+    }
+
+    @Test
+    public void fallsBackToTheDefaultForAnythingElse(){
+        String[] bad = {
+            null, "", " ", "9", "9:", ":30", "25:99", "24:00", "9:60", "-1:00", "9:-1",
+            "123:00", "9:005", "nine:30", "9:3O", "9.30", "99999999999:00"
+        };
+        for(String time : bad){
+            assertEquals(time, DEFAULT, TimeWindow.parseMinuteOfDay(time, DEFAULT));
+        }
+    }
+
+    @Test
+    public void parseUsesMidnightForBadTimes(){
+        assertEquals(new TimeWindow(0, 7 * 60), TimeWindow.parse("25:99", "7:00"));
+    }
+
+    @Test
+    public void openBetweenStartAndEnd(){
+        TimeWindow window = TimeWindow.parse("9:00", "17:30");
+        assertFalse(window.isOpen(9 * 60 - 1));
+        assertTrue(window.isOpen(9 * 60));
+        assertTrue(window.isOpen(17 * 60 + 29));
+        assertFalse(window.isOpen(17 * 60 + 30));
+    }
+
+    @Test
+    public void wrapsPastMidnight(){
+        TimeWindow window = TimeWindow.parse("22:00", "7:00");
+        assertTrue(window.isOpen(23 * 60));
+        assertTrue(window.isOpen(0));
+        assertTrue(window.isOpen(7 * 60 - 1));
+        assertFalse(window.isOpen(7 * 60));
+        assertFalse(window.isOpen(12 * 60));
+        assertEquals(22 * 60 - 12 * 60, window.minutesUntilOpen(12 * 60));
+    }
+
+    @Test
+    public void sameStartAndEndIsAlwaysOpen(){
+        TimeWindow window = new TimeWindow(600, 600 + MINUTES_PER_DAY);
+        assertEquals(TimeWindow.ALWAYS.getStart(), TimeWindow.ALWAYS.getEnd());
+        for(int minute = 0; minute < MINUTES_PER_DAY; minute++){
+            assertTrue(window.isOpen(minute));
+            assertTrue(TimeWindow.ALWAYS.isOpen(minute));
+        }
+    }
+
+    @Test
+    public void untilOpen(){
+        TimeWindow window = TimeWindow.parse("9:00", "17:00");
+        assertEquals(0, window.minutesUntilOpen(10 * 60));
+        assertEquals(60, window.minutesUntilOpen(8 * 60));
+        assertEquals((24 - 18 + 9) * 60, window.minutesUntilOpen(18 * 60));
+
+        // 08:30 local, UTC+1
+        long day = 1000 * MILLIS_PER_DAY;
+        Clock clock = new FixedClock(day + 7 * 60 * MILLIS_PER_MINUTE + 30 * MILLIS_PER_MINUTE, 60 * (int)MILLIS_PER_MINUTE);
+        assertFalse(window.isOpen(clock));
+        assertEquals(30 * MILLIS_PER_MINUTE, window.millisUntilOpen(clock));
+    }
+
+    @Test
+    public void minuteOfDayBeforeTheEpoch(){
+        assertEquals(MINUTES_PER_DAY - 1, TimeWindow.minuteOfDay(-MILLIS_PER_MINUTE, 0));
+        assertEquals(0, TimeWindow.minuteOfDay(-MILLIS_PER_DAY, 0));
+        assertEquals(60, TimeWindow.minuteOfDay(0, 60 * (int)MILLIS_PER_MINUTE));
+    }
+}
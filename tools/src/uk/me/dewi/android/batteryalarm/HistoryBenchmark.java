@@ -0,0 +1,340 @@
+package uk.me.dewi.android.batteryalarm;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Times the work done over the whole battery history rather than in a
+ * single check, on a plain JVM: building the usage analytics from a year of
+ * samples read from the rotated {@link HistoryLog} files, as the usage
+ * screen does the first time it is opened, exporting that year with
+ * {@link HistoryCodec} against writing it as CSV, and finding a time range
+ * in it through the {@link HistoryIndex} as the history provider does.
+ *
+ * The year is made up, a sample every five minutes with a day of use and a
+ * night on the charger, and is the same on every run. Each benchmark is
+ * warmed up and then repeated for a fixed time, the numbers are only good
+ * for comparing runs on the same machine.
+ *
+ * <code>java uk.me.dewi.android.batteryalarm.HistoryBenchmark [seconds per benchmark]</code>
+ */
+public class HistoryBenchmark {
+
+    /** A battery check every five minutes. */
+    private static final long STEP = 5 * MonitorScheduler.MINUTE;
+
+    /** Samples in a year of checks. */
+    private static final int SAMPLES = (int)(365 * TimeWindow.MILLIS_PER_DAY / STEP);
+
+    /** Monday 4 January 2010, midnight UTC. */
+    private static final long START = 1262563200000L;
+
+    /** Small enough files that a year is rotated across several. */
+    private static final long FILE_BYTES = 256 * 1024;
+    private static final int MAX_FILES = 16;
+
+    /** Work repeated until the time is up. */
+    private interface Op {
+        void run() throws Exception;
+    }
+
+    /** Finds the records in a time range. */
+    private interface Lookup {
+        int find(long from, long to);
+    }
+
+    /** Keeps the results of the operations live. */
+    private static long sSink;
+
+    public static void main(String[] args) throws Exception {
+        long millis = (long)((args.length > 0 ? Double.parseDouble(args[0]) : 2) * 1000);
+        File dir = File.createTempFile("benchmark", "");
+        dir.delete();
+        dir.mkdir();
+        try{
+            run(dir, millis);
+        }
+        finally{
+            for(File file : dir.listFiles()){
+                file.delete();
+            }
+            dir.delete();
+        }
+    }
+
+    private static void run(File dir, long millis) throws Exception {
+        HistoryLog log = new HistoryLog(dir, "history", FILE_BYTES, MAX_FILES);
+        writeYear(log);
+        final List<HistoryLog.View> views = log.openViews();
+        final Clock clock = new UtcClock();
+
+        System.out.println("history benchmark, " + SAMPLES + " samples in " + views.size() + " files");
+        System.out.println("benchmark                  ms/year  M samples/s  bytes/sample");
+        report("analytics from the log", millis, -1, new Op() {
+            public void run() {
+                DischargeAnalytics analytics = new DischargeAnalytics(clock);
+                for(HistoryLog.View view : views){
+                    analytics.addAll(view);
+                }
+                sSink += analytics.getSampleCount();
+            }
+        });
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(SAMPLES * HistoryLog.RECORD_SIZE);
+        HistoryCodec.export(views, out);
+        final byte[] export = out.toByteArray();
+        report("export", millis, export.length, new Op() {
+            public void run() throws Exception {
+                out.reset();
+                sSink += HistoryCodec.export(views, out);
+            }
+        });
+        final BatterySample sample = new BatterySample();
+        report("read export", millis, export.length, new Op() {
+            public void run() throws Exception {
+                HistoryCodec.Reader reader = new HistoryCodec.Reader(new ByteArrayInputStream(export));
+                while(reader.next(sample)){
+                    sSink += sample.level;
+                }
+                reader.close();
+            }
+        });
+
+        out.reset();
+        writeCsv(views, sample, out);
+        final byte[] csv = out.toByteArray();
+        report("write csv", millis, csv.length, new Op() {
+            public void run() throws Exception {
+                out.reset();
+                writeCsv(views, sample, out);
+            }
+        });
+        report("read csv", millis, csv.length, new Op() {
+            public void run() throws Exception {
+                BufferedReader reader = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(csv), "US-ASCII"));
+                reader.readLine();
+                String line;
+                while((line = reader.readLine()) != null){
+                    parseCsv(line, sample);
+                    sSink += sample.level;
+                }
+            }
+        });
+
+        final HistoryIndex index = new HistoryIndex();
+        System.out.println("lookup                    us/query  records/query");
+        lookup("find a day", millis, TimeWindow.MILLIS_PER_DAY, new Lookup() {
+            public int find(long from, long to) {
+                return index.find(views, from, to).size();
+            }
+        });
+        lookup("find a week of alerts", millis, 7 * TimeWindow.MILLIS_PER_DAY, new Lookup() {
+            public int find(long from, long to) {
+                HistoryIndex.Range range = index.findAlerts(views, from, to);
+                for(int row = 0; row < range.size(); row++){
+                    sSink += range.getPosition(row);
+                }
+                return range.size();
+            }
+        });
+        lookup("scan for a day", millis, TimeWindow.MILLIS_PER_DAY, new Lookup() {
+            public int find(long from, long to) {
+                return scan(views, from, to);
+            }
+        });
+        if(sSink == 42){
+            System.out.println();
+        }
+    }
+
+    /**
+     * Writes a year of samples. The battery comes off the charger in the
+     * morning, drains faster during the day than in the evening, and goes
+     * back on the charger at night or when it is nearly flat.
+     */
+    private static void writeYear(HistoryLog log) throws Exception {
+        Random random = new Random(1);
+        HistoryBuffer buffer = new HistoryBuffer();
+        BatterySample sample = new BatterySample();
+        sample.scale = 100;
+        sample.health = 2;
+        double level = 100;
+        double drainPerStep = 0;
+        boolean plugged = true;
+        boolean low = false;
+        for(int i = 0; i < SAMPLES; i++){
+            long time = START + i * STEP;
+            int minuteOfDay = (int)(time % TimeWindow.MILLIS_PER_DAY / MonitorScheduler.MINUTE);
+            if(minuteOfDay % 60 == 0){
+                // A new hour of use
+                double perHour = minuteOfDay >= 8 * 60 && minuteOfDay < 18 * 60
+                                 ? 4 + random.nextDouble() * 8 : 0.5 + random.nextDouble() * 2;
+                drainPerStep = perHour / 12;
+            }
+            if(plugged && minuteOfDay == 7 * 60){
+                plugged = false;
+            }
+            else if(!plugged && (minuteOfDay == 23 * 60 || level < 5)){
+                plugged = true;
+            }
+            if(plugged){
+                level = Math.min(100, level + 25.0 / 12);
+                low = false;
+            }
+            else{
+                level = Math.max(0, level - drainPerStep);
+            }
+
+            sample.time = time;
+            sample.elapsed = time - START;
+            sample.level = (int)level;
+            sample.plugged = plugged;
+            sample.plugType = plugged ? 1 : 0;
+            sample.temperature = 250 + (int)(level / 10) + random.nextInt(30);
+            sample.voltage = 3500 + (int)(level * 7);
+            sample.flags = 0;
+            if(!plugged && !low && sample.level < AlarmPrefs.DEFAULT_THRESHOLD){
+                sample.flags = 1 << AlertEngine.RULE_LOW;
+                low = true;
+            }
+            buffer.add(sample);
+            if(buffer.unflushed() == buffer.capacity()){
+                log.flush(buffer);
+            }
+        }
+        log.flush(buffer);
+    }
+
+    private static void writeCsv(List<HistoryLog.View> views, BatterySample sample, ByteArrayOutputStream out){
+        PrintStream print = new PrintStream(out);
+        print.println(HistoryTool.CSV_HEADER);
+        for(HistoryLog.View view : views){
+            for(int i = 0; i < view.size(); i++){
+                view.get(i, sample);
+                HistoryTool.printCsv(sample, print);
+            }
+        }
+        print.flush();
+    }
+
+    /**
+     * Reads a line written by {@link HistoryTool#printCsv(BatterySample, PrintStream)}.
+     */
+    private static void parseCsv(String line, BatterySample sample){
+        int start = 0;
+        int end = line.indexOf(',');
+        sample.time = Long.parseLong(line.substring(start, end));
+        start = end + 1;
+        end = line.indexOf(',', start);
+        sample.level = Integer.parseInt(line.substring(start, end));
+        start = end + 1;
+        end = line.indexOf(',', start);
+        sample.plugType = Integer.parseInt(line.substring(start, end));
+        sample.plugged = sample.plugType != 0;
+        start = end + 1;
+        end = line.indexOf(',', start);
+        sample.scale = Integer.parseInt(line.substring(start, end));
+        start = end + 1;
+        end = line.indexOf(',', start);
+        sample.temperature = Integer.parseInt(line.substring(start, end));
+        start = end + 1;
+        end = line.indexOf(',', start);
+        sample.voltage = Integer.parseInt(line.substring(start, end));
+        start = end + 1;
+        end = line.indexOf(',', start);
+        sample.health = Integer.parseInt(line.substring(start, end));
+        sample.flags = Integer.parseInt(line.substring(end + 1));
+    }
+
+    /**
+     * @return how many records are in the time range, found by reading
+     * through every file
+     */
+    private static int scan(List<HistoryLog.View> views, long from, long to){
+        int count = 0;
+        for(HistoryLog.View view : views){
+            for(int i = 0; i < view.size(); i++){
+                long time = view.getTime(i);
+                if(time >= from && time < to){
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Times lookups of ranges starting at random whole days in the year and
+     * prints a line of the lookup table.
+     */
+    private static void lookup(String name, long millis, final long span, final Lookup lookup) throws Exception {
+        final int days = (int)((SAMPLES * STEP - span) / TimeWindow.MILLIS_PER_DAY);
+        long records = 0;
+        for(int day = 0; day < days; day++){
+            long from = START + day * TimeWindow.MILLIS_PER_DAY;
+            records += lookup.find(from, from + span);
+        }
+        final Random random = new Random(2);
+        double nanos = time(millis, new Op() {
+            public void run() {
+                long from = START + random.nextInt(days) * TimeWindow.MILLIS_PER_DAY;
+                sSink += lookup.find(from, from + span);
+            }
+        });
+        System.out.println(String.format("%-24s %9.2f %14.1f", name, nanos / 1e3, (double)records / days));
+    }
+
+    /**
+     * Times the op over the year and prints a line of the table.
+     *
+     * @param bytes the size of what the op writes or reads, -1 if nothing
+     */
+    private static void report(String name, long millis, long bytes, Op op) throws Exception {
+        double nanos = time(millis, op);
+        String perSample = bytes < 0 ? "-" : String.format("%.1f", (double)bytes / SAMPLES);
+        System.out.println(String.format("%-24s %9.2f %12.2f %13s", name, nanos / 1e6, SAMPLES * 1e3 / nanos, perSample));
+    }
+
+    /**
+     * Runs the op for a quarter of the time to warm up, then for the time.
+     *
+     * @return the mean nanoseconds per run
+     */
+    private static double time(long millis, Op op) throws Exception {
+        long end = System.nanoTime() + millis * 250000;
+        while(System.nanoTime() < end){
+            op.run();
+        }
+        long runs = 0;
+        long start = System.nanoTime();
+        end = start + millis * 1000000;
+        long now;
+        do{
+            op.run();
+            runs++;
+            now = System.nanoTime();
+        } while(now < end);
+        return (double)(now - start) / runs;
+    }
+
+    private static class UtcClock implements Clock {
+
+        public long currentTimeMillis() {
+            return START;
+        }
+
+        public long elapsedRealtime() {
+            return 0;
+        }
+
+        public int getOffset(long millis) {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package uk.me.dewi.android.batteryalarm;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Merges battery history exports pulled off devices, or prints one as CSV,
+ * see {@link HistoryCodec}.
+ *
+ * <code>java uk.me.dewi.android.batteryalarm.HistoryTool merge out.bahx in.bahx...</code><br>
+ * <code>java uk.me.dewi.android.batteryalarm.HistoryTool csv in.bahx</code>
+ */
+public class HistoryTool {
+
+    /** The columns of {@link #printCsv(BatterySample, PrintStream)}. */
+    public static final String CSV_HEADER = "time,level,plug_type,scale,temperature,voltage,health,flags";
+
+    public static void main(String[] args) throws IOException {
+        if(args.length >= 3 && "merge".equals(args[0])){
+            List<HistoryCodec.Reader> readers = new ArrayList<HistoryCodec.Reader>();
+            try{
+                for(int i = 2; i < args.length; i++){
+                    readers.add(new HistoryCodec.Reader(new BufferedInputStream(new FileInputStream(args[i]))));
+                }
+                HistoryCodec.Writer writer = new HistoryCodec.Writer(new BufferedOutputStream(new FileOutputStream(args[1])));
+                System.out.println(HistoryCodec.merge(readers, writer) + " samples");
+            }
+            finally{
+                for(HistoryCodec.Reader reader : readers){
+                    reader.close();
+                }
+            }
+        }
+        else if(args.length == 2 && "csv".equals(args[0])){
+            HistoryCodec.Reader reader = new HistoryCodec.Reader(new BufferedInputStream(new FileInputStream(args[1])));
+            try{
+                toCsv(reader, System.out);
+            }
+            finally{
+                reader.close();
+            }
+        }
+        else{
+            System.err.println("Usage: HistoryTool merge out.bahx in.bahx...");
+            System.err.println("       HistoryTool csv in.bahx");
+        }
+    }
+
+    /**
+     * Writes the samples of an export as CSV.
+     */
+    public static void toCsv(HistoryCodec.Reader reader, PrintStream out) throws IOException {
+        BatterySample sample = new BatterySample();
+        out.println(CSV_HEADER);
+        while(reader.next(sample)){
+            printCsv(sample, out);
+        }
+        out.flush();
+    }
+
+    /**
+     * Writes one sample as a line of CSV.
+     */
+    public static void printCsv(BatterySample sample, PrintStream out){
+        out.print(sample.time);
+        out.print(',');
+        out.print(sample.level);
+        out.print(',');
+        out.print(sample.plugType);
+        out.print(',');
+        out.print(sample.scale);
+        out.print(',');
+        out.print(sample.temperature);
+        out.print(',');
+        out.print(sample.voltage);
+        out.print(',');
+        out.print(sample.health);
+        out.print(',');
+        out.println(sample.flags);
+    }
+}
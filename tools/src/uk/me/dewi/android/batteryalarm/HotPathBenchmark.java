@@ -0,0 +1,218 @@
+package uk.me.dewi.android.batteryalarm;
+
+import static uk.me.dewi.android.batteryalarm.AlarmPrefs.*;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Times the work a battery check does on a plain JVM, and counts the bytes
+ * each operation allocates, so a change to the hot path shows up in numbers.
+ *
+ * Each benchmark is warmed up and then run in rounds for a fixed time. The
+ * allocations are read from the HotSpot thread MXBean, and are shown as ?
+ * on a JVM without it. Run it on an otherwise idle machine, the numbers are
+ * only good for comparing runs on the same one.
+ *
+ * <code>java uk.me.dewi.android.batteryalarm.HotPathBenchmark [seconds per benchmark]</code>
+ */
+public class HotPathBenchmark {
+
+    private static final int ROUND = 1000;
+
+    /** One operation, varied by its index so no two runs are the same. */
+    private interface Op {
+        void run(int i) throws Exception;
+    }
+
+    /** Keeps the results of the operations live. */
+    private static long sSink;
+
+    public static void main(String[] args) throws Exception {
+        long millis = (long)((args.length > 0 ? Double.parseDouble(args[0]) : 2) * 1000);
+        File dir = File.createTempFile("benchmark", "");
+        dir.delete();
+        dir.mkdir();
+        try{
+            run(dir, millis);
+        }
+        finally{
+            for(File file : dir.listFiles()){
+                file.delete();
+            }
+            dir.delete();
+        }
+    }
+
+    private static void run(File dir, long millis) throws Exception {
+        final MapPreferences[] preferences = new MapPreferences[AlarmConfig.PROFILE_COUNT + 1];
+        for(int i = 0; i < preferences.length; i++){
+            preferences[i] = new MapPreferences();
+        }
+        preferences[0].put(PREF_ENABLED, "true");
+        preferences[0].put(PREF_THRESHOLD, "15");
+        preferences[0].put(PREF_DELAY_MINUTES, "20");
+        preferences[0].put(PREF_DISABLE_AT_NIGHT, "true");
+        preferences[0].put(PREF_MIN_TIME, "7:30");
+        preferences[0].put(PREF_MAX_TIME, "22:45");
+        preferences[0].put(PREF_CHARGED_LEVEL, "95");
+        preferences[0].put(PREF_MAX_TEMPERATURE, "45");
+        preferences[1].put(PREF_PROFILE_ACTIVE, "true");
+        preferences[1].put(PREF_PROFILE_START, "9:00");
+        preferences[1].put(PREF_PROFILE_END, "17:30");
+        preferences[1].put(PREF_THRESHOLD, "30");
+
+        final AlarmConfig config = AlarmConfig.parse(preferences);
+        final File configFile = new File(dir, AlarmConfig.CONFIG_FILE);
+        config.save(configFile);
+
+        final BenchClock clock = new BenchClock();
+        final TimeWindow window = config.getAlertWindow();
+        final AlertEngine engine = new AlertEngine(config.buildRules());
+        final CheckPipeline pipeline = new CheckPipeline(new MonitorScheduler(), new AlertState());
+        final HistoryLog log = new HistoryLog(dir, "history");
+        final BatterySample sample = new BatterySample();
+        sample.scale = 100;
+        sample.temperature = 300;
+        sample.voltage = 3900;
+        sample.health = 2;
+
+        System.out.println("benchmark                    ns/op   bytes/op");
+        report("parse preferences", millis, new Op() {
+            public void run(int i) {
+                sSink += AlarmConfig.parse(preferences).getThreshold();
+            }
+        });
+        report("load config file", millis, new Op() {
+            public void run(int i) throws Exception {
+                sSink += AlarmConfig.load(configFile).getThreshold();
+            }
+        });
+        report("active profile", millis, new Op() {
+            public void run(int i) {
+                clock.time += 60000;
+                sSink += config.getActive(clock).getThreshold();
+            }
+        });
+        report("time window check", millis, new Op() {
+            public void run(int i) {
+                clock.time += 60000;
+                sSink += window.isOpen(clock) ? 1 : 0;
+            }
+        });
+        report("rule evaluation", millis, new Op() {
+            public void run(int i) {
+                sample.level = 100 - i % 100;
+                sample.plugged = i % 300 >= 200;
+                sSink += engine.evaluate(sample);
+            }
+        });
+        report("check pipeline", millis, new Op() {
+            public void run(int i) {
+                clock.time += 60000;
+                sample.time = clock.time;
+                sample.elapsed = clock.time;
+                sample.level = 100 - i % 100;
+                sample.plugged = i % 300 >= 200;
+                sSink += pipeline.check(sample, clock.time, config) ? 1 : 0;
+            }
+        });
+        report("history log append", millis, new Op() {
+            public void run(int i) throws Exception {
+                clock.time += 60000;
+                sample.time = clock.time;
+                sample.level = 100 - i % 100;
+                log.append(sample);
+            }
+        });
+        if(sSink == 42){
+            System.out.println();
+        }
+    }
+
+    private static void report(String name, long millis, Op op) throws Exception {
+        // Warm up for a quarter of the time so the JIT has compiled it
+        int i = 0;
+        long end = System.nanoTime() + millis * 250000;
+        while(System.nanoTime() < end){
+            for(int j = 0; j < ROUND; j++){
+                op.run(i++);
+            }
+        }
+
+        long ops = 0;
+        long startBytes = allocatedBytes();
+        long start = System.nanoTime();
+        end = start + millis * 1000000;
+        long now;
+        do{
+            for(int j = 0; j < ROUND; j++){
+                op.run(i++);
+            }
+            ops += ROUND;
+            now = System.nanoTime();
+        } while(now < end);
+        long bytes = allocatedBytes() - startBytes;
+
+        String perOp = startBytes < 0 ? "?" : String.format("%.1f", (double)bytes / ops);
+        System.out.println(String.format("%-24s %9.1f %10s", name, (double)(now - start) / ops, perOp));
+    }
+
+    /**
+     * @return the bytes allocated by this thread so far, or -1 if the JVM
+     * does not count them
+     */
+    private static long allocatedBytes(){
+        java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if(!(threads instanceof com.sun.management.ThreadMXBean)){
+            return -1;
+        }
+        com.sun.management.ThreadMXBean hotspot = (com.sun.management.ThreadMXBean)threads;
+        if(!hotspot.isThreadAllocatedMemorySupported()){
+            return -1;
+        }
+        return hotspot.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    /** Stands in for SharedPreferences, which keeps every value as read from XML. */
+    private static class MapPreferences implements AlarmConfig.Preferences {
+
+        private final Map<String, String> mValues = new HashMap<String, String>();
+
+        void put(String key, String value){
+            mValues.put(key, value);
+        }
+
+        public String getString(String key, String defValue) {
+            String value = mValues.get(key);
+            return value != null ? value : defValue;
+        }
+
+        public boolean getBoolean(String key, boolean defValue) {
+            String value = mValues.get(key);
+            return value != null ? Boolean.parseBoolean(value) : defValue;
+        }
+
+        public void onBadValue(String key, String value) {
+        }
+    }
+
+    private static class BenchClock implements Clock {
+
+        long time = 1262304000000L;
+
+        public long currentTimeMillis() {
+            return time;
+        }
+
+        public long elapsedRealtime() {
+            return time;
+        }
+
+        public int getOffset(long millis) {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package uk.me.dewi.android.batteryalarm;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Runs the {@link TraceSimulator} from the command line, over made up traces
+ * or battery histories pulled off devices.
+ *
+ * <code>java uk.me.dewi.android.batteryalarm.SimulateTraces [traces [days [threads]]] [history files...]</code>
+ */
+public class SimulateTraces {
+
+    public static void main(String[] args) throws Exception {
+        int count = 100;
+        int days = 28;
+        int threads = 0;
+        List<BatteryTrace> traces = new ArrayList<BatteryTrace>();
+        int number = 0;
+        for(String arg : args){
+            if(arg.length() > 0 && Character.isDigit(arg.charAt(0))){
+                int value = Integer.parseInt(arg);
+                switch(number++){
+                    case 0: count = value; break;
+                    case 1: days = value; break;
+                    default: threads = value;
+                }
+            }
+            else{
+                traces.add(load(new File(arg)));
+            }
+        }
+        if(traces.isEmpty()){
+            for(int i = 0; i < count; i++){
+                traces.add(BatteryTrace.synthetic(i, days, 0));
+            }
+        }
+
+        TraceSimulator.Settings settings = new TraceSimulator.Settings();
+        settings.fixedSchedule = true;
+        report("Fixed delay", traces, settings, threads);
+        settings.fixedSchedule = false;
+        settings.useDrainProfile = false;
+        report("Current rate only", traces, settings, threads);
+        settings.useDrainProfile = true;
+        report("With drain profile", traces, settings, threads);
+    }
+
+    private static BatteryTrace load(File file) throws IOException {
+        HistoryLog.View view = HistoryLog.View.open(file);
+        BatteryTrace trace = view != null ? BatteryTrace.fromHistory(file.getName(), view) : null;
+        if(trace == null){
+            throw new IOException("Not a battery history: " + file);
+        }
+        return trace;
+    }
+
+    private static void report(String name, List<BatteryTrace> traces, TraceSimulator.Settings settings, int threads)
+            throws InterruptedException, ExecutionException {
+        long started = System.currentTimeMillis();
+        TraceSimulator.Result result = TraceSimulator.replayAll(traces, settings, threads);
+        System.out.println(name + " (" + (System.currentTimeMillis() - started) + " ms)");
+        System.out.println(result);
+    }
+}